@@ -7,6 +7,7 @@ import java.util.logging.Logger;
 import javax.net.SocketFactory;
 
 import de.mickare.xserver.exceptions.InvalidConfigurationException;
+import de.mickare.xserver.net.SendPriority;
 import de.mickare.xserver.net.XServer;
 
 public interface AbstractXServerManager {
@@ -81,12 +82,49 @@ public interface AbstractXServerManager {
 
   public abstract Message readMessage(XServer sender, byte[] data) throws IOException;
 
+  /**
+   * Set the dictionary that small messages are compressed against, e.g. typical message data of
+   * the plugins. It is sent to every server that enabled dictionary compression. Without one, each
+   * connection trains its dictionary from recent messages.
+   * 
+   * @param dictionary up to 32 KiB, the end is used of longer ones; null to train again
+   */
+  public abstract void setCompressionDictionary(byte[] dictionary);
+
   public abstract EventHandler<?> getEventHandler();
 
   public abstract void registerOwnListeners();
 
+  /**
+   * Get the members of a group, as of the last reload
+   * 
+   * @param group
+   * @return unmodifiable set of servers
+   */
   Set<XServer> getServers(XGroup group);
 
+  /**
+   * Send a message to all servers of a group, including this one if it is a member. The message is
+   * serialized once and all connections write the same frame.
+   * 
+   * @param group
+   * @param message
+   * @return number of servers that queued the message
+   * @throws IOException
+   */
+  int sendToGroup(XGroup group, Message message) throws IOException;
+
+  /**
+   * Send a message to all servers of a group, see {@link #sendToGroup(XGroup, Message)}.
+   * 
+   * @param group
+   * @param message
+   * @param priority lane in the sending queues
+   * @return number of servers that queued the message
+   * @throws IOException
+   */
+  int sendToGroup(XGroup group, Message message, SendPriority priority) throws IOException;
+
   Set<? extends XGroup> getGroups();
 
   XGroup getGroupByName(String name);
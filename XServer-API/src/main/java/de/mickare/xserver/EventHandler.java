@@ -3,6 +3,7 @@ package de.mickare.xserver;
 import java.util.Map;
 
 import de.mickare.xserver.events.XServerEvent;
+import de.mickare.xserver.net.Request;
 
 public interface EventHandler<T> {
 
@@ -56,5 +57,13 @@ public interface EventHandler<T> {
    */
   public abstract XServerEvent callEvent(XServerEvent event);
 
+  /**
+   * Hand a request to the responder of its channel...
+   * 
+   * @param request
+   * @return false if no responder is registered for the channel
+   */
+  public abstract boolean respond(Request request);
+
   public abstract void runTask(Boolean sync, XServerListenerPlugin<T> plugin, Runnable run);
 }
@@ -1,6 +1,8 @@
 package de.mickare.xserver;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import de.mickare.xserver.net.XServer;
 
@@ -27,6 +29,27 @@ public interface Message {
    */
   public abstract byte[] getContent();
 
+  /**
+   * Get a read only view of the content, without copying it.
+   * 
+   * @return content buffer
+   */
+  public abstract ByteBuffer getContentBuffer();
+
+  /**
+   * Get a stream over the content, without copying it.
+   * 
+   * @return content stream
+   */
+  public abstract InputStream getContentStream();
+
+  /**
+   * Get the length of the content in bytes
+   * 
+   * @return content length
+   */
+  public abstract int getContentLength();
+
   /**
    * Get the compiled byte array of this message...
    * 
@@ -1,5 +1,6 @@
 package de.mickare.xserver;
 
+import java.io.File;
 import java.util.logging.Logger;
 
 public interface XServerPlugin {
@@ -18,4 +19,11 @@ public interface XServerPlugin {
   
   void setDebugging(boolean debug);
 
+  /**
+   * Folder for files of the plugin, e.g. the outbox spill files
+   * 
+   * @return data folder
+   */
+  public File getDataFolder();
+
 }
@@ -0,0 +1,24 @@
+package de.mickare.xserver.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a registered listener that answers requests of a channel, see
+ * {@link de.mickare.xserver.net.XServer#request(String, byte[], long, java.util.concurrent.TimeUnit)}.
+ *
+ * The method takes a {@link de.mickare.xserver.net.Request}. If it returns a byte array, that is
+ * the reply. A void method replies later with {@link de.mickare.xserver.net.Request#reply(byte[])}.
+ * An exception is sent back as an error.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface XResponder {
+
+  boolean sync() default true;
+
+  String channel();
+
+}
@@ -0,0 +1,31 @@
+package de.mickare.xserver.events;
+
+import de.mickare.xserver.net.XServer;
+
+/**
+ * The sending queue of a server crossed a watermark. Bulk producers should pause when it is no
+ * longer writable and continue when it is writable again.
+ */
+public class XServerWritabilityEvent extends XServerEvent {
+
+  private final XServer server;
+  private final boolean writable;
+
+  public XServerWritabilityEvent(XServer server, boolean writable) {
+    super((writable ? "Writable again: " : "Not writable: ") + server.getName());
+    this.server = server;
+    this.writable = writable;
+  }
+
+  public XServer getServer() {
+    return server;
+  }
+
+  /**
+   * @return false if the queue went above the high watermark, true if it went below the low one
+   */
+  public boolean isWritable() {
+    return writable;
+  }
+
+}
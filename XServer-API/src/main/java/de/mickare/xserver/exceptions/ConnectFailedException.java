@@ -0,0 +1,21 @@
+package de.mickare.xserver.exceptions;
+
+import java.io.IOException;
+
+import de.mickare.xserver.net.ConnectFailure;
+
+@SuppressWarnings("serial")
+public class ConnectFailedException extends IOException {
+
+  private final ConnectFailure reason;
+
+  public ConnectFailedException(ConnectFailure reason, String message) {
+    super(message == null ? "Connect failed: " + reason : "Connect failed: " + reason + " (" + message + ")");
+    this.reason = reason;
+  }
+
+  public ConnectFailure getReason() {
+    return reason;
+  }
+
+}
@@ -0,0 +1,21 @@
+package de.mickare.xserver.exceptions;
+
+import java.io.IOException;
+
+import de.mickare.xserver.net.RequestFailure;
+
+@SuppressWarnings("serial")
+public class RequestFailedException extends IOException {
+
+  private final RequestFailure reason;
+
+  public RequestFailedException(RequestFailure reason, String message) {
+    super(message == null ? "Request failed: " + reason : "Request failed: " + reason + " (" + message + ")");
+    this.reason = reason;
+  }
+
+  public RequestFailure getReason() {
+    return reason;
+  }
+
+}
@@ -0,0 +1,21 @@
+package de.mickare.xserver.exceptions;
+
+import java.io.IOException;
+
+import de.mickare.xserver.net.SendFailure;
+
+@SuppressWarnings("serial")
+public class SendFailedException extends IOException {
+
+  private final SendFailure reason;
+
+  public SendFailedException(SendFailure reason) {
+    super("Message not sent: " + reason);
+    this.reason = reason;
+  }
+
+  public SendFailure getReason() {
+    return reason;
+  }
+
+}
@@ -0,0 +1,141 @@
+package de.mickare.xserver.net;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Size classed pool of heap arrays and direct buffers. Sizes are rounded up to the next power of
+ * two, everything above {@link #MAX_POOLED_SIZE} is allocated and dropped normally.
+ */
+public class BufferPool {
+
+  public final static BufferPool DEFAULT = new BufferPool();
+
+  public final static int MIN_POOLED_SIZE = 64;
+  public final static int MAX_POOLED_SIZE = 1024 * 1024;
+
+  private final static int MIN_SHIFT = 6;
+  private final static int CLASSES = 15; // 64 byte ... 1 MiB
+  private final static int MAX_RETAINED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+  private final static int MAX_RETAINED_PER_CLASS = 1024;
+
+  private static class SizeClass<T> {
+
+    private final Queue<T> free = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger count = new AtomicInteger(0);
+    private final int limit;
+
+    private SizeClass(int size) {
+      this.limit = Math.max(2, Math.min(MAX_RETAINED_PER_CLASS, MAX_RETAINED_BYTES_PER_CLASS / size));
+    }
+
+    private T poll() {
+      T t = free.poll();
+      if (t != null) {
+        count.decrementAndGet();
+      }
+      return t;
+    }
+
+    private void offer(T t) {
+      if (count.incrementAndGet() <= limit) {
+        free.offer(t);
+      } else {
+        count.decrementAndGet();
+      }
+    }
+
+  }
+
+  private final SizeClass<byte[]>[] heap;
+  private final SizeClass<ByteBuffer>[] direct;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BufferPool() {
+    heap = new SizeClass[CLASSES];
+    direct = new SizeClass[CLASSES];
+    for (int i = 0; i < CLASSES; i++) {
+      heap[i] = new SizeClass<byte[]>(MIN_POOLED_SIZE << i);
+      direct[i] = new SizeClass<ByteBuffer>(MIN_POOLED_SIZE << i);
+    }
+  }
+
+  private static int sizeClass(int size) {
+    if (size <= MIN_POOLED_SIZE) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+
+  /**
+   * Check if a buffer of this size is taken from the pool
+   *
+   * @param size
+   * @return true if pooled
+   */
+  public static boolean isPooled(int size) {
+    return size <= MAX_POOLED_SIZE;
+  }
+
+  /**
+   * Get a heap array with at least the given length.
+   *
+   * @param size minimum length
+   * @return array, may be longer than requested
+   */
+  public byte[] acquire(int size) {
+    if (!isPooled(size)) {
+      return new byte[size];
+    }
+    int c = sizeClass(size);
+    byte[] b = heap[c].poll();
+    return b != null ? b : new byte[MIN_POOLED_SIZE << c];
+  }
+
+  /**
+   * Give an array back to the pool. It must not be used afterwards.
+   *
+   * @param b array from {@link #acquire(int)}
+   */
+  public void release(byte[] b) {
+    if (b == null || !isPooled(b.length) || Integer.bitCount(b.length) != 1 || b.length < MIN_POOLED_SIZE) {
+      return;
+    }
+    heap[sizeClass(b.length)].offer(b);
+  }
+
+  /**
+   * Get a cleared direct buffer with a capacity of at least the given size.
+   *
+   * @param size minimum capacity
+   * @return direct buffer
+   */
+  public ByteBuffer acquireDirect(int size) {
+    if (!isPooled(size)) {
+      return ByteBuffer.allocateDirect(size);
+    }
+    int c = sizeClass(size);
+    ByteBuffer b = direct[c].poll();
+    if (b == null) {
+      return ByteBuffer.allocateDirect(MIN_POOLED_SIZE << c);
+    }
+    b.clear();
+    return b;
+  }
+
+  /**
+   * Give a direct buffer back to the pool. It must not be used afterwards.
+   *
+   * @param b buffer from {@link #acquireDirect(int)}
+   */
+  public void releaseDirect(ByteBuffer b) {
+    if (b == null || !b.isDirect() || !isPooled(b.capacity()) || Integer.bitCount(b.capacity()) != 1
+        || b.capacity() < MIN_POOLED_SIZE) {
+      return;
+    }
+    direct[sizeClass(b.capacity())].offer(b);
+  }
+
+}
@@ -0,0 +1,28 @@
+package de.mickare.xserver.net;
+
+/**
+ * Reason why a {@link LoginFuture} failed.
+ */
+public enum ConnectFailure {
+
+  /**
+   * The connect failed, e.g. it was refused or there is no route to the server
+   */
+  UNREACHABLE,
+
+  /**
+   * The server didn't answer within the connect timeout
+   */
+  TIMEOUT,
+
+  /**
+   * The connection was closed before the login, e.g. the login was denied
+   */
+  LOGIN_FAILED,
+
+  /**
+   * The server object was replaced or the plugin is stopping
+   */
+  SHUTDOWN;
+
+}
@@ -3,6 +3,7 @@ package de.mickare.xserver.net;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
 public interface Connection {
 
@@ -34,8 +35,28 @@ public interface Connection {
 
   public abstract boolean send(Packet packet);
 
+  /**
+   * Queue a packet into a lane of the sending queue
+   * 
+   * @param packet
+   * @param priority
+   * @return false if the lane is full
+   */
+  public abstract boolean send(Packet packet, SendPriority priority);
+
   public abstract boolean sendAll(Collection<Packet> packets);
 
+  /**
+   * Send a request and wait for the response on this connection
+   * 
+   * @param channel
+   * @param payload
+   * @param timeout
+   * @param unit
+   * @return future of the response
+   */
+  public abstract RequestFuture request(String channel, byte[] payload, long timeout, TimeUnit unit);
+
   public abstract Status getStatus();
 
   public abstract XServer getXserver();
@@ -44,10 +65,25 @@ public interface Connection {
 
   public abstract boolean isLoggedIn();
 
+  /**
+   * Check whether the sending queue is below its high watermark. After it went above, it is only
+   * writable again below the low watermark.
+   * 
+   * @return true if producers may keep sending
+   */
+  public abstract boolean isWritable();
+
   public abstract boolean isLoggingIn();
 
   public abstract String toString();
 
+  /**
+   * Get the byte, queue and latency figures of this connection
+   * 
+   * @return metrics
+   */
+  public abstract ConnectionMetrics getMetrics();
+
   public abstract long getSendingRecordSecondPackageCount();
 
   public abstract long getSendinglastSecondPackageCount();
@@ -0,0 +1,265 @@
+package de.mickare.xserver.net;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of one connection. All methods are thread safe, so the figures
+ * can be read while the I/O threads update them.
+ */
+public class ConnectionMetrics {
+
+  /**
+   * Packets per second, with the record second.
+   */
+  public static final class Rate {
+
+    private final AtomicLong windowStart = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong windowCount = new AtomicLong(0);
+    private final AtomicLong lastSecond = new AtomicLong(0);
+    private final AtomicLong record = new AtomicLong(0);
+
+    public void tick() {
+      long now = System.currentTimeMillis();
+      long start = windowStart.get();
+      if (now - start >= 1000 && windowStart.compareAndSet(start, now)) {
+        // Only the thread that won the window switch moves the count
+        long n = windowCount.getAndSet(0);
+        lastSecond.set(n);
+        long r;
+        while (n > (r = record.get()) && !record.compareAndSet(r, n)) {
+        }
+      }
+      windowCount.incrementAndGet();
+    }
+
+    public long getLastSecond() {
+      // Nothing ticked in the last two seconds
+      return System.currentTimeMillis() - windowStart.get() > 2000 ? 0 : lastSecond.get();
+    }
+
+    public long getRecord() {
+      return record.get();
+    }
+  }
+
+  private final Collection<?> queue;
+  private final int queueCapacity;
+  private final long created = System.currentTimeMillis();
+
+  private final AtomicLong packetsSent = new AtomicLong(0);
+  private final AtomicLong bytesSent = new AtomicLong(0);
+  private final AtomicLong packetsReceived = new AtomicLong(0);
+  private final AtomicLong bytesReceived = new AtomicLong(0);
+  private final AtomicLong dropped = new AtomicLong(0);
+  private final AtomicInteger peakQueueDepth = new AtomicInteger(0);
+
+  private final AtomicLong compressedSentRaw = new AtomicLong(0);
+  private final AtomicLong compressedSent = new AtomicLong(0);
+  private final AtomicLong compressedReceivedRaw = new AtomicLong(0);
+  private final AtomicLong compressedReceived = new AtomicLong(0);
+
+  private final Rate sendingRate = new Rate();
+  private final Rate receivingRate = new Rate();
+
+  private final LatencyHistogram queueLatency = new LatencyHistogram();
+  private final LatencyHistogram[] handlerTime;
+
+  /**
+   * @param queue sending queue of the connection, null if there is none
+   * @param queueCapacity
+   */
+  public ConnectionMetrics(Collection<?> queue, int queueCapacity) {
+    this.queue = queue;
+    this.queueCapacity = queueCapacity;
+    PacketType[] types = PacketType.values();
+    this.handlerTime = new LatencyHistogram[types.length];
+    for (int i = 0; i < types.length; i++) {
+      handlerTime[i] = new LatencyHistogram();
+    }
+  }
+
+  // ********************************************
+  // Recording
+
+  /**
+   * A packet was put into the sending queue.
+   */
+  public void packetQueued() {
+    if (queue == null) {
+      return;
+    }
+    int depth = queue.size();
+    int peak;
+    while (depth > (peak = peakQueueDepth.get()) && !peakQueueDepth.compareAndSet(peak, depth)) {
+    }
+  }
+
+  /**
+   * The sending queue was full.
+   */
+  public void packetDropped() {
+    dropped.incrementAndGet();
+  }
+
+  /**
+   * A packet was taken out of the sending queue by the writing thread.
+   *
+   * @param nanos time the packet spent in the queue
+   */
+  public void packetDequeued(long nanos) {
+    queueLatency.record(nanos);
+  }
+
+  /**
+   * A packet was written to the socket.
+   *
+   * @param frameSize bytes on the wire
+   */
+  public void packetSent(int frameSize) {
+    packetsSent.incrementAndGet();
+    bytesSent.addAndGet(frameSize);
+    sendingRate.tick();
+  }
+
+  /**
+   * A packet was read from the socket.
+   *
+   * @param frameSize
+   */
+  public void packetReceived(int frameSize) {
+    packetsReceived.incrementAndGet();
+    bytesReceived.addAndGet(frameSize);
+    receivingRate.tick();
+  }
+
+  /**
+   * A received packet was handled.
+   *
+   * @param type
+   * @param nanos time spent in the handler
+   */
+  public void packetHandled(PacketType type, long nanos) {
+    handlerTime[type.ordinal()].record(nanos);
+  }
+
+  /**
+   * An outgoing packet was compressed.
+   *
+   * @param rawFrameSize
+   * @param compressedFrameSize
+   */
+  public void packetCompressed(int rawFrameSize, int compressedFrameSize) {
+    compressedSentRaw.addAndGet(rawFrameSize);
+    compressedSent.addAndGet(compressedFrameSize);
+  }
+
+  /**
+   * A received packet was decompressed.
+   *
+   * @param rawFrameSize
+   * @param compressedFrameSize
+   */
+  public void packetDecompressed(int rawFrameSize, int compressedFrameSize) {
+    compressedReceivedRaw.addAndGet(rawFrameSize);
+    compressedReceived.addAndGet(compressedFrameSize);
+  }
+
+  // ********************************************
+  // Reading
+
+  /**
+   * @return epoch millis of the start of the connection
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  public long getPacketsSent() {
+    return packetsSent.get();
+  }
+
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  public long getPacketsReceived() {
+    return packetsReceived.get();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * @return number of packets that were rejected because the sending queue was full
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return packets that are waiting in the sending queue
+   */
+  public int getQueueDepth() {
+    return queue != null ? queue.size() : 0;
+  }
+
+  public int getPeakQueueDepth() {
+    return peakQueueDepth.get();
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * @return compressed size / uncompressed size of the compressed outgoing packets, 1 if nothing
+   *         was compressed
+   */
+  public double getSentCompressionRatio() {
+    long raw = compressedSentRaw.get();
+    return raw > 0 ? (double) compressedSent.get() / raw : 1.0;
+  }
+
+  /**
+   * @return compressed size / uncompressed size of the compressed received packets, 1 if nothing
+   *         was compressed
+   */
+  public double getReceivedCompressionRatio() {
+    long raw = compressedReceivedRaw.get();
+    return raw > 0 ? (double) compressedReceived.get() / raw : 1.0;
+  }
+
+  /**
+   * @return bytes saved on the wire by compression, in both directions
+   */
+  public long getCompressionSavedBytes() {
+    return compressedSentRaw.get() - compressedSent.get() + compressedReceivedRaw.get() - compressedReceived.get();
+  }
+
+  public Rate getSendingRate() {
+    return sendingRate;
+  }
+
+  public Rate getReceivingRate() {
+    return receivingRate;
+  }
+
+  /**
+   * @return time from putting a packet into the sending queue until the writing thread takes it
+   */
+  public LatencyHistogram getQueueLatency() {
+    return queueLatency;
+  }
+
+  /**
+   * @param type
+   * @return time spent handling received packets of the type
+   */
+  public LatencyHistogram getHandlerTime(PacketType type) {
+    return handlerTime[type.ordinal()];
+  }
+
+}
@@ -0,0 +1,94 @@
+package de.mickare.xserver.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in nanoseconds. Like an HDR histogram, every power of two is
+ * split into a fixed number of linear sub buckets, so the relative error stays below 1/8 over the
+ * whole range from nanoseconds to days.
+ */
+public class LatencyHistogram {
+
+  private final static int SUB_BUCKET_BITS = 3;
+  private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private final static int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong(0);
+  private final AtomicLong total = new AtomicLong(0);
+  private final AtomicLong max = new AtomicLong(0);
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long highestValueOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  /**
+   * Record one duration
+   *
+   * @param nanos negative values are counted as 0
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(indexOf(nanos));
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+    long m;
+    while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax(TimeUnit unit) {
+    return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+  }
+
+  public long getMean(TimeUnit unit) {
+    long c = count.get();
+    return c > 0 ? unit.convert(total.get() / c, TimeUnit.NANOSECONDS) : 0;
+  }
+
+  /**
+   * Get the value that is not exceeded by the given share of all recorded values.
+   *
+   * @param percentile 0 - 100
+   * @param unit
+   * @return upper bound of the bucket, 0 if nothing was recorded
+   */
+  public long getPercentile(double percentile, TimeUnit unit) {
+    long c = count.get();
+    if (c == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(c * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return unit.convert(Math.min(highestValueOf(i), max.get()), TimeUnit.NANOSECONDS);
+      }
+    }
+    return getMax(unit);
+  }
+
+}
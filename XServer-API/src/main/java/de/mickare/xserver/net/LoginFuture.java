@@ -0,0 +1,198 @@
+package de.mickare.xserver.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.mickare.xserver.exceptions.ConnectFailedException;
+
+/**
+ * Login of a server. Succeeds with the server when it is logged in, or fails with a
+ * {@link ConnectFailure}.
+ *
+ * Listeners run on the thread that completes the future, usually an I/O thread, so they must not
+ * block.
+ */
+public class LoginFuture implements Future<XServer> {
+
+  public interface Listener {
+
+    /**
+     * @param future the completed future
+     */
+    void operationComplete(LoginFuture future);
+
+  }
+
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile boolean completed = false;
+  private volatile XServer server = null;
+  private volatile ConnectFailure failure = null;
+  private volatile String errorMessage = null;
+  private List<Listener> listeners = null;
+
+  /**
+   * @return a future that already failed
+   */
+  public static LoginFuture failed(ConnectFailure reason, String message) {
+    LoginFuture f = new LoginFuture();
+    f.fail(reason, message);
+    return f;
+  }
+
+  /**
+   * @return a future that already succeeded
+   */
+  public static LoginFuture succeeded(XServer server) {
+    LoginFuture f = new LoginFuture();
+    f.complete(server);
+    return f;
+  }
+
+  /**
+   * Mark the server as logged in.
+   *
+   * @param server
+   * @return false if the future was already completed
+   */
+  public boolean complete(XServer server) {
+    return finish(server, null, null);
+  }
+
+  /**
+   * Mark the connect as failed.
+   *
+   * @param reason
+   * @param message of the cause, or null
+   * @return false if the future was already completed
+   */
+  public boolean fail(ConnectFailure reason, String message) {
+    if (reason == null) {
+      throw new NullPointerException("reason is null");
+    }
+    return finish(null, reason, message);
+  }
+
+  private boolean finish(XServer server, ConnectFailure reason, String message) {
+    List<Listener> notify;
+    synchronized (this) {
+      if (completed) {
+        return false;
+      }
+      this.server = server;
+      this.failure = reason;
+      this.errorMessage = message;
+      completed = true;
+      notify = listeners;
+      listeners = null;
+    }
+    done.countDown();
+    if (notify != null) {
+      for (Listener l : notify) {
+        l.operationComplete(this);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Run a listener when the future completes, or now if it already is.
+   *
+   * @param listener
+   * @return this future
+   */
+  public LoginFuture addListener(Listener listener) {
+    synchronized (this) {
+      if (!completed) {
+        if (listeners == null) {
+          listeners = new ArrayList<Listener>(2);
+        }
+        listeners.add(listener);
+        return this;
+      }
+    }
+    listener.operationComplete(this);
+    return this;
+  }
+
+  /**
+   * @return true if the server logged in
+   */
+  public boolean isSuccess() {
+    return completed && failure == null;
+  }
+
+  /**
+   * @return the server, or null if not logged in (yet)
+   */
+  public XServer getServer() {
+    return server;
+  }
+
+  /**
+   * @return reason of the failure, or null if not failed (yet)
+   */
+  public ConnectFailure getFailure() {
+    return failure;
+  }
+
+  /**
+   * @return message of the cause if it failed, otherwise null
+   */
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  @Override
+  public boolean isDone() {
+    return completed;
+  }
+
+  /**
+   * A connect ends by itself at its timeout, so this does nothing.
+   *
+   * @return false
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  /**
+   * @throws ExecutionException with a {@link ConnectFailedException} if the connect failed
+   */
+  @Override
+  public XServer get() throws InterruptedException, ExecutionException {
+    done.await();
+    return result();
+  }
+
+  /**
+   * @throws ExecutionException with a {@link ConnectFailedException} if the connect failed
+   */
+  @Override
+  public XServer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    if (!done.await(timeout, unit)) {
+      throw new TimeoutException();
+    }
+    return result();
+  }
+
+  private XServer result() throws ExecutionException {
+    ConnectFailure f = failure;
+    if (f != null) {
+      throw new ExecutionException(new ConnectFailedException(f, errorMessage));
+    }
+    return server;
+  }
+
+}
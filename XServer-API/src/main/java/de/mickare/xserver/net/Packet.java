@@ -3,52 +3,254 @@ package de.mickare.xserver.net;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * A frame on the wire. Packets that are read from a stream keep their data in a pooled array,
+ * which goes back to the {@link BufferPool} as soon as the last reference is released. Frames that
+ * become a message are the exception, see {@link #allocate(int, int)}.
+ */
 public class Packet {
-  private int packetID;
-  private byte[] data;
+  private final int packetID;
+  private volatile byte[] data;
+  private final int length;
+  private final BufferPool pool;
+  private final AtomicInteger refCnt = new AtomicInteger(1);
+  // Completed by the writing thread, null if nobody waits for the packet
+  private volatile SendFuture future = null;
 
   public static Packet readFromSteam(DataInputStream input) throws IOException {
     int packetID = input.readInt();
     int length = input.readInt();
-    byte[] data = new byte[length];
-    input.readFully(data);
+    return readData(input, packetID, length);
+  }
+
+  /**
+   * Read the data of a frame whose header was already read.
+   *
+   * @param input
+   * @param packetID
+   * @param length of the data
+   * @return packet with pooled data
+   * @throws IOException
+   */
+  public static Packet readData(DataInputStream input, int packetID, int length) throws IOException {
+    if (length < 0) {
+      throw new IOException("Invalid packet length " + length);
+    }
+    Packet p = allocate(packetID, length);
+    try {
+      input.readFully(p.array(), 0, length);
+    } catch (IOException e) {
+      p.release();
+      throw e;
+    }
+    return p;
+  }
 
-    return new Packet(packetID, data);
+  /**
+   * Allocate a packet for a frame that is received. A received message is a view of its frame and
+   * may be kept by a listener, so a message frame gets an array of its own with the exact size,
+   * which is never given back to the pool. All other frames get a pooled array.
+   *
+   * @param packetID
+   * @param length of the data
+   * @return packet with uninitialized data
+   */
+  public static Packet allocate(int packetID, int length) {
+    if (packetID == PacketType.Message.packetID || packetID == PacketType.ChannelMessage.packetID
+        || packetID == PacketType.ShortMessage.packetID) {
+      return new Packet(packetID, new byte[length], length, null);
+    }
+    BufferPool pool = BufferPool.DEFAULT;
+    return new Packet(packetID, pool.acquire(length), length, pool);
   }
 
   public Packet(int packetID, byte[] data) {
-    this.packetID = packetID;
-    this.data = data;
+    this(packetID, data, data.length, null);
   }
 
   public Packet(PacketType type, byte[] data) {
-    this.packetID = type.packetID;
+    this(type.packetID, data, data.length, null);
+  }
+
+  /**
+   * Create a packet with data from a pool
+   *
+   * @param packetID
+   * @param data array that may be longer than the data
+   * @param length length of the data
+   * @param pool the pool that gets the array back when the packet is released, or null
+   */
+  public Packet(int packetID, byte[] data, int length, BufferPool pool) {
+    if (length < 0 || length > data.length) {
+      throw new IllegalArgumentException("Invalid length " + length);
+    }
+    this.packetID = packetID;
     this.data = data;
+    this.length = length;
+    this.pool = pool;
+  }
+
+  public Packet(PacketType type, byte[] data, int length, BufferPool pool) {
+    this(type.packetID, data, length, pool);
   }
 
   public Packet writeToStream(DataOutputStream output) throws IOException {
-    output.writeInt(packetID);
-    output.writeInt(data.length);
-    output.write(data);
+    write(output);
     output.flush();
     return this;
   }
 
+  /**
+   * Write this packet without flushing the stream, so that several packets can be sent at once.
+   *
+   * @param output
+   * @return this packet
+   * @throws IOException
+   */
+  public Packet write(DataOutputStream output) throws IOException {
+    output.writeInt(packetID);
+    output.writeInt(length);
+    output.write(array(), 0, length);
+    return this;
+  }
+
+  /**
+   * Get the number of bytes this packet needs on the wire (header + data)
+   *
+   * @return frame size
+   */
+  public int getFrameSize() {
+    return 8 + length;
+  }
+
   public int getPacketID() {
     return packetID;
   }
 
+  /**
+   * Attach a future that is completed when the packet was flushed to the socket. It goes with the
+   * packet through the sending queue and the outbox.
+   *
+   * @param future
+   * @return this packet
+   */
+  public Packet setFuture(SendFuture future) {
+    this.future = future;
+    return this;
+  }
+
+  /**
+   * @return the attached future, or null
+   */
+  public SendFuture getFuture() {
+    return future;
+  }
+
+  /**
+   * Fail the attached future, if any.
+   *
+   * @param reason
+   */
+  public void fail(SendFailure reason) {
+    SendFuture f = future;
+    if (f != null) {
+      f.fail(reason);
+    }
+  }
+
+  /**
+   * Get the data of this packet. If the packet is backed by a pooled array, this is a copy.
+   *
+   * @return data
+   */
   public byte[] getData() {
-    return data;
+    byte[] d = array();
+    return d.length == length ? d : Arrays.copyOf(d, length);
   }
 
-  public void destroy() {
-    try {
-      this.finalize();
-    } catch (Throwable e) {
+  /**
+   * Get the backing array of this packet. It may be longer than {@link #getLength()} and is only
+   * valid as long as the packet is not released.
+   *
+   * @return backing array
+   */
+  public byte[] array() {
+    byte[] d = data;
+    if (d == null) {
+      throw new IllegalStateException("Packet was already released");
+    }
+    return d;
+  }
+
+  /**
+   * Get the length of the data
+   *
+   * @return length in bytes
+   */
+  public int getLength() {
+    return length;
+  }
 
+  /**
+   * Get a read only view of the data
+   *
+   * @return buffer
+   */
+  public ByteBuffer getBuffer() {
+    return ByteBuffer.wrap(array(), 0, length).asReadOnlyBuffer();
+  }
+
+  /**
+   * Add a reference, e.g. if the same packet is queued into more than one connection.
+   *
+   * @return this packet
+   */
+  public Packet retain() {
+    for (;;) {
+      int c = refCnt.get();
+      if (c <= 0 && pool != null) {
+        throw new IllegalStateException("Packet was already released");
+      }
+      if (refCnt.compareAndSet(c, c + 1)) {
+        return this;
+      }
+    }
+  }
+
+  /**
+   * Remove a reference. The last release gives a pooled array back to its pool.
+   *
+   * @return true if this was the last reference
+   */
+  public boolean release() {
+    int c = refCnt.decrementAndGet();
+    if (c == 0) {
+      // Only pooled arrays are taken away, plain arrays stay readable
+      if (pool != null) {
+        byte[] d = data;
+        data = null;
+        if (d != null) {
+          pool.release(d);
+        }
+      }
+      return true;
+    }
+    if (c < 0) {
+      refCnt.set(0);
     }
+    return false;
+  }
+
+  public int refCnt() {
+    return refCnt.get();
+  }
+
+  public void destroy() {
+    release();
   }
 
 }
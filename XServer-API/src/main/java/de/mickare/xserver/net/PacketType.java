@@ -2,8 +2,11 @@ package de.mickare.xserver.net;
 
 public enum PacketType {
 
-  BadPacket(1), KeepAlive(100), Disconnect(200), Error(400), LoginDenied(401), LoginRequest(500), LoginAccepted(501), PingRequest(
-      600), PingAnswer(601), Message(800);
+  BadPacket(1), KeepAlive(100), FrameFormat(110), Disconnect(200), Error(400), LoginDenied(401), LoginRequest(500), LoginAccepted(
+      501), PingRequest(600), PingAnswer(601), CompressionDictionary(700), Message(800), ChannelMessage(801), ShortMessage(802), DefineChannel(
+      810), Request(820), Response(821), Relay(830);
+
+  private final static PacketType[] VALUES = values();
 
   public final int packetID;
 
@@ -16,7 +19,7 @@ public enum PacketType {
   }
 
   public static PacketType getPacket(int packetID) {
-    for (PacketType t : PacketType.values()) {
+    for (PacketType t : VALUES) {
       if (t.getPacketID() == packetID) {
         return t;
       }
@@ -0,0 +1,36 @@
+package de.mickare.xserver.net;
+
+/**
+ * A request that was received by a {@link de.mickare.xserver.annotations.XResponder}. It is
+ * answered once, either by a reply or by an error. Later answers are ignored.
+ */
+public interface Request {
+
+  /**
+   * @return server that sent the request
+   */
+  public abstract XServer getSender();
+
+  public abstract String getChannel();
+
+  public abstract byte[] getPayload();
+
+  /**
+   * Send the response
+   *
+   * @param data
+   * @return false if the request was already answered
+   */
+  public abstract boolean reply(byte[] data);
+
+  /**
+   * Send an error, the future of the requester fails with {@link RequestFailure#RESPONDER_ERROR}
+   *
+   * @param message
+   * @return false if the request was already answered
+   */
+  public abstract boolean fail(String message);
+
+  public abstract boolean isAnswered();
+
+}
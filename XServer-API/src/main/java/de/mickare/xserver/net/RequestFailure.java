@@ -0,0 +1,53 @@
+package de.mickare.xserver.net;
+
+/**
+ * Reason why a {@link RequestFuture} failed.
+ */
+public enum RequestFailure {
+
+  /**
+   * The server is not logged in
+   */
+  NOT_CONNECTED,
+
+  /**
+   * The other server runs a version without requests
+   */
+  NOT_SUPPORTED,
+
+  /**
+   * Too many requests to the server are waiting for their response
+   */
+  BUSY,
+
+  /**
+   * The high priority lane of the sending queue was full
+   */
+  QUEUE_FULL,
+
+  /**
+   * No response arrived in time
+   */
+  TIMEOUT,
+
+  /**
+   * The other server has no responder for the channel
+   */
+  NO_RESPONDER,
+
+  /**
+   * The responder failed, see {@link RequestFuture#getErrorMessage()}
+   */
+  RESPONDER_ERROR,
+
+  /**
+   * The connection was closed before the response arrived
+   */
+  DISCONNECTED,
+
+  /**
+   * The server object was replaced or the plugin is stopping
+   */
+  SHUTDOWN;
+
+}
@@ -0,0 +1,190 @@
+package de.mickare.xserver.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.mickare.xserver.exceptions.RequestFailedException;
+
+/**
+ * Response to a request. Succeeds with the reply of the responder, or fails with a
+ * {@link RequestFailure}. A request that got no response fails with {@link RequestFailure#TIMEOUT}
+ * after its timeout, so the future always completes.
+ *
+ * Listeners run on the thread that completes the future, an I/O or the timer thread, so they must
+ * not block.
+ */
+public class RequestFuture implements Future<byte[]> {
+
+  public interface Listener {
+
+    /**
+     * @param future the completed future
+     */
+    void operationComplete(RequestFuture future);
+
+  }
+
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile boolean completed = false;
+  private volatile byte[] response = null;
+  private volatile RequestFailure failure = null;
+  private volatile String errorMessage = null;
+  private List<Listener> listeners = null;
+
+  /**
+   * @return a future that already failed
+   */
+  public static RequestFuture failed(RequestFailure reason) {
+    RequestFuture f = new RequestFuture();
+    f.fail(reason, null);
+    return f;
+  }
+
+  /**
+   * Set the response.
+   *
+   * @param response
+   * @return false if the future was already completed
+   */
+  public boolean complete(byte[] response) {
+    return finish(response, null, null);
+  }
+
+  /**
+   * Mark the request as failed.
+   *
+   * @param reason
+   * @param message of the responder, or null
+   * @return false if the future was already completed
+   */
+  public boolean fail(RequestFailure reason, String message) {
+    if (reason == null) {
+      throw new NullPointerException("reason is null");
+    }
+    return finish(null, reason, message);
+  }
+
+  private boolean finish(byte[] response, RequestFailure reason, String message) {
+    List<Listener> notify;
+    synchronized (this) {
+      if (completed) {
+        return false;
+      }
+      this.response = response;
+      this.failure = reason;
+      this.errorMessage = message;
+      completed = true;
+      notify = listeners;
+      listeners = null;
+    }
+    done.countDown();
+    if (notify != null) {
+      for (Listener l : notify) {
+        l.operationComplete(this);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Run a listener when the future completes, or now if it already is.
+   *
+   * @param listener
+   * @return this future
+   */
+  public RequestFuture addListener(Listener listener) {
+    synchronized (this) {
+      if (!completed) {
+        if (listeners == null) {
+          listeners = new ArrayList<Listener>(2);
+        }
+        listeners.add(listener);
+        return this;
+      }
+    }
+    listener.operationComplete(this);
+    return this;
+  }
+
+  /**
+   * @return true if the response arrived
+   */
+  public boolean isSuccess() {
+    return completed && failure == null;
+  }
+
+  /**
+   * @return the response, or null if not succeeded (yet)
+   */
+  public byte[] getResponse() {
+    return response;
+  }
+
+  /**
+   * @return reason of the failure, or null if not failed (yet)
+   */
+  public RequestFailure getFailure() {
+    return failure;
+  }
+
+  /**
+   * @return message of the responder if it failed, otherwise null
+   */
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  @Override
+  public boolean isDone() {
+    return completed;
+  }
+
+  /**
+   * A request can't be taken back, it expires at its timeout.
+   *
+   * @return false
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  /**
+   * @throws ExecutionException with a {@link RequestFailedException} if the request failed
+   */
+  @Override
+  public byte[] get() throws InterruptedException, ExecutionException {
+    done.await();
+    return result();
+  }
+
+  /**
+   * @throws ExecutionException with a {@link RequestFailedException} if the request failed
+   */
+  @Override
+  public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    if (!done.await(timeout, unit)) {
+      throw new TimeoutException();
+    }
+    return result();
+  }
+
+  private byte[] result() throws ExecutionException {
+    RequestFailure f = failure;
+    if (f != null) {
+      throw new ExecutionException(new RequestFailedException(f, errorMessage));
+    }
+    return response;
+  }
+
+}
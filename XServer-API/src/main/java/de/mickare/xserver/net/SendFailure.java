@@ -0,0 +1,38 @@
+package de.mickare.xserver.net;
+
+/**
+ * Reason why a {@link SendFuture} failed.
+ */
+public enum SendFailure {
+
+  /**
+   * The server is not logged in and there is no outbox
+   */
+  NOT_CONNECTED,
+
+  /**
+   * The lane of the sending queue was full
+   */
+  QUEUE_FULL,
+
+  /**
+   * The outbox was full
+   */
+  DROPPED,
+
+  /**
+   * The message waited longer than the outbox TTL
+   */
+  EXPIRED,
+
+  /**
+   * The connection was closed before the message was written
+   */
+  DISCONNECTED,
+
+  /**
+   * The server object was replaced or the plugin is stopping
+   */
+  SHUTDOWN;
+
+}
@@ -0,0 +1,180 @@
+package de.mickare.xserver.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.mickare.xserver.exceptions.SendFailedException;
+
+/**
+ * Result of an asynchronous send. Succeeds when the frame of the message was flushed to the
+ * socket, or fails with a {@link SendFailure}. A message that waits in the outbox keeps its future
+ * pending until it is written after the login, one that goes to the spill file of the outbox
+ * succeeds when it is on disk.
+ *
+ * Listeners run on the thread that completes the future, usually an I/O thread, so they must not
+ * block.
+ */
+public class SendFuture implements Future<Void> {
+
+  public interface Listener {
+
+    /**
+     * @param future the completed future
+     */
+    void operationComplete(SendFuture future);
+
+  }
+
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile boolean completed = false;
+  private volatile SendFailure failure = null;
+  private List<Listener> listeners = null;
+
+  /**
+   * @return a future that already failed
+   */
+  public static SendFuture failed(SendFailure reason) {
+    SendFuture f = new SendFuture();
+    f.fail(reason);
+    return f;
+  }
+
+  /**
+   * @return a future that already succeeded
+   */
+  public static SendFuture succeeded() {
+    SendFuture f = new SendFuture();
+    f.complete();
+    return f;
+  }
+
+  /**
+   * Mark the message as written.
+   *
+   * @return false if the future was already completed
+   */
+  public boolean complete() {
+    return finish(null);
+  }
+
+  /**
+   * Mark the message as not sent.
+   *
+   * @param reason
+   * @return false if the future was already completed
+   */
+  public boolean fail(SendFailure reason) {
+    if (reason == null) {
+      throw new NullPointerException("reason is null");
+    }
+    return finish(reason);
+  }
+
+  private boolean finish(SendFailure reason) {
+    List<Listener> notify;
+    synchronized (this) {
+      if (completed) {
+        return false;
+      }
+      failure = reason;
+      completed = true;
+      notify = listeners;
+      listeners = null;
+    }
+    done.countDown();
+    if (notify != null) {
+      for (Listener l : notify) {
+        l.operationComplete(this);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Run a listener when the future completes, or now if it already is.
+   *
+   * @param listener
+   * @return this future
+   */
+  public SendFuture addListener(Listener listener) {
+    synchronized (this) {
+      if (!completed) {
+        if (listeners == null) {
+          listeners = new ArrayList<Listener>(2);
+        }
+        listeners.add(listener);
+        return this;
+      }
+    }
+    listener.operationComplete(this);
+    return this;
+  }
+
+  /**
+   * @return true if the message was written
+   */
+  public boolean isSuccess() {
+    return completed && failure == null;
+  }
+
+  /**
+   * @return reason of the failure, or null if not failed (yet)
+   */
+  public SendFailure getFailure() {
+    return failure;
+  }
+
+  @Override
+  public boolean isDone() {
+    return completed;
+  }
+
+  /**
+   * A send can't be taken back, so this does nothing.
+   *
+   * @return false
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  /**
+   * @throws ExecutionException with a {@link SendFailedException} if the send failed
+   */
+  @Override
+  public Void get() throws InterruptedException, ExecutionException {
+    done.await();
+    return result();
+  }
+
+  /**
+   * @throws ExecutionException with a {@link SendFailedException} if the send failed
+   */
+  @Override
+  public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    if (!done.await(timeout, unit)) {
+      throw new TimeoutException();
+    }
+    return result();
+  }
+
+  private Void result() throws ExecutionException {
+    SendFailure f = failure;
+    if (f != null) {
+      throw new ExecutionException(new SendFailedException(f));
+    }
+    return null;
+  }
+
+}
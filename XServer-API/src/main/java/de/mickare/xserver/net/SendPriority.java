@@ -0,0 +1,36 @@
+package de.mickare.xserver.net;
+
+/**
+ * Lane of the sending queue of a connection. The writer always takes control packets first, then
+ * mostly high priority packets, so they don't wait behind a burst of bulk messages. Packets of
+ * different lanes may overtake each other.
+ */
+public enum SendPriority {
+
+  /**
+   * Keep alives, pings and the login, not for messages
+   */
+  CONTROL,
+
+  /**
+   * Time critical messages
+   */
+  HIGH,
+
+  /**
+   * All other messages
+   */
+  BULK;
+
+  /**
+   * Get the lane of a packet that is sent without a priority
+   *
+   * @param packet
+   * @return {@link #BULK} for messages and relayed messages, otherwise {@link #CONTROL}
+   */
+  public static SendPriority of(Packet packet) {
+    int id = packet.getPacketID();
+    return id == PacketType.Message.packetID || id == PacketType.Relay.packetID ? BULK : CONTROL;
+  }
+
+}
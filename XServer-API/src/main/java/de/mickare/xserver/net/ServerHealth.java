@@ -0,0 +1,33 @@
+package de.mickare.xserver.net;
+
+/**
+ * State of the connection to a server, see {@link XServer#getHealth()}.
+ */
+public enum ServerHealth {
+
+  /**
+   * Logged in
+   */
+  CONNECTED,
+
+  /**
+   * Reached through a relay that is logged in
+   */
+  RELAYED,
+
+  /**
+   * A connect or login is running
+   */
+  CONNECTING,
+
+  /**
+   * Not connected, the next connect is scheduled or the other server is expected to dial
+   */
+  DISCONNECTED,
+
+  /**
+   * Several connects in a row failed. They are still retried, but only after the longest delay.
+   */
+  DOWN;
+
+}
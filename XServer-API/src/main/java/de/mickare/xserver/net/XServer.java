@@ -3,6 +3,7 @@ package de.mickare.xserver.net;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import de.mickare.xserver.AbstractXServerManager;
 import de.mickare.xserver.Message;
@@ -13,7 +14,9 @@ import de.mickare.xserver.exceptions.NotInitializedException;
 public interface XServer {
 
   /**
-   * Try to establish a connection to this server
+   * Try to establish a connection to this server now, without waiting for it, see
+   * {@link #connectAsync()}. The automatic reconnects are done by the server with the smaller name,
+   * the other one waits for it, so two servers share one connection.
    * 
    * @throws UnknownHostException
    * @throws IOException
@@ -22,6 +25,24 @@ public interface XServer {
    */
   public abstract void connect() throws UnknownHostException, IOException, InterruptedException, NotInitializedException;
 
+  /**
+   * Start a connect to this server without blocking. The connect runs on an event loop and fails
+   * with {@link ConnectFailure#TIMEOUT} after the connect timeout of the settings.
+   *
+   * @return future that succeeds when the server logged in, also if the other server keeps the
+   *         connection it dialed itself, or fails with a {@link ConnectFailure}
+   */
+  public abstract LoginFuture connectAsync();
+
+  /**
+   * Wait for this server to log in, on a connection of either side. A server that is reached
+   * through a relay never logs in directly.
+   *
+   * @return future that succeeds at the next login, or at once if logged in; it only fails with
+   *         {@link ConnectFailure#SHUTDOWN}
+   */
+  public abstract LoginFuture whenLoggedIn();
+
   /**
    * Returns the connection status
    * 
@@ -66,12 +87,65 @@ public interface XServer {
    * Send a data Message to this server
    * 
    * @param message
-   * @return true, if queued for sending into connection (= did send); otherwise false (= message
-   *         cached)
+   * @return true, if queued for sending into the connection or a relay (= did send); otherwise
+   *         false (= message cached in the outbox, or dropped if it is full or disabled)
    * @throws IOException
    */
   public abstract boolean sendMessage(Message message) throws IOException;
 
+  /**
+   * Send a data Message to this server with a priority. High priority messages are written before
+   * waiting bulk messages, so they may overtake them. If not connected, the message is cached like
+   * any other.
+   * 
+   * @param message
+   * @param priority {@link SendPriority#HIGH} or {@link SendPriority#BULK}
+   * @return true, if queued for sending into the connection or a relay (= did send); otherwise
+   *         false (= message cached in the outbox, or dropped if it is full or disabled)
+   * @throws IOException
+   */
+  public abstract boolean sendMessage(Message message, SendPriority priority) throws IOException;
+
+  /**
+   * Send a data Message to this server and follow it until it is written
+   * 
+   * @param message
+   * @return future that succeeds when the message was flushed to the socket
+   * @throws IOException if the message can't be serialized
+   */
+  public abstract SendFuture sendMessageAsync(Message message) throws IOException;
+
+  /**
+   * Send a data Message to this server with a priority and follow it until it is written
+   * 
+   * @param message
+   * @param priority {@link SendPriority#HIGH} or {@link SendPriority#BULK}
+   * @return future that succeeds when the message was flushed to the socket
+   * @throws IOException if the message can't be serialized
+   */
+  public abstract SendFuture sendMessageAsync(Message message, SendPriority priority) throws IOException;
+
+  /**
+   * Check whether bulk producers may keep sending to this server. A
+   * {@link de.mickare.xserver.events.XServerWritabilityEvent} is called when this changes.
+   * 
+   * @return true if connected and the sending queue is below its high watermark
+   */
+  public abstract boolean isWritable();
+
+  /**
+   * Send a request to the responder of a channel on this server, see
+   * {@link de.mickare.xserver.annotations.XResponder}. The request is sent with high priority and is
+   * not cached while not connected.
+   * 
+   * @param channel of the responder
+   * @param payload
+   * @param timeout after which the future fails with {@link RequestFailure#TIMEOUT}
+   * @param unit of timeout
+   * @return future of the response
+   */
+  public abstract RequestFuture request(String channel, byte[] payload, long timeout, TimeUnit unit);
+
   /**
    * Ping this server with a new Ping
    * 
@@ -128,6 +202,20 @@ public interface XServer {
    */
   public abstract long getReceivinglastSecondPackageCount();
 
+  /**
+   * Get the state of the connection to this server, which is cheap enough to be polled
+   * 
+   * @return health
+   */
+  public abstract ServerHealth getHealth();
+
+  /**
+   * Get the byte, queue and latency figures of the current connection to this server
+   * 
+   * @return metrics or null if not connected
+   */
+  public abstract ConnectionMetrics getMetrics();
+
   public abstract Set<XGroup> getGroups();
 
   boolean hasGroup(XGroup group);
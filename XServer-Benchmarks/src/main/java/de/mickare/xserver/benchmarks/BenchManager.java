@@ -0,0 +1,171 @@
+package de.mickare.xserver.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.mickare.xserver.AbstractXServerManager;
+import de.mickare.xserver.AbstractXServerManagerObj;
+import de.mickare.xserver.EventHandlerObj;
+import de.mickare.xserver.ServerThreadPoolExecutor;
+import de.mickare.xserver.XServerListener;
+import de.mickare.xserver.XServerListenerPlugin;
+import de.mickare.xserver.XServerPlugin;
+import de.mickare.xserver.XType;
+import de.mickare.xserver.config.ServerListSource;
+import de.mickare.xserver.config.XServerSettings;
+import de.mickare.xserver.exceptions.InvalidConfigurationException;
+
+/**
+ * Manager without Bukkit or BungeeCord. Event handlers run directly in the I/O thread that
+ * received the packet.
+ */
+public class BenchManager extends AbstractXServerManagerObj {
+
+  private final static ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "XServer Benchmark");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  public static class ThreadPool implements ServerThreadPoolExecutor {
+
+    @Override
+    public Future<?> runTask(Runnable task) {
+      return EXECUTOR.submit(task);
+    }
+
+    @Override
+    public void shutDown() {}
+
+    @Override
+    public Future<?> runServerTask(Runnable task) {
+      return EXECUTOR.submit(task);
+    }
+
+  }
+
+  public static class Plugin implements XServerPlugin {
+
+    private final String name;
+    private final Logger logger;
+    private BenchManager manager;
+    private boolean debugging = false;
+
+    public Plugin(String name) {
+      this.name = name;
+      this.logger = Logger.getLogger("XServer-Benchmark-" + name);
+      this.logger.setLevel(Level.WARNING);
+    }
+
+    @Override
+    public Logger getLogger() {
+      return logger;
+    }
+
+    @Override
+    public void shutdownServer() {}
+
+    @Override
+    public AbstractXServerManager getManager() {
+      return manager;
+    }
+
+    @Override
+    public long getAutoReconnectTime() {
+      return 1000;
+    }
+
+    @Override
+    public XType getHomeType() {
+      return XType.Other;
+    }
+
+    @Override
+    public boolean isDebugging() {
+      return debugging;
+    }
+
+    @Override
+    public void setDebugging(boolean debug) {
+      this.debugging = debug;
+    }
+
+    @Override
+    public File getDataFolder() {
+      return new File(System.getProperty("java.io.tmpdir"), "xserver-benchmark-" + name);
+    }
+
+  }
+
+  public static class Handler extends EventHandlerObj<Object> {
+
+    private final XServerListenerPlugin<Object> listenerPlugin = new XServerListenerPlugin<Object>() {
+      @Override
+      public Object getPlugin() {
+        return this;
+      }
+    };
+
+    public Handler(XServerPlugin plugin) {
+      super(plugin);
+    }
+
+    @Override
+    public void registerListener(Object plugin, XServerListener lis) {
+      registerListener(listenerPlugin, lis);
+    }
+
+    @Override
+    public Object checkPluginType(Object plugin) {
+      return plugin;
+    }
+
+    @Override
+    public void runTask(Boolean sync, XServerListenerPlugin<Object> plugin, Runnable run) {
+      run.run();
+    }
+
+  }
+
+  /**
+   * Find a free local port.
+   *
+   * @return port
+   * @throws IOException
+   */
+  public static int freePort() throws IOException {
+    try (ServerSocket s = new ServerSocket(0)) {
+      return s.getLocalPort();
+    }
+  }
+
+  private Handler handler;
+
+  public BenchManager(String servername, Plugin plugin, ServerListSource serverList, XServerSettings settings)
+      throws InvalidConfigurationException, IOException {
+    super(servername, plugin, serverList, new ThreadPool(), settings);
+    plugin.manager = this;
+  }
+
+  @Override
+  public synchronized Handler getEventHandler() {
+    if (handler == null) {
+      handler = new Handler(getPlugin());
+    }
+    return handler;
+  }
+
+  @Override
+  public void registerOwnListeners() {}
+
+}
@@ -0,0 +1,25 @@
+package de.mickare.xserver.benchmarks;
+
+import java.io.IOException;
+
+import de.mickare.xserver.MessageObj;
+import de.mickare.xserver.net.XServer;
+
+/**
+ * Gives the benchmarks access to the message constructors.
+ */
+public class BenchMessage extends MessageObj {
+
+  public BenchMessage(XServer sender, String subChannel, byte[] content) {
+    super(sender, subChannel, content);
+  }
+
+  public BenchMessage(XServer sender, byte[] data) throws IOException {
+    super(sender, data);
+  }
+
+  public BenchMessage(XServer sender, byte[] data, int offset, int length) throws IOException {
+    super(sender, data, offset, length);
+  }
+
+}
@@ -0,0 +1,68 @@
+package de.mickare.xserver.benchmarks;
+
+import java.util.Collections;
+import java.util.Map;
+
+import de.mickare.xserver.EventHandler;
+import de.mickare.xserver.XServerListener;
+import de.mickare.xserver.XServerListenerPlugin;
+import de.mickare.xserver.events.XServerEvent;
+import de.mickare.xserver.net.Request;
+
+/**
+ * Event handler that runs every task in the calling thread, so a benchmark measures the dispatch
+ * itself and not a scheduler.
+ */
+public class DirectEventHandler implements EventHandler<Object> {
+
+  @Override
+  public Map<XServerListener, XServerListenerPlugin<Object>> getListeners() {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public void registerListener(Object plugin, XServerListener lis) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void registerListenerUnsafe(Object plugin, XServerListener lis) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void unregisterListener(XServerListener lis) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void unregisterAll(Object plugin) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void unregisterAll(XServerListenerPlugin<Object> plugin) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void unregisterAll() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public XServerEvent callEvent(XServerEvent event) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean respond(Request request) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void runTask(Boolean sync, XServerListenerPlugin<Object> plugin, Runnable run) {
+    run.run();
+  }
+
+}
@@ -0,0 +1,97 @@
+package de.mickare.xserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mickare.xserver.EventBus;
+import de.mickare.xserver.XServerListener;
+import de.mickare.xserver.XServerListenerPlugin;
+import de.mickare.xserver.annotations.XEventHandler;
+import de.mickare.xserver.events.XServerMessageIncomingEvent;
+
+/**
+ * Throughput of posting one message event to 1, 10 and 100 listeners of its channel, with the
+ * reflective bus and with the indexed method handle bus. Every listener also has a method on
+ * another channel, which the old bus has to skip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBusBenchmark {
+
+  public final static String CHANNEL = "bench";
+
+  public static class Listener implements XServerListener {
+
+    public long received = 0;
+
+    @XEventHandler(sync = false, channel = CHANNEL)
+    public void onMessage(XServerMessageIncomingEvent event) {
+      received++;
+    }
+
+    @XEventHandler(sync = false, channel = "other")
+    public void onOther(XServerMessageIncomingEvent event) {
+      received--;
+    }
+
+  }
+
+  private final static XServerListenerPlugin<Object> PLUGIN = new XServerListenerPlugin<Object>() {
+    @Override
+    public Object getPlugin() {
+      return this;
+    }
+  };
+
+  @Param({"1", "10", "100"})
+  public int listeners;
+
+  private Listener[] registered;
+  private ReflectiveEventBus<Object> reflectiveBus;
+  private EventBus<Object> indexedBus;
+  private XServerMessageIncomingEvent event;
+
+  @Setup
+  public void setup() {
+    Logger logger = Logger.getLogger("EventBusBenchmark");
+    DirectEventHandler handler = new DirectEventHandler();
+    reflectiveBus = new ReflectiveEventBus<Object>(handler, logger);
+    indexedBus = new EventBus<Object>(handler, logger);
+    registered = new Listener[listeners];
+    for (int i = 0; i < listeners; i++) {
+      registered[i] = new Listener();
+      reflectiveBus.register(registered[i], PLUGIN);
+      indexedBus.register(registered[i], PLUGIN);
+    }
+    event = new XServerMessageIncomingEvent(null, new BenchMessage(null, CHANNEL, new byte[64]));
+  }
+
+  @Benchmark
+  public long reflective() {
+    reflectiveBus.post(event);
+    return registered[0].received;
+  }
+
+  @Benchmark
+  public long methodHandle() {
+    indexedBus.post(event);
+    return registered[0].received;
+  }
+
+}
@@ -0,0 +1,159 @@
+package de.mickare.xserver.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mickare.xserver.Message;
+import de.mickare.xserver.XServerListener;
+import de.mickare.xserver.annotations.XEventHandler;
+import de.mickare.xserver.config.StaticServerListSource;
+import de.mickare.xserver.config.XServerSettings;
+import de.mickare.xserver.events.XServerMessageIncomingEvent;
+import de.mickare.xserver.net.XServer;
+
+/**
+ * Two managers in one JVM, connected over 127.0.0.1 and configured with a static server list.
+ * Measures message throughput from A to B and the round trip time of a message that B echoes
+ * back to A.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+  public final static String CHANNEL = "bench";
+  public final static String ECHO_CHANNEL = "bench-echo";
+  public final static int BATCH = 1000;
+  public final static long TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+  public static class Receiver implements XServerListener {
+
+    private final AtomicLong received = new AtomicLong();
+
+    @XEventHandler(sync = false, channel = CHANNEL)
+    public void onMessage(XServerMessageIncomingEvent event) {
+      received.incrementAndGet();
+    }
+
+    @XEventHandler(sync = false, channel = ECHO_CHANNEL)
+    public void onEcho(XServerMessageIncomingEvent event) throws IOException {
+      event.getServer().sendMessage(event.getMessage());
+    }
+
+  }
+
+  public static class EchoReceiver implements XServerListener {
+
+    private final AtomicLong received = new AtomicLong();
+
+    @XEventHandler(sync = false, channel = ECHO_CHANNEL)
+    public void onEcho(XServerMessageIncomingEvent event) {
+      received.incrementAndGet();
+    }
+
+  }
+
+  @Param({"BLOCKING", "NIO"})
+  public String transport;
+
+  @Param({"64", "1024"})
+  public int payload;
+
+  private BenchManager a;
+  private BenchManager b;
+  private XServer bFromA;
+  private Receiver receiver;
+  private EchoReceiver echoReceiver;
+  private Message message;
+  private Message echo;
+
+  @Setup
+  public void setup() throws Exception {
+    StaticServerListSource list = new StaticServerListSource();
+    list.addServer(1, "A", "127.0.0.1:" + BenchManager.freePort(), "pw");
+    list.addServer(2, "B", "127.0.0.1:" + BenchManager.freePort(), "pw");
+
+    XServerSettings settings = new XServerSettings();
+    settings.setTransport(XServerSettings.Transport.valueOf(transport));
+
+    a = new BenchManager("A", new BenchManager.Plugin("A"), list, settings);
+    b = new BenchManager("B", new BenchManager.Plugin("B"), list, settings);
+    receiver = new Receiver();
+    echoReceiver = new EchoReceiver();
+    b.getEventHandler().registerListener(this, receiver);
+    a.getEventHandler().registerListener(this, echoReceiver);
+    a.reconnectAll_soft();
+    b.reconnectAll_soft();
+
+    bFromA = a.getServer("B");
+    long end = System.nanoTime() + TIMEOUT;
+    while (!(bFromA.isConnected() && b.getServer("A").isConnected())) {
+      if (System.nanoTime() > end) {
+        throw new IllegalStateException("A and B did not connect");
+      }
+      Thread.sleep(10);
+    }
+
+    message = a.createMessage(CHANNEL, new byte[payload]);
+    echo = a.createMessage(ECHO_CHANNEL, new byte[payload]);
+  }
+
+  @TearDown
+  public void tearDown() {
+    a.stop();
+    b.stop();
+  }
+
+  private static void await(AtomicLong counter, long target) {
+    long end = System.nanoTime() + TIMEOUT;
+    while (counter.get() < target) {
+      if (System.nanoTime() > end) {
+        throw new IllegalStateException("Timed out waiting for messages");
+      }
+      Thread.yield();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @OperationsPerInvocation(BATCH)
+  public long throughput() throws IOException {
+    long target = receiver.received.get() + BATCH;
+    for (int i = 0; i < BATCH; i++) {
+      while (!bFromA.sendMessage(message)) {
+        // Queue is full
+        Thread.yield();
+      }
+    }
+    await(receiver.received, target);
+    return target;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public long roundTrip() throws IOException {
+    long target = echoReceiver.received.get() + 1;
+    bFromA.sendMessage(echo);
+    await(echoReceiver.received, target);
+    return target;
+  }
+
+}
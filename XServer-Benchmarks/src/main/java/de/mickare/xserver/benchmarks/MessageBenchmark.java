@@ -0,0 +1,72 @@
+package de.mickare.xserver.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mickare.xserver.net.Packet;
+
+/**
+ * Creating, serializing and reading messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+  public final static String CHANNEL = "benchmark:channel";
+
+  @Param({"64", "1024", "16384"})
+  public int payload;
+
+  private byte[] content;
+  private byte[] frame;
+
+  @Setup
+  public void setup() throws IOException {
+    content = new byte[payload];
+    frame = new BenchMessage(null, CHANNEL, content).getData();
+  }
+
+  @Benchmark
+  public byte[] createAndGetData() throws IOException {
+    return new BenchMessage(null, CHANNEL, content).getData();
+  }
+
+  @Benchmark
+  public int createPooledPacket() throws IOException {
+    Packet p = new BenchMessage(null, CHANNEL, content).toPacket();
+    int length = p.getLength();
+    p.release();
+    return length;
+  }
+
+  @Benchmark
+  public byte[] readCopy() throws IOException {
+    BenchMessage m = new BenchMessage(null, frame);
+    m.getSubChannel();
+    return m.getContent();
+  }
+
+  @Benchmark
+  public int readView() throws IOException {
+    BenchMessage m = new BenchMessage(null, frame, 0, frame.length);
+    m.getSubChannel();
+    return m.getContentBuffer().remaining();
+  }
+
+}
@@ -0,0 +1,82 @@
+package de.mickare.xserver.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mickare.xserver.net.Packet;
+import de.mickare.xserver.net.PacketType;
+
+/**
+ * Encoding a packet into a stream and decoding it again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+  /**
+   * Stream that forgets everything, so only the encoding is measured.
+   */
+  private static class NullOutputStream extends ByteArrayOutputStream {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  }
+
+  @Param({"64", "1024", "16384"})
+  public int payload;
+
+  private byte[] data;
+  private DataOutputStream sink;
+  private ByteArrayInputStream frameInput;
+  private DataInputStream input;
+
+  @Setup
+  public void setup() throws IOException {
+    data = new byte[payload];
+    sink = new DataOutputStream(new NullOutputStream());
+
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    new Packet(PacketType.Message, data).writeToStream(new DataOutputStream(b));
+    frameInput = new ByteArrayInputStream(b.toByteArray());
+    input = new DataInputStream(frameInput);
+  }
+
+  @Benchmark
+  public int encode() throws IOException {
+    Packet p = new Packet(PacketType.Message, data);
+    p.write(sink);
+    return p.getFrameSize();
+  }
+
+  @Benchmark
+  public int decode() throws IOException {
+    frameInput.reset();
+    Packet p = Packet.readFromSteam(input);
+    int length = p.getLength();
+    p.release();
+    return length;
+  }
+
+}
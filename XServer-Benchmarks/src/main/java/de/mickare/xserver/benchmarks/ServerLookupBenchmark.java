@@ -0,0 +1,99 @@
+package de.mickare.xserver.benchmarks;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mickare.xserver.XGroup;
+import de.mickare.xserver.config.StaticServerListSource;
+import de.mickare.xserver.config.XServerSettings;
+import de.mickare.xserver.net.XServer;
+
+/**
+ * Server and group lookups of a manager with a static server list. The other servers don't
+ * exist, so the manager only fails to connect to them in the background.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerLookupBenchmark {
+
+  public final static int GROUPS = 8;
+
+  @Param({"10", "100", "1000"})
+  public int servers;
+
+  private BenchManager manager;
+  private String name;
+  private String nameOtherCase;
+  private int port;
+  private XGroup group;
+  private XServer target;
+
+  @Setup
+  public void setup() throws Exception {
+    int homePort = BenchManager.freePort();
+    StaticServerListSource list = new StaticServerListSource();
+    for (int g = 0; g < GROUPS; g++) {
+      list.addGroup(g + 1, "group" + g);
+    }
+    for (int i = 0; i < servers; i++) {
+      // Nothing listens on the low ports, so connecting fails fast
+      list.addServer(i + 1, "server" + i, "127.0.0.1:" + (i == 0 ? homePort : i + 1), "pw");
+      list.addRelation(i + 1, i % GROUPS + 1);
+    }
+    manager = new BenchManager("server0", new BenchManager.Plugin("lookup"), list, new XServerSettings());
+
+    target = manager.getServer("server" + (servers - 1));
+    name = target.getName();
+    nameOtherCase = name.toUpperCase();
+    port = target.getPort();
+    group = manager.getGroupByName("group" + (GROUPS - 1));
+  }
+
+  @TearDown
+  public void tearDown() {
+    manager.stop();
+  }
+
+  @Benchmark
+  public XServer getServer() {
+    return manager.getServer(name);
+  }
+
+  @Benchmark
+  public XServer getServerIgnoreCase() {
+    return manager.getServerIgnoreCase(nameOtherCase);
+  }
+
+  @Benchmark
+  public XServer getServerByAddress() {
+    return manager.getServer("127.0.0.1", port);
+  }
+
+  @Benchmark
+  public Set<XServer> getServersOfGroup() {
+    return manager.getServers(group);
+  }
+
+  @Benchmark
+  public boolean hasGroup() {
+    return target.hasGroup(group);
+  }
+
+}
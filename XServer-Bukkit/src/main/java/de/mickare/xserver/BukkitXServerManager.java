@@ -2,6 +2,7 @@ package de.mickare.xserver;
 
 import java.io.IOException;
 
+import de.mickare.xserver.config.XServerSettings;
 import de.mickare.xserver.exceptions.InvalidConfigurationException;
 import de.mickare.xserver.exceptions.NotInitializedException;
 import de.mickare.xserver.listener.StressTestListener;
@@ -18,9 +19,10 @@ public class BukkitXServerManager extends XServerManager {
   private final StressTestListener stressListener;
 
   protected BukkitXServerManager(String servername, BukkitXServerPlugin bukkitPlugin, MySQL connection, String sql_table_xservers,
-      String sql_table_xgroups, String sql_table_xserversxgroups) throws InvalidConfigurationException, IOException {
+      String sql_table_xgroups, String sql_table_xserversxgroups, XServerSettings settings) throws InvalidConfigurationException,
+          IOException {
     super(servername, bukkitPlugin, connection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups,
-        new BukkitServerThreadPool(bukkitPlugin));
+        new BukkitServerThreadPool(bukkitPlugin), settings);
     this.eventhandler = new BukkitEventHandler(bukkitPlugin);
     this.bukkitPlugin = bukkitPlugin;
     this.stressListener = new StressTestListener(this);
@@ -7,6 +7,7 @@ import org.bukkit.plugin.java.JavaPlugin;
 import org.mcstats.MetricsLite;
 
 import de.mickare.xserver.commands.XServerCommands;
+import de.mickare.xserver.config.XServerSettings;
 import de.mickare.xserver.exceptions.InvalidConfigurationException;
 import de.mickare.xserver.util.MySQL;
 import de.mickare.xserver.util.MyStringUtils;
@@ -77,10 +78,28 @@ public class BukkitXServerPlugin extends JavaPlugin implements XServerPlugin {
 
     cfgconnection.connect();
 
+    XServerSettings settings = XServerSettings.load(new XServerSettings.Source() {
+      @Override
+      public boolean getBoolean(String path, boolean def) {
+        return getConfig().getBoolean(path, def);
+      }
+
+      @Override
+      public int getInt(String path, int def) {
+        return getConfig().getInt(path, def);
+      }
+
+      @Override
+      public String getString(String path, String def) {
+        return getConfig().getString(path, def);
+      }
+    });
+
     try {
       log.info("Starting XServer async.");
       xmanager =
-          new BukkitXServerManager(servername, this, cfgconnection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups);
+          new BukkitXServerManager(servername, this, cfgconnection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups,
+              settings);
     } catch (IOException | InvalidConfigurationException e) {
       log.severe("XServerManager not initialized correctly!\n" + e.getMessage() + "\n" + MyStringUtils.stackTraceToString(e));
       this.getServer().shutdown();
@@ -4,6 +4,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
@@ -11,12 +12,15 @@ import org.bukkit.command.CommandSender;
 
 import de.mickare.xserver.BukkitXServerPlugin;
 import de.mickare.xserver.commands.SubCommand;
+import de.mickare.xserver.net.ConnectionMetrics;
+import de.mickare.xserver.net.LatencyHistogram;
+import de.mickare.xserver.net.PacketType;
 import de.mickare.xserver.net.XServer;
 
 public class PackageCommand extends SubCommand {
 
   public PackageCommand(BukkitXServerPlugin plugin) {
-    super(plugin, "package", "[Servername]", "Shows package speed to all servers, or the one as given.");
+    super(plugin, "package", "[Servername]", "Shows package speed to all servers, or the metrics of the one as given.");
     // TODO Auto-generated constructor stub
   }
 
@@ -33,6 +37,10 @@ public class PackageCommand extends SubCommand {
       StringBuilder sb = new StringBuilder();
       appendHeaderLine(sb);
       appendSpeedLine(sb.append("\n"), s);
+      ConnectionMetrics m = s.getMetrics();
+      if (m != null) {
+        appendMetrics(sb, m);
+      }
       sender.sendMessage(sb.toString());
 
     } else {
@@ -79,4 +87,45 @@ public class PackageCommand extends SubCommand {
     return sb;
   }
 
+  private StringBuilder appendMetrics(StringBuilder sb, ConnectionMetrics m) {
+    sb.append("\n").append(ChatColor.GRAY).append("Sent: ").append(ChatColor.GOLD).append(m.getPacketsSent()).append(ChatColor.GRAY)
+        .append(" packets, ").append(ChatColor.GOLD).append(formatBytes(m.getBytesSent()));
+    sb.append("\n").append(ChatColor.GRAY).append("Received: ").append(ChatColor.GOLD).append(m.getPacketsReceived())
+        .append(ChatColor.GRAY).append(" packets, ").append(ChatColor.GOLD).append(formatBytes(m.getBytesReceived()));
+    sb.append("\n").append(ChatColor.GRAY).append("Queue: ").append(ChatColor.GOLD).append(m.getQueueDepth()).append(ChatColor.GRAY)
+        .append("/").append(m.getQueueCapacity()).append(" (peak ").append(ChatColor.AQUA).append(m.getPeakQueueDepth())
+        .append(ChatColor.GRAY).append(")  Dropped: ").append(m.getDropped() > 0 ? ChatColor.RED : ChatColor.GOLD).append(m.getDropped());
+    if (m.getCompressionSavedBytes() != 0) {
+      sb.append("\n").append(ChatColor.GRAY).append("Compression: ").append(ChatColor.GOLD)
+          .append(String.format("%.0f%%", m.getSentCompressionRatio() * 100)).append(ChatColor.GRAY).append(":").append(ChatColor.GOLD)
+          .append(String.format("%.0f%%", m.getReceivedCompressionRatio() * 100)).append(ChatColor.GRAY).append(" (saved ")
+          .append(formatBytes(m.getCompressionSavedBytes())).append(")");
+    }
+    appendLatencyLine(sb.append("\n").append(ChatColor.GRAY).append("Queue latency: "), m.getQueueLatency());
+    for (PacketType type : PacketType.values()) {
+      LatencyHistogram h = m.getHandlerTime(type);
+      if (h.getCount() > 0) {
+        appendLatencyLine(sb.append("\n").append(ChatColor.GRAY).append("Handler ").append(type.name()).append(": "), h);
+      }
+    }
+    return sb;
+  }
+
+  private StringBuilder appendLatencyLine(StringBuilder sb, LatencyHistogram h) {
+    sb.append(ChatColor.GRAY).append("p50 ").append(ChatColor.GOLD).append(h.getPercentile(50, TimeUnit.MICROSECONDS))
+        .append(ChatColor.GRAY).append("us p99 ").append(ChatColor.GOLD).append(h.getPercentile(99, TimeUnit.MICROSECONDS))
+        .append(ChatColor.GRAY).append("us max ").append(ChatColor.AQUA).append(h.getMax(TimeUnit.MICROSECONDS)).append(ChatColor.GRAY)
+        .append("us (").append(h.getCount()).append(")");
+    return sb;
+  }
+
+  private static String formatBytes(long bytes) {
+    if (bytes < 1024) {
+      return bytes + " B";
+    } else if (bytes < 1024 * 1024) {
+      return String.format("%.1f KiB", bytes / 1024.0);
+    }
+    return String.format("%.1f MiB", bytes / (1024.0 * 1024.0));
+  }
+
 }
@@ -2,6 +2,7 @@ package de.mickare.xserver;
 
 import java.io.IOException;
 
+import de.mickare.xserver.config.XServerSettings;
 import de.mickare.xserver.exceptions.InvalidConfigurationException;
 import de.mickare.xserver.exceptions.NotInitializedException;
 import de.mickare.xserver.listener.StressTestListener;
@@ -18,9 +19,10 @@ public class BungeeXServerManager extends XServerManager {
   private final StressTestListener stressListener;
 
   protected BungeeXServerManager(String servername, BungeeXServerPlugin bungeePlugin, MySQL connection, String sql_table_xservers,
-      String sql_table_xgroups, String sql_table_xserversxgroups) throws InvalidConfigurationException, IOException {
+      String sql_table_xgroups, String sql_table_xserversxgroups, XServerSettings settings) throws InvalidConfigurationException,
+          IOException {
     super(servername, bungeePlugin, connection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups,
-        new BungeeServerThreadPool(bungeePlugin));
+        new BungeeServerThreadPool(bungeePlugin), settings);
     this.eventhandler = new BungeeEventHandler(bungeePlugin);
     this.bungeePlugin = bungeePlugin;
     this.stressListener = new StressTestListener(this);
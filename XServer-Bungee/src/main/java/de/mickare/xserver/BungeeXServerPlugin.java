@@ -5,6 +5,7 @@ import java.util.logging.Logger;
 
 import de.mickare.xserver.commands.XServerCommands;
 import de.mickare.xserver.config.ConfigAccessor;
+import de.mickare.xserver.config.XServerSettings;
 import de.mickare.xserver.exceptions.InvalidConfigurationException;
 import de.mickare.xserver.util.MySQL;
 import de.mickare.xserver.util.MyStringUtils;
@@ -73,10 +74,28 @@ public class BungeeXServerPlugin extends Plugin implements XServerPlugin {
     cfgconnection = new MySQL(log, user, pass, data, host, port, "config");
     cfgconnection.connect();
 
+    XServerSettings settings = XServerSettings.load(new XServerSettings.Source() {
+      @Override
+      public boolean getBoolean(String path, boolean def) {
+        return getConfig().getBoolean(path, def);
+      }
+
+      @Override
+      public int getInt(String path, int def) {
+        return getConfig().getInt(path, def);
+      }
+
+      @Override
+      public String getString(String path, String def) {
+        return getConfig().getString(path, def);
+      }
+    });
+
     try {
       log.info("Starting XServer async.");
       xmanager =
-          new BungeeXServerManager(servername, this, cfgconnection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups);
+          new BungeeXServerManager(servername, this, cfgconnection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups,
+              settings);
 
     } catch (InvalidConfigurationException | IOException e) {
       log.severe("XServerManager not initialized correctly!\n" + e.getMessage() + "\n" + MyStringUtils.stackTraceToString(e));
@@ -4,6 +4,7 @@ package de.mickare.xserver.commands.XServerSubCommands;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
 
+import de.mickare.xserver.AbstractXServerManagerObj;
 import de.mickare.xserver.XServerPlugin;
 import de.mickare.xserver.commands.SubCommand;
 import de.mickare.xserver.net.Ping;
@@ -27,12 +28,12 @@ public class PingCommand extends SubCommand {
                                         sender.sendMessage(ChatColor.RED + "Server \"" + args[0] + "\" not found!");
                                         return;
                                 }
-                                Ping p = new PingObj(getPlugin().getManager(), new BungeeComSender(sender), getPlugin().getManager().getHomeServer().getName());
+                                Ping p = new PingObj((AbstractXServerManagerObj) getPlugin().getManager(), new BungeeComSender(sender), getPlugin().getManager().getHomeServer().getName());
                                 p.add(s);
                                 p.start();
                         } else {
                                 
-                                Ping p = new PingObj(getPlugin().getManager(), new BungeeComSender(sender), getPlugin().getManager().getHomeServer().getName());
+                                Ping p = new PingObj((AbstractXServerManagerObj) getPlugin().getManager(), new BungeeComSender(sender), getPlugin().getManager().getHomeServer().getName());
                                 p.addAll(getPlugin().getManager().getServers());
                                 p.start();
                                 
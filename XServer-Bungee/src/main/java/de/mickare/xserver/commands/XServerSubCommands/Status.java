@@ -9,6 +9,7 @@ import net.md_5.bungee.api.CommandSender;
 
 import de.mickare.xserver.XServerPlugin;
 import de.mickare.xserver.commands.SubCommand;
+import de.mickare.xserver.net.ServerHealth;
 import de.mickare.xserver.net.XServer;
 
 public class Status extends SubCommand {
@@ -37,8 +38,15 @@ public class Status extends SubCommand {
                         for (XServer s : servers) {
                                 sb.append("\n").append(ChatColor.RESET).append(s.getName())
                                                 .append(ChatColor.GRAY).append(" : ");
-                                if (s.isConnected()) {
+                                ServerHealth health = s.getHealth();
+                                if (health == ServerHealth.CONNECTED) {
                                         sb.append(ChatColor.GREEN).append("connected");
+                                } else if (health == ServerHealth.RELAYED) {
+                                        sb.append(ChatColor.GREEN).append("relayed");
+                                } else if (health == ServerHealth.CONNECTING) {
+                                        sb.append(ChatColor.YELLOW).append("connecting");
+                                } else if (health == ServerHealth.DOWN) {
+                                        sb.append(ChatColor.RED).append("down");
                                 } else {
                                         sb.append(ChatColor.RED).append("not connected");
                                 }
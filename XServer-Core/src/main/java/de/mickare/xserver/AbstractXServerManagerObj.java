@@ -1,27 +1,35 @@
 package de.mickare.xserver;
 
 import java.io.IOException;
-import java.sql.ResultSet;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.net.SocketFactory;
 
+import de.mickare.xserver.config.MySQLServerListSource;
+import de.mickare.xserver.config.ServerListSource;
+import de.mickare.xserver.config.XServerSettings;
+import de.mickare.xserver.config.XServerSettings.Transport;
 import de.mickare.xserver.exceptions.InvalidConfigurationException;
 import de.mickare.xserver.exceptions.NotInitializedException;
+import de.mickare.xserver.net.NioEventLoopGroup;
+import de.mickare.xserver.net.Outbox;
+import de.mickare.xserver.net.Packet;
+import de.mickare.xserver.net.PacketCompressor;
+import de.mickare.xserver.net.ReconnectScheduler;
+import de.mickare.xserver.net.RelayRouter;
+import de.mickare.xserver.net.SendPriority;
 import de.mickare.xserver.net.XServer;
 import de.mickare.xserver.net.XServerObj;
 import de.mickare.xserver.net.XServerObjHome;
-import de.mickare.xserver.util.Consumer;
-import de.mickare.xserver.util.InterruptableRunnable;
 import de.mickare.xserver.util.MySQL;
-import de.mickare.xserver.util.TableInstall;
+import de.mickare.xserver.util.TimerWheel;
 import de.mickare.xserver.util.concurrent.CloseableLock;
 import de.mickare.xserver.util.concurrent.CloseableReadWriteLock;
 import de.mickare.xserver.util.concurrent.CloseableReentrantReadWriteLock;
@@ -32,43 +40,65 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
     NEW, RUNNING, STOPPED;
   }
 
-  private volatile State state = State.NEW;
-  private InterruptableRunnable reconnectTask = null;
+  // 10ms ticks, one round of the wheel takes about 5 seconds
+  private final static int TIMER_TICK = 10;
+  private final static int TIMER_TICKS_PER_WHEEL = 512;
+  // Interval of dropping expired messages from the outboxes
+  private final static int OUTBOX_SWEEP_INTERVAL = 1000;
 
-  private final String sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups;
+  private volatile State state = State.NEW;
 
   private final XServerPlugin plugin;
+  private final XServerSettings settings;
   private ServerThreadPoolExecutor stpool;
   private SocketFactory sf;
   private MainServer mainserver;
+  private NioEventLoopGroup eventLoops = null;
+  private final RelayRouter relayRouter;
+  private final ReconnectScheduler reconnects;
+  private volatile TimerWheel timer = null;
 
-  private final MySQL connection;
+  private final ServerListSource serverList;
   private final String homeServerName;
   private XServerObj homeServer;
   private CloseableReadWriteLock serversLock = new CloseableReentrantReadWriteLock(true);
 
   private final Map<String, XServerObj> servers = new ConcurrentHashMap<String, XServerObj>();
-  private final Map<String, XGroup> groups = new ConcurrentHashMap<String, XGroup>();
+  // Built by reload and read without locking
+  private volatile GroupIndex<XServerObj> groupIndex = GroupIndex.EMPTY;
+
+  private volatile byte[] compressionDictionary = null;
 
-  private final Map<XServer, AtomicInteger> notConnectedServers = new ConcurrentHashMap<XServer, AtomicInteger>();
 
   protected AbstractXServerManagerObj(String servername, XServerPlugin plugin, MySQL connection, String sql_table_xservers,
       String sql_table_xgroups, String sql_table_xserversxgroups, ServerThreadPoolExecutor stpool)
           throws InvalidConfigurationException, IOException {
+    this(servername, plugin, connection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups, stpool,
+        new XServerSettings());
+  }
+
+  protected AbstractXServerManagerObj(String servername, XServerPlugin plugin, MySQL connection, String sql_table_xservers,
+      String sql_table_xgroups, String sql_table_xserversxgroups, ServerThreadPoolExecutor stpool, XServerSettings settings)
+          throws InvalidConfigurationException, IOException {
+    this(servername, plugin, new MySQLServerListSource(plugin, connection, sql_table_xservers, sql_table_xgroups,
+        sql_table_xserversxgroups), stpool, settings);
+  }
+
+  protected AbstractXServerManagerObj(String servername, XServerPlugin plugin, ServerListSource serverList,
+      ServerThreadPoolExecutor stpool, XServerSettings settings) throws InvalidConfigurationException, IOException {
     this.plugin = plugin;
+    this.settings = settings;
     this.stpool = stpool;
     // this.stpool = new ServerThreadPoolExecutorObj();
     this.sf = SocketFactory.getDefault();
-    this.connection = connection;
-    this.sql_table_xservers = sql_table_xservers;
-    this.sql_table_xgroups = sql_table_xgroups;
-    this.sql_table_xserversxgroups = sql_table_xserversxgroups;
+    this.serverList = serverList;
     this.homeServerName = servername;
+    this.relayRouter = new RelayRouter(this, settings.getRelays());
+    this.reconnects = new ReconnectScheduler(this);
 
     // Installation
 
-    TableInstall ti = new TableInstall(plugin, connection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups);
-    ti.install();
+    serverList.install();
 
     // Loading
 
@@ -102,24 +132,34 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
       this.debugInfo("Starting XServerManager...");
       this.state = State.RUNNING;
 
+      this.timer = new TimerWheel("XServer Timer", this.getLogger(), TIMER_TICK, TimeUnit.MILLISECONDS, TIMER_TICKS_PER_WHEEL)
+          .start(this.stpool);
+      if (this.settings.getTransport() == Transport.NIO) {
+        this.eventLoops = new NioEventLoopGroup(this.settings.getIoThreads(), this.getLogger()).start(this.stpool);
+      }
+
       this.mainserver = new MainServer(this.homeServer.getPort(), this).start(this.stpool);
 
-      if (this.reconnectTask != null) {
-        this.reconnectTask.interrupt();
-      }
-      this.reconnectTask = new InterruptableRunnable("Reconnect Task") {
+      // Both tasks reschedule themselves on the timer of this run, which dies with stop()
+      final TimerWheel runTimer = this.timer;
+      runTimer.newTimeout(new Runnable() {
         @Override
         public void run() {
-          try {
-            while (!this.isInterrupted() && isRunning()) {
-              reconnectAll_soft();
-              Thread.sleep(plugin.getAutoReconnectTime());
-            }
-          } catch (InterruptedException e) {
+          if (isRunning()) {
+            reconnectAll_soft();
+            runTimer.newTimeout(this, plugin.getAutoReconnectTime(), TimeUnit.MILLISECONDS);
           }
         }
-      };
-      this.reconnectTask.start(this.getThreadPool());
+      }, 0, TimeUnit.MILLISECONDS);
+      runTimer.newTimeout(new Runnable() {
+        @Override
+        public void run() {
+          if (isRunning()) {
+            purgeOutboxes();
+            runTimer.newTimeout(this, OUTBOX_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+          }
+        }
+      }, OUTBOX_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
       this.debugInfo("XServerManager started");
     } catch (Exception e) {
       this.stop();
@@ -136,18 +176,17 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
     }
   }
 
-  private void notifyNotConnected(XServer s, Exception e) {
-    AtomicInteger n;
-    synchronized (notConnectedServers) {
-      n = notConnectedServers.get(s);
-      if (n == null) {
-        n = new AtomicInteger(0);
-        notConnectedServers.put(s, n);
+  /**
+   * Drop the expired messages of all outboxes, so their futures fail while the servers are still
+   * offline.
+   */
+  private void purgeOutboxes() {
+    for (XServerObj s : servers.values()) {
+      Outbox outbox = s.getOutbox();
+      if (outbox != null && !outbox.isEmpty()) {
+        outbox.purgeExpired();
       }
     }
-    if (n.incrementAndGet() % 100 == 0) {
-      plugin.getLogger().info("Connection to " + s.getName() + " failed! {Cause: " + e.getMessage() + "}");
-    }
   }
 
   @Override
@@ -156,22 +195,22 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
       return;
     }
     debugInfo("Reconnecting softly...");
-    Set<XServerObj> temp;
+    final Set<XServerObj> temp;
     try (CloseableLock cs = serversLock.readLock().open()) {
       temp = new HashSet<>(servers.values());
     }
-    for (final XServerObj s : temp) {
-      stpool.runTask(new Runnable() {
-        public void run() {
+    // One task for all servers, connectSoft doesn't wait for the connects it starts
+    stpool.runTask(new Runnable() {
+      public void run() {
+        for (XServerObj s : temp) {
           try {
             s.connectSoft();
-            notConnectedServers.remove(s);
           } catch (NotInitializedException | IOException | InterruptedException e) {
-            notifyNotConnected(s, e);
+            debugInfo("Connection to " + s.getName() + " failed! {Cause: " + e.getMessage() + "}");
           }
         }
-      });
-    }
+      }
+    });
   }
 
   @Override
@@ -184,17 +223,8 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
     try (CloseableLock cs = serversLock.readLock().open()) {
       temp = new HashSet<>(servers.values());
     }
-    for (final XServerObj s : temp) {
-      stpool.runTask(new Runnable() {
-        public void run() {
-          try {
-            s.connect();
-            notConnectedServers.remove(s);
-          } catch (NotInitializedException | IOException | InterruptedException e) {
-            notifyNotConnected(s, e);
-          }
-        }
-      });
+    for (XServerObj s : temp) {
+      s.reconnect();
     }
   }
 
@@ -204,10 +234,6 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
     State oldState = this.state;
     this.state = State.STOPPED;
 
-    if (this.reconnectTask != null) {
-      this.reconnectTask.interrupt();
-    }
-
     if (oldState == State.NEW) {
       this.state = State.STOPPED;
       // nothing
@@ -236,7 +262,15 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
         }
       }
 
-      notConnectedServers.clear();
+      if (this.eventLoops != null) {
+        this.eventLoops.shutdown();
+        this.eventLoops = null;
+      }
+
+      if (this.timer != null) {
+        this.timer.shutdown();
+        this.timer = null;
+      }
 
     }
     this.debugInfo("XServerManager stopped");
@@ -254,59 +288,66 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
     try (CloseableLock cs = serversLock.writeLock().open()) {
       this.stop();
 
-      // Reestablish connection
-      connection.reconnect();;
-
       // Get all servers
       final Map<Integer, XServerObj> idMap = new HashMap<Integer, XServerObj>();
+      final GroupIndex.Builder<XServerObj> groupBuilder = new GroupIndex.Builder<XServerObj>(XServerObj.class);
 
-      this.debugInfo("Loading XServers...");
-      connection.query(new Consumer<ResultSet>() {
+      this.debugInfo("Loading XServers, Groups and Group-Server relations...");
+      serverList.load(new ServerListSource.Visitor() {
         @Override
-        public void accept(ResultSet rs) {
-          try {
-            while (rs.next()) {
-              int id = rs.getInt("ID");
-              String servername = rs.getString("NAME");
-              String[] hostip = rs.getString("ADRESS").split(":");
-              String pw = rs.getString("PW");
-
-              if (hostip.length < 2) {
-                plugin.getLogger().warning("XServer \"" + servername + "\" has an invalid address! (host:port)");
-                continue;
-              }
-
-              String host = hostip[0];
-              if (hostip.length > 2) {
-                for (int i = 1; i < hostip.length - 1; i++) {
-                  host += ":" + hostip[i];
-                }
-              }
-              int ip = 20000;
-              try {
-                ip = Integer.valueOf(hostip[hostip.length - 1]);
-              } catch (NumberFormatException nfe) {
-                plugin.getLogger().warning("XServer \"" + servername + "\" has an invalid address! (host:port)");
-                continue;
-              }
-              XServerObj result;
-              if (homeServerName.equals(servername)) {
-                result = new XServerObjHome(servername, host, ip, pw, AbstractXServerManagerObj.this);
-              } else {
-                result = new XServerObj(servername, host, ip, pw, AbstractXServerManagerObj.this);
-              }
-
-              servers.put(servername, result);
-              idMap.put(id, result);
+        public void server(int id, String servername, String address, String pw) {
+          String[] hostip = address.split(":");
+
+          if (hostip.length < 2) {
+            plugin.getLogger().warning("XServer \"" + servername + "\" has an invalid address! (host:port)");
+            return;
+          }
+
+          String host = hostip[0];
+          if (hostip.length > 2) {
+            for (int i = 1; i < hostip.length - 1; i++) {
+              host += ":" + hostip[i];
             }
-          } catch (Exception e) {
-            plugin.getLogger().severe(e.getMessage());
-            throw new RuntimeException("Couldn't load XServer List form Database!", e);
           }
+          int ip = 20000;
+          try {
+            ip = Integer.valueOf(hostip[hostip.length - 1]);
+          } catch (NumberFormatException nfe) {
+            plugin.getLogger().warning("XServer \"" + servername + "\" has an invalid address! (host:port)");
+            return;
+          }
+          XServerObj result;
+          if (homeServerName.equals(servername)) {
+            result = new XServerObjHome(servername, host, ip, pw, AbstractXServerManagerObj.this);
+          } else {
+            result = new XServerObj(servername, host, ip, pw, AbstractXServerManagerObj.this);
+          }
+
+          servers.put(servername, result);
+          idMap.put(id, result);
+        }
+
+        @Override
+        public void group(int groupId, String name) {
+          groupBuilder.addGroup(groupId, name);
         }
-      }, "SELECT * FROM " + sql_table_xservers);
+
+        @Override
+        public void relation(int serverId, int groupId) {
+          XServerObj x = idMap.get(serverId);
+          if (x != null) {
+            groupBuilder.addRelation(x, groupId);
+          }
+        }
+      });
+      final GroupIndex<XServerObj> index = groupBuilder.build();
+      for (XServerObj x : idMap.values()) {
+        x.setMembership(index.getMembership(x));
+      }
+      this.groupIndex = index;
       if (this.isDebugging()) {
         this.debugInfo(this.servers.size() + " XServers loaded");
+        this.debugInfo(index.size() + " Groups loaded");
       }
 
       // home server
@@ -317,61 +358,6 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
       }
       this.debugInfo("Home Server found: " + this.homeServer.getName());
 
-
-      // Groups
-      this.debugInfo("Loading Groups...");
-      this.groups.clear();
-      final Map<Integer, XGroup> tempgroups = new HashMap<Integer, XGroup>();
-      connection.query(new Consumer<ResultSet>() {
-
-        @Override
-        public void accept(ResultSet rs) {
-          try {
-            while (rs.next()) {
-              int groupId = rs.getInt("groupID");
-              String name = rs.getString("name");
-              XGroupObj o = new XGroupObj(groupId, name);
-              AbstractXServerManagerObj.this.groups.put(name, o);
-              tempgroups.put(groupId, o);
-            }
-
-          } catch (Exception e) {
-            plugin.getLogger().severe(e.getMessage());
-            throw new RuntimeException("Couldn't load XServer Groups form Database!", e);
-          }
-        }
-      }, "SELECT * FROM " + sql_table_xgroups);
-      if (this.isDebugging()) {
-        this.debugInfo(tempgroups.size() + " Groups loaded");
-      }
-
-      // Relations to groups
-      this.debugInfo("Loading Group-Server relations...");
-      connection.query(new Consumer<ResultSet>() {
-        @Override
-        public void accept(ResultSet rs) {
-          try {
-            while (rs.next()) {
-              int serverId = rs.getInt("serverID");
-              int groupId = rs.getInt("groupId");
-
-              XServerObj x = idMap.get(serverId);
-              XGroup g = tempgroups.get(groupId);
-              if (x != null && g != null) {
-                x.addGroup(g);
-              }
-
-            }
-          } catch (Exception e) {
-            plugin.getLogger().severe(e.getMessage());
-            throw new RuntimeException("Couldn't load XServer Group-Relations form Database!", e);
-          }
-        }
-      }, "SELECT * FROM " + sql_table_xserversxgroups);
-
-      // End of queries
-      connection.disconnect();
-
       if (oldState == State.RUNNING) {
         this.debugInfo("Restarting XServerManager...");
         this.start();
@@ -400,15 +386,45 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
 
   @Override
   public Set<XServer> getServers(XGroup group) {
-    try (CloseableLock cs = serversLock.readLock().open()) {
-      Set<XServer> result = new HashSet<XServer>();
-      for (XServerObj x : this.servers.values()) {
-        if (x.hasGroup(group)) {
-          result.add(x);
+    return groupIndex.getServers(group);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.AbstractXServerManager#sendToGroup(de.mickare.xserver.XGroup,
+   * de.mickare.xserver.Message)
+   */
+  @Override
+  public int sendToGroup(XGroup group, Message message) throws IOException {
+    return sendToGroup(group, message, SendPriority.BULK);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.AbstractXServerManager#sendToGroup(de.mickare.xserver.XGroup,
+   * de.mickare.xserver.Message, de.mickare.xserver.net.SendPriority)
+   */
+  @Override
+  public int sendToGroup(XGroup group, Message message, SendPriority priority) throws IOException {
+    XServerObj[] members = groupIndex.getMembers(group);
+    if (members.length == 0 || !isRunning()) {
+      return 0;
+    }
+    // Every member takes its own reference, the frame goes back to the pool after the last write
+    Packet packet = XServerObj.toPacket(message);
+    int sent = 0;
+    try {
+      for (XServerObj x : members) {
+        if (x.sendShared(message, packet, priority)) {
+          sent++;
         }
       }
-      return result;
+    } finally {
+      packet.release();
     }
+    return sent;
   }
 
   /*
@@ -441,6 +457,55 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
     return stpool;
   }
 
+  public XServerSettings getSettings() {
+    return settings;
+  }
+
+  /**
+   * Get the selector threads of the NIO transport
+   *
+   * @return event loops, or null if the blocking transport is used
+   */
+  public NioEventLoopGroup getEventLoopGroup() {
+    return eventLoops;
+  }
+
+  /**
+   * Get the routing through the relays of the settings
+   *
+   * @return router, disabled if there are no relays
+   */
+  public RelayRouter getRelayRouter() {
+    return relayRouter;
+  }
+
+  public ReconnectScheduler getReconnectScheduler() {
+    return reconnects;
+  }
+
+  /**
+   * Get the timer for timeouts of requests, pings and the reconnect task. A pending timeout costs
+   * no thread, but tasks run on the single timer thread and must not block.
+   *
+   * @return timer, or null if not running
+   */
+  public TimerWheel getTimer() {
+    return timer;
+  }
+
+  /**
+   * Run a task on the timer thread after a delay.
+   *
+   * @param task must not block
+   * @param delay
+   * @param unit
+   * @return timeout to cancel the task, or null if not running
+   */
+  public TimerWheel.Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    TimerWheel t = this.timer;
+    return t != null ? t.newTimeout(task, delay, unit) : null;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -555,6 +620,61 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
     return new MessageObj(sender, data);
   }
 
+  /**
+   * Read a message from a part of an array, e.g. a received frame. The message is a view of the
+   * array, see {@link Packet#allocate(int, int)}.
+   *
+   * @param sender
+   * @param data
+   * @param offset
+   * @param length
+   * @return message
+   * @throws IOException
+   */
+  public Message readMessage(XServer sender, byte[] data, int offset, int length) throws IOException {
+    return new MessageObj(sender, data, offset, length);
+  }
+
+  /**
+   * Read a message whose subchannel is already known, e.g. from a channel id.
+   *
+   * @param sender
+   * @param subChannel
+   * @param data
+   * @param offset of the content
+   * @param length of the content
+   * @return message
+   * @throws IOException
+   */
+  public Message readMessage(XServer sender, String subChannel, byte[] data, int offset, int length) throws IOException {
+    return new MessageObj(sender, subChannel, data, offset, length);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.AbstractXServerManager#setCompressionDictionary(byte[])
+   */
+  @Override
+  public void setCompressionDictionary(byte[] dictionary) {
+    if (dictionary == null || dictionary.length == 0) {
+      this.compressionDictionary = null;
+    } else {
+      int len = Math.min(dictionary.length, PacketCompressor.MAX_DICTIONARY_SIZE);
+      this.compressionDictionary = Arrays.copyOfRange(dictionary, dictionary.length - len, dictionary.length);
+    }
+  }
+
+  /**
+   * Get the dictionary that was set by a plugin. Connections announce a new one on their next
+   * message.
+   *
+   * @return dictionary or null
+   */
+  public byte[] getCompressionDictionary() {
+    return compressionDictionary;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -573,9 +693,7 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
 
   @Override
   public Set<XGroup> getGroups() {
-    try (CloseableLock cs = this.serversLock.readLock().open()) {
-      return Collections.unmodifiableSet(new HashSet<XGroup>(this.groups.values()));
-    }
+    return groupIndex.getGroups();
   }
 
   @Override
@@ -583,7 +701,7 @@ public abstract class AbstractXServerManagerObj implements AbstractXServerManage
     if (name == null) {
       return null;
     }
-    return this.groups.get(name);
+    return groupIndex.getGroup(name);
   }
 
 }
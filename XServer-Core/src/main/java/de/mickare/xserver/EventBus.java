@@ -2,80 +2,142 @@ package de.mickare.xserver;
 
 // Class from MD5 - BungeeCord
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import de.mickare.xserver.annotations.XEventHandler;
 import de.mickare.xserver.events.XServerEvent;
-import de.mickare.xserver.util.concurrent.CloseableLock;
-import de.mickare.xserver.util.concurrent.CloseableReadWriteLock;
-import de.mickare.xserver.util.concurrent.CloseableReentrantReadWriteLock;
 
 public class EventBus<T> {
 
-  private final Map<Class<?>, Map<Object, Method[]>> eventToHandler = new HashMap<>();
-  private final Map<Method, Boolean> synced = Collections.synchronizedMap(new HashMap<Method, Boolean>());
-  private final Map<Method, String> channeled = Collections.synchronizedMap(new HashMap<Method, String>());
-  private final Map<Method, XServerListenerPlugin<T>> plugins =
-      Collections.synchronizedMap(new HashMap<Method, XServerListenerPlugin<T>>());
-  private final CloseableReadWriteLock lock = new CloseableReentrantReadWriteLock();
-  private final Logger logger;
+  private final static MethodType INVOKER_TYPE = MethodType.methodType(void.class, XServerEvent.class);
 
-  private final EventHandler<T> myhandler;
+  /**
+   * One annotated listener method, bound to its listener as a method handle of type
+   * (XServerEvent)void.
+   */
+  private static final class Handler<T> {
+    private final Object listener;
+    private final MethodHandle invoker;
+    private final Boolean sync;
+    private final String channel;
+    private final XServerListenerPlugin<T> plugin;
 
-  public EventBus(EventHandler<T> myhandler, Logger logger) {
-    this.logger = (logger == null) ? Logger.getGlobal() : logger;
-    this.myhandler = myhandler;
+    private Handler(Object listener, Method method, XEventHandler annotation, XServerListenerPlugin<T> plugin)
+        throws IllegalAccessException {
+      this.listener = listener;
+      method.setAccessible(true);
+      this.invoker = MethodHandles.lookup().unreflect(method).bindTo(listener).asType(INVOKER_TYPE);
+      this.sync = Boolean.valueOf(annotation.sync());
+      this.channel = annotation.channel() == null ? "" : annotation.channel();
+      this.plugin = plugin;
+    }
   }
 
-  private Map<Object, Method[]> getHandlers(final XServerEvent event) {
-    try (CloseableLock c = lock.readLock().open()) {
-      return eventToHandler.get(event.getClass());
+  /**
+   * Call of one handler with one event, run by the {@link EventHandler}.
+   */
+  private final class Invocation implements Runnable {
+    private final Handler<T> handler;
+    private final XServerEvent event;
+
+    private Invocation(Handler<T> handler, XServerEvent event) {
+      this.handler = handler;
+      this.event = event;
+    }
+
+    @Override
+    public void run() {
+      try {
+        handler.invoker.invokeExact(event);
+      } catch (Throwable ex) {
+        logger.log(Level.WARNING, MessageFormat.format("Error dispatching event {0} to listener {1}", event, handler.listener), ex);
+      }
     }
   }
 
-  public void post(final XServerEvent event) {
-    final Map<Object, Method[]> handlers = getHandlers(event);
-    if (handlers != null) {
-      for (final Map.Entry<Object, Method[]> handler : handlers.entrySet()) {
-        for (final Method method : handler.getValue()) {
-          final String channel = channeled.get(method);
-          if (channel != null && !channel.isEmpty()) {
-            if (!channel.equals(event.getChannel())) {
-              continue;
-            }
+  /**
+   * Immutable handlers of one event class, indexed by channel. Handlers without a channel are
+   * contained in every array.
+   */
+  private static final class Dispatch<T> {
+    private final Handler<T>[] unchanneled;
+    private final Map<String, Handler<T>[]> channeled;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Dispatch(List<Handler<T>> handlers) {
+      List<Handler<T>> any = new ArrayList<>();
+      Map<String, List<Handler<T>>> byChannel = new HashMap<>();
+      for (Handler<T> h : handlers) {
+        if (h.channel.isEmpty()) {
+          any.add(h);
+        } else {
+          List<Handler<T>> l = byChannel.get(h.channel);
+          if (l == null) {
+            l = new ArrayList<>();
+            byChannel.put(h.channel, l);
           }
-          myhandler.runTask(synced.get(method), plugins.get(method), new Runnable() {
-            @Override
-            public void run() {
-              try {
-                method.invoke(handler.getKey(), event);
-              } catch (IllegalAccessException ex) {
-                throw new Error("Method became inaccessible: " + event, ex);
-              } catch (IllegalArgumentException ex) {
-                throw new Error("Method rejected target/argument: " + event, ex);
-              } catch (InvocationTargetException ex) {
-                logger.log(Level.WARNING, MessageFormat.format("Error dispatching event {0} to listener {1}", event, handler.getKey()),
-                    ex.getCause());
-              }
-            }
-          });
+          l.add(h);
         }
       }
+      this.unchanneled = any.toArray(new Handler[any.size()]);
+      Map<String, Handler<T>[]> c = new HashMap<>();
+      for (Map.Entry<String, List<Handler<T>>> e : byChannel.entrySet()) {
+        List<Handler<T>> l = e.getValue();
+        l.addAll(any);
+        c.put(e.getKey(), l.toArray(new Handler[l.size()]));
+      }
+      this.channeled = c;
+    }
+
+    private Handler<T>[] get(XServerEvent event) {
+      if (channeled.isEmpty()) {
+        // Don't ask for the channel, it may have to be decoded first
+        return unchanneled;
+      }
+      String channel = event.getChannel();
+      Handler<T>[] result = channel != null ? channeled.get(channel) : null;
+      return result != null ? result : unchanneled;
     }
   }
 
-  private Map<Class<?>, Set<Method>> findHandlers(Object listener) {
-    Map<Class<?>, Set<Method>> handler = new HashMap<>();
+  // Registered handlers per event class and listener, guarded by synchronizing on this map
+  private final Map<Class<?>, Map<Object, List<Handler<T>>>> eventToHandler = new HashMap<>();
+  // Rebuilt on every change, read without locking
+  private volatile Map<Class<?>, Dispatch<T>> index = Collections.emptyMap();
+  private final Logger logger;
+
+  private final EventHandler<T> myhandler;
+
+  public EventBus(EventHandler<T> myhandler, Logger logger) {
+    this.logger = (logger == null) ? Logger.getGlobal() : logger;
+    this.myhandler = myhandler;
+  }
+
+  public void post(XServerEvent event) {
+    Dispatch<T> dispatch = index.get(event.getClass());
+    if (dispatch == null) {
+      return;
+    }
+    for (Handler<T> handler : dispatch.get(event)) {
+      myhandler.runTask(handler.sync, handler.plugin, new Invocation(handler, event));
+    }
+  }
+
+  private Map<Class<?>, List<Handler<T>>> findHandlers(Object listener, XServerListenerPlugin<T> plugin) {
+    Map<Class<?>, List<Handler<T>>> handler = new HashMap<>();
     for (Method m : listener.getClass().getDeclaredMethods()) {
       XEventHandler annotation = m.getAnnotation(XEventHandler.class);
       if (annotation != null) {
@@ -85,52 +147,76 @@ public class EventBus<T> {
               new Object[] {m, listener.getClass(), annotation});
           continue;
         }
+        if (!XServerEvent.class.isAssignableFrom(params[0])) {
+          logger.log(Level.INFO, "Method {0} in class {1} annotated with {2} does not take an XServerEvent",
+              new Object[] {m, listener.getClass(), annotation});
+          continue;
+        }
 
-        Set<Method> existing = handler.get(params[0]);
+        Handler<T> h;
+        try {
+          h = new Handler<T>(listener, m, annotation, plugin);
+        } catch (IllegalAccessException | SecurityException ex) {
+          logger.log(Level.WARNING, MessageFormat.format("Method {0} in class {1} is not accessible", m, listener.getClass()), ex);
+          continue;
+        }
+
+        List<Handler<T>> existing = handler.get(params[0]);
         if (existing == null) {
-          existing = new HashSet<>();
+          existing = new ArrayList<>();
           handler.put(params[0], existing);
         }
-        synced.put(m, annotation.sync());
-        channeled.put(m, annotation.channel());
-        existing.add(m);
+        existing.add(h);
       }
     }
     return handler;
   }
 
   public void register(Object listener, XServerListenerPlugin<T> plugin) {
-    Map<Class<?>, Set<Method>> handler = findHandlers(listener);
-    try (CloseableLock c = lock.writeLock().open()) {
-      for (Map.Entry<Class<?>, Set<Method>> e : handler.entrySet()) {
-        Map<Object, Method[]> a = eventToHandler.get(e.getKey());
+    Map<Class<?>, List<Handler<T>>> handler = findHandlers(listener, plugin);
+    synchronized (eventToHandler) {
+      for (Map.Entry<Class<?>, List<Handler<T>>> e : handler.entrySet()) {
+        Map<Object, List<Handler<T>>> a = eventToHandler.get(e.getKey());
         if (a == null) {
-          a = new ConcurrentHashMap<>();
+          a = new LinkedHashMap<>();
           eventToHandler.put(e.getKey(), a);
         }
-
-        for (Method m : e.getValue()) {
-          plugins.put(m, plugin);
-        }
-
-        Method[] baked = new Method[e.getValue().size()];
-        a.put(listener, e.getValue().toArray(baked));
+        a.put(listener, e.getValue());
       }
+      rebuildIndex();
     }
   }
 
   public void unregister(Object listener) {
-    Map<Class<?>, Set<Method>> handler = findHandlers(listener);
-    try (CloseableLock c = lock.writeLock().open()) {
-      for (Map.Entry<Class<?>, Set<Method>> e : handler.entrySet()) {
-        Map<Object, Method[]> a = eventToHandler.get(e.getKey());
-        if (a != null) {
-          a.remove(listener);
+    synchronized (eventToHandler) {
+      boolean changed = false;
+      Iterator<Map<Object, List<Handler<T>>>> it = eventToHandler.values().iterator();
+      while (it.hasNext()) {
+        Map<Object, List<Handler<T>>> a = it.next();
+        if (a.remove(listener) != null) {
+          changed = true;
           if (a.isEmpty()) {
-            eventToHandler.remove(e.getKey());
+            it.remove();
           }
         }
       }
+      if (changed) {
+        rebuildIndex();
+      }
+    }
+  }
+
+  private void rebuildIndex() {
+    Map<Class<?>, Dispatch<T>> result = new HashMap<>();
+    for (Map.Entry<Class<?>, Map<Object, List<Handler<T>>>> e : eventToHandler.entrySet()) {
+      List<Handler<T>> all = new ArrayList<>();
+      for (List<Handler<T>> l : e.getValue().values()) {
+        all.addAll(l);
+      }
+      if (!all.isEmpty()) {
+        result.put(e.getKey(), new Dispatch<T>(all));
+      }
     }
+    this.index = Collections.unmodifiableMap(result);
   }
 }
@@ -8,6 +8,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 import de.mickare.xserver.events.XServerEvent;
+import de.mickare.xserver.net.Request;
 
 public abstract class EventHandlerObj<T> implements EventHandler<T> {
 
@@ -16,10 +17,12 @@ public abstract class EventHandlerObj<T> implements EventHandler<T> {
 
   private final XServerPlugin plugin;
   private final EventBus<T> bus;
+  private final Responders<T> responders;
 
   protected EventHandlerObj(XServerPlugin plugin) {
     this.plugin = plugin;
     bus = new EventBus<T>(this, plugin.getLogger());
+    responders = new Responders<T>(this, plugin.getLogger());
   }
 
   protected synchronized XServerListenerPlugin<T> getListPlugin(T original) {
@@ -60,6 +63,7 @@ public abstract class EventHandlerObj<T> implements EventHandler<T> {
   protected synchronized void registerListener(XServerListenerPlugin<T> plugin, XServerListener lis) {
     listeners.put(lis, plugin);
     bus.register(lis, plugin);
+    responders.register(lis, plugin);
   }
 
   /*
@@ -70,6 +74,7 @@ public abstract class EventHandlerObj<T> implements EventHandler<T> {
   @Override
   public synchronized void unregisterListener(XServerListener lis) {
     bus.unregister(lis);
+    responders.unregister(lis);
     listeners.remove(lis);
   }
 
@@ -97,6 +102,7 @@ public abstract class EventHandlerObj<T> implements EventHandler<T> {
         listeners.entrySet())) {
       if (e.getValue() == plugin) {
         bus.unregister(e.getKey());
+        responders.unregister(e.getKey());
         listeners.remove(e.getKey());
       }
     }
@@ -112,6 +118,7 @@ public abstract class EventHandlerObj<T> implements EventHandler<T> {
     for (XServerListener lis : listeners.keySet()) {
       bus.unregister(lis);
     }
+    responders.clear();
     listeners.clear();
   }
 
@@ -138,6 +145,18 @@ public abstract class EventHandlerObj<T> implements EventHandler<T> {
     return event;
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.EventHandler#respond(de.mickare.xserver.net.Request)
+   */
+  @Override
+  public boolean respond(Request request) {
+    if (request == null) {
+      throw new IllegalArgumentException("request can't be null");
+    }
+    return responders.respond(request);
+  }
 
   public abstract void runTask(Boolean sync, XServerListenerPlugin<T> plugin, Runnable run);
 
@@ -0,0 +1,250 @@
+package de.mickare.xserver;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.mickare.xserver.net.XServer;
+import de.mickare.xserver.net.XServerObj;
+
+/**
+ * The groups and their members of one reload. An index never changes after it was built, so the
+ * manager publishes it with a single volatile write and it is read without locking.
+ *
+ * Every group gets a dense number, and every server a bitset of the numbers of its groups, so
+ * {@link XServer#hasGroup(XGroup)} is a bit test and the members of a group are a prebuilt array.
+ * The index only needs the identity of its members, the manager keeps its {@link XServerObj}s in it
+ * to send to them.
+ *
+ * @param <S> type of the members
+ */
+public final class GroupIndex<S extends XServer> {
+
+  public final static GroupIndex<XServerObj> EMPTY = new Builder<XServerObj>(XServerObj.class).build();
+
+  /**
+   * The groups of one server in one index.
+   */
+  public static final class Membership {
+
+    private final GroupIndex<?> index;
+    private final long[] bits;
+    private final Set<XGroup> groups;
+
+    private Membership(GroupIndex<?> index, long[] bits) {
+      this.index = index;
+      this.bits = bits;
+      Set<XGroup> g = new LinkedHashSet<XGroup>();
+      for (int i = 0; i < index.groups.length; i++) {
+        if (test(i)) {
+          g.add(index.groups[i]);
+        }
+      }
+      this.groups = Collections.unmodifiableSet(g);
+    }
+
+    private boolean test(int i) {
+      return i >= 0 && (i >>> 6) < bits.length && (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * @param group
+     * @return true if the server is a member
+     */
+    public boolean has(XGroup group) {
+      return test(index.indexOf(group));
+    }
+
+    /**
+     * @return unmodifiable set of the groups
+     */
+    public Set<XGroup> getGroups() {
+      return groups;
+    }
+
+  }
+
+  /**
+   * Collects groups and relations while the server list is read.
+   *
+   * @param <S> type of the members
+   */
+  public static final class Builder<S extends XServer> {
+
+    private final Class<S> type;
+    private final Map<Integer, String> groups = new LinkedHashMap<Integer, String>();
+    private final Map<S, List<Integer>> relations = new LinkedHashMap<S, List<Integer>>();
+
+    /**
+     * @param type of the member arrays
+     */
+    public Builder(Class<S> type) {
+      this.type = type;
+    }
+
+    public Builder<S> addGroup(int id, String name) {
+      groups.put(id, name);
+      return this;
+    }
+
+    /**
+     * Relations may be added before their group, unknown groups are ignored by {@link #build()}.
+     *
+     * @param server
+     * @param groupId
+     * @return this builder
+     */
+    public Builder<S> addRelation(S server, int groupId) {
+      List<Integer> list = relations.get(server);
+      if (list == null) {
+        list = new ArrayList<Integer>(2);
+        relations.put(server, list);
+      }
+      list.add(groupId);
+      return this;
+    }
+
+    public GroupIndex<S> build() {
+      return new GroupIndex<S>(this);
+    }
+
+  }
+
+  private final XGroupObj[] groups;
+  private final Map<XGroup, Integer> numbers;
+  private final Map<String, XGroupObj> byName;
+  private final Set<XGroup> groupSet;
+  private final S[] noMembers;
+  private final S[][] members;
+  private final Set<XServer>[] memberSets;
+  private final Map<S, Membership> memberships;
+  private final Membership none;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private GroupIndex(Builder<S> b) {
+    int n = b.groups.size();
+    this.groups = new XGroupObj[n];
+    Map<Integer, Integer> byId = new HashMap<Integer, Integer>();
+    Map<XGroup, Integer> numbers = new HashMap<XGroup, Integer>();
+    Map<String, XGroupObj> byName = new HashMap<String, XGroupObj>();
+    int i = 0;
+    for (Map.Entry<Integer, String> e : b.groups.entrySet()) {
+      XGroupObj g = new XGroupObj(e.getKey(), e.getValue(), i);
+      groups[i] = g;
+      byId.put(g.getID(), i);
+      numbers.put(g, i);
+      byName.put(g.getName(), g);
+      i++;
+    }
+    this.numbers = numbers;
+    this.byName = byName;
+    this.groupSet = Collections.unmodifiableSet(new LinkedHashSet<XGroup>(Arrays.asList(groups)));
+
+    List<List<S>> lists = new ArrayList<List<S>>(n);
+    for (i = 0; i < n; i++) {
+      lists.add(new ArrayList<S>());
+    }
+    Map<S, long[]> bitsets = new IdentityHashMap<S, long[]>();
+    for (Map.Entry<S, List<Integer>> e : b.relations.entrySet()) {
+      long[] bits = new long[(n + 63) >>> 6];
+      for (Integer id : e.getValue()) {
+        Integer number = byId.get(id);
+        if (number == null || (bits[number >>> 6] & (1L << number)) != 0) {
+          continue;
+        }
+        bits[number >>> 6] |= 1L << number;
+        lists.get(number).add(e.getKey());
+      }
+      bitsets.put(e.getKey(), bits);
+    }
+
+    this.noMembers = (S[]) Array.newInstance(b.type, 0);
+    this.members = (S[][]) Array.newInstance(b.type, n, 0);
+    this.memberSets = new Set[n];
+    for (i = 0; i < n; i++) {
+      members[i] = lists.get(i).toArray(noMembers);
+      memberSets[i] = Collections.unmodifiableSet(new LinkedHashSet<XServer>(lists.get(i)));
+    }
+    Map<S, Membership> memberships = new IdentityHashMap<S, Membership>();
+    for (Map.Entry<S, long[]> e : bitsets.entrySet()) {
+      memberships.put(e.getKey(), new Membership(this, e.getValue()));
+    }
+    this.memberships = memberships;
+    this.none = new Membership(this, new long[0]);
+  }
+
+  /**
+   * Get the number of a group. A group of an older index is found by its id.
+   *
+   * @param group
+   * @return number, or -1 if the group isn't in this index
+   */
+  public int indexOf(XGroup group) {
+    if (group instanceof XGroupObj) {
+      int i = ((XGroupObj) group).getIndex();
+      if (i < groups.length && groups[i] == group) {
+        return i;
+      }
+    }
+    if (group == null) {
+      return -1;
+    }
+    Integer i = numbers.get(group);
+    return i != null ? i : -1;
+  }
+
+  /**
+   * @param group
+   * @return members of the group, must not be modified
+   */
+  public S[] getMembers(XGroup group) {
+    int i = indexOf(group);
+    return i >= 0 ? members[i] : noMembers;
+  }
+
+  /**
+   * @param group
+   * @return unmodifiable set of the members of the group
+   */
+  public Set<XServer> getServers(XGroup group) {
+    int i = indexOf(group);
+    return i >= 0 ? memberSets[i] : Collections.<XServer> emptySet();
+  }
+
+  /**
+   * @param server
+   * @return the groups of the server, none if it has no relation
+   */
+  public Membership getMembership(S server) {
+    Membership m = memberships.get(server);
+    return m != null ? m : none;
+  }
+
+  /**
+   * @param name
+   * @return group or null
+   */
+  public XGroupObj getGroup(String name) {
+    return byName.get(name);
+  }
+
+  /**
+   * @return unmodifiable set of all groups
+   */
+  public Set<XGroup> getGroups() {
+    return groupSet;
+  }
+
+  public int size() {
+    return groups.length;
+  }
+
+}
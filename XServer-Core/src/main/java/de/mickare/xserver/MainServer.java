@@ -6,12 +6,18 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
 
 import javax.net.ServerSocketFactory;
 
 import de.mickare.xserver.net.ConnectionObj;
+import de.mickare.xserver.net.NioConnectionObj;
+import de.mickare.xserver.net.NioEventLoop;
+import de.mickare.xserver.net.NioEventLoopGroup;
 
 public class MainServer {
 
@@ -19,6 +25,7 @@ public class MainServer {
 
   private final AbstractXServerManagerObj manager;
   private ServerSocket socket;
+  private ServerSocketChannel channel = null;
   private volatile Future<?> task = null;
   private volatile boolean running = false;
 
@@ -38,6 +45,9 @@ public class MainServer {
         this.task.cancel(true);
       }
 
+      if (this.channel != null) {
+        this.channel.close();
+      }
       this.socket.close();
     }
   }
@@ -81,23 +91,69 @@ public class MainServer {
     this.manager.debugInfo("MainServer stopped");
   }
 
+  /**
+   * Accepts connections on a event loop of the NIO transport.
+   */
+  private class Acceptor implements NioEventLoop.SelectHandler {
+
+    @Override
+    public void selected(SelectionKey key) throws IOException {
+      SocketChannel temp;
+      while ((temp = channel.accept()) != null) {
+        if (isRunning()) {
+          try {
+            new NioConnectionObj(temp, manager);
+          } catch (IOException e) {
+            temp.close();
+            manager.getLogger().log(Level.WARNING, "Exception while client connects: " + e.getMessage(), e);
+          }
+        } else {
+          temp.close();
+        }
+      }
+    }
+
+    @Override
+    public void tick(long now) {}
+
+    @Override
+    public void close() {
+      try {
+        MainServer.this.stop();
+      } catch (IOException e) {
+      }
+    }
+
+  }
+
   public final synchronized MainServer start(final ServerThreadPoolExecutor stpool) throws IOException {
     if (!running && task == null) {
       this.manager.debugInfo("Starting MainServer...");
-      
 
-      socket = ServerSocketFactory.getDefault().createServerSocket();
+      NioEventLoopGroup loops = manager.getEventLoopGroup();
+      if (loops != null) {
+        channel = ServerSocketChannel.open();
+        channel.configureBlocking(false);
+        socket = channel.socket();
+      } else {
+        socket = ServerSocketFactory.getDefault().createServerSocket();
+      }
       socket.setReuseAddress(true);
       socket.setPerformancePreferences(0, 1, 1);
       socket.setSoTimeout(SOCKET_TIMEOUT);
       socket.bind(new InetSocketAddress(port), 500);
       
       running = true;
-      this.task = stpool.runServerTask(new Runnable() {
-        public void run() {
-          MainServer.this.run();
-        }
-      });
+      if (loops != null) {
+        loops.next().register(channel, SelectionKey.OP_ACCEPT, new Acceptor());
+        this.manager.debugInfo("MainServer started (nio)");
+      } else {
+        this.task = stpool.runServerTask(new Runnable() {
+          public void run() {
+            MainServer.this.run();
+          }
+        });
+      }
     }
     return this;
   }
@@ -1,25 +1,42 @@
 package de.mickare.xserver;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import de.mickare.xserver.net.BufferPool;
+import de.mickare.xserver.net.Packet;
+import de.mickare.xserver.net.PacketType;
 import de.mickare.xserver.net.XServer;
+import de.mickare.xserver.util.ChannelNameCache;
+import de.mickare.xserver.util.ModifiedUTF8;
 
 public class MessageObj implements Message {
 
   private final XServer sender;
-  private final String subChannel;
-  private final byte[] content;
-
+  private volatile String subChannel;
+  private volatile byte[] content;
 
+  // Received frame this message is a view of (null for created messages)
+  private final byte[] frame;
+  // Part of the frame in message encoding, frameLength is -1 if only the content is a view
+  private final int frameOffset;
+  private final int frameLength;
+  private final int contentOffset;
+  private final int contentLength;
 
   protected MessageObj(XServer sender, String subChannel, byte[] content) {
     this.sender = sender;
     this.subChannel = subChannel;
     this.content = content;
+    this.frame = null;
+    this.frameOffset = 0;
+    this.frameLength = 0;
+    this.contentOffset = 0;
+    this.contentLength = content.length;
   }
 
   protected MessageObj(XServer sender, byte[] data) throws IOException {
@@ -37,12 +54,74 @@ public class MessageObj implements Message {
         in.close();
       }
     }
+    this.frame = null;
+    this.frameOffset = 0;
+    this.frameLength = 0;
+    this.contentOffset = 0;
+    this.contentLength = content.length;
+  }
 
+  /**
+   * Create a view of a received frame. Nothing is copied, the subchannel is decoded on first use.
+   * The array must not be changed as long as the message is in use.
+   *
+   * @param sender
+   * @param data
+   * @param offset
+   * @param length
+   * @throws IOException if the frame is malformed
+   */
+  protected MessageObj(XServer sender, byte[] data, int offset, int length) throws IOException {
+    this.sender = sender;
+    if (offset < 0 || length < 6 || offset + length > data.length) {
+      throw new IOException("Message frame too short");
+    }
+    int utflen = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    int pos = offset + 2 + utflen;
+    if (pos + 4 > offset + length) {
+      throw new IOException("Message frame too short");
+    }
+    int clen = ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16) | ((data[pos + 2] & 0xFF) << 8)
+        | (data[pos + 3] & 0xFF);
+    pos += 4;
+    if (clen < 0 || pos + clen > offset + length) {
+      throw new IOException("Invalid message content length " + clen);
+    }
+    this.frame = data;
+    this.frameOffset = offset;
+    this.frameLength = pos + clen - offset;
+    this.contentOffset = pos;
+    this.contentLength = clen;
+  }
+
+  /**
+   * Create a view of the content of a received frame with a known subchannel, e.g. from the channel
+   * table of the connection. Nothing is copied. The array must not be changed as long as the
+   * message is in use.
+   *
+   * @param sender
+   * @param subChannel
+   * @param data
+   * @param offset of the content
+   * @param length of the content
+   * @throws IOException if the content is outside of the array
+   */
+  protected MessageObj(XServer sender, String subChannel, byte[] data, int offset, int length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > data.length) {
+      throw new IOException("Message frame too short");
+    }
+    this.sender = sender;
+    this.subChannel = subChannel;
+    this.frame = data;
+    this.frameOffset = offset;
+    this.frameLength = -1;
+    this.contentOffset = offset;
+    this.contentLength = length;
   }
 
   /*
    * (non-Javadoc)
-   * 
+   *
    * @see de.mickare.xserver.Message#getSender()
    */
   @Override
@@ -52,46 +131,134 @@ public class MessageObj implements Message {
 
   /*
    * (non-Javadoc)
-   * 
+   *
    * @see de.mickare.xserver.Message#getSubChannel()
    */
   @Override
   public String getSubChannel() {
-    return subChannel;
+    String s = subChannel;
+    if (s == null && frame != null) {
+      int utflen = ((frame[frameOffset] & 0xFF) << 8) | (frame[frameOffset + 1] & 0xFF);
+      try {
+        s = ChannelNameCache.DEFAULT.get(frame, frameOffset, utflen);
+      } catch (IOException e) {
+        throw new IllegalStateException("Malformed subchannel", e);
+      }
+      subChannel = s;
+    }
+    return s;
   }
 
   /*
    * (non-Javadoc)
-   * 
+   *
    * @see de.mickare.xserver.Message#getContent()
    */
   @Override
   public byte[] getContent() {
-    return content;
+    byte[] c = content;
+    if (c == null && frame != null) {
+      c = Arrays.copyOfRange(frame, contentOffset, contentOffset + contentLength);
+      content = c;
+    }
+    return c;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.Message#getContentBuffer()
+   */
+  @Override
+  public ByteBuffer getContentBuffer() {
+    if (frame == null) {
+      return ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+    return ByteBuffer.wrap(frame, contentOffset, contentLength).slice().asReadOnlyBuffer();
   }
 
   /*
    * (non-Javadoc)
-   * 
+   *
+   * @see de.mickare.xserver.Message#getContentStream()
+   */
+  @Override
+  public InputStream getContentStream() {
+    if (frame == null) {
+      return new ByteArrayInputStream(content);
+    }
+    return new ByteArrayInputStream(frame, contentOffset, contentLength);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.Message#getContentLength()
+   */
+  @Override
+  public int getContentLength() {
+    return contentLength;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
    * @see de.mickare.xserver.Message#getData()
    */
   @Override
   public byte[] getData() throws IOException {
-    // Write Data
-    ByteArrayOutputStream b = new ByteArrayOutputStream();
-    DataOutputStream out = null;
-    try {
-      out = new DataOutputStream(b);
-      out.writeUTF(subChannel);
-      out.writeInt(content.length);
-      out.write(content);
-    } finally {
-      if (out != null) {
-        out.close();
-      }
+    if (frame != null && frameLength >= 0) {
+      return Arrays.copyOfRange(frame, frameOffset, frameOffset + frameLength);
+    }
+    int utflen = ModifiedUTF8.encodedLength(subChannel);
+    byte[] data = new byte[getDataLength(utflen)];
+    writeData(utflen, data);
+    return data;
+  }
+
+  private int getDataLength(int utflen) {
+    return 2 + utflen + 4 + contentLength;
+  }
+
+  private int writeData(int utflen, byte[] dst) throws IOException {
+    int pos = ModifiedUTF8.write(getSubChannel(), utflen, dst, 0);
+    int len = contentLength;
+    dst[pos++] = (byte) (len >>> 24);
+    dst[pos++] = (byte) (len >>> 16);
+    dst[pos++] = (byte) (len >>> 8);
+    dst[pos++] = (byte) len;
+    if (frame != null) {
+      System.arraycopy(frame, contentOffset, dst, pos, len);
+    } else {
+      System.arraycopy(content, 0, dst, pos, len);
     }
+    return pos + len;
+  }
 
-    return b.toByteArray();
+  /**
+   * Serialize this message into a packet that is backed by a pooled array.
+   *
+   * @return new packet
+   * @throws IOException
+   */
+  public Packet toPacket() throws IOException {
+    BufferPool pool = BufferPool.DEFAULT;
+    if (frame != null && frameLength >= 0) {
+      // Forwarding a received message, the frame is already encoded
+      byte[] data = pool.acquire(frameLength);
+      System.arraycopy(frame, frameOffset, data, 0, frameLength);
+      return new Packet(PacketType.Message, data, frameLength, pool);
+    }
+    int utflen = ModifiedUTF8.encodedLength(subChannel);
+    int length = getDataLength(utflen);
+    byte[] data = pool.acquire(length);
+    try {
+      writeData(utflen, data);
+    } catch (IOException e) {
+      pool.release(data);
+      throw e;
+    }
+    return new Packet(PacketType.Message, data, length, pool);
   }
 
 }
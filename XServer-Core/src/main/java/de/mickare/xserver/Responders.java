@@ -0,0 +1,177 @@
+package de.mickare.xserver;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.mickare.xserver.annotations.XResponder;
+import de.mickare.xserver.net.Request;
+
+/**
+ * Methods annotated with {@link XResponder}, one per channel. Like the {@link EventBus}, the
+ * channel index is rebuilt on every change and read without locking.
+ */
+public class Responders<T> {
+
+  private final static MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Request.class);
+
+  /**
+   * One responder method, bound to its listener as a method handle of type (Request)Object.
+   */
+  private static final class Responder<T> {
+    private final Object listener;
+    private final MethodHandle invoker;
+    private final Boolean sync;
+    private final String channel;
+    private final XServerListenerPlugin<T> plugin;
+
+    private Responder(Object listener, Method method, XResponder annotation, XServerListenerPlugin<T> plugin)
+        throws IllegalAccessException {
+      this.listener = listener;
+      method.setAccessible(true);
+      this.invoker = MethodHandles.lookup().unreflect(method).bindTo(listener).asType(INVOKER_TYPE);
+      this.sync = Boolean.valueOf(annotation.sync());
+      this.channel = annotation.channel();
+      this.plugin = plugin;
+    }
+  }
+
+  /**
+   * Call of a responder with one request, run by the {@link EventHandler}.
+   */
+  private final class Invocation implements Runnable {
+    private final Responder<T> responder;
+    private final Request request;
+
+    private Invocation(Responder<T> responder, Request request) {
+      this.responder = responder;
+      this.request = request;
+    }
+
+    @Override
+    public void run() {
+      try {
+        Object result = responder.invoker.invokeExact(request);
+        if (result != null) {
+          request.reply((byte[]) result);
+        }
+      } catch (Throwable ex) {
+        logger.log(Level.WARNING,
+            MessageFormat.format("Error answering request {0} with responder {1}", request.getChannel(), responder.listener), ex);
+        request.fail(ex.toString());
+      }
+    }
+  }
+
+  // Registered responders per listener, guarded by synchronizing on this map
+  private final Map<Object, Map<String, Responder<T>>> byListener = new LinkedHashMap<>();
+  // Rebuilt on every change, read without locking
+  private volatile Map<String, Responder<T>> index = Collections.emptyMap();
+  private final Logger logger;
+
+  private final EventHandler<T> myhandler;
+
+  public Responders(EventHandler<T> myhandler, Logger logger) {
+    this.logger = (logger == null) ? Logger.getGlobal() : logger;
+    this.myhandler = myhandler;
+  }
+
+  /**
+   * Run the responder of the channel of a request.
+   *
+   * @param request
+   * @return false if there is none
+   */
+  public boolean respond(Request request) {
+    Responder<T> responder = index.get(request.getChannel());
+    if (responder == null) {
+      return false;
+    }
+    myhandler.runTask(responder.sync, responder.plugin, new Invocation(responder, request));
+    return true;
+  }
+
+  private Map<String, Responder<T>> findResponders(Object listener, XServerListenerPlugin<T> plugin) {
+    Map<String, Responder<T>> result = new HashMap<>();
+    for (Method m : listener.getClass().getDeclaredMethods()) {
+      XResponder annotation = m.getAnnotation(XResponder.class);
+      if (annotation != null) {
+        Class<?>[] params = m.getParameterTypes();
+        if (params.length != 1 || params[0] != Request.class) {
+          logger.log(Level.INFO, "Method {0} in class {1} annotated with {2} does not take a single Request",
+              new Object[] {m, listener.getClass(), annotation});
+          continue;
+        }
+        if (m.getReturnType() != byte[].class && m.getReturnType() != void.class) {
+          logger.log(Level.INFO, "Method {0} in class {1} annotated with {2} does not return byte[] or void",
+              new Object[] {m, listener.getClass(), annotation});
+          continue;
+        }
+        if (annotation.channel() == null || annotation.channel().isEmpty()) {
+          logger.log(Level.INFO, "Method {0} in class {1} annotated with {2} has no channel",
+              new Object[] {m, listener.getClass(), annotation});
+          continue;
+        }
+
+        try {
+          result.put(annotation.channel(), new Responder<T>(listener, m, annotation, plugin));
+        } catch (IllegalAccessException | SecurityException ex) {
+          logger.log(Level.WARNING, MessageFormat.format("Method {0} in class {1} is not accessible", m, listener.getClass()), ex);
+        }
+      }
+    }
+    return result;
+  }
+
+  public void register(Object listener, XServerListenerPlugin<T> plugin) {
+    Map<String, Responder<T>> responders = findResponders(listener, plugin);
+    if (responders.isEmpty()) {
+      return;
+    }
+    synchronized (byListener) {
+      byListener.put(listener, responders);
+      rebuildIndex();
+    }
+  }
+
+  public void unregister(Object listener) {
+    synchronized (byListener) {
+      if (byListener.remove(listener) != null) {
+        rebuildIndex();
+      }
+    }
+  }
+
+  private void rebuildIndex() {
+    Map<String, Responder<T>> result = new HashMap<>();
+    for (Map<String, Responder<T>> responders : byListener.values()) {
+      for (Responder<T> r : responders.values()) {
+        Responder<T> old = result.put(r.channel, r);
+        if (old != null) {
+          logger.log(Level.WARNING, "Channel {0} has more than one responder, {1} replaces {2}",
+              new Object[] {r.channel, r.listener, old.listener});
+        }
+      }
+    }
+    this.index = Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Drop all responders.
+   */
+  public void clear() {
+    synchronized (byListener) {
+      byListener.clear();
+      rebuildIndex();
+    }
+  }
+
+}
@@ -4,10 +4,13 @@ public class XGroupObj implements XGroup {
 
   private final int id;
   private final String name;
+  // Number in its GroupIndex
+  private final int index;
 
-  protected XGroupObj(int id, String name) {
+  protected XGroupObj(int id, String name, int index) {
     this.id = id;
     this.name = name;
+    this.index = index;
   }
 
   @Override
@@ -20,6 +23,10 @@ public class XGroupObj implements XGroup {
     return name;
   }
 
+  int getIndex() {
+    return index;
+  }
+
   @Override
   public int hashCode() {
     return this.id;
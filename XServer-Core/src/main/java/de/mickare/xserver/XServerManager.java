@@ -2,6 +2,8 @@ package de.mickare.xserver;
 
 import java.io.IOException;
 
+import de.mickare.xserver.config.ServerListSource;
+import de.mickare.xserver.config.XServerSettings;
 import de.mickare.xserver.exceptions.InvalidConfigurationException;
 import de.mickare.xserver.exceptions.NotInitializedException;
 import de.mickare.xserver.util.MySQL;
@@ -19,11 +21,23 @@ public abstract class XServerManager extends AbstractXServerManagerObj {
 
   protected XServerManager(String servername, XServerPlugin plugin, MySQL connection, String sql_table_xservers, String sql_table_xgroups,
       String sql_table_xserversxgroups, ServerThreadPoolExecutor stp) throws InvalidConfigurationException, IOException {
-    super(servername, plugin, connection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups, stp);
+    this(servername, plugin, connection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups, stp, new XServerSettings());
+  }
+
+  protected XServerManager(String servername, XServerPlugin plugin, MySQL connection, String sql_table_xservers, String sql_table_xgroups,
+      String sql_table_xserversxgroups, ServerThreadPoolExecutor stp, XServerSettings settings) throws InvalidConfigurationException,
+          IOException {
+    super(servername, plugin, connection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups, stp, settings);
     instance = this;
 
 
   }
 
+  protected XServerManager(String servername, XServerPlugin plugin, ServerListSource serverList, ServerThreadPoolExecutor stp,
+      XServerSettings settings) throws InvalidConfigurationException, IOException {
+    super(servername, plugin, serverList, stp, settings);
+    instance = this;
+  }
+
 
 }
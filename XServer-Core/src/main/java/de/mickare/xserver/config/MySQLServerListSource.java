@@ -0,0 +1,86 @@
+package de.mickare.xserver.config;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+
+import de.mickare.xserver.XServerPlugin;
+import de.mickare.xserver.util.Consumer;
+import de.mickare.xserver.util.MySQL;
+import de.mickare.xserver.util.TableInstall;
+
+/**
+ * Server list in the three XServer MySQL tables.
+ */
+public class MySQLServerListSource implements ServerListSource {
+
+  private final XServerPlugin plugin;
+  private final MySQL connection;
+  private final String sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups;
+
+  public MySQLServerListSource(XServerPlugin plugin, MySQL connection, String sql_table_xservers, String sql_table_xgroups,
+      String sql_table_xserversxgroups) {
+    this.plugin = plugin;
+    this.connection = connection;
+    this.sql_table_xservers = sql_table_xservers;
+    this.sql_table_xgroups = sql_table_xgroups;
+    this.sql_table_xserversxgroups = sql_table_xserversxgroups;
+  }
+
+  @Override
+  public void install() {
+    TableInstall ti = new TableInstall(plugin, connection, sql_table_xservers, sql_table_xgroups, sql_table_xserversxgroups);
+    ti.install();
+  }
+
+  @Override
+  public void load(final Visitor visitor) throws IOException {
+    // Reestablish connection
+    connection.reconnect();
+
+    connection.query(new Consumer<ResultSet>() {
+      @Override
+      public void accept(ResultSet rs) {
+        try {
+          while (rs.next()) {
+            visitor.server(rs.getInt("ID"), rs.getString("NAME"), rs.getString("ADRESS"), rs.getString("PW"));
+          }
+        } catch (Exception e) {
+          plugin.getLogger().severe(e.getMessage());
+          throw new RuntimeException("Couldn't load XServer List form Database!", e);
+        }
+      }
+    }, "SELECT * FROM " + sql_table_xservers);
+
+    connection.query(new Consumer<ResultSet>() {
+      @Override
+      public void accept(ResultSet rs) {
+        try {
+          while (rs.next()) {
+            visitor.group(rs.getInt("groupID"), rs.getString("name"));
+          }
+        } catch (Exception e) {
+          plugin.getLogger().severe(e.getMessage());
+          throw new RuntimeException("Couldn't load XServer Groups form Database!", e);
+        }
+      }
+    }, "SELECT * FROM " + sql_table_xgroups);
+
+    connection.query(new Consumer<ResultSet>() {
+      @Override
+      public void accept(ResultSet rs) {
+        try {
+          while (rs.next()) {
+            visitor.relation(rs.getInt("serverID"), rs.getInt("groupId"));
+          }
+        } catch (Exception e) {
+          plugin.getLogger().severe(e.getMessage());
+          throw new RuntimeException("Couldn't load XServer Group-Relations form Database!", e);
+        }
+      }
+    }, "SELECT * FROM " + sql_table_xserversxgroups);
+
+    // End of queries
+    connection.disconnect();
+  }
+
+}
@@ -0,0 +1,42 @@
+package de.mickare.xserver.config;
+
+import java.io.IOException;
+
+/**
+ * Where the manager gets the list of servers, groups and group memberships from.
+ */
+public interface ServerListSource {
+
+  /**
+   * Receives the loaded entries.
+   */
+  public interface Visitor {
+
+    /**
+     * @param id unique id used by the relations
+     * @param name server name
+     * @param address host:port
+     * @param password
+     */
+    void server(int id, String name, String address, String password);
+
+    void group(int groupId, String name);
+
+    void relation(int serverId, int groupId);
+
+  }
+
+  /**
+   * Prepare the source once before the first load (e.g. create missing tables).
+   */
+  void install() throws IOException;
+
+  /**
+   * Load everything. Servers are visited first, then groups, then the relations.
+   *
+   * @param visitor
+   * @throws IOException
+   */
+  void load(Visitor visitor) throws IOException;
+
+}
@@ -0,0 +1,69 @@
+package de.mickare.xserver.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server list that is kept in memory, e.g. for tests, benchmarks or a fixed setup without MySQL.
+ * Changes are picked up by the next reload of the manager.
+ */
+public class StaticServerListSource implements ServerListSource {
+
+  private static class ServerEntry {
+    private final int id;
+    private final String name, address, password;
+
+    private ServerEntry(int id, String name, String address, String password) {
+      this.id = id;
+      this.name = name;
+      this.address = address;
+      this.password = password;
+    }
+  }
+
+  private static class GroupEntry {
+    private final int id;
+    private final String name;
+
+    private GroupEntry(int id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+  }
+
+  private final List<ServerEntry> servers = new ArrayList<ServerEntry>();
+  private final List<GroupEntry> groups = new ArrayList<GroupEntry>();
+  private final List<int[]> relations = new ArrayList<int[]>();
+
+  public synchronized StaticServerListSource addServer(int id, String name, String address, String password) {
+    servers.add(new ServerEntry(id, name, address, password));
+    return this;
+  }
+
+  public synchronized StaticServerListSource addGroup(int groupId, String name) {
+    groups.add(new GroupEntry(groupId, name));
+    return this;
+  }
+
+  public synchronized StaticServerListSource addRelation(int serverId, int groupId) {
+    relations.add(new int[] {serverId, groupId});
+    return this;
+  }
+
+  @Override
+  public void install() {}
+
+  @Override
+  public synchronized void load(Visitor visitor) {
+    for (ServerEntry s : servers) {
+      visitor.server(s.id, s.name, s.address, s.password);
+    }
+    for (GroupEntry g : groups) {
+      visitor.group(g.id, g.name);
+    }
+    for (int[] r : relations) {
+      visitor.relation(r[0], r[1]);
+    }
+  }
+
+}
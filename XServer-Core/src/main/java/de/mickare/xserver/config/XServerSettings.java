@@ -0,0 +1,468 @@
+package de.mickare.xserver.config;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Network and runtime settings of a XServerManager. All values have sane defaults, so a plain
+ * <code>new XServerSettings()</code> behaves like older releases.
+ */
+public class XServerSettings {
+
+  /**
+   * Read access to the plugin configuration (Bukkit and BungeeCord have their own config classes).
+   */
+  public interface Source {
+
+    boolean getBoolean(String path, boolean def);
+
+    int getInt(String path, int def);
+
+    String getString(String path, String def);
+
+  }
+
+  public static enum Transport {
+    /**
+     * Two blocking threads per connection (sending and receiving).
+     */
+    BLOCKING,
+    /**
+     * A small fixed number of selector threads shared by all connections.
+     */
+    NIO;
+
+    public static Transport getByName(String name, Transport def) {
+      if (name != null) {
+        for (Transport t : values()) {
+          if (t.name().equalsIgnoreCase(name.trim())) {
+            return t;
+          }
+        }
+      }
+      return def;
+    }
+  }
+
+  public static enum OutboxPolicy {
+    /**
+     * A full outbox drops its oldest message to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * A full outbox rejects new messages.
+     */
+    DROP_NEWEST;
+
+    public static OutboxPolicy getByName(String name, OutboxPolicy def) {
+      if (name != null) {
+        String n = name.trim().replace('-', '_');
+        for (OutboxPolicy p : values()) {
+          if (p.name().equalsIgnoreCase(n)) {
+            return p;
+          }
+        }
+      }
+      return def;
+    }
+  }
+
+  private Transport transport = Transport.BLOCKING;
+  private int ioThreads = 2;
+  private int sendBatchBytes = 64 * 1024;
+  private int sendLingerMicros = 0;
+  private int lowWatermark = 2 * 1024 * 1024;
+  private int highWatermark = 4 * 1024 * 1024;
+
+  private boolean outboxEnabled = false;
+  private int outboxMaxMessages = 1024;
+  private int outboxMaxBytes = 4 * 1024 * 1024;
+  private int outboxTtlMillis = 60000;
+  private OutboxPolicy outboxPolicy = OutboxPolicy.DROP_OLDEST;
+  private boolean outboxSpillEnabled = false;
+  private int outboxSpillBytes = 64 * 1024 * 1024;
+
+  private boolean channelIdsEnabled = true;
+  private boolean compactFramesEnabled = true;
+
+  private boolean compressionEnabled = false;
+  private int compressionThreshold = 1024;
+  private int compressionLevel = 1;
+  private boolean compressionDictionaryEnabled = false;
+  private int compressionDictionarySize = 4096;
+
+  private Set<String> relays = Collections.emptySet();
+
+  private int reconnectMinDelay = 500;
+  private int reconnectMaxDelay = 30000;
+  private int connectTimeout = 3000;
+  private int maxConcurrentConnects = 8;
+
+  public XServerSettings() {}
+
+  /**
+   * Load the settings from the "network" section of a plugin configuration.
+   *
+   * @param source configuration
+   * @return new settings
+   */
+  public static XServerSettings load(Source source) {
+    XServerSettings s = new XServerSettings();
+    s.setTransport(Transport.getByName(source.getString("network.transport", s.transport.name()), s.transport));
+    s.setIoThreads(source.getInt("network.ioThreads", s.ioThreads));
+    s.setSendBatchBytes(source.getInt("network.sendBatchBytes", s.sendBatchBytes));
+    s.setSendLingerMicros(source.getInt("network.sendLingerMicros", s.sendLingerMicros));
+    s.setHighWatermark(source.getInt("network.watermark.high", s.highWatermark));
+    s.setLowWatermark(source.getInt("network.watermark.low", s.lowWatermark));
+    s.setOutboxEnabled(source.getBoolean("network.outbox.enabled", s.outboxEnabled));
+    s.setOutboxMaxMessages(source.getInt("network.outbox.maxMessages", s.outboxMaxMessages));
+    s.setOutboxMaxBytes(source.getInt("network.outbox.maxBytes", s.outboxMaxBytes));
+    s.setOutboxTtlMillis(source.getInt("network.outbox.ttlMillis", s.outboxTtlMillis));
+    s.setOutboxPolicy(OutboxPolicy.getByName(source.getString("network.outbox.policy", s.outboxPolicy.name()), s.outboxPolicy));
+    s.setOutboxSpillEnabled(source.getBoolean("network.outbox.spill.enabled", s.outboxSpillEnabled));
+    s.setOutboxSpillBytes(source.getInt("network.outbox.spill.maxBytes", s.outboxSpillBytes));
+    s.setChannelIdsEnabled(source.getBoolean("network.channelIds", s.channelIdsEnabled));
+    s.setCompactFramesEnabled(source.getBoolean("network.compactFrames", s.compactFramesEnabled));
+    s.setCompressionEnabled(source.getBoolean("network.compression.enabled", s.compressionEnabled));
+    s.setCompressionThreshold(source.getInt("network.compression.threshold", s.compressionThreshold));
+    s.setCompressionLevel(source.getInt("network.compression.level", s.compressionLevel));
+    s.setCompressionDictionaryEnabled(source.getBoolean("network.compression.dictionary.enabled", s.compressionDictionaryEnabled));
+    s.setCompressionDictionarySize(source.getInt("network.compression.dictionary.size", s.compressionDictionarySize));
+    s.setRelays(source.getString("network.relays", ""));
+    s.setReconnectMinDelay(source.getInt("network.reconnect.minDelay", s.reconnectMinDelay));
+    s.setReconnectMaxDelay(source.getInt("network.reconnect.maxDelay", s.reconnectMaxDelay));
+    s.setConnectTimeout(source.getInt("network.reconnect.connectTimeout", s.connectTimeout));
+    s.setMaxConcurrentConnects(source.getInt("network.reconnect.maxConcurrent", s.maxConcurrentConnects));
+    return s;
+  }
+
+  public Transport getTransport() {
+    return transport;
+  }
+
+  public void setTransport(Transport transport) {
+    if (transport == null) {
+      throw new NullPointerException("transport is null");
+    }
+    this.transport = transport;
+  }
+
+  public int getIoThreads() {
+    return ioThreads;
+  }
+
+  public void setIoThreads(int ioThreads) {
+    this.ioThreads = Math.max(1, ioThreads);
+  }
+
+  /**
+   * Maximum number of bytes that are written to a socket before it is flushed.
+   *
+   * @return bytes
+   */
+  public int getSendBatchBytes() {
+    return sendBatchBytes;
+  }
+
+  public void setSendBatchBytes(int sendBatchBytes) {
+    this.sendBatchBytes = Math.max(1024, sendBatchBytes);
+  }
+
+  /**
+   * Time the sender waits for more packets before it flushes a batch that is not full.
+   *
+   * @return microseconds, 0 flushes as soon as the queue is empty
+   */
+  public int getSendLingerMicros() {
+    return sendLingerMicros;
+  }
+
+  public void setSendLingerMicros(int sendLingerMicros) {
+    this.sendLingerMicros = Math.max(0, sendLingerMicros);
+  }
+
+  /**
+   * A connection is writable again when its sending queue drops to this.
+   *
+   * @return bytes
+   */
+  public int getLowWatermark() {
+    return lowWatermark;
+  }
+
+  public void setLowWatermark(int lowWatermark) {
+    this.lowWatermark = Math.max(0, Math.min(lowWatermark, highWatermark - 1));
+  }
+
+  /**
+   * A connection is no longer writable when its sending queue reaches this.
+   *
+   * @return bytes
+   */
+  public int getHighWatermark() {
+    return highWatermark;
+  }
+
+  public void setHighWatermark(int highWatermark) {
+    this.highWatermark = Math.max(1024, highWatermark);
+    this.lowWatermark = Math.min(lowWatermark, this.highWatermark - 1);
+  }
+
+  /**
+   * Messages to a server that is not logged in are kept in an outbox and sent after the login.
+   *
+   * @return true if enabled
+   */
+  public boolean isOutboxEnabled() {
+    return outboxEnabled;
+  }
+
+  public void setOutboxEnabled(boolean outboxEnabled) {
+    this.outboxEnabled = outboxEnabled;
+  }
+
+  public int getOutboxMaxMessages() {
+    return outboxMaxMessages;
+  }
+
+  public void setOutboxMaxMessages(int outboxMaxMessages) {
+    this.outboxMaxMessages = Math.max(1, outboxMaxMessages);
+  }
+
+  public int getOutboxMaxBytes() {
+    return outboxMaxBytes;
+  }
+
+  public void setOutboxMaxBytes(int outboxMaxBytes) {
+    this.outboxMaxBytes = Math.max(1024, outboxMaxBytes);
+  }
+
+  /**
+   * Time a message may wait in the outbox.
+   *
+   * @return milliseconds, 0 keeps messages until they are sent or dropped
+   */
+  public int getOutboxTtlMillis() {
+    return outboxTtlMillis;
+  }
+
+  public void setOutboxTtlMillis(int outboxTtlMillis) {
+    this.outboxTtlMillis = Math.max(0, outboxTtlMillis);
+  }
+
+  public OutboxPolicy getOutboxPolicy() {
+    return outboxPolicy;
+  }
+
+  public void setOutboxPolicy(OutboxPolicy outboxPolicy) {
+    if (outboxPolicy == null) {
+      throw new NullPointerException("outboxPolicy is null");
+    }
+    this.outboxPolicy = outboxPolicy;
+  }
+
+  /**
+   * Messages that don't fit into the outbox are written to a memory mapped file per server in
+   * the plugin folder, instead of being dropped.
+   *
+   * @return true if enabled
+   */
+  public boolean isOutboxSpillEnabled() {
+    return outboxSpillEnabled;
+  }
+
+  public void setOutboxSpillEnabled(boolean outboxSpillEnabled) {
+    this.outboxSpillEnabled = outboxSpillEnabled;
+  }
+
+  /**
+   * Size of the spill file of each server.
+   *
+   * @return bytes
+   */
+  public int getOutboxSpillBytes() {
+    return outboxSpillBytes;
+  }
+
+  public void setOutboxSpillBytes(int outboxSpillBytes) {
+    this.outboxSpillBytes = Math.max(64 * 1024, outboxSpillBytes);
+  }
+
+  /**
+   * Send numeric ids instead of subchannel names, if the other server supports it.
+   *
+   * @return true if enabled
+   */
+  public boolean isChannelIdsEnabled() {
+    return channelIdsEnabled;
+  }
+
+  public void setChannelIdsEnabled(boolean channelIdsEnabled) {
+    this.channelIdsEnabled = channelIdsEnabled;
+  }
+
+  /**
+   * Use varint frame headers and messages without the inner content length, if the other server
+   * supports it.
+   *
+   * @return true if enabled
+   */
+  public boolean isCompactFramesEnabled() {
+    return compactFramesEnabled;
+  }
+
+  public void setCompactFramesEnabled(boolean compactFramesEnabled) {
+    this.compactFramesEnabled = compactFramesEnabled;
+  }
+
+  /**
+   * Offer compression of messages at the login. It is used if both servers enable it.
+   *
+   * @return true if enabled
+   */
+  public boolean isCompressionEnabled() {
+    return compressionEnabled;
+  }
+
+  public void setCompressionEnabled(boolean compressionEnabled) {
+    this.compressionEnabled = compressionEnabled;
+  }
+
+  /**
+   * Messages smaller than this are sent uncompressed.
+   *
+   * @return bytes
+   */
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = Math.max(64, compressionThreshold);
+  }
+
+  /**
+   * Deflate level, 1 is the fastest.
+   *
+   * @return 1 - 9
+   */
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = Math.min(9, Math.max(1, compressionLevel));
+  }
+
+  /**
+   * Compress messages below the threshold against a dictionary that both servers share. Needs
+   * compression to be enabled, too.
+   *
+   * @return true if enabled
+   */
+  public boolean isCompressionDictionaryEnabled() {
+    return compressionDictionaryEnabled;
+  }
+
+  public void setCompressionDictionaryEnabled(boolean compressionDictionaryEnabled) {
+    this.compressionDictionaryEnabled = compressionDictionaryEnabled;
+  }
+
+  /**
+   * Size of a dictionary that is trained from recent messages.
+   *
+   * @return bytes
+   */
+  public int getCompressionDictionarySize() {
+    return compressionDictionarySize;
+  }
+
+  public void setCompressionDictionarySize(int compressionDictionarySize) {
+    this.compressionDictionarySize = Math.min(32 * 1024, Math.max(256, compressionDictionarySize));
+  }
+
+  /**
+   * Get the servers that relay messages. If there are any, the other servers only connect to the
+   * relays and send everything else through them.
+   *
+   * @return unmodifiable set of server names, empty for a full mesh
+   */
+  public Set<String> getRelays() {
+    return relays;
+  }
+
+  public void setRelays(Set<String> relays) {
+    this.relays = Collections.unmodifiableSet(new LinkedHashSet<String>(relays));
+  }
+
+  /**
+   * @param relays comma separated server names
+   */
+  public void setRelays(String relays) {
+    Set<String> names = new LinkedHashSet<String>();
+    if (relays != null) {
+      for (String name : relays.split(",")) {
+        if (!name.trim().isEmpty()) {
+          names.add(name.trim());
+        }
+      }
+    }
+    setRelays(names);
+  }
+
+  /**
+   * Delay before the first retry after a failed connect. It doubles with every further failure up
+   * to {@link #getReconnectMaxDelay()}, and a random part of up to half of it is added.
+   *
+   * @return milliseconds
+   */
+  public int getReconnectMinDelay() {
+    return reconnectMinDelay;
+  }
+
+  public void setReconnectMinDelay(int reconnectMinDelay) {
+    this.reconnectMinDelay = Math.max(10, reconnectMinDelay);
+  }
+
+  /**
+   * Longest delay between two connects to a server that is down. A server that waits for the other
+   * one to dial also retries in this interval.
+   *
+   * @return milliseconds
+   */
+  public int getReconnectMaxDelay() {
+    return reconnectMaxDelay;
+  }
+
+  public void setReconnectMaxDelay(int reconnectMaxDelay) {
+    this.reconnectMaxDelay = Math.max(10, reconnectMaxDelay);
+  }
+
+  /**
+   * Time a connect may take until it fails.
+   *
+   * @return milliseconds
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = Math.max(100, connectTimeout);
+  }
+
+  /**
+   * Number of connects that may run at once, the others wait for their turn.
+   *
+   * @return connects
+   */
+  public int getMaxConcurrentConnects() {
+    return maxConcurrentConnects;
+  }
+
+  public void setMaxConcurrentConnects(int maxConcurrentConnects) {
+    this.maxConcurrentConnects = Math.max(1, maxConcurrentConnects);
+  }
+
+}
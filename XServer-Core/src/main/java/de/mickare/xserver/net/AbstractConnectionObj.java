@@ -0,0 +1,669 @@
+package de.mickare.xserver.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.mickare.xserver.AbstractXServerManagerObj;
+import de.mickare.xserver.events.XServerDisconnectEvent;
+import de.mickare.xserver.events.XServerWritabilityEvent;
+
+/**
+ * State and login handling that is shared by the blocking and the NIO transport.
+ */
+public abstract class AbstractConnectionObj implements Connection {
+
+  protected final static int CAPACITY = 16384;
+  protected final static int HIGH_CAPACITY = 4096;
+  protected final static int CONTROL_CAPACITY = 1024;
+  protected final static int SOCKET_TIMEOUT = 3000;
+  protected final static int KEEPALIVE_INTERVAL = 500;
+
+  private volatile Status status = Status.connecting;
+
+  private final String host;
+  private final int port;
+
+  private final AtomicReference<XServerObj> xserver = new AtomicReference<>(null);
+  // True if this server dialed the connection
+  private volatile boolean dialed = false;
+  // Completed by the login of a dialed connection
+  private volatile LoginFuture login = null;
+
+  protected final SendQueue pendingSendingPackets = new SendQueue(CONTROL_CAPACITY, HIGH_CAPACITY, CAPACITY) {
+    @Override
+    protected void onWritabilityChanged(boolean writable) {
+      XServerObj serv = getXserver();
+      if (serv != null && isLoggedIn()) {
+        manager.getEventHandler().callEvent(new XServerWritabilityEvent(serv, writable));
+      }
+    }
+
+    @Override
+    protected void onDequeued(Packet packet, long queuedNanos) {
+      metrics.packetDequeued(queuedNanos);
+    }
+  };
+
+  protected final ConnectionMetrics metrics = new ConnectionMetrics(pendingSendingPackets, pendingSendingPackets.getCapacity());
+  protected final FrameCodec frames;
+  private final ChannelTable channels;
+  private final PacketCompressor compressor;
+  private final RequestTable requests;
+  // Features that both servers offered at the login
+  private volatile int commonFeatures = 0;
+
+  protected final NetPacketHandler packetHandler;
+  protected final AbstractXServerManagerObj manager;
+
+  protected AbstractConnectionObj(String host, int port, AbstractXServerManagerObj manager) {
+    this.host = host;
+    this.port = port;
+    this.manager = manager;
+    this.packetHandler = new NetPacketHandler(this, manager);
+    this.frames = new FrameCodec(this);
+    Outbox.Sink announcements = new Outbox.Sink() {
+      @Override
+      public boolean send(Packet packet) {
+        return AbstractConnectionObj.this.send(packet);
+      }
+    };
+    this.channels = new ChannelTable(announcements);
+    this.compressor = new PacketCompressor(manager.getSettings(), metrics, announcements);
+    this.requests = new RequestTable(this);
+    this.pendingSendingPackets.setWatermarks(manager.getSettings().getLowWatermark(), manager.getSettings().getHighWatermark());
+  }
+
+  /**
+   * Called after a packet was put into the sending queue.
+   */
+  protected void onPacketQueued() {}
+
+  /**
+   * Close the underlying socket and stop the I/O of this connection.
+   */
+  protected abstract void closeSocket();
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#ping(de.mickare.xserver.net.Ping)
+   */
+  @Override
+  public void ping(Ping ping) throws InterruptedException, IOException {
+    ByteArrayOutputStream b = null;
+    DataOutputStream out = null;
+    try {
+      b = new ByteArrayOutputStream();
+      out = new DataOutputStream(b);
+      out.writeUTF(ping.getKey());
+      Packet packet = new Packet(PacketType.PingRequest, b.toByteArray());
+      pendingSendingPackets.put(packet, SendPriority.CONTROL);
+      metrics.packetQueued();
+      onPacketQueued();
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Prepare a packet for the wire, called by the writing thread.
+   *
+   * @param packet
+   * @return the packet to write, the given packet may be released
+   */
+  protected Packet encode(Packet packet) {
+    return compressor.compress(frames.encode(channels.encode(packet)), manager.getCompressionDictionary());
+  }
+
+  /**
+   * Restore a packet that was read from the wire, called by the reading thread.
+   *
+   * @param packet
+   * @return the packet to handle, the given packet may be released
+   * @throws IOException
+   */
+  protected Packet decode(Packet packet) throws IOException {
+    return compressor.decompress(packet);
+  }
+
+  /**
+   * @return the features this server offers in its login packet
+   */
+  protected int getLoginFeatures() {
+    int features = RequestTable.FEATURE_REQUESTS | RelayRouter.FEATURE_RELAY;
+    if (manager.getSettings().isCompactFramesEnabled()) {
+      features |= FrameCodec.FEATURE_COMPACT_FRAMES;
+    }
+    if (manager.getSettings().isChannelIdsEnabled()) {
+      features |= ChannelTable.FEATURE_CHANNEL_IDS;
+    }
+    if (manager.getSettings().isCompressionEnabled()) {
+      features |= PacketCompressor.FEATURE_COMPRESSION;
+      if (manager.getSettings().isCompressionDictionaryEnabled()) {
+        features |= PacketCompressor.FEATURE_DICTIONARY;
+      }
+    }
+    return features;
+  }
+
+  /**
+   * Use the features that both servers offered.
+   *
+   * @param features of the other server
+   */
+  protected void setPeerFeatures(int features) {
+    int common = getLoginFeatures() & features;
+    this.commonFeatures = common;
+    if ((common & FrameCodec.FEATURE_COMPACT_FRAMES) != 0) {
+      frames.enable();
+    }
+    if ((common & ChannelTable.FEATURE_CHANNEL_IDS) != 0) {
+      channels.enable();
+    }
+    if ((common & PacketCompressor.FEATURE_COMPRESSION) != 0) {
+      if ((common & PacketCompressor.FEATURE_DICTIONARY) != 0) {
+        compressor.enableDictionary();
+      }
+      compressor.enable();
+    }
+  }
+
+  /**
+   * @param feature bit of the login features
+   * @return true if both servers offered the feature
+   */
+  protected boolean hasCommonFeature(int feature) {
+    return (commonFeatures & feature) != 0;
+  }
+
+  /**
+   * Read the following frames in the format that the other server announced.
+   *
+   * @param packet
+   * @throws IOException
+   */
+  protected void setPeerFrameFormat(Packet packet) throws IOException {
+    frames.setPeerFormat(packet);
+  }
+
+  /**
+   * Use the compression dictionary that the other server announced.
+   *
+   * @param packet
+   * @throws IOException
+   */
+  protected void setPeerDictionary(Packet packet) throws IOException {
+    compressor.setPeerDictionary(packet);
+  }
+
+  /**
+   * Remember a subchannel id that the other server announced.
+   *
+   * @param packet
+   * @throws IOException
+   */
+  protected void defineRemoteChannel(Packet packet) throws IOException {
+    channels.define(packet);
+  }
+
+  /**
+   * @param channel id
+   * @return subchannel of the id, announced by the other server
+   * @throws IOException if unknown
+   */
+  protected String getRemoteChannel(int channel) throws IOException {
+    return channels.getRemote(channel);
+  }
+
+  /**
+   * Hand a request of the other server to its responder.
+   *
+   * @param packet
+   * @throws IOException
+   */
+  protected void receiveRequest(Packet packet) throws IOException {
+    XServerObj serv = getXserver();
+    if (serv != null && isLoggedIn()) {
+      requests.receiveRequest(packet, serv, manager.getEventHandler());
+    }
+  }
+
+  /**
+   * Complete a request with the response of the other server.
+   *
+   * @param packet
+   * @throws IOException
+   */
+  protected void receiveResponse(Packet packet) throws IOException {
+    requests.receiveResponse(packet);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#request(java.lang.String, byte[], long,
+   * java.util.concurrent.TimeUnit)
+   */
+  @Override
+  public RequestFuture request(String channel, byte[] payload, long timeout, TimeUnit unit) {
+    RequestFuture future = new RequestFuture();
+    if (!isLoggedIn()) {
+      future.fail(RequestFailure.NOT_CONNECTED, null);
+    } else if (!hasCommonFeature(RequestTable.FEATURE_REQUESTS)) {
+      future.fail(RequestFailure.NOT_SUPPORTED, null);
+    } else {
+      requests.request(channel, payload, timeout, unit, future, manager.getTimer());
+    }
+    return future;
+  }
+
+  /**
+   * @return true if big messages to the other server are compressed
+   */
+  public boolean isCompressing() {
+    return compressor.isEnabled();
+  }
+
+  protected void stop(Status endStatus) {
+    Status old = setStatus(endStatus);
+    // Before closeSocket(), which lets the NIO loop drain the queue as it releases its buffers
+    requeueUnsentMessages();
+    closeSocket();
+    compressor.close();
+    requests.failAll(RequestFailure.DISCONNECTED);
+
+    XServerObj serv = this.getXserver();
+    if (serv != null) {
+      serv.unsetConnection(this, old == Status.connected);
+    }
+    LoginFuture f = login;
+    if (f != null && serv != null && serv.isConnected()) {
+      // Refused by the other server, it keeps the connection it dialed itself
+      f.complete(serv);
+    } else {
+      loginFailed("Closed before the login");
+    }
+    if (serv != null && !old.isFinished()) {
+      serv.getManager().getEventHandler().callEvent(new XServerDisconnectEvent(serv));
+    }
+  }
+
+  /**
+   * Give messages that were never written back to the outbox of the server, so they are sent with
+   * the next connection. Without an outbox they fail.
+   */
+  protected void requeueUnsentMessages() {
+    if (pendingSendingPackets.isEmpty()) {
+      return;
+    }
+    XServerObj serv = this.getXserver();
+    Outbox outbox = serv != null ? serv.getOutbox() : null;
+    List<Packet> unsent = new ArrayList<Packet>();
+    Packet p;
+    while ((p = pendingSendingPackets.poll()) != null) {
+      if (outbox != null && p.getPacketID() == PacketType.Message.packetID) {
+        unsent.add(p);
+      } else {
+        p.fail(SendFailure.DISCONNECTED);
+        p.release();
+      }
+    }
+    if (!unsent.isEmpty()) {
+      outbox.requeue(unsent);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#disconnect()
+   */
+  @Override
+  public void disconnect() {
+    stop(Status.disconnected);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#errorDisconnect()
+   */
+  @Override
+  public void errorDisconnect() {
+    stop(Status.error);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#getHost()
+   */
+  @Override
+  public String getHost() {
+    return host;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#getPort()
+   */
+  @Override
+  public int getPort() {
+    return port;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#send(de.mickare.xserver.net.Packet)
+   */
+  @Override
+  public boolean send(Packet packet) {
+    return send(packet, SendPriority.of(packet));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#send(de.mickare.xserver.net.Packet,
+   * de.mickare.xserver.net.SendPriority)
+   */
+  @Override
+  public boolean send(Packet packet, SendPriority priority) {
+    if (pendingSendingPackets.offer(packet, priority)) {
+      metrics.packetQueued();
+      onPacketQueued();
+      return true;
+    }
+    metrics.packetDropped();
+    return false;
+  }
+
+  /**
+   * Queue a packet, waiting up to the given time for space in its lane.
+   *
+   * @param packet
+   * @param priority
+   * @param timeout
+   * @param unit
+   * @return false if the lane stayed full or the thread was interrupted
+   */
+  public boolean send(Packet packet, SendPriority priority, long timeout, TimeUnit unit) {
+    try {
+      if (pendingSendingPackets.offer(packet, priority, timeout, unit)) {
+        metrics.packetQueued();
+        onPacketQueued();
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    metrics.packetDropped();
+    return false;
+  }
+
+  /**
+   * @return true if packets are read by a thread of this connection, which may wait
+   */
+  protected boolean isReaderBlocking() {
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#sendAll(java.util.Collection)
+   */
+  @Override
+  public boolean sendAll(Collection<Packet> packets) {
+    boolean result = true;
+    for (Packet p : packets) {
+      result &= send(p);
+    }
+    return result;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#getStatus()
+   */
+  @Override
+  public Status getStatus() {
+    return status;
+  }
+
+  protected Status setStatus(Status status) {
+    Status old = this.status;
+    this.status = status;
+    return old;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#getXserver()
+   */
+  @Override
+  public XServerObj getXserver() {
+    return xserver.get();
+  }
+
+  /**
+   * Set the server that this server dials.
+   *
+   * @param xserver
+   * @param login completed by the login, or null
+   */
+  protected void initXserver(XServerObj xserver, LoginFuture login) {
+    this.dialed = true;
+    this.login = login;
+    this.xserver.set(xserver);
+  }
+
+  /**
+   * The connection logged in, called after its status changed.
+   */
+  void loggedIn() {
+    XServerObj serv = getXserver();
+    LoginFuture f = login;
+    if (f != null) {
+      f.complete(serv);
+    }
+    serv.loggedIn();
+  }
+
+  /**
+   * Fail the login future of a dialed connection, if it didn't log in.
+   *
+   * @param message
+   */
+  void loginFailed(String message) {
+    LoginFuture f = login;
+    if (f != null) {
+      f.fail(ConnectFailure.LOGIN_FAILED, message);
+    }
+  }
+
+  /**
+   * @return true if this server dialed the connection
+   */
+  public boolean isDialed() {
+    return dialed;
+  }
+
+  /**
+   * Take over a server after the login reply, this server dialed the connection.
+   *
+   * @param xserver
+   * @return false if the server already has the connection it should use, this one is closed then
+   */
+  protected boolean setXserver(XServerObj xserver) {
+    this.xserver.set(xserver);
+    if (!xserver.setConnection(this, true)) {
+      // The server is logged in on the connection it dialed itself
+      LoginFuture f = login;
+      if (f != null) {
+        f.complete(xserver);
+      }
+      this.xserver.set(null);
+      disconnect();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Take over a server after its login request.
+   *
+   * @param xserver
+   * @return false if the server already has the connection it should use, this one is closed then
+   */
+  protected boolean setLoginXserver(XServerObj xserver) {
+    this.xserver.set(xserver);
+    if (!xserver.setConnection(this, false)) {
+      // Unbound first, so closing it doesn't look like a disconnect of the server
+      this.xserver.set(null);
+      disconnect();
+      return false;
+    }
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#getPendingPackets()
+   */
+  @Override
+  public Queue<Packet> getPendingPackets() {
+    return new ArrayDeque<Packet>(pendingSendingPackets);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#isLoggedIn()
+   */
+  @Override
+  public boolean isLoggedIn() {
+    return isSocketOpen() ? Status.connected == getStatus() : false;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#isWritable()
+   */
+  @Override
+  public boolean isWritable() {
+    return pendingSendingPackets.isWritable();
+  }
+
+  /**
+   * Complete the futures of packets that were flushed to the socket.
+   *
+   * @param futures is cleared
+   */
+  protected static void completeAll(List<SendFuture> futures) {
+    for (int i = 0; i < futures.size(); i++) {
+      futures.get(i).complete();
+    }
+    futures.clear();
+  }
+
+  /**
+   * Fail the futures of packets that were not flushed to the socket.
+   *
+   * @param futures is cleared
+   * @param reason
+   */
+  protected static void failAll(List<SendFuture> futures, SendFailure reason) {
+    for (int i = 0; i < futures.size(); i++) {
+      futures.get(i).fail(reason);
+    }
+    futures.clear();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#isLoggingIn()
+   */
+  @Override
+  public boolean isLoggingIn() {
+    return isSocketOpen() ? Status.connecting == getStatus() : false;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#toString()
+   */
+  @Override
+  public String toString() {
+    return host + ":" + port;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#getMetrics()
+   */
+  @Override
+  public ConnectionMetrics getMetrics() {
+    return metrics;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#getSendingRecordSecondPackageCount()
+   */
+  @Override
+  public long getSendingRecordSecondPackageCount() {
+    return this.metrics.getSendingRate().getRecord();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#getSendinglastSecondPackageCount()
+   */
+  @Override
+  public long getSendinglastSecondPackageCount() {
+    return this.metrics.getSendingRate().getLastSecond();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#getReceivingRecordSecondPackageCount()
+   */
+  @Override
+  public long getReceivingRecordSecondPackageCount() {
+    return this.metrics.getReceivingRate().getRecord();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.Connection#getReceivinglastSecondPackageCount()
+   */
+  @Override
+  public long getReceivinglastSecondPackageCount() {
+    return this.metrics.getReceivingRate().getLastSecond();
+  }
+
+}
@@ -0,0 +1,227 @@
+package de.mickare.xserver.net;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import de.mickare.xserver.util.ChannelNameCache;
+import de.mickare.xserver.util.VarInt;
+
+/**
+ * Numeric ids of the subchannels of one connection, one table per direction.
+ *
+ * The writer gives every new subchannel an id and announces it with a
+ * {@link PacketType#DefineChannel} packet (varint id, subchannel as written by writeUTF). When the
+ * announcement passes the writer, the following messages of that subchannel are sent as
+ * {@link PacketType#ChannelMessage} (varint id, content) instead of a {@link PacketType#Message},
+ * so the subchannel is neither encoded nor decoded again. Messages that are written before are
+ * sent with their name, as are all messages once the table is full.
+ *
+ * The outgoing side is only used by the writing thread, the incoming side only by the reading
+ * thread.
+ */
+public class ChannelTable {
+
+  /**
+   * Bit in the login features, the server can read channel ids
+   */
+  public final static int FEATURE_CHANNEL_IDS = 4;
+
+  /**
+   * Maximum number of subchannels per direction
+   */
+  public final static int MAX_CHANNELS = 1024;
+
+  private final static int SLOTS = MAX_CHANNELS * 2;
+
+  private final static byte DEFINED = 1;
+  private final static byte ACTIVE = 2;
+
+  private final Outbox.Sink announcements;
+  private final BufferPool pool = BufferPool.DEFAULT;
+  private volatile boolean enabled = false;
+
+  // Writer side, open addressing by the encoded subchannel
+  private final byte[][] keys = new byte[SLOTS][];
+  private final int[] hashes = new int[SLOTS];
+  private final int[] ids = new int[SLOTS];
+  private final byte[] states = new byte[SLOTS];
+  // Slot of each id, to activate it
+  private final int[] slotOfId = new int[MAX_CHANNELS + 1];
+  private int count = 0;
+
+  // Reader side
+  private String[] remote = new String[16];
+
+  /**
+   * @param announcements queues the {@link PacketType#DefineChannel} packets on the connection
+   */
+  public ChannelTable(Outbox.Sink announcements) {
+    this.announcements = announcements;
+  }
+
+  /**
+   * Start sending channel ids, after the other server told that it can read them.
+   */
+  public void enable() {
+    enabled = true;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  // ********************************************
+  // Writer
+
+  /**
+   * Replace a message packet by a channel message, if the subchannel has an active id. Called by
+   * the writing thread in the order of the wire.
+   *
+   * @param packet
+   * @return the channel message (the given packet is released), or the given packet
+   */
+  public Packet encode(Packet packet) {
+    if (!enabled) {
+      return packet;
+    }
+    int id = packet.getPacketID();
+    if (id == PacketType.DefineChannel.packetID) {
+      activate(packet);
+      return packet;
+    }
+    if (id != PacketType.Message.packetID) {
+      return packet;
+    }
+    byte[] data = packet.array();
+    int length = packet.getLength();
+    if (length < 6) {
+      return packet;
+    }
+    int utflen = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+    int contentOffset = 2 + utflen + 4;
+    if (contentOffset > length) {
+      return packet;
+    }
+    int hash = 1;
+    for (int i = 2; i < 2 + utflen; i++) {
+      hash = 31 * hash + data[i];
+    }
+    int slot = find(data, utflen, hash);
+    if (slot < 0) {
+      define(data, utflen, hash, ~slot);
+      return packet;
+    }
+    if (states[slot] != ACTIVE) {
+      return packet;
+    }
+    int channel = ids[slot];
+    int contentLength = length - contentOffset;
+    int size = VarInt.size(channel) + contentLength;
+    byte[] out = pool.acquire(size);
+    int pos = VarInt.write(channel, out, 0);
+    System.arraycopy(data, contentOffset, out, pos, contentLength);
+    packet.release();
+    return new Packet(PacketType.ChannelMessage, out, size, pool);
+  }
+
+  /**
+   * @return the slot of the subchannel, or ~slot of the free slot where it belongs
+   */
+  private int find(byte[] data, int utflen, int hash) {
+    int slot = (hash ^ (hash >>> 16)) & (SLOTS - 1);
+    while (keys[slot] != null) {
+      if (hashes[slot] == hash && equals(keys[slot], data, utflen)) {
+        return slot;
+      }
+      slot = (slot + 1) & (SLOTS - 1);
+    }
+    return ~slot;
+  }
+
+  private static boolean equals(byte[] key, byte[] data, int utflen) {
+    if (key.length != utflen) {
+      return false;
+    }
+    for (int i = 0; i < utflen; i++) {
+      if (key[i] != data[2 + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void define(byte[] data, int utflen, int hash, int slot) {
+    if (count >= MAX_CHANNELS) {
+      return;
+    }
+    int channel = count + 1;
+    byte[] define = new byte[VarInt.size(channel) + 2 + utflen];
+    int pos = VarInt.write(channel, define, 0);
+    System.arraycopy(data, 0, define, pos, 2 + utflen);
+    if (!announcements.send(new Packet(PacketType.DefineChannel, define))) {
+      // Try again with the next message
+      return;
+    }
+    keys[slot] = Arrays.copyOfRange(data, 2, 2 + utflen);
+    hashes[slot] = hash;
+    ids[slot] = channel;
+    states[slot] = DEFINED;
+    slotOfId[channel] = slot;
+    count = channel;
+  }
+
+  private void activate(Packet define) {
+    try {
+      int channel = VarInt.read(define.array(), 0, define.getLength());
+      if (channel > 0 && channel <= count) {
+        states[slotOfId[channel]] = ACTIVE;
+      }
+    } catch (IOException e) {
+      // Our own packet, can't happen
+    }
+  }
+
+  // ********************************************
+  // Reader
+
+  /**
+   * Remember a subchannel that the other server announced.
+   *
+   * @param packet {@link PacketType#DefineChannel} packet
+   * @throws IOException if the packet is malformed
+   */
+  public void define(Packet packet) throws IOException {
+    byte[] data = packet.array();
+    int length = packet.getLength();
+    int channel = VarInt.read(data, 0, length);
+    int pos = VarInt.size(channel);
+    if (channel <= 0 || channel > MAX_CHANNELS || pos + 2 > length) {
+      throw new IOException("Invalid channel definition " + channel);
+    }
+    int utflen = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    if (pos + 2 + utflen > length) {
+      throw new IOException("Invalid channel definition " + channel);
+    }
+    if (channel >= remote.length) {
+      remote = Arrays.copyOf(remote, Math.min(MAX_CHANNELS + 1, Math.max(channel + 1, remote.length * 2)));
+    }
+    // Decoded once here, the channel messages of the id reuse the string
+    remote[channel] = ChannelNameCache.DEFAULT.get(data, pos, utflen);
+  }
+
+  /**
+   * Get the subchannel of a channel message.
+   *
+   * @param channel id
+   * @return subchannel
+   * @throws IOException if the id was never defined
+   */
+  public String getRemote(int channel) throws IOException {
+    String s = channel > 0 && channel < remote.length ? remote[channel] : null;
+    if (s == null) {
+      throw new IOException("Unknown channel id " + channel);
+    }
+    return s;
+  }
+
+}
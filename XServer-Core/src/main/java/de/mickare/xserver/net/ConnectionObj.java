@@ -1,47 +1,36 @@
 package de.mickare.xserver.net;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.Collection;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.SocketFactory;
 
 import de.mickare.xserver.AbstractXServerManagerObj;
-import de.mickare.xserver.events.XServerDisconnectEvent;
 import de.mickare.xserver.exceptions.NotInitializedException;
 import de.mickare.xserver.util.InterruptableRunnable;
 
-public class ConnectionObj implements Connection {
+/**
+ * Blocking connection with one sending and one receiving thread.
+ */
+public class ConnectionObj extends AbstractConnectionObj {
 
-  private final static int CAPACITY = 16384;
-  private final static int SOCKET_TIMEOUT = 3000;
-
-  private volatile Status status = Status.connecting;
-
-  private final String host;
-  private final int port;
-
-  private final AtomicReference<XServerObj> xserver = new AtomicReference<>(null);
+  private final static int BATCH_PACKETS = 256;
+  private final static int RECEIVE_BUFFER = 65536;
 
   private final Socket socket;
   private final DataInputStream input;
   private final DataOutputStream output;
 
-  private final ArrayBlockingQueue<Packet> pendingSendingPackets = new ArrayBlockingQueue<Packet>(CAPACITY, true);
-
   private Receiving receiving;
   private Sending sending;
-  private final NetPacketHandler packetHandler;
 
   /**
    * Create a new Connection to another Server (sends a Login Request)
@@ -49,28 +38,33 @@ public class ConnectionObj implements Connection {
    * @param sf
    * @param host
    * @param port
+   * @param xserver
+   * @param login completed by the login, or null
+   * @param manager
    * @throws UnknownHostException
    * @throws IOException
    * @throws InterruptedException
    * @throws NotInitializedException
    */
-  public ConnectionObj(SocketFactory sf, String host, int port, XServerObj xserver, AbstractXServerManagerObj manager)
-      throws UnknownHostException, IOException, InterruptedException, NotInitializedException {
+  public ConnectionObj(SocketFactory sf, String host, int port, XServerObj xserver, LoginFuture login,
+      AbstractXServerManagerObj manager) throws UnknownHostException, IOException, InterruptedException, NotInitializedException {
+    super(host, port, manager);
 
-    this.xserver.set(xserver);
+    this.initXserver(xserver, login);
 
-    this.host = host;
-    this.port = port;
     this.socket = sf.createSocket();
     this.socket.setSoTimeout(SOCKET_TIMEOUT);
     this.socket.setReuseAddress(true);
     this.socket.setPerformancePreferences(0, 1, 1);
-    this.socket.connect(new InetSocketAddress(host, port));
-
-    this.input = new DataInputStream(socket.getInputStream());
-    this.output = new DataOutputStream(socket.getOutputStream());
+    try {
+      this.socket.connect(new InetSocketAddress(host, port), manager.getSettings().getConnectTimeout());
+    } catch (IOException e) {
+      this.socket.close();
+      throw e;
+    }
 
-    this.packetHandler = new NetPacketHandler(this, manager);
+    this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), RECEIVE_BUFFER));
+    this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), manager.getSettings().getSendBatchBytes()));
 
     this.receiving = new Receiving();
     this.receiving.start(manager.getThreadPool());
@@ -91,20 +85,14 @@ public class ConnectionObj implements Connection {
    * @throws NotInitializedException
    */
   public ConnectionObj(Socket socket, AbstractXServerManagerObj manager) throws IOException {
+    super(socket.getInetAddress().getHostAddress(), socket.getPort(), manager);
 
-    if (socket == null) {
-      throw new NullPointerException("socket is null");
-    }
-
-    this.host = socket.getInetAddress().getHostAddress();
-    this.port = socket.getPort();
     this.socket = socket;
     this.socket.setSoTimeout(SOCKET_TIMEOUT);
 
-    this.input = new DataInputStream(socket.getInputStream());
-    this.output = new DataOutputStream(socket.getOutputStream());
+    this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), RECEIVE_BUFFER));
+    this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), manager.getSettings().getSendBatchBytes()));
 
-    this.packetHandler = new NetPacketHandler(this, manager);
     this.receiving = new Receiving();
     this.sending = new Sending();
 
@@ -115,27 +103,6 @@ public class ConnectionObj implements Connection {
     // manager.getLogger().info("New Connection from: " + host + ":" + port);
   }
 
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#ping(de.mickare.xserver.net.Ping)
-   */
-  @Override
-  public void ping(Ping ping) throws InterruptedException, IOException {
-    ByteArrayOutputStream b = null;
-    DataOutputStream out = null;
-    try {
-      b = new ByteArrayOutputStream();
-      out = new DataOutputStream(b);
-      out.writeUTF(ping.getKey());
-      pendingSendingPackets.put(new Packet(PacketType.PingRequest, b.toByteArray()));
-    } finally {
-      if (out != null) {
-        out.close();
-      }
-    }
-  }
-
   /*
    * (non-Javadoc)
    *
@@ -146,11 +113,8 @@ public class ConnectionObj implements Connection {
     return !socket.isClosed();
   }
 
-  private void stop(Status endStatus) {
-    //if (this.status != Status.disconnected && this.status != Status.error) {
-    //  return;
-    //}
-    Status old = setStatus(endStatus);
+  @Override
+  protected void closeSocket() {
     sending.interrupt();
     receiving.interrupt();
     // packetHandler.interrupt();
@@ -161,103 +125,81 @@ public class ConnectionObj implements Connection {
       output.close();
     } catch (IOException e) {
     }
-
-    XServerObj serv = this.getXserver();
-    if (serv != null) {
-      serv.unsetConnection(this);
-      if (!old.isFinished()) {
-        serv.getManager().getEventHandler().callEvent(new XServerDisconnectEvent(serv));
-      }
-    }
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#disconnect()
-   */
-  @Override
-  public void disconnect() {
-    stop(Status.disconnected);
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#errorDisconnect()
-   */
-  @Override
-  public void errorDisconnect() {
-    stop(Status.error);
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#getHost()
-   */
-  @Override
-  public String getHost() {
-    return host;
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#getPort()
-   */
-  @Override
-  public int getPort() {
-    return port;
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#send(de.mickare.xserver.net.Packet)
-   */
-  @Override
-  public boolean send(Packet packet) {
-    return pendingSendingPackets.offer(packet);
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#sendAll(java.util.Collection)
-   */
-  @Override
-  public boolean sendAll(Collection<Packet> packets) {
-    boolean result = true;
-    for (Packet p : packets) {
-      result &= send(p);
-    }
-    return result;
   }
 
-
   private class Sending extends InterruptableRunnable {
 
-    private final AtomicLong recordSecondPackageCount = new AtomicLong(0);
-    private final AtomicLong lastSecondPackageCount = new AtomicLong(0);
-
-    private long lastSecond = 0;
-    private long packageCount = 0;
+    private final int maxBatchBytes = manager.getSettings().getSendBatchBytes();
+    private final long lingerNanos = TimeUnit.MICROSECONDS.toNanos(manager.getSettings().getSendLingerMicros());
+    private final ArrayList<Packet> batch = new ArrayList<Packet>(BATCH_PACKETS);
+    // Futures of the packets in the stream buffer
+    private final ArrayList<SendFuture> written = new ArrayList<SendFuture>();
 
     public Sending() {
-      super("Sending Thread to (" + host + ":" + port + ")");
+      super("Sending Thread to (" + getHost() + ":" + getPort() + ")");
+    }
+
+    private int write(Packet p) throws IOException {
+      SendFuture future = p.getFuture();
+      if (future != null) {
+        written.add(future);
+      }
+      p = encode(p);
+      int length = p.getLength();
+      int header = frames.getHeaderSize(p);
+      metrics.packetSent(header + length);
+      try {
+        output.write(frames.writeHeader(p), 0, header);
+        output.write(p.array(), 0, length);
+      } finally {
+        // The data is in the stream buffer now, so a pooled array can be reused
+        p.release();
+      }
+      return header + length;
     }
 
-    private void tickPacket() {
-      if (System.currentTimeMillis() - lastSecond > 1000) {
-        lastSecondPackageCount.set(packageCount);
-        if (packageCount > recordSecondPackageCount.get()) {
-          recordSecondPackageCount.set(packageCount);
+    /**
+     * Writes everything that is available in the queue (up to maxBatchBytes) behind the first
+     * packet, so the whole batch goes out with one flush.
+     */
+    private void writeBatch(Packet first) throws IOException, InterruptedException {
+      int bytes = write(first);
+      final long lingerEnd = lingerNanos > 0 ? System.nanoTime() + lingerNanos : 0;
+      try {
+        while (bytes < maxBatchBytes) {
+          batch.clear();
+          pendingSendingPackets.drainTo(batch, BATCH_PACKETS);
+          if (batch.isEmpty()) {
+            long wait = lingerEnd - System.nanoTime();
+            if (lingerEnd == 0 || wait <= 0) {
+              break;
+            }
+            Packet p = pendingSendingPackets.poll(wait, TimeUnit.NANOSECONDS);
+            if (p == null) {
+              break;
+            }
+            bytes += write(p);
+          } else {
+            int i = 0;
+            try {
+              for (; i < batch.size(); i++) {
+                bytes += write(batch.get(i));
+              }
+            } finally {
+              // Only left early if a write failed: that packet is in written, the rest never got there
+              for (i++; i < batch.size(); i++) {
+                Packet p = batch.get(i);
+                p.fail(SendFailure.DISCONNECTED);
+                p.release();
+              }
+            }
+          }
         }
-        packageCount = 0;
-        lastSecond = System.currentTimeMillis();
+      } finally {
+        batch.clear();
       }
-      packageCount++;
+      output.flush();
+      completeAll(written);
     }
 
     @Override
@@ -265,7 +207,7 @@ public class ConnectionObj implements Connection {
       try {
         while (!isInterrupted() && isSocketOpen()) {
 
-          Packet p = pendingSendingPackets.poll(500, TimeUnit.MILLISECONDS);
+          Packet p = pendingSendingPackets.poll(KEEPALIVE_INTERVAL, TimeUnit.MILLISECONDS);
 
           if (isInterrupted()) {
             return;
@@ -273,14 +215,13 @@ public class ConnectionObj implements Connection {
 
           if (p == null) {
             if (isLoggedIn()) {
-              new Packet(PacketType.KeepAlive, new byte[0]).writeToStream(output).destroy();;
-              tickPacket();
+              write(new Packet(PacketType.KeepAlive, new byte[0]));
+              output.flush();
             } else {
               errorDisconnect();
             }
           } else {
-            p.writeToStream(output);
-            tickPacket();
+            writeBatch(p);
           }
           p = null;
 
@@ -292,6 +233,7 @@ public class ConnectionObj implements Connection {
         // + MyStringUtils.stackTraceToString(e));
         errorDisconnect();
       }
+      failAll(written, SendFailure.DISCONNECTED);
       this.interrupt();
     }
 
@@ -299,34 +241,18 @@ public class ConnectionObj implements Connection {
 
   private class Receiving extends InterruptableRunnable {
 
-    private final AtomicLong recordSecondPackageCount = new AtomicLong(0);
-    private final AtomicLong lastSecondPackageCount = new AtomicLong(0);
-
-    private long lastSecond = 0;
-    private long packageCount = 0;
-
     public Receiving() {
-      super("Receiving Thread to (" + host + ":" + port + ")");
-    }
-
-    private void tickPacket() {
-      if (System.currentTimeMillis() - lastSecond > 1000) {
-        lastSecondPackageCount.set(packageCount);
-        if (packageCount > recordSecondPackageCount.get()) {
-          recordSecondPackageCount.set(packageCount);
-        }
-        packageCount = 0;
-        lastSecond = System.currentTimeMillis();
-      }
-      packageCount++;
+      super("Receiving Thread to (" + getHost() + ":" + getPort() + ")");
     }
 
     @Override
     public void run() {
       try {
         while (!isInterrupted() && isSocketOpen()) {
-          packetHandler.handle(Packet.readFromSteam(input));
-          tickPacket();
+          frames.readHeader(input);
+          Packet p = Packet.readData(input, frames.getPacketID(), frames.getLength());
+          metrics.packetReceived(frames.getHeaderSize() + p.getLength());
+          packetHandler.handle(decode(p));
         }
       } catch (IOException e) {
         // TODO
@@ -339,123 +265,4 @@ public class ConnectionObj implements Connection {
     }
   }
 
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#getStatus()
-   */
-  @Override
-  public Status getStatus() {
-    return status;
-  }
-
-  protected Status setStatus(Status status) {
-    Status old = this.status;
-    this.status = status;
-    return old;
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#getXserver()
-   */
-  @Override
-  public XServerObj getXserver() {
-    return xserver.get();
-  }
-
-  protected void setXserver(XServerObj xserver) {
-    this.xserver.set(xserver);
-    xserver.setConnection(this);
-  }
-
-  protected void setLoginXserver(XServerObj xserver) {
-    this.xserver.set(xserver);
-    xserver.setLoginConnection(this);
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#getPendingPackets()
-   */
-  @Override
-  public Queue<Packet> getPendingPackets() {
-    return new ArrayBlockingQueue<Packet>(CAPACITY, false, pendingSendingPackets);
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#isLoggedIn()
-   */
-  @Override
-  public boolean isLoggedIn() {
-    return isSocketOpen() ? Status.connected == getStatus() : false;
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#isLoggingIn()
-   */
-  @Override
-  public boolean isLoggingIn() {
-    return isSocketOpen() ? Status.connecting == getStatus() : false;
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#toString()
-   */
-  @Override
-  public String toString() {
-    return host + ":" + port;
-  }
-
-  // recordSecondPackageCount
-  // lastSecondPackageCount
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#getSendingRecordSecondPackageCount()
-   */
-  @Override
-  public long getSendingRecordSecondPackageCount() {
-    return this.sending.recordSecondPackageCount.get();
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#getSendinglastSecondPackageCount()
-   */
-  @Override
-  public long getSendinglastSecondPackageCount() {
-    return this.sending.lastSecondPackageCount.get();
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#getReceivingRecordSecondPackageCount()
-   */
-  @Override
-  public long getReceivingRecordSecondPackageCount() {
-    return this.receiving.recordSecondPackageCount.get();
-  }
-
-  /*
-   * (non-Javadoc)
-   *
-   * @see de.mickare.xserver.net.Connection#getReceivinglastSecondPackageCount()
-   */
-  @Override
-  public long getReceivinglastSecondPackageCount() {
-    return this.receiving.lastSecondPackageCount.get();
-  }
-
 }
@@ -0,0 +1,262 @@
+package de.mickare.xserver.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.mickare.xserver.util.VarInt;
+
+/**
+ * Frame headers of one connection.
+ *
+ * A connection starts with the legacy header: int packetID, int length. If both servers offer
+ * {@link #FEATURE_COMPACT_FRAMES} at the login, each writer sends a {@link PacketType#FrameFormat}
+ * packet (byte version) with the legacy header and writes the compact header from then on: varint
+ * tag, varint length. The tag is the packet id shifted by two bits, the low bits are the
+ * compression flags. The reader switches when it handles that packet, so both sides always agree
+ * on the header of the next frame. The header shrinks from 8 to 2 - 4 bytes for most frames.
+ *
+ * Once the other server reads compact frames, messages are sent as
+ * {@link PacketType#ShortMessage} (subchannel as written by writeUTF, content) without the content
+ * length, which the frame already has.
+ *
+ * The writer side is only used by the writing thread, the reader side only by the reading thread.
+ */
+public class FrameCodec {
+
+  /**
+   * Bit in the login features, the server can read compact frames
+   */
+  public final static int FEATURE_COMPACT_FRAMES = 8;
+
+  /**
+   * Version of the compact format in the {@link PacketType#FrameFormat} packet
+   */
+  public final static int VERSION_COMPACT = 1;
+
+  public final static int LEGACY_HEADER_SIZE = 8;
+
+  /**
+   * Room a header may take in a write buffer
+   */
+  public final static int MAX_HEADER_SIZE = 10;
+
+  private final static int FLAG_BITS = 2;
+  private final static int FLAG_COMPRESSED = 1;
+  private final static int FLAG_DICTIONARY = 2;
+  private final static int FLAGS = PacketCompressor.FLAG_COMPRESSED | PacketCompressor.FLAG_DICTIONARY;
+
+  private final AbstractConnectionObj con;
+  private final BufferPool pool = BufferPool.DEFAULT;
+  private volatile boolean enabled = false;
+
+  // Writer side
+  private final byte[] header = new byte[MAX_HEADER_SIZE];
+  private boolean compactOut = false;
+
+  // Reader side, header of the last frame
+  private boolean compactIn = false;
+  private int packetID;
+  private int length;
+
+  public FrameCodec(AbstractConnectionObj con) {
+    this.con = con;
+  }
+
+  /**
+   * Start writing compact frames and short messages, after the other server told that it can read
+   * them.
+   */
+  public void enable() {
+    if (con.send(new Packet(PacketType.FrameFormat, new byte[] { VERSION_COMPACT }))) {
+      enabled = true;
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  // ********************************************
+  // Writer
+
+  /**
+   * Replace a message packet by a short message. Called by the writing thread.
+   *
+   * @param packet
+   * @return the short message (the given packet is released), or the given packet
+   */
+  public Packet encode(Packet packet) {
+    if (!enabled || packet.getPacketID() != PacketType.Message.packetID) {
+      return packet;
+    }
+    byte[] data = packet.array();
+    int length = packet.getLength();
+    if (length < 6) {
+      return packet;
+    }
+    int subChannelEnd = 2 + (((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+    if (subChannelEnd + 4 > length) {
+      return packet;
+    }
+    int size = length - 4;
+    byte[] out = pool.acquire(size);
+    System.arraycopy(data, 0, out, 0, subChannelEnd);
+    System.arraycopy(data, subChannelEnd + 4, out, subChannelEnd, size - subChannelEnd);
+    packet.release();
+    return new Packet(PacketType.ShortMessage, out, size, pool);
+  }
+
+  /**
+   * Encode the header of the next frame. Called by the writing thread in the order of the wire.
+   *
+   * @param packet
+   * @return array with the header, valid until the next call
+   * @see #getHeaderSize(Packet)
+   */
+  public byte[] writeHeader(Packet packet) {
+    int id = packet.getPacketID();
+    int length = packet.getLength();
+    if (compactOut) {
+      VarInt.write(length, header, VarInt.write(tag(id), header, 0));
+    } else {
+      writeInt(header, 0, id);
+      writeInt(header, 4, length);
+      // Everything behind the announcement is compact
+      compactOut = id == PacketType.FrameFormat.packetID;
+    }
+    return header;
+  }
+
+  /**
+   * @param packet
+   * @return size of the header that {@link #writeHeader(Packet)} writes next
+   */
+  public int getHeaderSize(Packet packet) {
+    if (!compactOut) {
+      return LEGACY_HEADER_SIZE;
+    }
+    return VarInt.size(tag(packet.getPacketID())) + VarInt.size(packet.getLength());
+  }
+
+  private static int tag(int packetID) {
+    int tag = (packetID & ~FLAGS) << FLAG_BITS;
+    if ((packetID & PacketCompressor.FLAG_COMPRESSED) != 0) {
+      tag |= FLAG_COMPRESSED;
+    }
+    if ((packetID & PacketCompressor.FLAG_DICTIONARY) != 0) {
+      tag |= FLAG_DICTIONARY;
+    }
+    return tag;
+  }
+
+  private static void writeInt(byte[] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off + 1] = (byte) (v >>> 16);
+    b[off + 2] = (byte) (v >>> 8);
+    b[off + 3] = (byte) v;
+  }
+
+  // ********************************************
+  // Reader
+
+  /**
+   * Switch to the format that the other server announced.
+   *
+   * @param packet {@link PacketType#FrameFormat} packet
+   * @throws IOException if the format is unknown
+   */
+  public void setPeerFormat(Packet packet) throws IOException {
+    int version = packet.getLength() > 0 ? packet.array()[0] : 0;
+    if (version != VERSION_COMPACT) {
+      throw new IOException("Unknown frame format " + version);
+    }
+    compactIn = true;
+  }
+
+  /**
+   * Read a frame header from a buffer that may end within the header.
+   *
+   * @param src
+   * @return true if the header was read, otherwise the caller resets the buffer and waits for more
+   * @throws IOException if the header is malformed
+   */
+  public boolean readHeader(ByteBuffer src) throws IOException {
+    if (!compactIn) {
+      if (src.remaining() < LEGACY_HEADER_SIZE) {
+        return false;
+      }
+      setHeader(src.getInt(), src.getInt());
+      return true;
+    }
+    int tag = VarInt.read(src);
+    if (tag < 0) {
+      return false;
+    }
+    int len = VarInt.read(src);
+    if (len < 0) {
+      return false;
+    }
+    setHeader(packetID(tag), len);
+    return true;
+  }
+
+  /**
+   * Read a frame header from a stream.
+   *
+   * @param in
+   * @throws IOException
+   */
+  public void readHeader(DataInputStream in) throws IOException {
+    if (!compactIn) {
+      setHeader(in.readInt(), in.readInt());
+    } else {
+      int tag = VarInt.read(in);
+      setHeader(packetID(tag), VarInt.read(in));
+    }
+  }
+
+  private void setHeader(int packetID, int length) throws IOException {
+    if (length < 0) {
+      throw new IOException("Invalid packet length " + length);
+    }
+    this.packetID = packetID;
+    this.length = length;
+  }
+
+  private static int packetID(int tag) {
+    int id = tag >>> FLAG_BITS;
+    if ((tag & FLAG_COMPRESSED) != 0) {
+      id |= PacketCompressor.FLAG_COMPRESSED;
+    }
+    if ((tag & FLAG_DICTIONARY) != 0) {
+      id |= PacketCompressor.FLAG_DICTIONARY;
+    }
+    return id;
+  }
+
+  /**
+   * @return packet id of the last header that was read
+   */
+  public int getPacketID() {
+    return packetID;
+  }
+
+  /**
+   * @return data length of the last header that was read
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * @return size of the last header that was read
+   */
+  public int getHeaderSize() {
+    if (!compactIn) {
+      return LEGACY_HEADER_SIZE;
+    }
+    return VarInt.size(tag(packetID)) + VarInt.size(length);
+  }
+
+}
@@ -7,24 +7,27 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 import de.mickare.xserver.AbstractXServerManagerObj;
+import de.mickare.xserver.Message;
 import de.mickare.xserver.XType;
 import de.mickare.xserver.events.XServerConnectionDenied;
 import de.mickare.xserver.events.XServerLoggedInEvent;
 import de.mickare.xserver.events.XServerMessageIncomingEvent;
 import de.mickare.xserver.exceptions.NotInitializedException;
+import de.mickare.xserver.util.ChannelNameCache;
+import de.mickare.xserver.util.VarInt;
 
 public class NetPacketHandler // extends Thread
 {
 	
 	// private final static int CAPACITY = 2048;
 	
-	private final ConnectionObj con;
+	private final AbstractConnectionObj con;
 	private final AbstractXServerManagerObj manager;
 	
 	// private final ArrayBlockingQueue<Packet> pendingReceivingPackets = new ArrayBlockingQueue<Packet>(CAPACITY,
 	// true);
 	
-	public NetPacketHandler( ConnectionObj con, AbstractXServerManagerObj manager ) {
+	public NetPacketHandler( AbstractConnectionObj con, AbstractXServerManagerObj manager ) {
 		this.con = con;
 		this.manager = manager;
 	}
@@ -42,6 +45,7 @@ public class NetPacketHandler // extends Thread
 	
 	public void handle( Packet p ) throws IOException {
 		
+		final long start = System.nanoTime();
 		// manager.getLogger().info("Packet: " + p.getPacketID() + " - L" + p.getData().length);
 		
 		try {
@@ -49,6 +53,10 @@ public class NetPacketHandler // extends Thread
 			if ( p.getPacketID() == PacketType.KeepAlive.packetID ) // Keep Alive
 			{
 				
+			} else if ( p.getPacketID() == PacketType.FrameFormat.packetID ) // FrameFormat
+			{
+				con.setPeerFrameFormat( p );
+				
 			} else if ( p.getPacketID() == PacketType.Disconnect.packetID ) // Disconnect
 			{
 				manager.getLogger().info( "Disconnecting from " + con.getHost() + ":" + con.getPort() );
@@ -62,14 +70,17 @@ public class NetPacketHandler // extends Thread
 			} else if ( p.getPacketID() == PacketType.LoginDenied.packetID ) // LoginDenied
 			{
 				manager.getLogger().info( "Login denied from " + con.getHost() + ":" + con.getPort() );
+				con.loginFailed( "Login denied" );
 				con.errorDisconnect();
 				
 			} else if ( p.getPacketID() == PacketType.LoginRequest.packetID ) // LoginRequest
 			{
-				try ( DataInputStream is = new DataInputStream( new ByteArrayInputStream( p.getData() ) ) ) {
+				try ( DataInputStream is = new DataInputStream( new ByteArrayInputStream( p.array(), 0, p.getLength() ) ) ) {
 					String name = is.readUTF();
 					String password = is.readUTF();
 					XType xtype = XType.getByNumber( is.readInt() );
+					// Older versions don't send features
+					int features = is.available() >= 4 ? is.readInt() : 0;
 					XServerObj s = manager.getServer( name );
 					
 					// Debugging...
@@ -79,14 +90,19 @@ public class NetPacketHandler // extends Thread
 					 */
 					if ( s != null && s.getPassword().equals( password ) ) {
 						s.setType( xtype );
-						sendAcceptedLoginRequest();
-									
-						con.setLoginXserver( s );                        
-						con.setStatus( Connection.Status.connected );
-						
-						s.getManager().getLogger().info( "Login Request from " + name + " accepted!" );
-						s.flushCache();
-						s.getManager().getEventHandler().callEvent( new XServerLoggedInEvent( con.getXserver() ) );
+						// Refused while the connection dialed by the smaller name is logged in, closed without a reply
+						if ( con.setLoginXserver( s ) ) {
+							sendAcceptedLoginRequest();
+							// Behind the reply, which still has the header the other server expects
+							con.setPeerFeatures( features );
+							con.setStatus( Connection.Status.connected );
+							
+							s.getManager().getLogger().info( "Login Request from " + name + " accepted!" );
+							con.loggedIn();
+							s.flushCache();
+							manager.getRelayRouter().loggedIn( s );
+							s.getManager().getEventHandler().callEvent( new XServerLoggedInEvent( con.getXserver() ) );
+						}
 					} else {
 						con.send( new Packet( PacketType.LoginDenied, new byte[0] ) );
 						manager.getLogger().info( "Login Request from " + name + " denied! (" + con.getHost() + ":"
@@ -99,10 +115,12 @@ public class NetPacketHandler // extends Thread
 				
 			} else if ( p.getPacketID() == PacketType.LoginAccepted.packetID ) // LoginAccepted
 			{
-				try ( DataInputStream is = new DataInputStream( new ByteArrayInputStream( p.getData() ) ) ) {
+				try ( DataInputStream is = new DataInputStream( new ByteArrayInputStream( p.array(), 0, p.getLength() ) ) ) {
 					String name = is.readUTF();
 					String password = is.readUTF();
 					XType xtype = XType.getByNumber( is.readInt() );
+					// Older versions don't send features
+					int features = is.available() >= 4 ? is.readInt() : 0;
 					XServerObj s = manager.getServer( name );
 					
 					// Debugging...
@@ -115,13 +133,18 @@ public class NetPacketHandler // extends Thread
 					
 					if ( s != null && s.getPassword().equals( password ) ) {
 						s.setType( xtype );
+						con.setPeerFeatures( features );
 						
-						con.setXserver( s );						
-						con.setStatus( Connection.Status.connected );
-						
-						s.getManager().getLogger().info( "Login Reply accepted from " + s.getName() );
-						s.flushCache();
-						s.getManager().getEventHandler().callEvent( new XServerLoggedInEvent( s ) );
+						// Refused while the connection dialed by the smaller name is logged in
+						if ( con.setXserver( s ) ) {
+							con.setStatus( Connection.Status.connected );
+							
+							s.getManager().getLogger().info( "Login Reply accepted from " + s.getName() );
+							con.loggedIn();
+							s.flushCache();
+							manager.getRelayRouter().loggedIn( s );
+							s.getManager().getEventHandler().callEvent( new XServerLoggedInEvent( s ) );
+						}
 					} else {
 						con.send( new Packet( PacketType.LoginDenied, new byte[0] ) );
 						manager.getLogger().info( "Login Reply from " + name + " denied! (" + con.getHost() + ":"
@@ -137,9 +160,55 @@ public class NetPacketHandler // extends Thread
 				
 			} else if ( p.getPacketID() == PacketType.PingAnswer.packetID ) // PingAnswer
 			{
-				try ( DataInputStream is = new DataInputStream( new ByteArrayInputStream( p.getData() ) ) ) {
+				try ( DataInputStream is = new DataInputStream( new ByteArrayInputStream( p.array(), 0, p.getLength() ) ) ) {
 					PingObj.receive( is.readUTF(), con.getXserver() );
 				}
+			} else if ( p.getPacketID() == PacketType.CompressionDictionary.packetID ) // CompressionDictionary
+			{
+				con.setPeerDictionary( p );
+				
+			} else if ( p.getPacketID() == PacketType.DefineChannel.packetID ) // DefineChannel
+			{
+				con.defineRemoteChannel( p );
+				
+			} else if ( p.getPacketID() == PacketType.Request.packetID ) // Request
+			{
+				con.receiveRequest( p );
+				
+			} else if ( p.getPacketID() == PacketType.Response.packetID ) // Response
+			{
+				con.receiveResponse( p );
+				
+			} else if ( p.getPacketID() == PacketType.Relay.packetID ) // Relay
+			{
+				manager.getRelayRouter().receive( p, con );
+				
+			} else if ( p.getPacketID() == PacketType.ChannelMessage.packetID ) // ChannelMessage
+			{
+				if ( con.getXserver() != null && con.isSocketOpen() && con.isLoggedIn() ) {
+					int channel = VarInt.read( p.array(), 0, p.getLength() );
+					int offset = VarInt.size( channel );
+					// The subchannel comes from the channel table, the content is a view of the frame
+					Message message = manager.readMessage( con.getXserver(), con.getRemoteChannel( channel ), p.array(), offset,
+							p.getLength() - offset );
+					manager.getEventHandler().callEvent( new XServerMessageIncomingEvent( con.getXserver(), message ) );
+				}
+				
+			} else if ( p.getPacketID() == PacketType.ShortMessage.packetID ) // ShortMessage
+			{
+				if ( con.getXserver() != null && con.isSocketOpen() && con.isLoggedIn() ) {
+					byte[] data = p.array();
+					int length = p.getLength();
+					int utflen = length >= 2 ? ( ( data[0] & 0xFF ) << 8 ) | ( data[1] & 0xFF ) : -1;
+					if ( utflen < 0 || 2 + utflen > length ) {
+						throw new IOException( "Short message too short" );
+					}
+					// The content is the rest of the frame
+					Message message = manager.readMessage( con.getXserver(), ChannelNameCache.DEFAULT.get( data, 0, utflen ), data,
+							2 + utflen, length - 2 - utflen );
+					manager.getEventHandler().callEvent( new XServerMessageIncomingEvent( con.getXserver(), message ) );
+				}
+				
 			} else if ( p.getPacketID() == PacketType.Message.packetID ) // Message
 			{
 				// manager.getThreadPool().runTask(new
@@ -148,8 +217,10 @@ public class NetPacketHandler // extends Thread
 				
 				try {
 					if ( con.getXserver() != null && con.isSocketOpen() && con.isLoggedIn() ) {
+						// The message is a view of the frame, which has an array of its own, see Packet.allocate
+						Message message = manager.readMessage( con.getXserver(), p.array(), 0, p.getLength() );
 						manager.getEventHandler().callEvent( new XServerMessageIncomingEvent( con.getXserver(),
-								manager.readMessage( con.getXserver(), p.getData() ) ) );
+							message ) );
 					}
 				} catch ( IOException e ) {
 					
@@ -167,6 +238,7 @@ public class NetPacketHandler // extends Thread
 			
 			con.errorDisconnect();
 		}
+		con.getMetrics().packetHandled( PacketType.getPacket( p.getPacketID() ), System.nanoTime() - start );
 		p.destroy();
 	}
 	
@@ -184,6 +256,7 @@ public class NetPacketHandler // extends Thread
 				out.writeUTF( manager.getHomeServer().getName() );
 				out.writeUTF( manager.getHomeServer().getPassword() );
 				out.writeInt( manager.getPlugin().getHomeType().getNumber() );
+				out.writeInt( con.getLoginFeatures() );
 				con.send( new Packet( type, b.toByteArray() ) );
 			}
 		}
@@ -0,0 +1,355 @@
+package de.mickare.xserver.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.mickare.xserver.AbstractXServerManagerObj;
+import de.mickare.xserver.exceptions.NotInitializedException;
+
+/**
+ * Non-blocking connection that is served by a {@link NioEventLoop}. Uses the same framing as the
+ * blocking connection, see {@link FrameCodec}.
+ */
+public class NioConnectionObj extends AbstractConnectionObj implements NioEventLoop.SelectHandler {
+
+  private final static int BUFFER_SIZE = 64 * 1024;
+  // Packets per flush, so compressing a long queue doesn't stall the other connections of the loop
+  private final static int FLUSH_PACKETS = 1024;
+
+  private final SocketChannel channel;
+  private final NioEventLoop loop;
+  private volatile SelectionKey key = null;
+
+  private final BufferPool pool = BufferPool.DEFAULT;
+  private final ByteBuffer readBuffer;
+  private final ByteBuffer writeBuffer;
+  private final AtomicBoolean buffersReleased = new AtomicBoolean(false);
+
+  // Frame that is bigger than the read buffer
+  private int largeHeaderSize = 0;
+  private Packet largeReadPacket = null;
+  private ByteBuffer largeRead = null;
+  // Body that did not fit into the write buffer
+  private Packet largeWritePacket = null;
+  private ByteBuffer largeWrite = null;
+  // Futures of the packets that are not yet completely written
+  private final ArrayList<SendFuture> unflushed = new ArrayList<SendFuture>();
+
+  private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flushScheduled.set(false);
+      flush();
+    }
+  };
+
+  private final Runnable releaseTask = new Runnable() {
+    @Override
+    public void run() {
+      releaseBuffers();
+    }
+  };
+
+  private long lastRead;
+  private long lastWrite;
+
+  /**
+   * Create a new Connection to another Server (sends a Login Request). Takes over the channel of a
+   * {@link PendingConnect} on the loop thread, the key stays registered on that loop.
+   *
+   * @param channel connected channel
+   * @param loop of the key
+   * @param key
+   * @param xserver
+   * @param login completed by the login, or null
+   * @param manager
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws NotInitializedException
+   */
+  NioConnectionObj(SocketChannel channel, NioEventLoop loop, SelectionKey key, XServerObj xserver, LoginFuture login,
+      AbstractXServerManagerObj manager) throws IOException, InterruptedException, NotInitializedException {
+    this(channel, xserver.getHost(), xserver.getPort(), loop, key, manager);
+    this.initXserver(xserver, login);
+    this.packetHandler.sendFirstLoginRequest();
+  }
+
+  /**
+   * Receive a new Connection from another Server (response to a Login Request)
+   *
+   * @param channel accepted channel
+   * @param manager
+   * @throws IOException
+   */
+  public NioConnectionObj(SocketChannel channel, AbstractXServerManagerObj manager) throws IOException {
+    this(channel, channel.socket().getInetAddress().getHostAddress(), channel.socket().getPort(), manager.getEventLoopGroup()
+        .next(), null, manager);
+  }
+
+  private NioConnectionObj(SocketChannel channel, String host, int port, NioEventLoop loop, SelectionKey key,
+      AbstractXServerManagerObj manager) throws IOException {
+    super(host, port, manager);
+    this.readBuffer = pool.acquireDirect(BUFFER_SIZE);
+    this.writeBuffer = pool.acquireDirect(manager.getSettings().getSendBatchBytes());
+    this.channel = channel;
+    this.channel.configureBlocking(false);
+    this.channel.socket().setTcpNoDelay(true);
+    this.lastRead = this.lastWrite = System.currentTimeMillis();
+    this.loop = loop;
+    if (key != null) {
+      key.attach(this);
+      key.interestOps(SelectionKey.OP_READ);
+      this.key = key;
+    } else {
+      this.loop.register(channel, SelectionKey.OP_READ, this);
+    }
+  }
+
+  @Override
+  public boolean isSocketOpen() {
+    return channel.isOpen();
+  }
+
+  /**
+   * Packets are read by the event loop, which must not wait
+   */
+  @Override
+  protected boolean isReaderBlocking() {
+    return false;
+  }
+
+  @Override
+  protected void onPacketQueued() {
+    if (flushScheduled.compareAndSet(false, true)) {
+      loop.execute(flushTask);
+    }
+  }
+
+  @Override
+  protected void closeSocket() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+    }
+    // The buffers may only be given back on the loop thread, after the last read or write
+    loop.execute(releaseTask);
+  }
+
+  private void releaseBuffers() {
+    if (!buffersReleased.compareAndSet(false, true)) {
+      return;
+    }
+    pool.releaseDirect(readBuffer);
+    pool.releaseDirect(writeBuffer);
+    if (largeReadPacket != null) {
+      largeReadPacket.release();
+      largeReadPacket = null;
+      largeRead = null;
+    }
+    if (largeWritePacket != null) {
+      largeWritePacket.release();
+      largeWritePacket = null;
+      largeWrite = null;
+    }
+    failAll(unflushed, SendFailure.DISCONNECTED);
+    // Queued between stop() and now
+    requeueUnsentMessages();
+  }
+
+  // ********************************************
+  // Event loop callbacks
+
+  @Override
+  public void selected(SelectionKey key) throws IOException {
+    this.key = key;
+    if (key.isReadable()) {
+      read();
+    }
+    if (key.isValid() && key.isWritable()) {
+      flush();
+    }
+  }
+
+  @Override
+  public void tick(long now) {
+    if (now - lastRead > SOCKET_TIMEOUT) {
+      errorDisconnect();
+    } else if (now - lastWrite >= KEEPALIVE_INTERVAL && pendingSendingPackets.isEmpty()) {
+      if (isLoggedIn()) {
+        send(new Packet(PacketType.KeepAlive, new byte[0]));
+      } else {
+        errorDisconnect();
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    errorDisconnect();
+  }
+
+  // ********************************************
+  // Reading
+
+  private void read() throws IOException {
+    if (buffersReleased.get()) {
+      return;
+    }
+    int n = channel.read(largeRead != null ? largeRead : readBuffer);
+    if (n < 0) {
+      errorDisconnect();
+      return;
+    }
+    lastRead = System.currentTimeMillis();
+
+    if (largeRead != null) {
+      if (largeRead.hasRemaining()) {
+        return;
+      }
+      Packet packet = largeReadPacket;
+      largeReadPacket = null;
+      largeRead = null;
+      handle(packet, largeHeaderSize);
+      // The rest of the stream goes through the normal read buffer again
+      return;
+    }
+
+    readBuffer.flip();
+    while (readBuffer.hasRemaining() && isSocketOpen()) {
+      readBuffer.mark();
+      int start = readBuffer.position();
+      if (!frames.readHeader(readBuffer)) {
+        readBuffer.reset();
+        break;
+      }
+      int packetID = frames.getPacketID();
+      int length = frames.getLength();
+      int header = readBuffer.position() - start;
+      if (readBuffer.remaining() >= length) {
+        Packet packet = Packet.allocate(packetID, length);
+        readBuffer.get(packet.array(), 0, length);
+        // May switch the header format of the next frame
+        handle(packet, header);
+      } else if ((long) length + header > readBuffer.capacity()) {
+        // Frame won't ever fit into the buffer
+        largeHeaderSize = header;
+        largeReadPacket = Packet.allocate(packetID, length);
+        largeRead = ByteBuffer.wrap(largeReadPacket.array(), 0, length);
+        largeRead.put(readBuffer);
+        break;
+      } else {
+        readBuffer.reset();
+        break;
+      }
+    }
+    readBuffer.compact();
+  }
+
+  private void handle(Packet packet, int header) throws IOException {
+    metrics.packetReceived(header + packet.getLength());
+    packetHandler.handle(decode(packet));
+  }
+
+  // ********************************************
+  // Writing
+
+  private void flush() {
+    try {
+      if (flushPending()) {
+        setWriteInterest(false);
+      } else {
+        setWriteInterest(true);
+      }
+    } catch (IOException e) {
+      errorDisconnect();
+    }
+  }
+
+  private void setWriteInterest(boolean write) {
+    SelectionKey k = this.key;
+    if (k == null) {
+      k = loop.keyFor(channel);
+      this.key = k;
+    }
+    if (k != null && k.isValid()) {
+      int ops = k.interestOps();
+      int nops = write ? (ops | SelectionKey.OP_WRITE) : (ops & ~SelectionKey.OP_WRITE);
+      if (ops != nops) {
+        k.interestOps(nops);
+      }
+    }
+  }
+
+  /**
+   * Writes as many pending packets as the socket accepts, up to FLUSH_PACKETS. The rest is written
+   * on the next write readiness.
+   *
+   * @return true if everything was written
+   * @throws IOException
+   */
+  private boolean flushPending() throws IOException {
+    if (!channel.isOpen() || !channel.isConnected() || buffersReleased.get()) {
+      return true;
+    }
+    int budget = FLUSH_PACKETS;
+    while (true) {
+      Packet p;
+      while (largeWrite == null && budget > 0 && writeBuffer.remaining() >= FrameCodec.MAX_HEADER_SIZE
+          && (p = pendingSendingPackets.poll()) != null) {
+        budget--;
+        SendFuture future = p.getFuture();
+        if (future != null) {
+          unflushed.add(future);
+        }
+        p = encode(p);
+        int length = p.getLength();
+        int header = frames.getHeaderSize(p);
+        metrics.packetSent(header + length);
+        writeBuffer.put(frames.writeHeader(p), 0, header);
+        if (length <= writeBuffer.remaining()) {
+          writeBuffer.put(p.array(), 0, length);
+          p.release();
+        } else {
+          // Written straight from the packet array, released when done
+          largeWritePacket = p;
+          largeWrite = ByteBuffer.wrap(p.array(), 0, length);
+        }
+      }
+
+      writeBuffer.flip();
+      if (writeBuffer.hasRemaining()) {
+        channel.write(writeBuffer);
+        lastWrite = System.currentTimeMillis();
+      }
+      boolean drained = !writeBuffer.hasRemaining();
+      writeBuffer.compact();
+      if (!drained) {
+        return false;
+      }
+
+      if (largeWrite != null) {
+        channel.write(largeWrite);
+        if (largeWrite.hasRemaining()) {
+          return false;
+        }
+        largeWrite = null;
+        largeWritePacket.release();
+        largeWritePacket = null;
+      }
+      completeAll(unflushed);
+
+      if (pendingSendingPackets.isEmpty()) {
+        return true;
+      }
+      if (budget <= 0) {
+        return false;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,183 @@
+package de.mickare.xserver.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single selector thread that serves many channels.
+ */
+public class NioEventLoop implements Runnable {
+
+  /**
+   * Callback for a channel registered on a event loop. All methods are called from the loop thread.
+   */
+  public interface SelectHandler {
+
+    void selected(SelectionKey key) throws IOException;
+
+    /**
+     * Called every {@link NioEventLoop#TICK} milliseconds.
+     *
+     * @param now current time millis
+     */
+    void tick(long now);
+
+    /**
+     * The handler failed or the loop is shutting down.
+     */
+    void close();
+
+  }
+
+  public final static int TICK = 100;
+
+  private final String name;
+  private final Logger logger;
+  private final Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  // Tasks of the current round, only used by the loop thread
+  private final ArrayList<Runnable> round = new ArrayList<Runnable>();
+
+  private volatile boolean running = true;
+  private volatile Thread thread = null;
+
+  public NioEventLoop(String name, Logger logger) throws IOException {
+    this.name = name;
+    this.logger = logger;
+    this.selector = Selector.open();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean inEventLoop() {
+    return thread == Thread.currentThread();
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Run a task on the loop thread.
+   *
+   * @param task
+   */
+  public void execute(Runnable task) {
+    tasks.add(task);
+    if (!inEventLoop()) {
+      selector.wakeup();
+    }
+  }
+
+  public SelectionKey keyFor(SelectableChannel channel) {
+    return channel.keyFor(selector);
+  }
+
+  /**
+   * Register a channel on this loop. The registration itself is done on the loop thread.
+   *
+   * @param channel
+   * @param ops
+   * @param handler
+   */
+  public void register(final SelectableChannel channel, final int ops, final SelectHandler handler) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          channel.register(selector, ops, handler);
+        } catch (ClosedChannelException e) {
+          handler.close();
+        }
+      }
+    });
+  }
+
+  public void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    thread = Thread.currentThread();
+    long lastTick = System.currentTimeMillis();
+    try {
+      while (running) {
+        selector.select(TICK);
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          SelectHandler handler = (SelectHandler) key.attachment();
+          try {
+            if (key.isValid()) {
+              handler.selected(key);
+            }
+          } catch (IOException | CancelledKeyException e) {
+            handler.close();
+          }
+        }
+
+        runTasks();
+
+        long now = System.currentTimeMillis();
+        if (now - lastTick >= TICK) {
+          lastTick = now;
+          for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+              ((SelectHandler) key.attachment()).tick(now);
+            }
+          }
+        }
+      }
+    } catch (Throwable t) {
+      logger.log(Level.SEVERE, "Event loop " + name + " crashed: " + t.getMessage(), t);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        ((SelectHandler) key.attachment()).close();
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+      }
+      thread = null;
+    }
+  }
+
+  /**
+   * Runs the tasks that are queued now. Tasks that are added meanwhile wait for the next round, so
+   * a busy connection that keeps scheduling flushes doesn't starve the selector.
+   */
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      round.add(task);
+    }
+    try {
+      for (Runnable t : round) {
+        try {
+          t.run();
+        } catch (Exception e) {
+          logger.log(Level.WARNING, "Exception in event loop task: " + e.getMessage(), e);
+        }
+      }
+    } finally {
+      round.clear();
+    }
+  }
+
+}
@@ -0,0 +1,45 @@
+package de.mickare.xserver.net;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import de.mickare.xserver.ServerThreadPoolExecutor;
+
+/**
+ * A fixed number of {@link NioEventLoop}s. Channels are spread round robin over the loops.
+ */
+public class NioEventLoopGroup {
+
+  private final NioEventLoop[] loops;
+  private final AtomicInteger next = new AtomicInteger(0);
+
+  public NioEventLoopGroup(int threads, Logger logger) throws IOException {
+    this.loops = new NioEventLoop[Math.max(1, threads)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new NioEventLoop("XServer I/O #" + i, logger);
+    }
+  }
+
+  public NioEventLoopGroup start(ServerThreadPoolExecutor stpool) {
+    for (NioEventLoop loop : loops) {
+      stpool.runServerTask(loop);
+    }
+    return this;
+  }
+
+  public NioEventLoop next() {
+    return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+  }
+
+  public int size() {
+    return loops.length;
+  }
+
+  public void shutdown() {
+    for (NioEventLoop loop : loops) {
+      loop.shutdown();
+    }
+  }
+
+}
@@ -0,0 +1,381 @@
+package de.mickare.xserver.net;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.mickare.xserver.config.XServerSettings;
+import de.mickare.xserver.config.XServerSettings.OutboxPolicy;
+
+/**
+ * Bounded queue of message packets for a server that is not logged in. The packets are replayed
+ * in order after the login. With an {@link OutboxSpill}, packets that don't fit into memory go to
+ * disk instead of being dropped. Their futures succeed when they are on disk, and the spill keeps
+ * them until their replay was written.
+ */
+public class Outbox {
+
+  private static class Entry {
+    private final Packet packet;
+    private final long expires;
+
+    private Entry(Packet packet, long expires) {
+      this.packet = packet;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Future of a packet that is replayed from the spill.
+   */
+  private final class Replay extends SendFuture implements SendFuture.Listener {
+    private final OutboxSpill.Mark mark;
+
+    private Replay(OutboxSpill.Mark mark) {
+      this.mark = mark;
+      addListener(this);
+    }
+
+    @Override
+    public void operationComplete(SendFuture future) {
+      replayed(mark, future.isSuccess());
+    }
+  }
+
+  private final int maxMessages;
+  private final long maxBytes;
+  private final long ttlNanos;
+  private final OutboxPolicy policy;
+
+  private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+  // Packets behind the ones in memory, null if disabled
+  private final OutboxSpill spill;
+  private long bytes = 0;
+  private volatile int size = 0;
+  private boolean closed = false;
+
+  private final AtomicLong dropped = new AtomicLong(0);
+  private final AtomicLong expired = new AtomicLong(0);
+
+  public Outbox(XServerSettings settings, OutboxSpill spill) {
+    this(settings.getOutboxMaxMessages(), settings.getOutboxMaxBytes(), settings.getOutboxTtlMillis(), settings.getOutboxPolicy(),
+        spill);
+  }
+
+  public Outbox(int maxMessages, long maxBytes, long ttlMillis, OutboxPolicy policy, OutboxSpill spill) {
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.policy = policy;
+    this.spill = spill;
+    updateSize();
+  }
+
+  private void updateSize() {
+    size = entries.size() + (spill != null ? spill.size() : 0);
+  }
+
+  /**
+   * Put a packet into the outbox. The outbox owns the packet afterwards, even if it is rejected.
+   *
+   * @param packet
+   * @return false if the packet was rejected
+   */
+  public synchronized boolean offer(Packet packet) {
+    long now = System.nanoTime();
+    purgeExpired(now);
+    int frame = packet.getFrameSize();
+    boolean full = entries.size() >= maxMessages || bytes + frame > maxBytes;
+    if (spill != null && (full || !spill.isEmpty())) {
+      // Once something is on disk, everything newer has to go there too
+      long expires = ttlNanos > 0 ? System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(ttlNanos) : 0;
+      if (spill.append(packet, expires)) {
+        // The future doesn't go to disk, the spill is responsible for the packet now
+        complete(packet);
+        updateSize();
+        return true;
+      }
+      if (!spill.isEmpty()) {
+        dropped.incrementAndGet();
+        packet.fail(SendFailure.DROPPED);
+        packet.release();
+        return false;
+      }
+    }
+    if (frame > maxBytes) {
+      dropped.incrementAndGet();
+      packet.fail(SendFailure.DROPPED);
+      packet.release();
+      return false;
+    }
+    while (entries.size() >= maxMessages || bytes + frame > maxBytes) {
+      if (policy == OutboxPolicy.DROP_NEWEST) {
+        dropped.incrementAndGet();
+        packet.fail(SendFailure.DROPPED);
+        packet.release();
+        return false;
+      }
+      remove(entries.pollFirst(), SendFailure.DROPPED);
+      dropped.incrementAndGet();
+    }
+    entries.addLast(new Entry(packet, ttlNanos > 0 ? now + ttlNanos : 0));
+    bytes += frame;
+    updateSize();
+    return true;
+  }
+
+  /**
+   * Put packets back in front of the outbox, e.g. the unsent packets of a closed connection. They
+   * get a new TTL. What doesn't fit into memory goes to the front of the spill, or is dropped from
+   * the end without one. Packets that were replayed from the spill are read from it again.
+   *
+   * @param packets oldest first
+   */
+  public synchronized void requeue(List<Packet> packets) {
+    long now = System.nanoTime();
+    for (int i = packets.size() - 1; i >= 0; i--) {
+      Packet p = packets.get(i);
+      if (p.getFuture() instanceof Replay) {
+        p.fail(SendFailure.DISCONNECTED);
+        p.release();
+        continue;
+      }
+      entries.addFirst(new Entry(p, ttlNanos > 0 ? now + ttlNanos : 0));
+      bytes += p.getFrameSize();
+    }
+    List<Entry> overflow = new ArrayList<Entry>();
+    while (entries.size() > maxMessages || bytes > maxBytes) {
+      Entry e = entries.pollLast();
+      bytes -= e.packet.getFrameSize();
+      overflow.add(e);
+    }
+    if (!overflow.isEmpty()) {
+      Collections.reverse(overflow);
+      if (spill == null || !spillFirst(overflow, now)) {
+        for (Entry e : overflow) {
+          e.packet.fail(SendFailure.DROPPED);
+          e.packet.release();
+          dropped.incrementAndGet();
+        }
+      }
+    }
+    updateSize();
+  }
+
+  /**
+   * Put entries that were taken out of memory in front of the spilled packets.
+   *
+   * @param list oldest first
+   * @param now
+   * @return false if they didn't fit, they are still owned by the caller then
+   */
+  private boolean spillFirst(List<Entry> list, long now) {
+    List<Packet> packets = new ArrayList<Packet>(list.size());
+    long[] expires = new long[list.size()];
+    long nowMillis = System.currentTimeMillis();
+    for (int i = 0; i < list.size(); i++) {
+      Entry e = list.get(i);
+      packets.add(e.packet);
+      expires[i] = e.expires == 0 ? 0 : nowMillis + Math.max(1, TimeUnit.NANOSECONDS.toMillis(e.expires - now));
+    }
+    if (!spill.prepend(packets, expires)) {
+      return false;
+    }
+    for (Packet p : packets) {
+      complete(p);
+    }
+    return true;
+  }
+
+  private static void complete(Packet packet) {
+    SendFuture f = packet.getFuture();
+    if (f != null) {
+      f.complete();
+    }
+    packet.release();
+  }
+
+  /**
+   * Takes packets, e.g. the ones of a flush
+   */
+  public interface Sink {
+
+    /**
+     * @param packet
+     * @return false if the packet wasn't taken, the caller keeps it then
+     */
+    boolean send(Packet packet);
+
+  }
+
+  /**
+   * Hand the packets over to a connection, oldest first. Stops when the connection doesn't take
+   * any more packets.
+   *
+   * @param con
+   * @return true if every packet was handed over
+   */
+  public synchronized boolean flushTo(final Connection con) {
+    return flushTo(new Sink() {
+      @Override
+      public boolean send(Packet packet) {
+        return con.send(packet);
+      }
+    });
+  }
+
+  /**
+   * Hand the packets over to a sink, oldest first. Stops when the sink doesn't take any more
+   * packets.
+   *
+   * @param sink
+   * @return true if every packet was handed over
+   */
+  public synchronized boolean flushTo(Sink sink) {
+    long now = System.nanoTime();
+    Entry e;
+    while ((e = entries.peekFirst()) != null) {
+      if (isExpired(e, now)) {
+        remove(entries.pollFirst(), SendFailure.EXPIRED);
+        expired.incrementAndGet();
+        continue;
+      }
+      if (!sink.send(e.packet)) {
+        break;
+      }
+      // The sink owns the packet now
+      entries.pollFirst();
+      bytes -= e.packet.getFrameSize();
+    }
+    if (entries.isEmpty() && spill != null) {
+      flushSpillTo(sink);
+    }
+    updateSize();
+    return entries.isEmpty() && (spill == null || !spill.hasUnsent());
+  }
+
+  /**
+   * The records stay in the spill until the futures of their packets succeed.
+   */
+  private void flushSpillTo(Sink sink) {
+    long nowMillis = System.currentTimeMillis();
+    while (spill.hasUnsent()) {
+      long expires = spill.peekExpires();
+      if (expires != 0 && nowMillis > expires) {
+        spill.done(spill.take());
+        expired.incrementAndGet();
+        continue;
+      }
+      Packet p = spill.peek(BufferPool.DEFAULT);
+      // Handed out first, the future may complete before send returns
+      OutboxSpill.Mark mark = spill.take();
+      p.setFuture(new Replay(mark));
+      if (!sink.send(p)) {
+        spill.untake(mark);
+        p.release();
+        break;
+      }
+    }
+  }
+
+  private synchronized void replayed(OutboxSpill.Mark mark, boolean success) {
+    if (closed) {
+      return;
+    }
+    if (success) {
+      spill.done(mark);
+    } else {
+      spill.failed(mark);
+    }
+    updateSize();
+  }
+
+  /**
+   * Move the packets in memory to the front of the spill file and close it, it keeps its packets
+   * for the next start. Without a spill, or if they don't fit, the packets in memory are dropped.
+   */
+  public synchronized void close() {
+    long now = System.nanoTime();
+    purgeExpired(now);
+    List<Entry> list = new ArrayList<Entry>(entries);
+    entries.clear();
+    bytes = 0;
+    if (spill == null || list.isEmpty() || !spillFirst(list, now)) {
+      for (Entry e : list) {
+        e.packet.fail(SendFailure.SHUTDOWN);
+        e.packet.release();
+      }
+    }
+    if (spill != null) {
+      spill.close();
+    }
+    closed = true;
+    size = 0;
+  }
+
+  private boolean isExpired(Entry e, long now) {
+    return e.expires != 0 && now - e.expires > 0;
+  }
+
+  /**
+   * Drop the messages whose TTL passed. Messages in the spill file are dropped when they are read.
+   */
+  public synchronized void purgeExpired() {
+    purgeExpired(System.nanoTime());
+  }
+
+  private void purgeExpired(long now) {
+    Entry e;
+    while ((e = entries.peekFirst()) != null && isExpired(e, now)) {
+      remove(entries.pollFirst(), SendFailure.EXPIRED);
+      expired.incrementAndGet();
+    }
+    updateSize();
+  }
+
+  private void remove(Entry e, SendFailure reason) {
+    bytes -= e.packet.getFrameSize();
+    e.packet.fail(reason);
+    e.packet.release();
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return bytes of the packets in memory
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return bytes of the packets in the spill file
+   */
+  public synchronized long getSpilledBytes() {
+    return spill != null ? spill.getBytes() : 0;
+  }
+
+  /**
+   * @return number of messages that were dropped because the outbox was full
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return number of messages that were dropped because of their TTL
+   */
+  public long getExpired() {
+    return expired.get();
+  }
+
+}
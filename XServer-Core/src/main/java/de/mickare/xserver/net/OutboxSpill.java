@@ -0,0 +1,428 @@
+package de.mickare.xserver.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Memory mapped ring of message packets for one target server. Used by the {@link Outbox} when its
+ * memory limits are reached, so long outages don't fill the heap. The read and write positions are
+ * stored in the file header, so the spill survives restarts.
+ *
+ * <pre>
+ * header: int magic, long readPos, long writePos
+ * record: int packetID, int length, long expires (epoch millis, 0 = never), byte[length]
+ * </pre>
+ *
+ * A record that doesn't fit in front of the end of the file is written behind the header, the
+ * reader follows it there when it finds a record header with length -1 or no room for one. Records
+ * that were handed out with {@link #take()} are only removed when they are {@link #done(Mark)}, so
+ * packets that were lost with their connection are read again. The records of a file are checked
+ * when it is opened, it is cut in front of the first one that is damaged.
+ *
+ * Not thread safe, the outbox synchronizes all calls.
+ */
+public class OutboxSpill {
+
+  private final static int MAGIC = 0x58535031; // "XSP1"
+  private final static int HEADER_SIZE = 4 + 8 + 8;
+  private final static int RECORD_HEADER_SIZE = 4 + 4 + 8;
+  // Length of the record header that sends the reader back to the start
+  private final static int WRAP = -1;
+
+  /**
+   * A record that was handed out.
+   */
+  public final static class Mark {
+    private final int start;
+    private final int end;
+    private boolean done = false;
+    private boolean stale = false;
+
+    private Mark(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+
+  private int readPos;
+  private int writePos;
+  private int count = 0;
+  private boolean repaired = false;
+
+  // Start of the first record that wasn't handed out, and the handed out ones that aren't done
+  private int sendPos;
+  private final ArrayDeque<Mark> marks = new ArrayDeque<Mark>();
+
+  /**
+   * Open or create the spill file. A file that still has records keeps its size, it may wrap at
+   * its end. Otherwise it gets the given capacity.
+   *
+   * @param file
+   * @param capacity file size in bytes
+   * @throws IOException
+   */
+  public OutboxSpill(File file, int capacity) throws IOException {
+    this.file = file;
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Can't create directory " + dir);
+    }
+    this.raf = new RandomAccessFile(file, "rw");
+    try {
+      this.channel = raf.getChannel();
+      this.capacity = fileSize(raf, capacity);
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+    if (buffer.getInt(0) != MAGIC) {
+      reset();
+    } else {
+      long r = buffer.getLong(4);
+      long w = buffer.getLong(12);
+      if (r < HEADER_SIZE || r > this.capacity || w < HEADER_SIZE || w > this.capacity) {
+        repaired = true;
+        reset();
+      } else {
+        readPos = (int) r;
+        writePos = (int) w;
+        recover();
+      }
+    }
+  }
+
+  private static int fileSize(RandomAccessFile raf, int capacity) throws IOException {
+    int min = HEADER_SIZE + RECORD_HEADER_SIZE;
+    long size = raf.length();
+    if (size >= min && size <= Integer.MAX_VALUE) {
+      raf.seek(0);
+      int magic = raf.readInt();
+      long r = raf.readLong();
+      long w = raf.readLong();
+      if (magic == MAGIC && r != w) {
+        return (int) size;
+      }
+    }
+    int n = Math.max(min, capacity);
+    raf.setLength(n);
+    return n;
+  }
+
+  /**
+   * Count the records and cut the file in front of the first one that doesn't fit into its part of
+   * the file.
+   */
+  private void recover() {
+    boolean wrapped = writePos < readPos;
+    int pos = readPos;
+    int n = 0;
+    while (pos != writePos) {
+      if (wrapped && isWrap(pos)) {
+        pos = HEADER_SIZE;
+        wrapped = false;
+        continue;
+      }
+      int end = wrapped ? capacity : writePos;
+      int length = end - pos >= RECORD_HEADER_SIZE ? buffer.getInt(pos + 4) : WRAP;
+      if (length < 0 || length > end - pos - RECORD_HEADER_SIZE) {
+        writePos = pos;
+        repaired = true;
+        break;
+      }
+      pos += RECORD_HEADER_SIZE + length;
+      n++;
+    }
+    count = n;
+    if (readPos == writePos) {
+      reset();
+    } else {
+      writeHeader();
+    }
+    sendPos = readPos;
+  }
+
+  private void reset() {
+    readPos = HEADER_SIZE;
+    writePos = HEADER_SIZE;
+    sendPos = HEADER_SIZE;
+    count = 0;
+    buffer.putInt(0, MAGIC);
+    writeHeader();
+  }
+
+  private void writeHeader() {
+    buffer.putLong(4, readPos);
+    buffer.putLong(12, writePos);
+  }
+
+  /**
+   * Only valid for a position with records behind it, in the upper part of a wrapped file.
+   */
+  private boolean isWrap(int pos) {
+    return capacity - pos < RECORD_HEADER_SIZE || buffer.getInt(pos + 4) == WRAP;
+  }
+
+  /**
+   * @param pos end of a record or the start of the live records
+   * @return start of the record at the position
+   */
+  private int follow(int pos) {
+    return pos != writePos && isWrap(pos) ? HEADER_SIZE : pos;
+  }
+
+  private int write(int pos, Packet packet, long expires) {
+    int length = packet.getLength();
+    buffer.putInt(pos, packet.getPacketID());
+    buffer.putInt(pos + 4, length);
+    buffer.putLong(pos + 8, expires);
+    buffer.position(pos + RECORD_HEADER_SIZE);
+    buffer.put(packet.array(), 0, length);
+    return pos + RECORD_HEADER_SIZE + length;
+  }
+
+  /**
+   * Append a packet. The packet is not released.
+   *
+   * @param packet
+   * @param expires epoch millis, 0 = never
+   * @return false if there is no room left
+   */
+  public boolean append(Packet packet, long expires) {
+    long need = RECORD_HEADER_SIZE + (long) packet.getLength();
+    int pos = writePos;
+    if (writePos >= readPos && need > capacity - pos) {
+      // The write position may never reach the read position, that would be an empty file
+      if (HEADER_SIZE + need >= readPos) {
+        return false;
+      }
+      if (capacity - pos >= RECORD_HEADER_SIZE) {
+        buffer.putInt(pos + 4, WRAP);
+      }
+      pos = HEADER_SIZE;
+    } else if (writePos < readPos && pos + need >= readPos) {
+      return false;
+    }
+    // The record is complete before the header points behind it
+    writePos = write(pos, packet, expires);
+    buffer.putLong(12, writePos);
+    count++;
+    return true;
+  }
+
+  /**
+   * Put packets in front of the oldest record, e.g. the ones that were kept in memory. If there is
+   * no room in front of it, the records are moved behind the new ones. The records that were
+   * handed out are handed out again. The packets are not released.
+   *
+   * @param packets oldest first
+   * @param expires epoch millis of each packet, 0 = never
+   * @return false if there is no room, nothing was written then
+   */
+  public boolean prepend(List<Packet> packets, long[] expires) {
+    long need = 0;
+    for (Packet p : packets) {
+      need += RECORD_HEADER_SIZE + p.getLength();
+    }
+    rewind();
+    int start;
+    if (writePos < readPos ? need < readPos - writePos : need <= readPos - HEADER_SIZE) {
+      start = readPos - (int) need;
+      int pos = start;
+      for (int i = 0; i < packets.size(); i++) {
+        pos = write(pos, packets.get(i), expires[i]);
+      }
+    } else {
+      byte[] records = copyRecords();
+      if (HEADER_SIZE + need + records.length > capacity) {
+        return false;
+      }
+      start = HEADER_SIZE;
+      int pos = start;
+      for (int i = 0; i < packets.size(); i++) {
+        pos = write(pos, packets.get(i), expires[i]);
+      }
+      buffer.position(pos);
+      buffer.put(records);
+      writePos = pos + records.length;
+      buffer.putLong(12, writePos);
+    }
+    readPos = start;
+    sendPos = start;
+    buffer.putLong(4, readPos);
+    count += packets.size();
+    return true;
+  }
+
+  /**
+   * @return the live records, in order and without the gap at the end of a wrapped file
+   */
+  private byte[] copyRecords() {
+    int upperEnd = writePos;
+    if (writePos < readPos) {
+      upperEnd = readPos;
+      while (!isWrap(upperEnd)) {
+        upperEnd += RECORD_HEADER_SIZE + buffer.getInt(upperEnd + 4);
+      }
+    }
+    int lower = writePos < readPos ? writePos - HEADER_SIZE : 0;
+    byte[] records = new byte[upperEnd - readPos + lower];
+    buffer.position(readPos);
+    buffer.get(records, 0, upperEnd - readPos);
+    if (lower > 0) {
+      buffer.position(HEADER_SIZE);
+      buffer.get(records, upperEnd - readPos, lower);
+    }
+    return records;
+  }
+
+  /**
+   * @return true if there are records that weren't handed out
+   */
+  public boolean hasUnsent() {
+    return sendPos != writePos;
+  }
+
+  /**
+   * Read the next record that wasn't handed out, without handing it out.
+   *
+   * @param pool pool for the packet data
+   * @return packet or null if there is none
+   */
+  public Packet peek(BufferPool pool) {
+    if (!hasUnsent()) {
+      return null;
+    }
+    int pos = follow(sendPos);
+    int length = buffer.getInt(pos + 4);
+    byte[] data = pool.acquire(length);
+    buffer.position(pos + RECORD_HEADER_SIZE);
+    buffer.get(data, 0, length);
+    return new Packet(buffer.getInt(pos), data, length, pool);
+  }
+
+  /**
+   * @return expiry of the next record that wasn't handed out (epoch millis, 0 = never)
+   */
+  public long peekExpires() {
+    return hasUnsent() ? buffer.getLong(follow(sendPos) + 8) : 0;
+  }
+
+  /**
+   * Hand out the next record. It stays in the file until it is done.
+   *
+   * @return mark of the record
+   */
+  public Mark take() {
+    int pos = follow(sendPos);
+    Mark m = new Mark(sendPos, pos + RECORD_HEADER_SIZE + buffer.getInt(pos + 4));
+    marks.addLast(m);
+    sendPos = m.end;
+    return m;
+  }
+
+  /**
+   * Take back the record that was handed out last, it wasn't sent.
+   *
+   * @param m
+   */
+  public void untake(Mark m) {
+    if (marks.peekLast() == m) {
+      marks.pollLast();
+      sendPos = m.start;
+    }
+  }
+
+  /**
+   * Remove a record that was handed out, as soon as the ones in front of it are done too. When
+   * everything is done, the positions go back to the header.
+   *
+   * @param m
+   */
+  public void done(Mark m) {
+    if (m.stale) {
+      return;
+    }
+    m.done = true;
+    Mark first;
+    while ((first = marks.peekFirst()) != null && first.done) {
+      marks.pollFirst();
+      readPos = first.end;
+      count--;
+    }
+    if (readPos == writePos) {
+      reset();
+    } else {
+      readPos = follow(readPos);
+      buffer.putLong(4, readPos);
+    }
+  }
+
+  /**
+   * A record that was handed out wasn't sent. All records that aren't done are handed out again.
+   *
+   * @param m
+   */
+  public void failed(Mark m) {
+    if (!m.stale) {
+      rewind();
+    }
+  }
+
+  private void rewind() {
+    for (Mark m : marks) {
+      m.stale = true;
+    }
+    marks.clear();
+    sendPos = readPos;
+  }
+
+  public boolean isEmpty() {
+    return readPos == writePos;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @return true if the file was damaged and records were cut off when it was opened
+   */
+  public boolean isRepaired() {
+    return repaired;
+  }
+
+  /**
+   * @return bytes used by records
+   */
+  public long getBytes() {
+    return writePos >= readPos ? writePos - readPos : capacity - readPos + writePos - HEADER_SIZE;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Write the mapped pages to disk and close the file. The content stays for the next start.
+   */
+  public void close() {
+    buffer.force();
+    try {
+      raf.close();
+    } catch (IOException e) {
+    }
+  }
+
+}
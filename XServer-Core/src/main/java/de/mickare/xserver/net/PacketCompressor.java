@@ -0,0 +1,390 @@
+package de.mickare.xserver.net;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import de.mickare.xserver.config.XServerSettings;
+
+/**
+ * Deflate codec of one connection. A compressed packet has {@link #FLAG_COMPRESSED} set in its
+ * packet id and its data is: int uncompressed length, deflated data.
+ *
+ * With a shared dictionary, small messages are compressed against it as well. Such a packet also
+ * has {@link #FLAG_DICTIONARY} set and its data is: int uncompressed length, int dictionary id,
+ * deflated data. The dictionary is announced by a {@link PacketType#CompressionDictionary} packet
+ * (int id, dictionary) and is used for all following packets. As the writer switches to a
+ * dictionary when the announcement passes it, the other server always knows it in time.
+ *
+ * Compressing and decompressing may run on different threads, each side has its own lock. The
+ * compressor doesn't know its connection, it only gets the metrics to count in and a sink for its
+ * dictionary announcements.
+ */
+public class PacketCompressor {
+
+  /**
+   * Bit in the packet id of the frame header
+   */
+  public final static int FLAG_COMPRESSED = 0x40000000;
+
+  /**
+   * Bit in the packet id of the frame header, compressed against the shared dictionary
+   */
+  public final static int FLAG_DICTIONARY = 0x20000000;
+
+  /**
+   * Bit in the login features, the server can read compressed packets
+   */
+  public final static int FEATURE_COMPRESSION = 1;
+
+  /**
+   * Bit in the login features, the server can read packets compressed against a dictionary
+   */
+  public final static int FEATURE_DICTIONARY = 2;
+
+  /**
+   * Deflate can't look back further than this
+   */
+  public final static int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+  // Guards against a tiny frame that claims a huge uncompressed size
+  private final static int MAX_RATIO = 1032;
+  // Smaller messages don't get smaller
+  private final static int MIN_DICTIONARY_LENGTH = 24;
+  // A trained dictionary is replaced after this many sampled messages
+  private final static int RETRAIN_MESSAGES = 16384;
+
+  private final BufferPool pool = BufferPool.DEFAULT;
+  private final ConnectionMetrics metrics;
+  private final Outbox.Sink announcements;
+  private final int threshold;
+  private final int level;
+  private final int dictionarySize;
+
+  private volatile boolean enabled = false;
+  private volatile boolean dictionaryEnabled = false;
+  private volatile boolean closed = false;
+  private final Object deflateLock = new Object();
+  private final Object inflateLock = new Object();
+  private Deflater deflater = null;
+  private Inflater inflater = null;
+
+  // Writer side, guarded by deflateLock
+  private byte[] dictionary = null;
+  private int dictionaryId = 0;
+  private int nextDictionaryId = 1;
+  private boolean dictionaryPending = false;
+  private byte[] presetDefined = null;
+  private byte[] samples = null;
+  private int samplePos = 0;
+  private boolean samplesFull = false;
+  private int sampledMessages = 0;
+
+  // Reader side, guarded by inflateLock
+  private byte[] peerDictionary = null;
+  private int peerDictionaryId = 0;
+
+  /**
+   * @param settings
+   * @param metrics counts the bytes saved
+   * @param announcements queues {@link PacketType#CompressionDictionary} packets on the connection
+   */
+  public PacketCompressor(XServerSettings settings, ConnectionMetrics metrics, Outbox.Sink announcements) {
+    this.metrics = metrics;
+    this.announcements = announcements;
+    this.threshold = settings.getCompressionThreshold();
+    this.level = settings.getCompressionLevel();
+    this.dictionarySize = settings.getCompressionDictionarySize();
+  }
+
+  /**
+   * Start compressing outgoing messages, after the other server told that it can read them.
+   */
+  public void enable() {
+    enabled = true;
+  }
+
+  /**
+   * Start compressing small outgoing messages against a shared dictionary.
+   */
+  public void enableDictionary() {
+    dictionaryEnabled = true;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public boolean isDictionaryEnabled() {
+    return dictionaryEnabled;
+  }
+
+  public static boolean isCompressed(Packet packet) {
+    return (packet.getPacketID() & FLAG_COMPRESSED) != 0;
+  }
+
+  /**
+   * Compress a message packet if compression is enabled and the packet is big enough. Called by
+   * the writing thread in the order of the wire.
+   *
+   * @param packet
+   * @param preset dictionary that a plugin set, or null to train one
+   * @return the compressed packet (the given packet is released), or the given packet
+   */
+  public Packet compress(Packet packet, byte[] preset) {
+    if (!enabled) {
+      return packet;
+    }
+    int id = packet.getPacketID();
+    if (id == PacketType.CompressionDictionary.packetID) {
+      activateDictionary(packet);
+      return packet;
+    }
+    if (id != PacketType.Message.packetID && id != PacketType.ChannelMessage.packetID
+        && id != PacketType.ShortMessage.packetID && id != PacketType.Relay.packetID) {
+      return packet;
+    }
+    int length = packet.getLength();
+    if (dictionaryEnabled) {
+      byte[] dict;
+      synchronized (deflateLock) {
+        updateDictionary(packet, preset);
+        dict = dictionary;
+      }
+      if (dict != null && length >= MIN_DICTIONARY_LENGTH) {
+        return deflate(packet, true);
+      }
+    }
+    return length >= threshold ? deflate(packet, false) : packet;
+  }
+
+  private Packet deflate(Packet packet, boolean useDictionary) {
+    int length = packet.getLength();
+    int header = useDictionary ? 8 : 4;
+    byte[] out = pool.acquire(header + length);
+    int size;
+    int dictId = 0;
+    synchronized (deflateLock) {
+      if (closed) {
+        pool.release(out);
+        return packet;
+      }
+      if (deflater == null) {
+        deflater = new Deflater(level, true);
+      }
+      if (useDictionary) {
+        deflater.setDictionary(dictionary);
+        dictId = dictionaryId;
+      }
+      deflater.setInput(packet.array(), 0, length);
+      deflater.finish();
+      // Output that is not smaller than the input isn't worth it
+      size = header + deflater.deflate(out, header, length - header);
+      boolean finished = deflater.finished();
+      deflater.reset();
+      if (!finished) {
+        pool.release(out);
+        return packet;
+      }
+    }
+    writeInt(out, 0, length);
+    int flags = FLAG_COMPRESSED;
+    if (useDictionary) {
+      writeInt(out, 4, dictId);
+      flags |= FLAG_DICTIONARY;
+    }
+    Packet compressed = new Packet(packet.getPacketID() | flags, out, size, pool);
+    metrics.packetCompressed(packet.getFrameSize(), compressed.getFrameSize());
+    packet.release();
+    return compressed;
+  }
+
+  /**
+   * Announce a new dictionary if the plugin set one, or if enough messages were sampled.
+   */
+  private void updateDictionary(Packet message, byte[] preset) {
+    if (dictionaryPending) {
+      return;
+    }
+    if (preset != null) {
+      if (preset != presetDefined && defineDictionary(preset, preset.length)) {
+        presetDefined = preset;
+      }
+      return;
+    }
+    int length = message.getLength();
+    if (length >= threshold) {
+      return;
+    }
+    if (samples == null) {
+      samples = new byte[dictionarySize];
+    }
+    if (length <= samples.length) {
+      // Ring of the latest small messages
+      int first = Math.min(length, samples.length - samplePos);
+      System.arraycopy(message.array(), 0, samples, samplePos, first);
+      System.arraycopy(message.array(), first, samples, 0, length - first);
+      samplesFull |= samplePos + length >= samples.length;
+      samplePos = (samplePos + length) % samples.length;
+      sampledMessages++;
+    }
+    if (samplesFull && (dictionary == null || sampledMessages >= RETRAIN_MESSAGES)) {
+      // Oldest first, deflate finds the latest messages at the shortest distance
+      byte[] trained = new byte[samples.length];
+      System.arraycopy(samples, samplePos, trained, 0, samples.length - samplePos);
+      System.arraycopy(samples, 0, trained, samples.length - samplePos, samplePos);
+      if (defineDictionary(trained, trained.length)) {
+        sampledMessages = 0;
+      }
+    }
+  }
+
+  private boolean defineDictionary(byte[] dict, int length) {
+    int len = Math.min(length, MAX_DICTIONARY_SIZE);
+    byte[] data = new byte[4 + len];
+    writeInt(data, 0, nextDictionaryId);
+    // The end of the dictionary is the most valuable part
+    System.arraycopy(dict, length - len, data, 4, len);
+    if (!announcements.send(new Packet(PacketType.CompressionDictionary, data))) {
+      return false;
+    }
+    nextDictionaryId++;
+    dictionaryPending = true;
+    return true;
+  }
+
+  private void activateDictionary(Packet define) {
+    byte[] data = define.array();
+    int length = define.getLength();
+    byte[] dict = new byte[length - 4];
+    System.arraycopy(data, 4, dict, 0, dict.length);
+    synchronized (deflateLock) {
+      dictionaryId = readInt(data, 0);
+      dictionary = dict;
+      dictionaryPending = false;
+    }
+  }
+
+  /**
+   * Use a dictionary that the other server announced.
+   *
+   * @param packet {@link PacketType#CompressionDictionary} packet
+   * @throws IOException if the packet is malformed
+   */
+  public void setPeerDictionary(Packet packet) throws IOException {
+    int length = packet.getLength();
+    if (length < 4 || length - 4 > MAX_DICTIONARY_SIZE) {
+      throw new IOException("Invalid compression dictionary of " + length + " bytes");
+    }
+    byte[] data = packet.array();
+    byte[] dict = new byte[length - 4];
+    System.arraycopy(data, 4, dict, 0, dict.length);
+    synchronized (inflateLock) {
+      peerDictionaryId = readInt(data, 0);
+      peerDictionary = dict;
+    }
+  }
+
+  /**
+   * Decompress a packet that has the compressed flag.
+   *
+   * @param packet
+   * @return the decompressed packet (the given packet is released), or the given packet if it is
+   *         not compressed
+   * @throws IOException if the data is corrupt, the given packet is released
+   */
+  public Packet decompress(Packet packet) throws IOException {
+    if (!isCompressed(packet)) {
+      return packet;
+    }
+    boolean useDictionary = (packet.getPacketID() & FLAG_DICTIONARY) != 0;
+    int header = useDictionary ? 8 : 4;
+    int length = packet.getLength();
+    byte[] in = packet.array();
+    if (length < header) {
+      packet.release();
+      throw new IOException("Compressed packet too short");
+    }
+    int size = readInt(in, 0);
+    if (size < 0 || (long) size > (long) length * MAX_RATIO) {
+      packet.release();
+      throw new IOException("Invalid uncompressed length " + size);
+    }
+    Packet result = Packet.allocate(packet.getPacketID() & ~(FLAG_COMPRESSED | FLAG_DICTIONARY), size);
+    byte[] out = result.array();
+    try {
+      synchronized (inflateLock) {
+        if (closed) {
+          throw new IOException("Connection closed");
+        }
+        if (inflater == null) {
+          inflater = new Inflater(true);
+        }
+        try {
+          if (useDictionary) {
+            int dictId = readInt(in, 4);
+            if (peerDictionary == null || dictId != peerDictionaryId) {
+              throw new IOException("Unknown compression dictionary " + dictId);
+            }
+            inflater.setDictionary(peerDictionary);
+          }
+          inflater.setInput(in, header, length - header);
+          int n = 0;
+          while (n < size && !inflater.finished()) {
+            int r = inflater.inflate(out, n, size - n);
+            if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+              break;
+            }
+            n += r;
+          }
+          if (n != size) {
+            throw new IOException("Compressed packet has " + n + " instead of " + size + " bytes");
+          }
+        } catch (DataFormatException e) {
+          throw new IOException("Corrupt compressed packet", e);
+        } finally {
+          inflater.reset();
+        }
+      }
+    } catch (IOException e) {
+      result.release();
+      packet.release();
+      throw e;
+    }
+    metrics.packetDecompressed(result.getFrameSize(), packet.getFrameSize());
+    packet.release();
+    return result;
+  }
+
+  private static void writeInt(byte[] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off + 1] = (byte) (v >>> 16);
+    b[off + 2] = (byte) (v >>> 8);
+    b[off + 3] = (byte) v;
+  }
+
+  private static int readInt(byte[] b, int off) {
+    return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+  }
+
+  /**
+   * Free the native memory of the codec.
+   */
+  public void close() {
+    closed = true;
+    synchronized (deflateLock) {
+      if (deflater != null) {
+        deflater.end();
+        deflater = null;
+      }
+    }
+    synchronized (inflateLock) {
+      if (inflater != null) {
+        inflater.end();
+        inflater = null;
+      }
+    }
+  }
+
+}
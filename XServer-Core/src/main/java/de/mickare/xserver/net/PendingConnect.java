@@ -0,0 +1,139 @@
+package de.mickare.xserver.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.mickare.xserver.AbstractXServerManagerObj;
+import de.mickare.xserver.exceptions.NotInitializedException;
+
+/**
+ * Non-blocking connect of a {@link NioConnectionObj}. The channel connects on an event loop, which
+ * fails it after the connect timeout, so a server that is down costs no thread. When the channel is
+ * connected its key is handed over to the connection, which sends the login request.
+ */
+class PendingConnect implements NioEventLoop.SelectHandler {
+
+  private final XServerObj server;
+  private final LoginFuture login;
+  private final AbstractXServerManagerObj manager;
+  private final NioEventLoop loop;
+  private final int timeout;
+  private final AtomicBoolean done = new AtomicBoolean(false);
+
+  private volatile SocketChannel channel = null;
+  private long deadline;
+
+  /**
+   * @param server to connect to
+   * @param login completed by the login
+   * @param manager
+   */
+  PendingConnect(XServerObj server, LoginFuture login, AbstractXServerManagerObj manager) {
+    this.server = server;
+    this.login = login;
+    this.manager = manager;
+    this.loop = manager.getEventLoopGroup().next();
+    this.timeout = manager.getSettings().getConnectTimeout();
+  }
+
+  /**
+   * Resolve the host and start the connect. May block for the lookup of the host, the connect
+   * itself doesn't.
+   */
+  void start() {
+    SocketChannel ch = null;
+    try {
+      InetSocketAddress addr = new InetSocketAddress(server.getHost(), server.getPort());
+      ch = SocketChannel.open();
+      ch.configureBlocking(false);
+      ch.socket().setReuseAddress(true);
+      ch.socket().setPerformancePreferences(0, 1, 1);
+      this.channel = ch;
+      if (done.get()) {
+        // Cancelled during the lookup, it didn't see the channel
+        ch.close();
+        return;
+      }
+      this.deadline = System.currentTimeMillis() + timeout;
+      // A local connect may be done at once, then the key is selected as writable
+      boolean connected = ch.connect(addr);
+      loop.register(ch, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+    } catch (IOException | UnresolvedAddressException e) {
+      if (ch != null) {
+        try {
+          ch.close();
+        } catch (IOException ignored) {
+        }
+      }
+      login.fail(ConnectFailure.UNREACHABLE, e instanceof UnresolvedAddressException ? "Unknown host " + server.getHost()
+          : e.getMessage());
+    }
+  }
+
+  /**
+   * Stop the connect if it is still running.
+   *
+   * @param reason
+   * @param message
+   */
+  void cancel(ConnectFailure reason, String message) {
+    if (!done.compareAndSet(false, true)) {
+      return;
+    }
+    SocketChannel ch = this.channel;
+    if (ch != null) {
+      try {
+        // Cancels the key as well
+        ch.close();
+      } catch (IOException e) {
+      }
+    }
+    login.fail(reason, message);
+  }
+
+  // ********************************************
+  // Event loop callbacks
+
+  @Override
+  public void selected(SelectionKey key) throws IOException {
+    try {
+      if (!channel.finishConnect()) {
+        return;
+      }
+    } catch (IOException e) {
+      cancel(ConnectFailure.UNREACHABLE, e.getMessage());
+      return;
+    }
+    if (!done.compareAndSet(false, true)) {
+      // Cancelled meanwhile, may have missed the channel
+      channel.close();
+      return;
+    }
+    try {
+      server.dialed(new NioConnectionObj(channel, loop, key, server, login, manager));
+    } catch (IOException e) {
+      channel.close();
+      login.fail(ConnectFailure.UNREACHABLE, e.getMessage());
+    } catch (InterruptedException | NotInitializedException e) {
+      channel.close();
+      login.fail(ConnectFailure.SHUTDOWN, e.getMessage());
+    }
+  }
+
+  @Override
+  public void tick(long now) {
+    if (now >= deadline) {
+      cancel(ConnectFailure.TIMEOUT, "No answer within " + timeout + "ms");
+    }
+  }
+
+  @Override
+  public void close() {
+    cancel(ConnectFailure.SHUTDOWN, null);
+  }
+
+}
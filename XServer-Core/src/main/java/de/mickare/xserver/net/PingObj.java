@@ -9,11 +9,13 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import de.mickare.xserver.AbstractXServerManager;
+import de.mickare.xserver.AbstractXServerManagerObj;
 import de.mickare.xserver.user.ComSender;
-import de.mickare.xserver.util.CacheMap;
 import de.mickare.xserver.util.ChatColor;
 import de.mickare.xserver.util.Encryption;
 
@@ -21,8 +23,8 @@ public class PingObj implements Ping {
 
 	private static final long TIMEOUT = 2000;
 	
-	private static final CacheMap<String, Ping> pending = new CacheMap<String, Ping>(
-			40);
+	// Removed when the result is printed, so there is no limit on concurrent pings
+	private static final Map<String, Ping> pending = new ConcurrentHashMap<String, Ping>();
 
 	private static final AtomicInteger rollingnumber = new AtomicInteger(0);
 
@@ -36,17 +38,12 @@ public class PingObj implements Ping {
 
 	public static void addPendingPing(Ping ping) {
 		if (ping.getStarted() == -1) {
-			synchronized (pending) {
-				pending.put(ping.getKey(), ping);
-			}
+			pending.put(ping.getKey(), ping);
 		}
 	}
 
 	public static void receive(String key, XServer server) {
-		Ping p = null;
-		synchronized (pending) {
-			p = pending.get(key);
-		}
+		Ping p = pending.get(key);
 		if (p != null) {
 			p.receive(server);
 		}
@@ -55,7 +52,7 @@ public class PingObj implements Ping {
 	private final ComSender sender;
 	private final String key;
 
-	private boolean resultprinted = false;
+	private final AtomicBoolean resultprinted = new AtomicBoolean(false);
 
 	private long started = -1;
 	private final Map<XServer, Long> responses = Collections
@@ -63,13 +60,13 @@ public class PingObj implements Ping {
 	private final Set<XServer> waiting = Collections
 			.synchronizedSet(new HashSet<XServer>());
 
-	private final AbstractXServerManager manager;
+	private final AbstractXServerManagerObj manager;
 
-	public PingObj(AbstractXServerManager manager, ComSender sender) {
+	public PingObj(AbstractXServerManagerObj manager, ComSender sender) {
 		this(manager, sender, "Ping");
 	}
 
-	public PingObj(AbstractXServerManager manager, ComSender sender, String salt) {
+	public PingObj(AbstractXServerManagerObj manager, ComSender sender, String salt) {
 		this.manager = manager;
 		this.sender = sender;
 		this.key = Encryption.MD5(String.valueOf(Math.random()) + salt
@@ -99,16 +96,13 @@ public class PingObj implements Ping {
 					responses.put(s, Long.MAX_VALUE);
 				}
 			}
-			check();
-			manager.getThreadPool().runTask(new Runnable() {
-				public void run() {
-					try {
-						Thread.sleep(TIMEOUT + 10);
+			if (!check()) {
+				manager.schedule(new Runnable() {
+					public void run() {
 						check();
-					} catch (InterruptedException e) {
 					}
-				}
-			});
+				}, TIMEOUT + 10, TimeUnit.MILLISECONDS);
+			}
 			return true;
 		}
 		return false;
@@ -149,8 +143,8 @@ public class PingObj implements Ping {
 	}
 
 	private boolean check() {
-		if (!isPending() && !resultprinted) {
-			resultprinted = true;
+		if (!isPending() && resultprinted.compareAndSet(false, true)) {
+			pending.remove(key);
 			waiting.clear();
 			sender.sendMessage(getFormatedString());
 			return true;
@@ -0,0 +1,315 @@
+package de.mickare.xserver.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.mickare.xserver.AbstractXServerManagerObj;
+import de.mickare.xserver.config.XServerSettings;
+import de.mickare.xserver.util.TimerWheel;
+
+/**
+ * Connects to the servers that are not logged in. Every server has a {@link State}: a failed
+ * connect is retried after an exponential backoff with jitter, a lost connection soon after, and a
+ * server that dials this one is taken at once. The server with the greater name of a pair waits
+ * for the other one to dial (see {@link XServerObj#isDialedByHome()}), it only dials shortly after
+ * the start and then in the longest interval, so the other one learns that it is back.
+ *
+ * Connects are started on the thread pool, but at most
+ * {@link XServerSettings#getMaxConcurrentConnects()} at once, the others wait in a queue. A connect
+ * keeps its place until its {@link LoginFuture} completes. A server that is down costs a timer
+ * entry and one connect per {@link XServerSettings#getReconnectMaxDelay()}.
+ */
+public class ReconnectScheduler {
+
+  // Failed connects in a row after which a server is down
+  private final static int DOWN_AFTER = 3;
+
+  private final AbstractXServerManagerObj manager;
+  private final AtomicInteger running = new AtomicInteger(0);
+  private final Queue<State> waiting = new ConcurrentLinkedQueue<State>();
+
+  public ReconnectScheduler(AbstractXServerManagerObj manager) {
+    this.manager = manager;
+  }
+
+  /**
+   * @param server
+   * @return a new state for the server
+   */
+  public State newState(XServerObj server) {
+    return new State(server);
+  }
+
+  /**
+   * @return number of connects that are running
+   */
+  public int getRunning() {
+    return running.get();
+  }
+
+  /**
+   * @return number of connects that wait for their turn
+   */
+  public int getWaiting() {
+    return waiting.size();
+  }
+
+  private void submit(State state) {
+    waiting.add(state);
+    drain();
+  }
+
+  private void drain() {
+    int max = manager.getSettings().getMaxConcurrentConnects();
+    while (!waiting.isEmpty()) {
+      int n = running.get();
+      if (n >= max) {
+        // The next one to finish starts the rest
+        return;
+      }
+      if (!running.compareAndSet(n, n + 1)) {
+        continue;
+      }
+      State state = waiting.poll();
+      if (state == null) {
+        running.decrementAndGet();
+        continue;
+      }
+      manager.getThreadPool().runTask(state);
+    }
+  }
+
+  /**
+   * @param settings with the reconnect delays
+   * @param failures in a row
+   * @param dialer true if the home server dials the server
+   * @return milliseconds until the next connect
+   */
+  static long delay(XServerSettings settings, int failures, boolean dialer) {
+    long max = settings.getReconnectMaxDelay();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (!dialer) {
+      return max + random.nextLong(max / 2 + 1);
+    }
+    if (failures == 0) {
+      // Lost connection, spread the servers that all lost the same one
+      return random.nextLong(settings.getReconnectMinDelay() + 1L);
+    }
+    long base = Math.min(max, (long) settings.getReconnectMinDelay() << Math.min(failures - 1, 20));
+    return base + random.nextLong(base / 2 + 1);
+  }
+
+  /**
+   * Reconnect state of one server.
+   */
+  public final class State implements Runnable, LoginFuture.Listener {
+
+    private final XServerObj server;
+    private volatile ServerHealth health = ServerHealth.DISCONNECTED;
+
+    // Guarded by this
+    private int failures = 0;
+    private boolean pending = false;
+    private boolean forced = false;
+    private long due;
+    private TimerWheel.Timeout timeout = null;
+
+    private final Runnable wakeUp = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (State.this) {
+          timeout = null;
+        }
+        poke();
+      }
+    };
+
+    private State(XServerObj server) {
+      this.server = server;
+      // The side that waits for the other one to dial only says hello after a while
+      this.due = System.nanoTime() + (server.isDialedByHome() ? 0
+          : TimeUnit.MILLISECONDS.toNanos(manager.getSettings().getReconnectMinDelay()
+              + ThreadLocalRandom.current().nextLong(manager.getSettings().getReconnectMinDelay() / 2 + 1)));
+    }
+
+    /**
+     * @return health while the server is not logged in
+     */
+    public ServerHealth getHealth() {
+      return health;
+    }
+
+    /**
+     * @return failed connects in a row
+     */
+    public synchronized int getFailures() {
+      return failures;
+    }
+
+    /**
+     * Connect if the server needs a connection, nothing is running for it and its backoff passed.
+     * Otherwise the connect is scheduled for the end of the backoff.
+     */
+    public void poke() {
+      // Checked outside of the lock, it takes the lock of the connection
+      if (!server.needsConnection()) {
+        return;
+      }
+      synchronized (this) {
+        start(false);
+      }
+    }
+
+    /**
+     * Connect as soon as there is room, even if logged in and without waiting for the backoff.
+     */
+    public synchronized void force() {
+      if (!manager.isRunning() || server.isDeprecated()) {
+        return;
+      }
+      due = System.nanoTime();
+      start(true);
+    }
+
+    private void start(boolean force) {
+      if (pending) {
+        return;
+      }
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        // Replaces the last one, which may belong to the timer of a previous start
+        schedule(wait);
+        return;
+      }
+      pending = true;
+      forced = force;
+      health = ServerHealth.CONNECTING;
+      submit(this);
+    }
+
+    private void schedule(long nanos) {
+      TimerWheel timer = manager.getTimer();
+      if (timer == null) {
+        return;
+      }
+      if (timeout != null) {
+        timeout.cancel();
+      }
+      timeout = timer.newTimeout(wakeUp, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Start the connect on a thread of the pool.
+     */
+    @Override
+    public void run() {
+      boolean force;
+      synchronized (this) {
+        force = forced;
+      }
+      if (!force && !server.needsConnection()) {
+        synchronized (this) {
+          pending = false;
+          health = ServerHealth.DISCONNECTED;
+        }
+        release();
+        return;
+      }
+      LoginFuture future;
+      try {
+        future = server.connectAsync();
+      } catch (RuntimeException e) {
+        failed(e.getMessage());
+        release();
+        return;
+      }
+      future.addListener(this);
+    }
+
+    /**
+     * The connect logged in or failed.
+     */
+    @Override
+    public void operationComplete(LoginFuture future) {
+      try {
+        if (future.isSuccess() || future.getFailure() == ConnectFailure.SHUTDOWN) {
+          // A login was taken by connected() already, but a forced connect that the other side
+          // refused because it kept its own connection completes without one
+          synchronized (this) {
+            pending = false;
+            health = ServerHealth.DISCONNECTED;
+          }
+        } else {
+          failed(future.getFailure() + (future.getErrorMessage() != null ? ": " + future.getErrorMessage() : ""));
+        }
+      } finally {
+        release();
+      }
+    }
+
+    private void release() {
+      running.decrementAndGet();
+      drain();
+    }
+
+    /**
+     * The server logged in, on a connection of either side.
+     */
+    synchronized void connected() {
+      failures = 0;
+      pending = false;
+      due = System.nanoTime();
+      // Only used again when the connection is lost
+      health = ServerHealth.DISCONNECTED;
+      if (timeout != null) {
+        timeout.cancel();
+        timeout = null;
+      }
+    }
+
+    /**
+     * The logged in connection was closed.
+     */
+    synchronized void lost() {
+      failures = 0;
+      health = ServerHealth.DISCONNECTED;
+      if (!pending) {
+        long delay = delay(manager.getSettings(), 0, server.isDialedByHome());
+        due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        schedule(TimeUnit.MILLISECONDS.toNanos(delay));
+      }
+    }
+
+    /**
+     * A connect of this server failed, or its connection was closed before the login.
+     *
+     * @param cause
+     */
+    synchronized void failed(String cause) {
+      if (!pending) {
+        return;
+      }
+      pending = false;
+      if (server.isConnected()) {
+        // Refused because the other side has the connection already
+        return;
+      }
+      failures++;
+      long delay = delay(manager.getSettings(), failures, server.isDialedByHome());
+      due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+      if (failures == DOWN_AFTER) {
+        manager.getLogger().info("Connection to " + server.getName() + " failed " + failures + " times, retrying with up to "
+            + manager.getSettings().getReconnectMaxDelay() / 1000 + "s between the attempts {Cause: " + cause + "}");
+      } else {
+        manager.debugInfo("Connection to " + server.getName() + " failed, retrying in " + delay + "ms {Cause: " + cause + "}");
+      }
+      health = failures >= DOWN_AFTER ? ServerHealth.DOWN : ServerHealth.DISCONNECTED;
+      schedule(TimeUnit.MILLISECONDS.toNanos(delay));
+    }
+
+  }
+
+}
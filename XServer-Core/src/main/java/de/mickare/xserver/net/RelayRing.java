@@ -0,0 +1,125 @@
+package de.mickare.xserver.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Consistent hash ring of the relays. Every relay owns {@link #VIRTUAL_NODES} points on the ring,
+ * and a target server belongs to the relay of the next point after its hash. For each point the
+ * ring keeps the order in which the relays follow it, so if the owner is down the target moves to
+ * the next relay on the ring, and only the targets of a relay that joins or leaves move.
+ *
+ * A ring never changes, a new set of relays gets a new ring.
+ */
+public final class RelayRing {
+
+  public final static int VIRTUAL_NODES = 160;
+
+  private final static String[] NO_RELAYS = new String[0];
+
+  public final static RelayRing EMPTY = new RelayRing(Collections.<String> emptySet());
+
+  private final Set<String> relays;
+  // Sorted hashes of the points, and the relays in ring order from each point on
+  private final int[] points;
+  private final String[][] preference;
+
+  public RelayRing(Collection<String> relays) {
+    this.relays = Collections.unmodifiableSet(new LinkedHashSet<String>(relays));
+    long[] sorted = new long[this.relays.size() * VIRTUAL_NODES];
+    String[] names = this.relays.toArray(new String[this.relays.size()]);
+    int n = 0;
+    for (int r = 0; r < names.length; r++) {
+      for (int v = 0; v < VIRTUAL_NODES; v++) {
+        // Hash in the upper bits, relay in the lower ones, so equal hashes stay in a fixed order
+        sorted[n++] = ((long) hash(names[r] + "#" + v) << 32) | r;
+      }
+    }
+    Arrays.sort(sorted);
+    this.points = new int[n];
+    this.preference = new String[n][];
+    for (int i = 0; i < n; i++) {
+      points[i] = (int) (sorted[i] >> 32);
+      List<String> order = new ArrayList<String>(names.length);
+      for (int k = 0; k < n && order.size() < names.length; k++) {
+        String name = names[(int) sorted[(i + k) % n]];
+        if (!order.contains(name)) {
+          order.add(name);
+        }
+      }
+      preference[i] = order.toArray(new String[order.size()]);
+    }
+  }
+
+  /**
+   * Spread the hash code of a name over all bits (finalizer of MurmurHash3).
+   *
+   * @param name
+   * @return hash
+   */
+  public static int hash(String name) {
+    int h = name.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /**
+   * Get the relays for a target, its owner first and then the ones that take over if it is down.
+   *
+   * @param target server name
+   * @return relays in order of preference, must not be modified
+   */
+  public String[] getRelays(String target) {
+    if (points.length == 0) {
+      return NO_RELAYS;
+    }
+    int i = Arrays.binarySearch(points, hash(target));
+    if (i < 0) {
+      i = -i - 1;
+    }
+    return preference[i == points.length ? 0 : i];
+  }
+
+  /**
+   * @return unmodifiable set of all relays
+   */
+  public Set<String> getRelays() {
+    return relays;
+  }
+
+  public boolean contains(String name) {
+    return relays.contains(name);
+  }
+
+  public boolean isEmpty() {
+    return relays.isEmpty();
+  }
+
+  /**
+   * @param name
+   * @return a ring with one more relay
+   */
+  public RelayRing with(String name) {
+    Set<String> r = new LinkedHashSet<String>(relays);
+    return r.add(name) ? new RelayRing(r) : this;
+  }
+
+  /**
+   * @param name
+   * @return a ring without the relay
+   */
+  public RelayRing without(String name) {
+    Set<String> r = new LinkedHashSet<String>(relays);
+    return r.remove(name) ? new RelayRing(r) : this;
+  }
+
+}
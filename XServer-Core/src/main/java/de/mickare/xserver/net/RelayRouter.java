@@ -0,0 +1,261 @@
+package de.mickare.xserver.net;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import de.mickare.xserver.AbstractXServerManagerObj;
+import de.mickare.xserver.Message;
+import de.mickare.xserver.events.XServerMessageIncomingEvent;
+import de.mickare.xserver.util.ChannelNameCache;
+import de.mickare.xserver.util.ModifiedUTF8;
+
+/**
+ * Routing through relays, so the servers don't need a connection to every other server. The relays
+ * (e.g. the proxies) connect to all servers, the other servers only connect to the relays and send
+ * messages for everybody else through them.
+ *
+ * The relay of a target is chosen on a {@link RelayRing}, so the traffic is spread over all relays
+ * and the messages to one target keep their order. If its relay is not logged in, the next one on
+ * the ring takes over. Relays can be added and removed at runtime, which only moves their share of
+ * the targets.
+ *
+ * A {@link PacketType#Relay} is: origin and target server name as written by writeUTF, then the
+ * frame of the message. The relay forwards the packet as it is to the target, without reading the
+ * message. A relay only forwards packets of the server they came from, so a packet takes at most
+ * one hop.
+ */
+public class RelayRouter {
+
+  /**
+   * Bit in the login features, the server understands relay packets
+   */
+  public final static int FEATURE_RELAY = 32;
+
+  // Time the reading thread of a blocking connection waits for space at the target
+  private final static long FORWARD_WAIT = 1000;
+
+  private final AbstractXServerManagerObj manager;
+  private volatile RelayRing ring;
+
+  public RelayRouter(AbstractXServerManagerObj manager, Set<String> relays) {
+    this.manager = manager;
+    this.ring = relays.isEmpty() ? RelayRing.EMPTY : new RelayRing(relays);
+  }
+
+  /**
+   * @return true if there are relays
+   */
+  public boolean isEnabled() {
+    return !ring.isEmpty();
+  }
+
+  public RelayRing getRing() {
+    return ring;
+  }
+
+  /**
+   * Add a relay without a reload. The servers of its share of the ring are sent through it as
+   * soon as it is logged in.
+   *
+   * @param name of a server in the server list
+   */
+  public void addRelay(String name) {
+    synchronized (this) {
+      ring = ring.with(name);
+    }
+    // Connect to the new relay, or to everybody if this server became one
+    manager.reconnectAll_soft();
+  }
+
+  /**
+   * Remove a relay without a reload. Its share of the ring moves to the other relays.
+   *
+   * @param name
+   */
+  public void removeRelay(String name) {
+    synchronized (this) {
+      ring = ring.without(name);
+    }
+    manager.reconnectAll_soft();
+  }
+
+  /**
+   * @param server
+   * @return true if the server is a relay
+   */
+  public boolean isRelay(XServer server) {
+    return ring.contains(server.getName());
+  }
+
+  private boolean isHomeRelay(RelayRing r) {
+    return r.contains(manager.getHomeServerName());
+  }
+
+  /**
+   * @param server
+   * @return true if this server reaches the other one only through a relay
+   */
+  public boolean isRelayed(XServer server) {
+    RelayRing r = ring;
+    return !r.isEmpty() && !isHomeRelay(r) && !r.contains(server.getName())
+        && !server.getName().equals(manager.getHomeServerName());
+  }
+
+  /**
+   * Get the connection of a relay that takes messages to a server, the owner of the server on the
+   * ring or the next one that is logged in.
+   *
+   * @param target
+   * @return connection, or null if no relay is logged in
+   */
+  public Connection route(XServerObj target) {
+    if (!isRelayed(target)) {
+      return null;
+    }
+    for (String name : ring.getRelays(target.getName())) {
+      XServerObj relay = manager.getServer(name);
+      Connection con = relay != null ? relay.loggedInConnection() : null;
+      if (con instanceof AbstractConnectionObj && ((AbstractConnectionObj) con).hasCommonFeature(FEATURE_RELAY)) {
+        return con;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Push the outboxes of the relayed servers after a relay logged in.
+   *
+   * @param server that logged in
+   */
+  public void loggedIn(XServerObj server) {
+    if (!isRelay(server) || isHomeRelay(ring)) {
+      return;
+    }
+    for (XServer s : manager.getServers()) {
+      if (isRelayed(s)) {
+        s.flushCache();
+      }
+    }
+  }
+
+  /**
+   * Send a message packet through a relay. The relay packet takes over the future of the message.
+   *
+   * @param relay
+   * @param target
+   * @param packet a {@link PacketType#Message}
+   * @param priority
+   * @return true if queued, the message packet is released then; otherwise it still belongs to the
+   *         caller
+   */
+  public boolean send(Connection relay, XServer target, Packet packet, SendPriority priority) {
+    Packet wrapped = wrap(manager.getHomeServerName(), target.getName(), packet);
+    if (!relay.send(wrapped, priority)) {
+      wrapped.release();
+      return false;
+    }
+    packet.release();
+    return true;
+  }
+
+  /**
+   * Get a sink that flushes an outbox through a relay.
+   *
+   * @param relay
+   * @param target
+   * @return sink
+   */
+  public Outbox.Sink sink(final Connection relay, final XServer target) {
+    return new Outbox.Sink() {
+      @Override
+      public boolean send(Packet packet) {
+        return RelayRouter.this.send(relay, target, packet, SendPriority.BULK);
+      }
+    };
+  }
+
+  private static Packet wrap(String origin, String target, Packet packet) {
+    BufferPool pool = BufferPool.DEFAULT;
+    try {
+      int originLength = ModifiedUTF8.encodedLength(origin);
+      int targetLength = ModifiedUTF8.encodedLength(target);
+      int size = 4 + originLength + targetLength + packet.getLength();
+      byte[] data = pool.acquire(size);
+      int pos = ModifiedUTF8.write(origin, originLength, data, 0);
+      pos = ModifiedUTF8.write(target, targetLength, data, pos);
+      System.arraycopy(packet.array(), 0, data, pos, packet.getLength());
+      return new Packet(PacketType.Relay, data, size, pool).setFuture(packet.getFuture());
+    } catch (UTFDataFormatException e) {
+      throw new IllegalArgumentException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Handle a relay packet: deliver it if it is for this server, otherwise forward it if this server
+   * is a relay. Packets that can't be delivered are dropped.
+   *
+   * @param packet
+   * @param con the connection it came from
+   * @throws IOException if the packet is malformed
+   */
+  public void receive(Packet packet, AbstractConnectionObj con) throws IOException {
+    XServerObj from = con.getXserver();
+    if (from == null || !con.isLoggedIn()) {
+      return;
+    }
+    byte[] data = packet.array();
+    int length = packet.getLength();
+    int originLength = readLength(data, 0, length);
+    int targetOffset = 2 + originLength;
+    int targetLength = readLength(data, targetOffset, length);
+    int offset = targetOffset + 2 + targetLength;
+    String origin = ChannelNameCache.DEFAULT.get(data, 0, originLength);
+    String target = ChannelNameCache.DEFAULT.get(data, targetOffset, targetLength);
+
+    if (target.equals(manager.getHomeServerName())) {
+      XServerObj sender = manager.getServer(origin);
+      // Only a relay sends on behalf of another server
+      if (sender == null || (sender != from && !isRelay(from))) {
+        manager.debugInfo("Dropped relay packet of " + origin + " from " + from.getName());
+        return;
+      }
+      // The pooled relay frame goes back to the pool, the message gets an exact copy of its part
+      byte[] frame = Arrays.copyOfRange(data, offset, length);
+      Message message = manager.readMessage(sender, frame, 0, frame.length);
+      manager.getEventHandler().callEvent(new XServerMessageIncomingEvent(sender, message));
+      return;
+    }
+
+    XServerObj next = manager.getServer(target);
+    Connection found = next != null && isHomeRelay(ring) && origin.equals(from.getName()) ? next.loggedInConnection() : null;
+    if (!(found instanceof AbstractConnectionObj) || !((AbstractConnectionObj) found).hasCommonFeature(FEATURE_RELAY)) {
+      manager.debugInfo("Dropped relay packet of " + origin + " to " + target);
+      return;
+    }
+    // The frame goes out as it came in, both connections hold a reference. A blocking reader waits
+    // for space, so a slow target slows down the sender instead of losing its messages.
+    AbstractConnectionObj out = (AbstractConnectionObj) found;
+    boolean queued = con.isReaderBlocking()
+        ? out.send(packet.retain(), SendPriority.BULK, FORWARD_WAIT, TimeUnit.MILLISECONDS)
+        : out.send(packet.retain(), SendPriority.BULK);
+    if (!queued) {
+      packet.release();
+      manager.debugInfo("Dropped relay packet of " + origin + " to " + target + ", its queue is full");
+    }
+  }
+
+  private static int readLength(byte[] data, int offset, int length) throws IOException {
+    if (offset + 2 > length) {
+      throw new IOException("Relay packet too short");
+    }
+    int utflen = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    if (offset + 2 + utflen > length) {
+      throw new IOException("Relay packet too short");
+    }
+    return utflen;
+  }
+
+}
@@ -0,0 +1,295 @@
+package de.mickare.xserver.net;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import de.mickare.xserver.EventHandler;
+import de.mickare.xserver.util.ChannelNameCache;
+import de.mickare.xserver.util.ModifiedUTF8;
+import de.mickare.xserver.util.TimerWheel;
+import de.mickare.xserver.util.VarInt;
+
+/**
+ * Requests of one connection that wait for their response.
+ *
+ * A {@link PacketType#Request} is: varint correlation id, subchannel as written by writeUTF,
+ * payload. The {@link PacketType#Response} is: varint correlation id, byte status, reply or UTF-8
+ * error message. Both are only sent if both servers offered {@link #FEATURE_REQUESTS} at the login.
+ *
+ * The pending requests are kept in a fixed array of slots. A request takes the slot of its id with
+ * a compare and set and the response or the timeout frees it the same way, so no lock is needed and
+ * a late response after the timeout finds nothing. Ids have at most {@link #ID_BITS} bits, so they
+ * fit into three bytes.
+ *
+ * The table only sends on its own connection. The timer and the responders belong to the manager,
+ * which replaces its timer when it restarts, so they are passed with each call.
+ */
+public class RequestTable {
+
+  /**
+   * Bit in the login features, the server answers requests
+   */
+  public final static int FEATURE_REQUESTS = 16;
+
+  public final static int ID_BITS = 21;
+
+  private final static int ID_MASK = (1 << ID_BITS) - 1;
+  private final static int SLOTS = 4096;
+  // Slots that are tried before a request fails as busy
+  private final static int PROBES = 16;
+
+  public final static byte STATUS_OK = 0;
+  public final static byte STATUS_NO_RESPONDER = 1;
+  public final static byte STATUS_ERROR = 2;
+
+  private final class Pending implements Runnable {
+    private final int id;
+    private final RequestFuture future;
+    private volatile TimerWheel.Timeout timeout = null;
+
+    private Pending(int id, RequestFuture future) {
+      this.id = id;
+      this.future = future;
+    }
+
+    /**
+     * The timeout passed
+     */
+    @Override
+    public void run() {
+      if (slots.compareAndSet(id & (SLOTS - 1), this, null)) {
+        future.fail(RequestFailure.TIMEOUT, null);
+      }
+    }
+
+    private void cancelTimeout() {
+      TimerWheel.Timeout t = timeout;
+      if (t != null) {
+        t.cancel();
+      }
+    }
+  }
+
+  private final Connection con;
+  private final AtomicReferenceArray<Pending> slots = new AtomicReferenceArray<Pending>(SLOTS);
+  private final AtomicInteger nextId = new AtomicInteger(0);
+  private volatile boolean closed = false;
+
+  /**
+   * @param con connection that the requests and responses are sent on
+   */
+  public RequestTable(Connection con) {
+    this.con = con;
+  }
+
+  /**
+   * Send a request.
+   *
+   * @param channel
+   * @param payload
+   * @param timeout
+   * @param unit
+   * @param future completed by the response
+   * @param timer for the timeout, null if the manager is stopped
+   */
+  public void request(String channel, byte[] payload, long timeout, TimeUnit unit, RequestFuture future,
+      TimerWheel timer) {
+    if (closed || timer == null) {
+      future.fail(RequestFailure.DISCONNECTED, null);
+      return;
+    }
+    Pending pending = null;
+    for (int i = 0; i < PROBES; i++) {
+      Pending p = new Pending(nextId.getAndIncrement() & ID_MASK, future);
+      if (slots.compareAndSet(p.id & (SLOTS - 1), null, p)) {
+        pending = p;
+        break;
+      }
+    }
+    if (pending == null) {
+      future.fail(RequestFailure.BUSY, null);
+      return;
+    }
+
+    Packet packet;
+    try {
+      int utflen = ModifiedUTF8.encodedLength(channel);
+      byte[] data = new byte[VarInt.size(pending.id) + 2 + utflen + payload.length];
+      int pos = ModifiedUTF8.write(channel, utflen, data, VarInt.write(pending.id, data, 0));
+      System.arraycopy(payload, 0, data, pos, payload.length);
+      packet = new Packet(PacketType.Request, data);
+    } catch (UTFDataFormatException e) {
+      remove(pending);
+      throw new IllegalArgumentException(e.getMessage(), e);
+    }
+
+    pending.timeout = timer.newTimeout(pending, timeout, unit);
+    if (!con.send(packet, SendPriority.HIGH)) {
+      if (remove(pending)) {
+        future.fail(RequestFailure.QUEUE_FULL, null);
+      }
+    } else if (closed) {
+      // Raced with failAll
+      if (remove(pending)) {
+        future.fail(RequestFailure.DISCONNECTED, null);
+      }
+    }
+  }
+
+  private boolean remove(Pending p) {
+    if (slots.compareAndSet(p.id & (SLOTS - 1), p, null)) {
+      p.cancelTimeout();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Complete the request of a response.
+   *
+   * @param packet {@link PacketType#Response} packet
+   * @throws IOException if the packet is malformed
+   */
+  public void receiveResponse(Packet packet) throws IOException {
+    byte[] data = packet.array();
+    int length = packet.getLength();
+    int id = VarInt.read(data, 0, length);
+    int offset = VarInt.size(id);
+    if (id < 0 || offset >= length) {
+      throw new IOException("Response too short");
+    }
+    int slot = id & (SLOTS - 1);
+    Pending p = slots.get(slot);
+    if (p == null || p.id != id || !slots.compareAndSet(slot, p, null)) {
+      // Timed out already
+      return;
+    }
+    p.cancelTimeout();
+    byte status = data[offset++];
+    if (status == STATUS_OK) {
+      p.future.complete(Arrays.copyOfRange(data, offset, length));
+    } else if (status == STATUS_NO_RESPONDER) {
+      p.future.fail(RequestFailure.NO_RESPONDER, null);
+    } else {
+      p.future.fail(RequestFailure.RESPONDER_ERROR, new String(data, offset, length - offset, StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Hand a request of the other server to its responder.
+   *
+   * @param packet {@link PacketType#Request} packet
+   * @param sender
+   * @param handler with the responders
+   * @throws IOException if the packet is malformed
+   */
+  public void receiveRequest(Packet packet, XServer sender, EventHandler<?> handler) throws IOException {
+    byte[] data = packet.array();
+    int length = packet.getLength();
+    int id = VarInt.read(data, 0, length);
+    int offset = VarInt.size(id);
+    if (id < 0 || offset + 2 > length) {
+      throw new IOException("Request too short");
+    }
+    int utflen = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    if (offset + 2 + utflen > length) {
+      throw new IOException("Request too short");
+    }
+    String channel = ChannelNameCache.DEFAULT.get(data, offset, utflen);
+    offset += 2 + utflen;
+    RemoteRequest request = new RemoteRequest(id, sender, channel, Arrays.copyOfRange(data, offset, length));
+    if (!handler.respond(request)) {
+      request.answer(STATUS_NO_RESPONDER, new byte[0]);
+    }
+  }
+
+  /**
+   * Fail all pending requests, e.g. when the connection closed. Requests after this fail at once.
+   *
+   * @param reason
+   */
+  public void failAll(RequestFailure reason) {
+    closed = true;
+    for (int i = 0; i < SLOTS; i++) {
+      Pending p = slots.getAndSet(i, null);
+      if (p != null) {
+        p.cancelTimeout();
+        p.future.fail(reason, null);
+      }
+    }
+  }
+
+  /**
+   * A request of the other server, answered on the connection it came from.
+   */
+  private final class RemoteRequest implements Request {
+    private final int id;
+    private final XServer sender;
+    private final String channel;
+    private final byte[] payload;
+    private final AtomicBoolean answered = new AtomicBoolean(false);
+
+    private RemoteRequest(int id, XServer sender, String channel, byte[] payload) {
+      this.id = id;
+      this.sender = sender;
+      this.channel = channel;
+      this.payload = payload;
+    }
+
+    @Override
+    public XServer getSender() {
+      return sender;
+    }
+
+    @Override
+    public String getChannel() {
+      return channel;
+    }
+
+    @Override
+    public byte[] getPayload() {
+      return payload;
+    }
+
+    @Override
+    public boolean reply(byte[] data) {
+      return answer(STATUS_OK, data != null ? data : new byte[0]);
+    }
+
+    @Override
+    public boolean fail(String message) {
+      return answer(STATUS_ERROR, String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean isAnswered() {
+      return answered.get();
+    }
+
+    private boolean answer(byte status, byte[] data) {
+      if (!answered.compareAndSet(false, true)) {
+        return false;
+      }
+      int idSize = VarInt.size(id);
+      byte[] out = new byte[idSize + 1 + data.length];
+      VarInt.write(id, out, 0);
+      out[idSize] = status;
+      System.arraycopy(data, 0, out, idSize + 1, data.length);
+      // Lost if the connection closed meanwhile, the requester gets a timeout or disconnect
+      con.send(new Packet(PacketType.Response, out), SendPriority.HIGH);
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return "Request " + id + " on " + channel + " from " + sender.getName();
+    }
+  }
+
+}
@@ -0,0 +1,465 @@
+package de.mickare.xserver.net;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sending queue of a connection with one bounded lane per {@link SendPriority}. Control packets are
+ * taken first. High priority packets are taken before bulk packets, but every
+ * {@link #HIGH_WEIGHT} high priority packets one waiting bulk packet goes out, so bulk messages
+ * are not starved.
+ *
+ * Each lane has its own capacity, so a full bulk lane never rejects a keep alive or a ping.
+ *
+ * The queue becomes unwritable when its bytes reach the high watermark and writable again when
+ * they drop to the low watermark, see {@link #onWritabilityChanged(boolean)}.
+ *
+ * The time a packet was queued is kept with its entry, not in the packet, which may be queued on
+ * several connections at once. See {@link #onDequeued(Packet, long)}.
+ */
+public class SendQueue extends AbstractQueue<Packet> {
+
+  /**
+   * High priority packets per bulk packet, while both lanes have packets
+   */
+  public final static int HIGH_WEIGHT = 8;
+
+  private final static SendPriority[] LANES = SendPriority.values();
+
+  private final static int UNCHANGED = 0;
+  private final static int WRITABLE = 1;
+  private final static int UNWRITABLE = 2;
+
+  /**
+   * Ring of the packets of one priority and the System.nanoTime() each was queued at.
+   */
+  private final static class Lane {
+    private Packet[] packets = new Packet[16];
+    private long[] times = new long[16];
+    private int head = 0;
+    private int size = 0;
+
+    private void addLast(Packet packet, long time) {
+      if (size == packets.length) {
+        grow();
+      }
+      int i = (head + size) & (packets.length - 1);
+      packets[i] = packet;
+      times[i] = time;
+      size++;
+    }
+
+    private Packet peekFirst() {
+      return size > 0 ? packets[head] : null;
+    }
+
+    private long firstTime() {
+      return times[head];
+    }
+
+    private Packet pollFirst() {
+      Packet p = packets[head];
+      packets[head] = null;
+      head = (head + 1) & (packets.length - 1);
+      size--;
+      return p;
+    }
+
+    private void addTo(Collection<Packet> c) {
+      for (int i = 0; i < size; i++) {
+        c.add(packets[(head + i) & (packets.length - 1)]);
+      }
+    }
+
+    private void grow() {
+      Packet[] p = new Packet[packets.length * 2];
+      long[] t = new long[p.length];
+      int first = packets.length - head;
+      System.arraycopy(packets, head, p, 0, first);
+      System.arraycopy(packets, 0, p, first, head);
+      System.arraycopy(times, head, t, 0, first);
+      System.arraycopy(times, 0, t, first, head);
+      packets = p;
+      times = t;
+      head = 0;
+    }
+  }
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+
+  private final Lane[] lanes;
+  private final int[] capacities;
+  private int size = 0;
+  private int highStreak = 0;
+
+  private long bytes = 0;
+  private long lowWatermark = Long.MAX_VALUE;
+  private long highWatermark = Long.MAX_VALUE;
+  private volatile boolean writable = true;
+  // Last writability given to onWritabilityChanged, guarded by notifyLock
+  private final Object notifyLock = new Object();
+  private boolean announced = true;
+
+  /**
+   * @param controlCapacity
+   * @param highCapacity
+   * @param bulkCapacity
+   */
+  public SendQueue(int controlCapacity, int highCapacity, int bulkCapacity) {
+    this.capacities = new int[] { controlCapacity, highCapacity, bulkCapacity };
+    this.lanes = new Lane[LANES.length];
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new Lane();
+    }
+  }
+
+  /**
+   * Set the bytes at which the queue changes its writability.
+   *
+   * @param low
+   * @param high
+   */
+  public void setWatermarks(long low, long high) {
+    lock.lock();
+    try {
+      this.highWatermark = Math.max(1, high);
+      this.lowWatermark = Math.min(Math.max(0, low), highWatermark - 1);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Called outside of the lock by a thread that moved the queue across a watermark. The calls come
+   * one at a time and alternate, each with the writability at the time of the call, so the last one
+   * always matches the queue. A change that was undone before it was announced is skipped.
+   *
+   * @param writable
+   */
+  protected void onWritabilityChanged(boolean writable) {}
+
+  /**
+   * Called with the lock held by a thread that took a packet out of the queue, so it must not
+   * block.
+   *
+   * @param packet
+   * @param queuedNanos time the packet spent in the queue
+   */
+  protected void onDequeued(Packet packet, long queuedNanos) {}
+
+  /**
+   * @return false if the bytes went above the high watermark and not yet below the low one
+   */
+  public boolean isWritable() {
+    return writable;
+  }
+
+  /**
+   * @return bytes of the data of all queued packets
+   */
+  public long getBytes() {
+    lock.lock();
+    try {
+      return bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Update the writability after a change of the bytes, called with the lock held.
+   *
+   * @return the change
+   */
+  private int updateWritable() {
+    if (writable ? bytes >= highWatermark : bytes <= lowWatermark) {
+      writable = !writable;
+      return writable ? WRITABLE : UNWRITABLE;
+    }
+    return UNCHANGED;
+  }
+
+  /**
+   * Fire a change outside of the lock. The state is read again under the notify lock, because the
+   * thread of a later change may get there first.
+   */
+  private void fire(int change) {
+    if (change == UNCHANGED) {
+      return;
+    }
+    synchronized (notifyLock) {
+      boolean w = writable;
+      if (w != announced) {
+        announced = w;
+        onWritabilityChanged(w);
+      }
+    }
+  }
+
+  /**
+   * @return sum of the capacities of all lanes
+   */
+  public int getCapacity() {
+    return capacities[0] + capacities[1] + capacities[2];
+  }
+
+  /**
+   * Put a packet into the lane of its type, see {@link SendPriority#of(Packet)}.
+   */
+  @Override
+  public boolean offer(Packet packet) {
+    return offer(packet, SendPriority.of(packet));
+  }
+
+  /**
+   * Put a packet into a lane.
+   *
+   * @param packet
+   * @param priority
+   * @return false if the lane is full
+   */
+  public boolean offer(Packet packet, SendPriority priority) {
+    int lane = priority.ordinal();
+    int changed;
+    lock.lock();
+    try {
+      if (lanes[lane].size >= capacities[lane]) {
+        return false;
+      }
+      changed = enqueue(packet, lane);
+    } finally {
+      lock.unlock();
+    }
+    fire(changed);
+    return true;
+  }
+
+  /**
+   * Put a packet into a lane, waiting up to the given time for space.
+   *
+   * @param packet
+   * @param priority
+   * @param timeout
+   * @param unit
+   * @return false if the lane stayed full
+   * @throws InterruptedException
+   */
+  public boolean offer(Packet packet, SendPriority priority, long timeout, TimeUnit unit) throws InterruptedException {
+    int lane = priority.ordinal();
+    long nanos = unit.toNanos(timeout);
+    int changed;
+    lock.lockInterruptibly();
+    try {
+      while (lanes[lane].size >= capacities[lane]) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = notFull.awaitNanos(nanos);
+      }
+      changed = enqueue(packet, lane);
+    } finally {
+      lock.unlock();
+    }
+    fire(changed);
+    return true;
+  }
+
+  /**
+   * Put a packet into a lane, waiting for space if necessary.
+   *
+   * @param packet
+   * @param priority
+   * @throws InterruptedException
+   */
+  public void put(Packet packet, SendPriority priority) throws InterruptedException {
+    int lane = priority.ordinal();
+    int changed;
+    lock.lockInterruptibly();
+    try {
+      while (lanes[lane].size >= capacities[lane]) {
+        notFull.await();
+      }
+      changed = enqueue(packet, lane);
+    } finally {
+      lock.unlock();
+    }
+    fire(changed);
+  }
+
+  /**
+   * @return the change of the writability
+   */
+  private int enqueue(Packet packet, int lane) {
+    lanes[lane].addLast(packet, System.nanoTime());
+    size++;
+    bytes += packet.getLength();
+    notEmpty.signal();
+    return updateWritable();
+  }
+
+  /**
+   * Take the next packet in lane order, called with the lock held.
+   */
+  private Packet dequeue() {
+    Lane lane = lanes[0];
+    if (lane.size == 0) {
+      Lane high = lanes[1];
+      Lane bulk = lanes[2];
+      if (high.size > 0 && (highStreak < HIGH_WEIGHT || bulk.size == 0)) {
+        lane = high;
+        highStreak++;
+      } else {
+        lane = bulk;
+        highStreak = 0;
+      }
+    }
+    if (lane.size == 0) {
+      return null;
+    }
+    long queued = lane.firstTime();
+    Packet p = lane.pollFirst();
+    size--;
+    bytes -= p.getLength();
+    notFull.signalAll();
+    onDequeued(p, System.nanoTime() - queued);
+    return p;
+  }
+
+  @Override
+  public Packet poll() {
+    Packet p;
+    int changed;
+    lock.lock();
+    try {
+      p = size > 0 ? dequeue() : null;
+      changed = updateWritable();
+    } finally {
+      lock.unlock();
+    }
+    fire(changed);
+    return p;
+  }
+
+  /**
+   * Take the next packet, waiting up to the given time if the queue is empty.
+   *
+   * @param timeout
+   * @param unit
+   * @return packet or null if none arrived in time
+   * @throws InterruptedException
+   */
+  public Packet poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    Packet p;
+    int changed;
+    lock.lockInterruptibly();
+    try {
+      while (size == 0) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      p = dequeue();
+      changed = updateWritable();
+    } finally {
+      lock.unlock();
+    }
+    fire(changed);
+    return p;
+  }
+
+  /**
+   * Move up to max packets in lane order into a collection, without waiting.
+   *
+   * @param c
+   * @param max
+   * @return number of packets moved
+   */
+  public int drainTo(Collection<? super Packet> c, int max) {
+    int n = 0;
+    int changed;
+    lock.lock();
+    try {
+      while (n < max && size > 0) {
+        c.add(dequeue());
+        n++;
+      }
+      changed = updateWritable();
+    } finally {
+      lock.unlock();
+    }
+    fire(changed);
+    return n;
+  }
+
+  @Override
+  public Packet peek() {
+    lock.lock();
+    try {
+      for (Lane lane : lanes) {
+        Packet p = lane.peekFirst();
+        if (p != null) {
+          return p;
+        }
+      }
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param priority
+   * @return packets waiting in the lane
+   */
+  public int size(SendPriority priority) {
+    lock.lock();
+    try {
+      return lanes[priority.ordinal()].size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Iterates over a snapshot of all lanes, control lane first.
+   */
+  @Override
+  public Iterator<Packet> iterator() {
+    List<Packet> snapshot = new ArrayList<Packet>();
+    lock.lock();
+    try {
+      for (Lane lane : lanes) {
+        lane.addTo(snapshot);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return snapshot.iterator();
+  }
+
+}
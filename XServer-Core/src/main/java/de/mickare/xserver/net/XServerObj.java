@@ -1,16 +1,22 @@
 package de.mickare.xserver.net;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.HashSet;
+import java.net.SocketTimeoutException;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import de.mickare.xserver.AbstractXServerManager;
 import de.mickare.xserver.AbstractXServerManagerObj;
+import de.mickare.xserver.GroupIndex;
 import de.mickare.xserver.Message;
+import de.mickare.xserver.MessageObj;
 import de.mickare.xserver.XGroup;
 import de.mickare.xserver.XType;
+import de.mickare.xserver.config.XServerSettings;
+import de.mickare.xserver.config.XServerSettings.Transport;
 import de.mickare.xserver.events.XServerMessageOutgoingEvent;
 import de.mickare.xserver.exceptions.NotInitializedException;
 import de.mickare.xserver.util.Encryption;
@@ -31,24 +37,46 @@ public class XServerObj implements XServer {
   private volatile boolean deprecated = false;
   // private volatile boolean open = false;
 
+  // One connection for both directions, see isDialedByHome()
   private volatile Connection connection = null;
-  private volatile Connection connection2 = null; // Fix for HomeServer that is not
-  // connectable.
+  // Connection of this server that waits for the login reply
+  private volatile Connection dialing = null;
+  // Last non-blocking connect, it may still run
+  private volatile PendingConnect connecting = null;
+  // Connects of this server whose login future didn't complete yet
+  private final AtomicInteger dialsRunning = new AtomicInteger(0);
+  private final LoginFuture.Listener dialDone = new LoginFuture.Listener() {
+    @Override
+    public void operationComplete(LoginFuture future) {
+      dialsRunning.decrementAndGet();
+    }
+  };
+  // Completed by the next login, see whenLoggedIn()
+  private final AtomicReference<LoginFuture> login = new AtomicReference<LoginFuture>(new LoginFuture());
+  private final ReconnectScheduler.State reconnect;
+  // True if the current connection was dialed by this server
+  private boolean connectionDialed = false;
   private CloseableReadWriteLock conLock = new CloseableReentrantReadWriteLock(true);
 
   private CloseableReadWriteLock typeLock = new CloseableReentrantReadWriteLock(true);
   private XType type = XType.Other;
 
-  private final Set<XGroup> groups = new HashSet<XGroup>();
+  // Groups of the last reload, replaced as a whole
+  private volatile GroupIndex.Membership membership = GroupIndex.EMPTY.getMembership(this);
 
   private final AbstractXServerManagerObj manager;
 
+  // Messages waiting for the login, null if disabled
+  private final Outbox outbox;
+
   public XServerObj(String name, String host, int port, String password, AbstractXServerManagerObj manager) {
     this.name = name;
     this.host = host;
     this.port = port;
     this.password = Encryption.MD5(password);
     this.manager = manager;
+    this.outbox = createOutbox();
+    this.reconnect = manager.getReconnectScheduler().newState(this);
   }
 
   public XServerObj(String name, String host, int port, String password, XType type, AbstractXServerManagerObj manager) {
@@ -58,6 +86,31 @@ public class XServerObj implements XServer {
     this.password = Encryption.MD5(password);
     this.type = type;
     this.manager = manager;
+    this.outbox = createOutbox();
+    this.reconnect = manager.getReconnectScheduler().newState(this);
+  }
+
+  protected Outbox createOutbox() {
+    XServerSettings settings = manager.getSettings();
+    if (!settings.isOutboxEnabled()) {
+      return null;
+    }
+    OutboxSpill spill = null;
+    if (settings.isOutboxSpillEnabled()) {
+      File file = new File(new File(manager.getPlugin().getDataFolder(), "outbox"), name + ".spill");
+      try {
+        spill = new OutboxSpill(file, settings.getOutboxSpillBytes());
+        if (spill.isRepaired()) {
+          manager.getLogger().warning("Outbox spill file " + file + " was damaged, the messages behind the damage are lost");
+        }
+        if (!spill.isEmpty()) {
+          manager.getLogger().info(spill.size() + " messages to " + name + " were restored from " + file.getName());
+        }
+      } catch (IOException e) {
+        manager.getLogger().warning("Couldn't open outbox spill file " + file + ": " + e.getMessage());
+      }
+    }
+    return new Outbox(settings, spill);
   }
 
   /*
@@ -66,65 +119,218 @@ public class XServerObj implements XServer {
    * @see de.mickare.xserver.net.XServer#connect()
    */
   @Override
-  public synchronized void connect() throws IOException, InterruptedException, NotInitializedException {
-    // try (CloseableLock c = conLock.writeLock().open()) {
+  public void connect() throws IOException, InterruptedException, NotInitializedException {
+    connectAsync();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#connectAsync()
+   */
+  @Override
+  public LoginFuture connectAsync() {
     if (!this.manager.isRunning() || !valid()) {
-      return;
+      return LoginFuture.failed(ConnectFailure.SHUTDOWN, null);
     }
     manager.debugInfo("Connecting to " + this.name + " ...");
-    new ConnectionObj(manager.getSocketFactory(), host, port, this, manager);
-    // }
+    final LoginFuture future = new LoginFuture();
+    dialsRunning.incrementAndGet();
+    future.addListener(dialDone);
+    if (manager.getSettings().getTransport() == Transport.NIO) {
+      // Only the lookup of the host runs on the pool, the connect runs on an event loop
+      final PendingConnect pending = new PendingConnect(this, future, manager);
+      this.connecting = pending;
+      manager.getThreadPool().runTask(new Runnable() {
+        @Override
+        public void run() {
+          pending.start();
+        }
+      });
+    } else {
+      // The blocking transport needs threads for the connection anyway
+      manager.getThreadPool().runTask(new Runnable() {
+        @Override
+        public void run() {
+          dialBlocking(future);
+        }
+      });
+    }
+    return future;
+  }
+
+  private void dialBlocking(LoginFuture future) {
+    try {
+      dialed(new ConnectionObj(manager.getSocketFactory(), host, port, this, future, manager));
+    } catch (SocketTimeoutException e) {
+      future.fail(ConnectFailure.TIMEOUT, e.getMessage());
+    } catch (IOException e) {
+      future.fail(ConnectFailure.UNREACHABLE, e.getMessage());
+    } catch (InterruptedException | NotInitializedException e) {
+      future.fail(ConnectFailure.SHUTDOWN, e.getMessage());
+    }
+  }
+
+  /**
+   * A connect of this server succeeded, the connection logs in on its own.
+   *
+   * @param con
+   */
+  void dialed(Connection con) {
+    if (con.isLoggingIn()) {
+      dialing = con;
+    }
+    if (deprecated || !manager.isRunning()) {
+      // Replaced or stopped while connecting
+      con.disconnect();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#whenLoggedIn()
+   */
+  @Override
+  public LoginFuture whenLoggedIn() {
+    if (deprecated) {
+      return LoginFuture.failed(ConnectFailure.SHUTDOWN, null);
+    }
+    // Read before the status, a login in between completes this one
+    LoginFuture f = login.get();
+    return isConnected() ? LoginFuture.succeeded(this) : f;
+  }
+
+  /**
+   * A connection of this server logged in, called after its status changed.
+   */
+  void loggedIn() {
+    login.getAndSet(new LoginFuture()).complete(this);
+  }
+
+  /**
+   * A pair of servers shares one connection for both directions. It is dialed by the server with
+   * the smaller name, the other one only accepts it, so they don't race with two sockets.
+   *
+   * @return true if the home server dials this server
+   */
+  public boolean isDialedByHome() {
+    return manager.getHomeServerName().compareTo(name) < 0;
   }
 
+  /**
+   * Connect if not connected, unless the last connects failed and their backoff didn't pass yet.
+   * Doesn't wait for the connect.
+   */
   public void connectSoft() throws NotInitializedException, IOException, InterruptedException {
     if (this.isConnected()) {
+      // Continue a replay that stopped at a full sending queue
+      this.flushCache();
       return;
     }
-    // if (this.connection != null && this.connection.isLoggingIn()) {
-    // return;
-    // }
-    this.connect();
+    if (manager.getRelayRouter().isRelayed(this)) {
+      // Reached through a relay, only the outbox may need a push
+      this.flushCache();
+      return;
+    }
+    reconnect.poke();
+  }
+
+  /**
+   * Connect again without waiting for the backoff, even if connected. Doesn't wait for the connect.
+   */
+  public void reconnect() {
+    reconnect.force();
+  }
+
+  /**
+   * @return true if this server should be connected but isn't
+   */
+  boolean needsConnection() {
+    return manager.isRunning() && !deprecated && !isConnected() && !manager.getRelayRouter().isRelayed(this);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#getHealth()
+   */
+  @Override
+  public ServerHealth getHealth() {
+    if (isConnected()) {
+      return ServerHealth.CONNECTED;
+    }
+    if (manager.getRelayRouter().route(this) != null) {
+      return ServerHealth.RELAYED;
+    }
+    return reconnect.getHealth();
   }
 
 
-  protected void unsetConnection(ConnectionObj con) {
+  /**
+   * A connection of this server was closed.
+   *
+   * @param con
+   * @param loggedIn true if it was logged in
+   */
+  protected void unsetConnection(AbstractConnectionObj con, boolean loggedIn) {
+    boolean lost = false;
     try (CloseableLock c = conLock.writeLock().open()) {
       if (this.connection == con) {
         this.connection = null;
+        lost = loggedIn;
       }
-      if (this.connection2 == con) {
-        this.connection2 = null;
+      if (this.dialing == con) {
+        this.dialing = null;
       }
     }
-  }
-
-  protected void setConnection(Connection con) {
-    try (CloseableLock c = conLock.writeLock().open()) {
-      if (this.connection != null && this.connection != con) {
-        this.connection.disconnect();
-      }
-      manager.debugInfo("Connected to " + this.name);
-      this.connection = con;
+    // Outside of the lock, the scheduler checks the connection
+    if (lost) {
+      reconnect.lost();
     }
-    // open = true;
   }
 
-  protected void setLoginConnection(Connection con) {
+  /**
+   * Use a connection that logged in, the previous one is closed. If both servers dialed, e.g. while
+   * the one with the greater name says hello or with an older version, both keep the connection
+   * that was dialed by the smaller name: the other one is refused while it is logged in. The server
+   * with the smaller name also refuses the other one while its own connect runs, otherwise messages
+   * that it already sent on the other one would be lost when its own logs in.
+   *
+   * @param con
+   * @param dialed true if this server dialed the connection
+   * @return false if refused, the caller closes the connection then
+   */
+  protected boolean setConnection(Connection con, boolean dialed) {
+    boolean preferred = dialed == isDialedByHome();
     try (CloseableLock c = conLock.writeLock().open()) {
-      if (manager.getHomeServer() == this) {
-        if (connection2 != con && this.connection2 != null) {
-          this.connection2.disconnect();
+      Connection old = this.connection;
+      boolean keepOld = old != null && old != con && old.isLoggedIn() && connectionDialed == isDialedByHome();
+      boolean ownDialRunning = !dialed && dialsRunning.get() > 0;
+      if (!preferred && (keepOld || ownDialRunning)) {
+        manager.debugInfo("Refused a second connection " + (dialed ? "to " : "from ") + this.name);
+        if (dialed) {
+          this.dialing = null;
         }
-        manager.debugInfo("Connected to " + this.name + " (self connected)");
-        this.connection2 = con;
+        con = null;
       } else {
-        if (this.connection2 != null) {
-          this.connection2.disconnect();
-          this.connection2 = null;
+        if (dialed && this.dialing == con) {
+          this.dialing = null;
         }
-        setConnection(con);
+        this.connection = con;
+        this.connectionDialed = dialed;
+        if (old != null && old != con) {
+          old.disconnect();
+        }
+        manager.debugInfo("Connected to " + this.name);
       }
     }
+    if (con == null) {
+      return false;
+    }
+    reconnect.connected();
+    // open = true;
+    return true;
   }
 
   /*
@@ -147,6 +353,17 @@ public class XServerObj implements XServer {
     return false;
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#isWritable()
+   */
+  @Override
+  public boolean isWritable() {
+    Connection con = this.connection;
+    return con != null && con.isLoggedIn() && con.isWritable();
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -155,17 +372,20 @@ public class XServerObj implements XServer {
   @Override
   public void disconnect() {
     // open = false;
+    PendingConnect p = connecting;
+    if (p != null) {
+      p.cancel(ConnectFailure.SHUTDOWN, "Disconnected");
+    }
     try (CloseableLock c = conLock.writeLock().open()) {
-      if (connection != null || connection2 != null) {
+      Connection d = dialing;
+      dialing = null;
+      if (d != null && d.isLoggingIn()) {
+        d.disconnect();
+      }
+      if (connection != null) {
         this.manager.debugInfo("Disconnecting " + this.name + "...");
-        if (connection != null) {
-          connection.disconnect();
-        }
-        if (connection2 != null) {
-          connection2.disconnect();
-        }
+        connection.disconnect();
         connection = null;
-        connection2 = null;
         this.manager.debugInfo(this.name + " disconnected");
       }
     }
@@ -218,20 +438,107 @@ public class XServerObj implements XServer {
    */
   @Override
   public boolean sendMessage(Message message) throws IOException {
+    return sendMessage(message, SendPriority.BULK);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#sendMessage(de.mickare.xserver.Message,
+   * de.mickare.xserver.net.SendPriority)
+   */
+  @Override
+  public boolean sendMessage(Message message, SendPriority priority) throws IOException {
+    return send(message, priority, null);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#sendMessageAsync(de.mickare.xserver.Message)
+   */
+  @Override
+  public SendFuture sendMessageAsync(Message message) throws IOException {
+    return sendMessageAsync(message, SendPriority.BULK);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#sendMessageAsync(de.mickare.xserver.Message,
+   * de.mickare.xserver.net.SendPriority)
+   */
+  @Override
+  public SendFuture sendMessageAsync(Message message, SendPriority priority) throws IOException {
+    SendFuture future = new SendFuture();
+    send(message, priority, future);
+    return future;
+  }
+
+  /**
+   * @param future goes with the packet, or null
+   * @return true if queued into the connection
+   */
+  private boolean send(Message message, SendPriority priority, SendFuture future) throws IOException {
     boolean result = false;
+    // The control lane is kept free for the protocol
+    boolean high = priority != SendPriority.BULK;
     if (!this.manager.isRunning() || !valid()) {
+      if (future != null) {
+        future.fail(SendFailure.SHUTDOWN);
+      }
       return false;
     }
     // if(!open) {
     // return false;
     // }
 
-    Connection con = null;
+    Connection con = loggedInConnection();
+    if (con != null || outbox != null || manager.getRelayRouter().isRelayed(this)) {
+      result = enqueue(con, toPacket(message).setFuture(future), high);
+    } else if (future != null) {
+      future.fail(SendFailure.NOT_CONNECTED);
+    }
+
+    manager.getEventHandler().callEvent(new XServerMessageOutgoingEvent(this, message));
+    return result;
+
+  }
+
+  /**
+   * Queue a frame that is shared with other servers, see
+   * {@link AbstractXServerManagerObj#sendToGroup(XGroup, Message, SendPriority)}. The packet gets a
+   * reference for this server, the caller keeps its own.
+   *
+   * @param message the message of the frame, for the outgoing event
+   * @param packet the shared frame
+   * @param priority
+   * @return true if queued into the connection or a relay, false if only cached in the outbox or
+   *         dropped
+   * @throws IOException
+   */
+  public boolean sendShared(Message message, Packet packet, SendPriority priority) throws IOException {
+    if (!this.manager.isRunning() || !valid()) {
+      return false;
+    }
+    boolean result = false;
+    Connection con = loggedInConnection();
+    if (con != null || outbox != null || manager.getRelayRouter().isRelayed(this)) {
+      result = enqueue(con, packet.retain(), priority != SendPriority.BULK);
+    }
+    manager.getEventHandler().callEvent(new XServerMessageOutgoingEvent(this, message));
+    return result;
+  }
+
+  /**
+   * @return the connection if logged in, otherwise null
+   */
+  Connection loggedInConnection() {
     try {
       if (conLock.readLock().tryLock(500, TimeUnit.MILLISECONDS)) {
         try {
           if (isConnected()) {
-            con = this.connection;
+            return this.connection;
           }
         } finally {
           conLock.readLock().unlock();
@@ -239,13 +546,87 @@ public class XServerObj implements XServer {
       }
     } catch (InterruptedException e) {
     }
-    if (con != null) {
-      result = con.send(new Packet(PacketType.Message, message.getData()));
+    return null;
+  }
+
+  /**
+   * Queue a packet into the connection, or through a relay or into the outbox if there is none.
+   * The packet is owned by the queue afterwards, even if it is rejected.
+   *
+   * @param con logged in connection, or null
+   * @param packet
+   * @param high
+   * @return true if queued into the connection or a relay, false if dropped or only cached in the
+   *         outbox
+   */
+  private boolean enqueue(Connection con, Packet packet, boolean high) {
+    if (con == null) {
+      RelayRouter router = manager.getRelayRouter();
+      Connection relay = router.route(this);
+      if (relay != null && (outbox == null || outbox.isEmpty())) {
+        if (router.send(relay, this, packet, high ? SendPriority.HIGH : SendPriority.BULK)) {
+          return true;
+        }
+        packet.fail(SendFailure.QUEUE_FULL);
+        packet.release();
+        return false;
+      }
+      if (outbox == null) {
+        packet.fail(SendFailure.NOT_CONNECTED);
+        packet.release();
+        return false;
+      }
+      // Only sent if the outbox could be flushed behind it
+      boolean cached = outbox.offer(packet);
+      // Older messages are still waiting, keep the order
+      return relay != null && cached && outbox.flushTo(router.sink(relay, this));
+    }
+    if (outbox != null && !outbox.isEmpty() && !high) {
+      // Older messages are still waiting, keep the order
+      boolean cached = outbox.offer(packet);
+      return outbox.flushTo(con) && cached;
+    }
+    if (con.send(packet, high ? SendPriority.HIGH : SendPriority.BULK)) {
+      return true;
     }
+    packet.fail(SendFailure.QUEUE_FULL);
+    packet.release();
+    return false;
+  }
 
-    manager.getEventHandler().callEvent(new XServerMessageOutgoingEvent(this, message));
-    return result;
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#request(java.lang.String, byte[], long,
+   * java.util.concurrent.TimeUnit)
+   */
+  @Override
+  public RequestFuture request(String channel, byte[] payload, long timeout, TimeUnit unit) {
+    if (channel == null || payload == null) {
+      throw new IllegalArgumentException("channel and payload can't be null");
+    }
+    if (!this.manager.isRunning() || !valid()) {
+      return RequestFuture.failed(RequestFailure.SHUTDOWN);
+    }
+    Connection con = this.connection;
+    if (con == null || !con.isLoggedIn()) {
+      return RequestFuture.failed(RequestFailure.NOT_CONNECTED);
+    }
+    return con.request(channel, payload, timeout, unit);
+  }
 
+  /**
+   * Serialize a message into a frame.
+   *
+   * @param message
+   * @return packet, pooled for a {@link MessageObj}
+   * @throws IOException
+   */
+  public static Packet toPacket(Message message) throws IOException {
+    if (message instanceof MessageObj) {
+      return ((MessageObj) message).toPacket();
+    }
+    return new Packet(PacketType.Message, message.getData());
   }
 
   /*
@@ -284,14 +665,31 @@ public class XServerObj implements XServer {
    */
   @Override
   public void flushCache() {
-    /*
-     * try (CloseableLock c = conLock.readLock().open()) { if (isConnected()) {
-     *
-     * synchronized (pendingPackets) { Packet p = pendingPackets.pollLast(); while (p != null) {
-     * connection.send( p ); p = pendingPackets.pollLast(); } }
-     *
-     * } }
-     */
+    if (outbox == null || outbox.isEmpty()) {
+      return;
+    }
+    try (CloseableLock c = conLock.readLock().open()) {
+      if (isConnected()) {
+        if (!outbox.flushTo(connection)) {
+          manager.debugInfo(outbox.size() + " messages to " + name + " are still waiting in the outbox");
+        }
+        return;
+      }
+    }
+    RelayRouter router = manager.getRelayRouter();
+    Connection relay = router.route(this);
+    if (relay != null && !outbox.flushTo(router.sink(relay, this))) {
+      manager.debugInfo(outbox.size() + " messages to " + name + " are still waiting in the outbox");
+    }
+  }
+
+  /**
+   * Get the messages that wait for the login of this server
+   *
+   * @return outbox or null if disabled
+   */
+  public Outbox getOutbox() {
+    return outbox;
   }
 
   /*
@@ -322,6 +720,21 @@ public class XServerObj implements XServer {
     return manager;
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#getMetrics()
+   */
+  @Override
+  public ConnectionMetrics getMetrics() {
+    try (CloseableLock c = conLock.readLock().open()) {
+      if (isConnected()) {
+        return this.connection.getMetrics();
+      }
+    }
+    return null;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -331,9 +744,6 @@ public class XServerObj implements XServer {
   public long getSendingRecordSecondPackageCount() {
     try (CloseableLock c = conLock.readLock().open()) {
       if (isConnected()) {
-        if (this.connection2 != null) {
-          return this.connection.getSendingRecordSecondPackageCount() + this.connection2.getSendingRecordSecondPackageCount();
-        }
         return this.connection.getSendingRecordSecondPackageCount();
       }
     }
@@ -349,9 +759,6 @@ public class XServerObj implements XServer {
   public long getSendinglastSecondPackageCount() {
     try (CloseableLock c = conLock.readLock().open()) {
       if (isConnected()) {
-        if (this.connection2 != null) {
-          return this.connection.getSendinglastSecondPackageCount() + this.connection2.getSendinglastSecondPackageCount();
-        }
         return this.connection.getSendinglastSecondPackageCount();
       }
     }
@@ -367,9 +774,6 @@ public class XServerObj implements XServer {
   public long getReceivingRecordSecondPackageCount() {
     try (CloseableLock c = conLock.readLock().open()) {
       if (isConnected()) {
-        if (this.connection2 != null) {
-          return this.connection.getReceivingRecordSecondPackageCount() + this.connection2.getReceivingRecordSecondPackageCount();
-        }
         return this.connection.getReceivingRecordSecondPackageCount();
       }
     }
@@ -385,27 +789,24 @@ public class XServerObj implements XServer {
   public long getReceivinglastSecondPackageCount() {
     try (CloseableLock c = conLock.readLock().open()) {
       if (isConnected()) {
-        if (this.connection2 != null) {
-          return this.connection.getReceivinglastSecondPackageCount() + this.connection2.getReceivinglastSecondPackageCount();
-        }
         return this.connection.getReceivinglastSecondPackageCount();
       }
     }
     return 0;
   }
 
-  public void addGroup(XGroup g) {
-    this.groups.add(g);
+  public void setMembership(GroupIndex.Membership membership) {
+    this.membership = membership;
   }
 
   @Override
   public Set<XGroup> getGroups() {
-    return Collections.unmodifiableSet(this.groups);
+    return membership.getGroups();
   }
 
   @Override
   public boolean hasGroup(XGroup group) {
-    return this.groups.contains(group);
+    return membership.has(group);
   }
 
   protected boolean valid() {
@@ -425,6 +826,10 @@ public class XServerObj implements XServer {
 
   public void setDeprecated() {
     this.deprecated = true;
+    login.get().fail(ConnectFailure.SHUTDOWN, "Replaced by a reload");
+    if (outbox != null) {
+      outbox.close();
+    }
   }
 
   @Override
@@ -1,7 +1,8 @@
 package de.mickare.xserver.net;
 
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.mickare.xserver.AbstractXServerManagerObj;
 import de.mickare.xserver.Message;
@@ -12,6 +13,7 @@ import de.mickare.xserver.events.XServerMessageIncomingEvent;
 import de.mickare.xserver.events.XServerMessageOutgoingEvent;
 import de.mickare.xserver.exceptions.NotInitializedException;
 import de.mickare.xserver.util.Encryption;
+import de.mickare.xserver.util.TimerWheel;
 
 public class XServerObjHome extends XServerObj {
 
@@ -34,10 +36,8 @@ public class XServerObjHome extends XServerObj {
 
   private volatile boolean connected = false;
 
-  private final AtomicLong recordSecondPackageCount = new AtomicLong(0);
-  private final AtomicLong lastSecondPackageCount = new AtomicLong(0);
-  private long lastSecond = 0;
-  private long packageCount = 0;
+  // Messages to the home server are counted as sent and received at once
+  private final ConnectionMetrics metrics = new ConnectionMetrics(null, 0);
 
 
   @Override
@@ -46,9 +46,20 @@ public class XServerObjHome extends XServerObj {
       getManager().getEventHandler().callEvent(new XServerDisconnectEvent(this));
     }
     connected = true;
+    loggedIn();
     getManager().getEventHandler().callEvent(new XServerLoggedInEvent(this));
   }
 
+  @Override
+  public LoginFuture connectAsync() {
+    if (!this.getManager().isRunning() || !valid()) {
+      return LoginFuture.failed(ConnectFailure.SHUTDOWN, null);
+    }
+    // Logged in at once, there is no socket
+    reconnect();
+    return LoginFuture.succeeded(this);
+  }
+
   @Override
   public synchronized void connectSoft() throws NotInitializedException, IOException, InterruptedException {
     if (!isConnected()) {
@@ -56,15 +67,28 @@ public class XServerObjHome extends XServerObj {
     }
   }
 
+  @Override
+  public void reconnect() {
+    try {
+      this.connect();
+    } catch (IOException | InterruptedException | NotInitializedException e) {
+      // Not thrown for the home server
+    }
+  }
 
   @Override
-  protected void unsetConnection(ConnectionObj con) {}
+  boolean needsConnection() {
+    return false;
+  }
+
 
   @Override
-  protected void setConnection(Connection con) {}
+  protected void unsetConnection(AbstractConnectionObj con, boolean loggedIn) {}
 
   @Override
-  protected void setLoginConnection(Connection con) {}
+  protected boolean setConnection(Connection con, boolean dialed) {
+    return true;
+  }
 
   /*
    * (non-Javadoc)
@@ -96,6 +120,18 @@ public class XServerObjHome extends XServerObj {
    */
   @Override
   public boolean sendMessage(Message message) throws IOException {
+    return sendMessage(message, SendPriority.BULK);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#sendMessage(de.mickare.xserver.Message,
+   * de.mickare.xserver.net.SendPriority)
+   */
+  @Override
+  public boolean sendMessage(Message message, SendPriority priority) throws IOException {
+    // Delivered in place, there is no queue to skip
     if (!this.getManager().isRunning() || !valid()) {
       return false;
     }
@@ -106,6 +142,138 @@ public class XServerObjHome extends XServerObj {
 
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServerObj#sendShared(de.mickare.xserver.Message,
+   * de.mickare.xserver.net.Packet, de.mickare.xserver.net.SendPriority)
+   */
+  @Override
+  public boolean sendShared(Message message, Packet packet, SendPriority priority) throws IOException {
+    // The frame isn't needed here
+    return sendMessage(message, priority);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#sendMessageAsync(de.mickare.xserver.Message,
+   * de.mickare.xserver.net.SendPriority)
+   */
+  @Override
+  public SendFuture sendMessageAsync(Message message, SendPriority priority) throws IOException {
+    return sendMessage(message, priority) ? SendFuture.succeeded() : SendFuture.failed(SendFailure.SHUTDOWN);
+  }
+
+  @Override
+  public boolean isWritable() {
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see de.mickare.xserver.net.XServer#request(java.lang.String, byte[], long,
+   * java.util.concurrent.TimeUnit)
+   */
+  @Override
+  public RequestFuture request(String channel, byte[] payload, long timeout, TimeUnit unit) {
+    if (channel == null || payload == null) {
+      throw new IllegalArgumentException("channel and payload can't be null");
+    }
+    TimerWheel timer = getManager().getTimer();
+    if (!this.getManager().isRunning() || !valid() || timer == null) {
+      return RequestFuture.failed(RequestFailure.SHUTDOWN);
+    }
+    // Answered in place, the responder gets its own copy like a remote one
+    LocalRequest request = new LocalRequest(channel, payload.clone());
+    request.timeout = timer.newTimeout(request, timeout, unit);
+    this.tickPacket();
+    if (!getManager().getEventHandler().respond(request)) {
+      request.timeout.cancel();
+      request.future.fail(RequestFailure.NO_RESPONDER, null);
+    }
+    return request.future;
+  }
+
+  /**
+   * A request to the home server, it completes the future directly.
+   */
+  private final class LocalRequest implements Request, Runnable {
+    private final String channel;
+    private final byte[] payload;
+    private final RequestFuture future = new RequestFuture();
+    private final AtomicBoolean answered = new AtomicBoolean(false);
+    private volatile TimerWheel.Timeout timeout = null;
+
+    private LocalRequest(String channel, byte[] payload) {
+      this.channel = channel;
+      this.payload = payload;
+    }
+
+    @Override
+    public XServer getSender() {
+      return XServerObjHome.this;
+    }
+
+    @Override
+    public String getChannel() {
+      return channel;
+    }
+
+    @Override
+    public byte[] getPayload() {
+      return payload;
+    }
+
+    @Override
+    public boolean reply(byte[] data) {
+      if (!answer()) {
+        return false;
+      }
+      future.complete(data != null ? data.clone() : new byte[0]);
+      return true;
+    }
+
+    @Override
+    public boolean fail(String message) {
+      if (!answer()) {
+        return false;
+      }
+      future.fail(RequestFailure.RESPONDER_ERROR, String.valueOf(message));
+      return true;
+    }
+
+    private boolean answer() {
+      if (!answered.compareAndSet(false, true)) {
+        return false;
+      }
+      TimerWheel.Timeout t = timeout;
+      if (t != null) {
+        t.cancel();
+      }
+      return true;
+    }
+
+    @Override
+    public boolean isAnswered() {
+      return answered.get();
+    }
+
+    /**
+     * The timeout passed
+     */
+    @Override
+    public void run() {
+      future.fail(RequestFailure.TIMEOUT, null);
+    }
+
+    @Override
+    public String toString() {
+      return "Request on " + channel + " from " + getName();
+    }
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -121,6 +289,12 @@ public class XServerObjHome extends XServerObj {
     PingObj.receive(ping.getKey(), this);
   }
 
+  @Override
+  protected Outbox createOutbox() {
+    // Messages to the home server never leave this process
+    return null;
+  }
+
   @Override
   public void flushCache() {}
 
@@ -130,15 +304,8 @@ public class XServerObjHome extends XServerObj {
   }
 
   private void tickPacket() {
-    if (System.currentTimeMillis() - lastSecond > 1000) {
-      lastSecondPackageCount.set(packageCount);
-      if (packageCount > recordSecondPackageCount.get()) {
-        recordSecondPackageCount.set(packageCount);
-      }
-      packageCount = 0;
-      lastSecond = System.currentTimeMillis();
-    }
-    packageCount++;
+    metrics.getSendingRate().tick();
+    metrics.getReceivingRate().tick();
   }
 
   @Override
@@ -148,19 +315,24 @@ public class XServerObjHome extends XServerObj {
 
   protected void setType(XType type) {}
 
+  @Override
+  public ConnectionMetrics getMetrics() {
+    return metrics;
+  }
+
   @Override
   public long getSendingRecordSecondPackageCount() {
-    return this.recordSecondPackageCount.get();
+    return this.metrics.getSendingRate().getRecord();
   }
 
   @Override
   public long getSendinglastSecondPackageCount() {
-    return this.lastSecondPackageCount.get();
+    return this.metrics.getSendingRate().getLastSecond();
   }
 
   @Override
   public long getReceivingRecordSecondPackageCount() {
-    return this.recordSecondPackageCount.get();
+    return this.metrics.getReceivingRate().getRecord();
   }
 
   /*
@@ -170,7 +342,7 @@ public class XServerObjHome extends XServerObj {
    */
   @Override
   public long getReceivinglastSecondPackageCount() {
-    return this.lastSecondPackageCount.get();
+    return this.metrics.getReceivingRate().getLastSecond();
   }
 
 }
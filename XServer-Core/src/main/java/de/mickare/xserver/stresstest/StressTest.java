@@ -12,15 +12,17 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import de.mickare.xserver.AbstractXServerManager;
+import de.mickare.xserver.AbstractXServerManagerObj;
 import de.mickare.xserver.Message;
 import de.mickare.xserver.net.XServer;
 import de.mickare.xserver.user.ComSender;
-import de.mickare.xserver.util.CacheMap;
 import de.mickare.xserver.util.ChatColor;
 import de.mickare.xserver.util.Encryption;
 
@@ -44,22 +46,17 @@ public class StressTest {
 		return r;
 	}
 
-	private static final CacheMap<String, StressTest> pending = new CacheMap<String, StressTest>(
-			40);
+	// Removed when the result is printed, so there is no limit on concurrent tests
+	private static final Map<String, StressTest> pending = new ConcurrentHashMap<String, StressTest>();
 
 	public static void addPendingPing(StressTest st) {
 		if (st.started.get() == -1) {
-			synchronized (pending) {
-				pending.put(st.key, st);
-			}
+			pending.put(st.key, st);
 		}
 	}
 
 	public static void receive(String key, long created, XServer server) {
-		StressTest st = null;
-		synchronized (pending) {
-			st = pending.get(key);
-		}
+		StressTest st = pending.get(key);
 		if (st != null) {
 			st.receive(server, created);
 		}
@@ -96,7 +93,7 @@ public class StressTest {
 		}
 	}
 	
-	private final AbstractXServerManager manager;
+	private final AbstractXServerManagerObj manager;
 	private final ComSender sender;
 	private final int times;
 	private final String key;
@@ -115,12 +112,12 @@ public class StressTest {
 	private final AtomicLong started = new AtomicLong(-1);
 	
 
-	public StressTest(AbstractXServerManager manager, ComSender sender,
+	public StressTest(AbstractXServerManagerObj manager, ComSender sender,
 			int times, boolean sync) {
 		this(manager, sender, times, "StressTest", sync);
 	}
 
-	public StressTest(AbstractXServerManager manager, ComSender sender,
+	public StressTest(AbstractXServerManagerObj manager, ComSender sender,
 			int times, String salt, boolean sync) {
 		this.manager = manager;
 		this.sender = sender;
@@ -187,19 +184,16 @@ public class StressTest {
 						}
 					}
 					
-					check();
-					
-					manager.getThreadPool().runTask(new Runnable() {
-						public void run() {
-							try {
-								Thread.sleep(TIMEOUT + 10);
-								stopped.set(true);
-								timedOut.set(true);
+					if (!check()) {
+						manager.schedule(new Runnable() {
+							public void run() {
+								if (!stopped.getAndSet(true)) {
+									timedOut.set(true);
+								}
 								check();
-							} catch (InterruptedException e) {
 							}
-						}
-					});
+						}, TIMEOUT + 10, TimeUnit.MILLISECONDS);
+					}
 				}
 			};
 			
@@ -234,8 +228,9 @@ public class StressTest {
 	}
 
 	private boolean check() {
-		if (!isPending() && !resultprinted.get()) {
+		if (!isPending() && resultprinted.compareAndSet(false, true)) {
 			stopped.set(true);
+			pending.remove(key);
 			printResult();
 			return true;
 		}
@@ -243,7 +238,6 @@ public class StressTest {
 	}
 
 	private void printResult() {
-		resultprinted.set(true);
 		sender.sendMessage(getFormatedString());
 	}
 
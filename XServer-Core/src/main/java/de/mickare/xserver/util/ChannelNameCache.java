@@ -0,0 +1,87 @@
+package de.mickare.xserver.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Small lossy cache that maps encoded subchannel names (as written by writeUTF) to interned
+ * strings, so the same channel name is not decoded again for every received message.
+ */
+public final class ChannelNameCache {
+
+  public final static ChannelNameCache DEFAULT = new ChannelNameCache(1024);
+
+  private final static int MAX_CACHED_LENGTH = 256;
+
+  private static final class Entry {
+    private final byte[] encoded;
+    private final int hash;
+    private final String value;
+
+    private Entry(byte[] encoded, int hash, String value) {
+      this.encoded = encoded;
+      this.hash = hash;
+      this.value = value;
+    }
+  }
+
+  private final Entry[] entries;
+  private final int mask;
+
+  public ChannelNameCache(int size) {
+    int cap = Integer.highestOneBit(Math.max(16, size - 1) << 1);
+    this.entries = new Entry[cap];
+    this.mask = cap - 1;
+  }
+
+  /**
+   * Get the string that is encoded at the offset (two bytes length, then modified UTF-8).
+   *
+   * @param data
+   * @param offset
+   * @param utflen encoded length without the two length bytes
+   * @return interned string
+   * @throws IOException if the bytes are no valid modified UTF-8
+   */
+  public String get(byte[] data, int offset, int utflen) throws IOException {
+    if (utflen > MAX_CACHED_LENGTH) {
+      return decode(data, offset, utflen);
+    }
+    int start = offset + 2;
+    int hash = 1;
+    for (int i = start; i < start + utflen; i++) {
+      hash = 31 * hash + data[i];
+    }
+    int index = (hash ^ (hash >>> 16)) & mask;
+    Entry e = entries[index];
+    if (e != null && e.hash == hash && equals(e.encoded, data, start, utflen)) {
+      return e.value;
+    }
+    String value = decode(data, offset, utflen).intern();
+    byte[] encoded = new byte[utflen];
+    System.arraycopy(data, start, encoded, 0, utflen);
+    // Races only replace an entry, the entries themselves are immutable
+    entries[index] = new Entry(encoded, hash, value);
+    return value;
+  }
+
+  private static boolean equals(byte[] encoded, byte[] data, int start, int length) {
+    if (encoded.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (encoded[i] != data[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String decode(byte[] data, int offset, int utflen) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, 2 + utflen))) {
+      return in.readUTF();
+    }
+  }
+
+}
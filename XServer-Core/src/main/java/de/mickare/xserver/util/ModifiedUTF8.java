@@ -0,0 +1,65 @@
+package de.mickare.xserver.util;
+
+import java.io.UTFDataFormatException;
+
+/**
+ * Array based version of {@link java.io.DataOutputStream#writeUTF(String)}, so strings can be
+ * written into a buffer without a stream in between.
+ */
+public final class ModifiedUTF8 {
+
+  private ModifiedUTF8() {}
+
+  /**
+   * Get the number of bytes of the encoded string (without the two length bytes)
+   *
+   * @param str
+   * @return encoded length
+   */
+  public static int encodedLength(String str) {
+    int len = str.length();
+    int utflen = len;
+    for (int i = 0; i < len; i++) {
+      char c = str.charAt(i);
+      if (c >= 0x80 || c == 0) {
+        utflen += (c >= 0x800) ? 2 : 1;
+      }
+    }
+    return utflen;
+  }
+
+  /**
+   * Write the string like writeUTF does: two bytes length, then the modified UTF-8 bytes.
+   *
+   * @param str
+   * @param utflen result of {@link #encodedLength(String)}
+   * @param dst
+   * @param offset
+   * @return offset behind the written string
+   * @throws UTFDataFormatException if the string is too long
+   */
+  public static int write(String str, int utflen, byte[] dst, int offset) throws UTFDataFormatException {
+    if (utflen > 65535) {
+      throw new UTFDataFormatException("encoded string too long: " + utflen + " bytes");
+    }
+    int pos = offset;
+    dst[pos++] = (byte) ((utflen >>> 8) & 0xFF);
+    dst[pos++] = (byte) (utflen & 0xFF);
+    int len = str.length();
+    for (int i = 0; i < len; i++) {
+      char c = str.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        dst[pos++] = (byte) c;
+      } else if (c > 0x07FF) {
+        dst[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+        dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        dst[pos++] = (byte) (0x80 | (c & 0x3F));
+      } else {
+        dst[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+        dst[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    return pos;
+  }
+
+}
@@ -0,0 +1,217 @@
+package de.mickare.xserver.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.mickare.xserver.ServerThreadPoolExecutor;
+
+/**
+ * Hashed wheel timer on a single thread. A timeout is put into the bucket of its deadline tick and
+ * waits there for as many rounds of the wheel as it needs, so adding and cancelling are O(1) and a
+ * pending timeout costs one small object instead of a sleeping thread.
+ *
+ * Timeouts are added through a lock-free queue and moved into the wheel by the timer thread. The
+ * precision is one tick. Tasks run on the timer thread and must not block.
+ */
+public class TimerWheel implements Runnable {
+
+  /**
+   * A scheduled task
+   */
+  public interface Timeout {
+
+    /**
+     * @return false if the task already ran or was cancelled
+     */
+    boolean cancel();
+
+    boolean isCancelled();
+
+    boolean isExpired();
+
+  }
+
+  private final static int INIT = 0;
+  private final static int CANCELLED = 1;
+  private final static int EXPIRED = 2;
+
+  private final static class Entry extends AtomicInteger implements Timeout {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Runnable task;
+    private final long deadline;
+    private long rounds;
+    private Entry next;
+
+    private Entry(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public boolean cancel() {
+      // Stays in its bucket until the wheel passes by
+      return compareAndSet(INIT, CANCELLED);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return get() == CANCELLED;
+    }
+
+    @Override
+    public boolean isExpired() {
+      return get() == EXPIRED;
+    }
+
+  }
+
+  private final String name;
+  private final Logger logger;
+  private final long tickNanos;
+  private final Entry[] wheel;
+  private final int mask;
+  private final Queue<Entry> added = new ConcurrentLinkedQueue<Entry>();
+  private final long startTime = System.nanoTime();
+
+  private volatile boolean running = true;
+  private long tick = 0;
+
+  /**
+   * @param name of the thread
+   * @param logger
+   * @param tickDuration
+   * @param unit of tickDuration
+   * @param ticksPerWheel rounded up to a power of two
+   */
+  public TimerWheel(String name, Logger logger, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+    this.name = name;
+    this.logger = logger;
+    this.tickNanos = Math.max(1000000, unit.toNanos(tickDuration));
+    int size = Integer.highestOneBit(Math.max(2, ticksPerWheel) - 1) << 1;
+    this.wheel = new Entry[size];
+    this.mask = size - 1;
+  }
+
+  public TimerWheel start(ServerThreadPoolExecutor stpool) {
+    stpool.runServerTask(this);
+    return this;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Run a task once after a delay.
+   *
+   * @param task
+   * @param delay
+   * @param unit
+   * @return timeout to cancel the task
+   */
+  public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+    if (task == null) {
+      throw new NullPointerException("task is null");
+    }
+    Entry e = new Entry(task, System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay)));
+    if (running) {
+      added.add(e);
+    } else {
+      e.cancel();
+    }
+    return e;
+  }
+
+  /**
+   * Stop the timer thread. Pending tasks don't run anymore.
+   */
+  public void shutdown() {
+    running = false;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        long deadline = tickNanos * (tick + 1);
+        long sleep = deadline - (System.nanoTime() - startTime);
+        if (sleep > 0) {
+          Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+          continue;
+        }
+        transferAdded();
+        expire((int) (tick & mask), deadline);
+        tick++;
+      }
+    } catch (InterruptedException e) {
+    } catch (Throwable t) {
+      logger.log(Level.SEVERE, "Timer " + name + " crashed: " + t.getMessage(), t);
+    } finally {
+      running = false;
+      added.clear();
+      for (int i = 0; i < wheel.length; i++) {
+        wheel[i] = null;
+      }
+    }
+  }
+
+  private void transferAdded() {
+    Entry e;
+    // Bounded, so a producer can't keep the wheel from turning
+    for (int i = 0; i < 100000 && (e = added.poll()) != null; i++) {
+      if (e.isCancelled()) {
+        continue;
+      }
+      long ticks = Math.max(e.deadline / tickNanos, tick);
+      e.rounds = (ticks - tick) / wheel.length;
+      int bucket = (int) (ticks & mask);
+      e.next = wheel[bucket];
+      wheel[bucket] = e;
+    }
+  }
+
+  private void expire(int bucket, long deadline) {
+    Entry prev = null;
+    Entry e = wheel[bucket];
+    while (e != null) {
+      Entry next = e.next;
+      boolean remove = true;
+      if (e.isCancelled()) {
+        // Just drop it
+      } else if (e.rounds <= 0 && e.deadline <= deadline) {
+        if (e.compareAndSet(INIT, EXPIRED)) {
+          try {
+            e.task.run();
+          } catch (Throwable t) {
+            logger.log(Level.WARNING, "Timer task " + e.task + " failed: " + t.getMessage(), t);
+          }
+        }
+      } else {
+        e.rounds--;
+        remove = false;
+      }
+      if (remove) {
+        if (prev == null) {
+          wheel[bucket] = next;
+        } else {
+          prev.next = next;
+        }
+        e.next = null;
+      } else {
+        prev = e;
+      }
+      e = next;
+    }
+  }
+
+}
@@ -0,0 +1,136 @@
+package de.mickare.xserver.util;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned LEB128 encoding of ints: seven bits per byte, the high bit is set if more bytes follow.
+ * Small numbers take one byte.
+ */
+public final class VarInt {
+
+  private VarInt() {}
+
+  /**
+   * Get the number of bytes of an encoded value
+   *
+   * @param value
+   * @return 1 - 5
+   */
+  public static int size(int value) {
+    if ((value & 0xFFFFFF80) == 0) {
+      return 1;
+    } else if ((value & 0xFFFFC000) == 0) {
+      return 2;
+    } else if ((value & 0xFFE00000) == 0) {
+      return 3;
+    } else if ((value & 0xF0000000) == 0) {
+      return 4;
+    }
+    return 5;
+  }
+
+  /**
+   * Write a value into an array
+   *
+   * @param value
+   * @param dst
+   * @param offset
+   * @return offset behind the value
+   */
+  public static int write(int value, byte[] dst, int offset) {
+    while ((value & 0xFFFFFF80) != 0) {
+      dst[offset++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    dst[offset++] = (byte) value;
+    return offset;
+  }
+
+  /**
+   * Read a value from an array. The number of bytes read is {@link #size(int)} of the value.
+   *
+   * @param src
+   * @param offset
+   * @param limit end of the readable part
+   * @return value
+   * @throws IOException if the value is truncated, not in its shortest form or longer than five
+   *         bytes
+   */
+  public static int read(byte[] src, int offset, int limit) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      if (offset >= limit) {
+        throw new IOException("Truncated varint");
+      }
+      byte b = src[offset++];
+      value |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        if (b == 0 && shift > 0) {
+          // Only the shortest form is valid, callers rely on size(value)
+          throw new IOException("Overlong varint");
+        }
+        return value;
+      }
+    }
+    throw new IOException("Varint too long");
+  }
+
+  /**
+   * Read a non-negative value from a buffer that may end within the value, e.g. a partly received
+   * frame header.
+   *
+   * @param src
+   * @return value, or -1 if the buffer ends first. The bytes read so far are consumed, so the
+   *         caller resets the buffer.
+   * @throws IOException if the value is not in its shortest form or doesn't fit a non-negative int
+   */
+  public static int read(ByteBuffer src) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      if (!src.hasRemaining()) {
+        return -1;
+      }
+      byte b = src.get();
+      value |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        if (b == 0 && shift > 0) {
+          throw new IOException("Overlong varint");
+        }
+        if (value < 0) {
+          throw new IOException("Varint too long");
+        }
+        return value;
+      }
+    }
+    throw new IOException("Varint too long");
+  }
+
+  /**
+   * Read a non-negative value from a stream
+   *
+   * @param in
+   * @return value
+   * @throws IOException if the stream ends, or the value is not in its shortest form or doesn't fit
+   *         a non-negative int
+   */
+  public static int read(DataInput in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = in.readByte();
+      value |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        if (b == 0 && shift > 0) {
+          throw new IOException("Overlong varint");
+        }
+        if (value < 0) {
+          throw new IOException("Varint too long");
+        }
+        return value;
+      }
+    }
+    throw new IOException("Varint too long");
+  }
+
+}
@@ -0,0 +1,104 @@
+package de.mickare.xserver;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import de.mickare.xserver.net.XServer;
+
+public class GroupIndexTest extends TestCase {
+
+  private final XServer a = server("A");
+  private final XServer b = server("B");
+  private final XServer c = server("C");
+
+  /**
+   * A server that is only known by its name.
+   */
+  private static XServer server(final String name) {
+    return (XServer) Proxy.newProxyInstance(XServer.class.getClassLoader(), new Class<?>[] { XServer.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("equals")) {
+              return proxy == args[0];
+            } else if (m.getName().equals("hashCode")) {
+              return System.identityHashCode(proxy);
+            } else if (m.getName().equals("getName") || m.getName().equals("toString")) {
+              return name;
+            }
+            throw new UnsupportedOperationException(m.getName());
+          }
+        });
+  }
+
+  private GroupIndex<XServer> index() {
+    return new GroupIndex.Builder<XServer>(XServer.class)
+        .addRelation(a, 1) // before its group
+        .addGroup(1, "lobby")
+        .addGroup(2, "game")
+        .addGroup(3, "empty")
+        .addRelation(b, 1)
+        .addRelation(b, 2)
+        .addRelation(b, 2)
+        .addRelation(c, 7) // unknown group
+        .build();
+  }
+
+  public void testMembers() {
+    GroupIndex<XServer> index = index();
+    XGroup lobby = index.getGroup("lobby");
+    XGroup game = index.getGroup("game");
+    assertEquals(3, index.size());
+    assertEquals(1, lobby.getID());
+    assertTrue(Arrays.equals(new XServer[] { a, b }, index.getMembers(lobby)));
+    assertTrue(Arrays.equals(new XServer[] { b }, index.getMembers(game)));
+    assertEquals(0, index.getMembers(index.getGroup("empty")).length);
+    assertEquals(2, index.getServers(lobby).size());
+    assertNull(index.getGroup("missing"));
+  }
+
+  public void testMembership() {
+    GroupIndex<XServer> index = index();
+    XGroup lobby = index.getGroup("lobby");
+    XGroup game = index.getGroup("game");
+    assertTrue(index.getMembership(a).has(lobby));
+    assertFalse(index.getMembership(a).has(game));
+    assertEquals(2, index.getMembership(b).getGroups().size());
+    // Related to a group that doesn't exist, or not related at all
+    assertTrue(index.getMembership(c).getGroups().isEmpty());
+    assertTrue(index.getMembership(server("D")).getGroups().isEmpty());
+    assertFalse(index.getMembership(a).has(null));
+  }
+
+  public void testGroupOfOlderIndex() {
+    XGroup old = index().getGroup("game");
+    // Reloaded with another order, the group is found by its id
+    GroupIndex<XServer> index = new GroupIndex.Builder<XServer>(XServer.class)
+        .addGroup(2, "game")
+        .addGroup(1, "lobby")
+        .addRelation(a, 2)
+        .build();
+    assertNotSame(old, index.getGroup("game"));
+    assertEquals(0, index.indexOf(old));
+    assertTrue(index.getMembership(a).has(old));
+    assertTrue(Arrays.equals(new XServer[] { a }, index.getMembers(old)));
+    assertEquals(-1, index.indexOf(new XGroupObj(4, "gone", 0)));
+  }
+
+  public void testManyGroups() {
+    GroupIndex.Builder<XServer> builder = new GroupIndex.Builder<XServer>(XServer.class);
+    for (int id = 0; id < 130; id++) {
+      builder.addGroup(id, "group" + id);
+    }
+    builder.addRelation(a, 0).addRelation(a, 64).addRelation(a, 129);
+    GroupIndex<XServer> index = builder.build();
+    assertEquals(3, index.getMembership(a).getGroups().size());
+    assertTrue(index.getMembership(a).has(index.getGroup("group129")));
+    assertFalse(index.getMembership(a).has(index.getGroup("group128")));
+  }
+
+}
@@ -0,0 +1,122 @@
+package de.mickare.xserver.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import de.mickare.xserver.util.VarInt;
+
+public class ChannelTableTest extends TestCase {
+
+  // Definitions the writer queued, and whether the connection takes them
+  private final ArrayDeque<Packet> defines = new ArrayDeque<Packet>();
+  private boolean full = false;
+
+  private final ChannelTable writer = new ChannelTable(new Outbox.Sink() {
+    @Override
+    public boolean send(Packet packet) {
+      return !full && defines.add(packet);
+    }
+  });
+  private final ChannelTable reader = new ChannelTable(null);
+
+  @Override
+  protected void setUp() {
+    writer.enable();
+  }
+
+  private static Packet message(String channel, byte[] content) throws IOException {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(b);
+    out.writeUTF(channel);
+    out.writeInt(content.length);
+    out.write(content);
+    return new Packet(PacketType.Message, b.toByteArray());
+  }
+
+  /**
+   * Pass the next definition through the writer to the reader.
+   */
+  private void defineNext() throws IOException {
+    Packet define = defines.poll();
+    assertNotNull(define);
+    assertSame(define, writer.encode(define));
+    reader.define(define);
+  }
+
+  public void testChannelMessage() throws IOException {
+    // Sent with its name while the definition is on its way
+    Packet first = message("chat", new byte[] { 1 });
+    assertSame(first, writer.encode(first));
+    assertEquals(1, defines.size());
+    writer.encode(message("chat", new byte[] { 2 }));
+    assertEquals(1, defines.size());
+    defineNext();
+
+    Packet encoded = writer.encode(message("chat", new byte[] { 3, 4 }));
+    assertEquals(PacketType.ChannelMessage.packetID, encoded.getPacketID());
+    byte[] data = Arrays.copyOf(encoded.array(), encoded.getLength());
+    int channel = VarInt.read(data, 0, data.length);
+    assertEquals("chat", reader.getRemote(channel));
+    assertTrue(Arrays.equals(new byte[] { 3, 4 }, Arrays.copyOfRange(data, VarInt.size(channel), data.length)));
+  }
+
+  public void testDefinitionNotQueued() throws IOException {
+    full = true;
+    Packet first = message("chat", new byte[0]);
+    assertSame(first, writer.encode(first));
+    assertTrue(defines.isEmpty());
+
+    // Tried again with the next message of the subchannel
+    full = false;
+    writer.encode(message("chat", new byte[0]));
+    defineNext();
+    assertEquals(PacketType.ChannelMessage.packetID, writer.encode(message("chat", new byte[0])).getPacketID());
+  }
+
+  public void testDisabled() throws IOException {
+    ChannelTable off = new ChannelTable(null);
+    Packet p = message("chat", new byte[0]);
+    assertSame(p, off.encode(p));
+  }
+
+  public void testFull() throws IOException {
+    for (int i = 0; i < ChannelTable.MAX_CHANNELS; i++) {
+      writer.encode(message("channel" + i, new byte[0]));
+      defineNext();
+    }
+    Packet p = message("one too many", new byte[0]);
+    assertSame(p, writer.encode(p));
+    assertSame(p, writer.encode(p));
+    assertTrue(defines.isEmpty());
+    assertEquals("channel0", reader.getRemote(1));
+    assertEquals("channel" + (ChannelTable.MAX_CHANNELS - 1), reader.getRemote(ChannelTable.MAX_CHANNELS));
+  }
+
+  public void testInvalidDefinition() {
+    try {
+      reader.getRemote(1);
+      fail("found an undefined channel");
+    } catch (IOException expected) {
+    }
+    try {
+      reader.define(new Packet(PacketType.DefineChannel, new byte[] { 1, 0, 10, 'a' }));
+      fail("accepted a truncated name");
+    } catch (IOException expected) {
+    }
+    byte[] tooBig = new byte[VarInt.size(ChannelTable.MAX_CHANNELS + 1) + 3];
+    int pos = VarInt.write(ChannelTable.MAX_CHANNELS + 1, tooBig, 0);
+    tooBig[pos + 1] = 1;
+    tooBig[pos + 2] = 'a';
+    try {
+      reader.define(new Packet(PacketType.DefineChannel, tooBig));
+      fail("accepted an id out of range");
+    } catch (IOException expected) {
+    }
+  }
+
+}
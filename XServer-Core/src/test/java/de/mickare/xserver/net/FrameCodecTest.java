@@ -0,0 +1,138 @@
+package de.mickare.xserver.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class FrameCodecTest extends TestCase {
+
+  // Codecs of both ends, the connection is only needed to announce the format
+  private final FrameCodec writer = new FrameCodec(null);
+  private final FrameCodec reader = new FrameCodec(null);
+  private final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+
+  private void write(Packet packet) {
+    int size = writer.getHeaderSize(packet);
+    wire.write(writer.writeHeader(packet), 0, size);
+    wire.write(packet.array(), 0, packet.getLength());
+  }
+
+  private static Packet packet(int packetID, int length) {
+    return new Packet(packetID, new byte[length]);
+  }
+
+  private Packet read(DataInputStream in) throws IOException {
+    reader.readHeader(in);
+    return Packet.readData(in, reader.getPacketID(), reader.getLength());
+  }
+
+  private void assertFrame(int packetID, int length, DataInputStream in) throws IOException {
+    Packet p = read(in);
+    assertEquals(packetID, p.getPacketID());
+    assertEquals(length, p.getLength());
+  }
+
+  public void testLegacyRoundTrip() throws IOException {
+    write(packet(PacketType.KeepAlive.packetID, 0));
+    write(packet(PacketType.Message.packetID, 300));
+    assertEquals(2 * FrameCodec.LEGACY_HEADER_SIZE + 300, wire.size());
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+    assertFrame(PacketType.KeepAlive.packetID, 0, in);
+    assertEquals(FrameCodec.LEGACY_HEADER_SIZE, reader.getHeaderSize());
+    assertFrame(PacketType.Message.packetID, 300, in);
+    assertEquals(-1, in.read());
+  }
+
+  public void testCompactRoundTrip() throws IOException {
+    int compressed = PacketType.Message.packetID | PacketCompressor.FLAG_COMPRESSED;
+    int dictionary = PacketType.ShortMessage.packetID | PacketCompressor.FLAG_COMPRESSED | PacketCompressor.FLAG_DICTIONARY;
+    Packet format = new Packet(PacketType.FrameFormat, new byte[] { FrameCodec.VERSION_COMPACT });
+    write(format);
+    write(packet(PacketType.KeepAlive.packetID, 0));
+    assertEquals(FrameCodec.LEGACY_HEADER_SIZE + 1 + 3, wire.size());
+    write(packet(compressed, 200));
+    write(packet(dictionary, 70000));
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+    Packet p = read(in);
+    assertEquals(PacketType.FrameFormat.packetID, p.getPacketID());
+    reader.setPeerFormat(p);
+    assertFrame(PacketType.KeepAlive.packetID, 0, in);
+    assertEquals(3, reader.getHeaderSize());
+    assertFrame(compressed, 200, in);
+    assertEquals(4, reader.getHeaderSize());
+    assertFrame(dictionary, 70000, in);
+    assertEquals(-1, in.read());
+  }
+
+  public void testCompactFromBuffer() throws IOException {
+    write(new Packet(PacketType.FrameFormat, new byte[] { FrameCodec.VERSION_COMPACT }));
+    write(packet(PacketType.Message.packetID, 1000));
+    ByteBuffer src = ByteBuffer.wrap(wire.toByteArray());
+
+    assertTrue(reader.readHeader(src));
+    assertEquals(PacketType.FrameFormat.packetID, reader.getPacketID());
+    reader.setPeerFormat(new Packet(PacketType.FrameFormat, new byte[] { FrameCodec.VERSION_COMPACT }));
+    src.position(src.position() + reader.getLength());
+    assertTrue(reader.readHeader(src));
+    assertEquals(PacketType.Message.packetID, reader.getPacketID());
+    assertEquals(1000, reader.getLength());
+    assertEquals(4, reader.getHeaderSize());
+    assertEquals(1000, src.remaining());
+  }
+
+  public void testTruncatedHeader() throws IOException {
+    ByteBuffer legacy = ByteBuffer.wrap(new byte[FrameCodec.LEGACY_HEADER_SIZE - 1]);
+    assertFalse(reader.readHeader(legacy));
+
+    reader.setPeerFormat(new Packet(PacketType.FrameFormat, new byte[] { FrameCodec.VERSION_COMPACT }));
+    // Tag complete, length cut after its first byte
+    ByteBuffer compact = ByteBuffer.wrap(new byte[] { 0x10, (byte) 0x80 });
+    assertFalse(reader.readHeader(compact));
+    assertFalse(reader.readHeader(ByteBuffer.allocate(0)));
+
+    try {
+      reader.readHeader(new DataInputStream(new ByteArrayInputStream(new byte[] { 0x10, (byte) 0x80 })));
+      fail("read a truncated header");
+    } catch (EOFException expected) {
+    }
+  }
+
+  public void testMalformedHeader() throws IOException {
+    ByteBuffer negative = ByteBuffer.allocate(FrameCodec.LEGACY_HEADER_SIZE);
+    negative.putInt(PacketType.Message.packetID).putInt(-1).flip();
+    try {
+      reader.readHeader(negative);
+      fail("read a negative length");
+    } catch (IOException expected) {
+    }
+
+    reader.setPeerFormat(new Packet(PacketType.FrameFormat, new byte[] { FrameCodec.VERSION_COMPACT }));
+    try {
+      reader.readHeader(ByteBuffer.wrap(new byte[] { 0x10, (byte) 0x80, 0x00 }));
+      fail("read an overlong length");
+    } catch (IOException expected) {
+    }
+    try {
+      reader.readHeader(new DataInputStream(new ByteArrayInputStream(new byte[] { 0x10, (byte) 0xFF, (byte) 0xFF,
+          (byte) 0xFF, (byte) 0xFF, 0x0F })));
+      fail("read a negative length");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testUnknownFormat() {
+    try {
+      reader.setPeerFormat(new Packet(PacketType.FrameFormat, new byte[] { 2 }));
+      fail("accepted an unknown format");
+    } catch (IOException expected) {
+    }
+  }
+
+}
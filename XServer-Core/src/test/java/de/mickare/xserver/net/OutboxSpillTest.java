@@ -0,0 +1,184 @@
+package de.mickare.xserver.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class OutboxSpillTest extends TestCase {
+
+  // File format, see OutboxSpill
+  private final static int HEADER = 20;
+  private final static int RECORD = 16;
+
+  private File file;
+  private OutboxSpill spill;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("xserver", ".spill");
+    file.delete();
+    spill = new OutboxSpill(file, 4096);
+  }
+
+  @Override
+  protected void tearDown() {
+    spill.close();
+    file.delete();
+  }
+
+  private void reopen(int capacity) throws IOException {
+    spill.close();
+    spill = new OutboxSpill(file, capacity);
+  }
+
+  private static Packet packet(int n, int length) {
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte) n);
+    return new Packet(PacketType.Message, data);
+  }
+
+  private void append(int from, int to, int length) {
+    for (int n = from; n < to; n++) {
+      assertTrue("append " + n, spill.append(packet(n, length), 0));
+    }
+  }
+
+  /**
+   * Hand out the next record and check it.
+   */
+  private OutboxSpill.Mark take(int n) {
+    Packet p = spill.peek(BufferPool.DEFAULT);
+    assertNotNull("no record for " + n, p);
+    assertEquals(PacketType.Message.packetID, p.getPacketID());
+    assertEquals(n, p.array()[0]);
+    p.release();
+    return spill.take();
+  }
+
+  private void drain(int from, int to) {
+    for (int n = from; n < to; n++) {
+      spill.done(take(n));
+    }
+  }
+
+  public void testReopen() throws IOException {
+    append(0, 3, 100);
+    reopen(4096);
+    assertEquals(3, spill.size());
+    assertFalse(spill.isRepaired());
+    drain(0, 3);
+    assertTrue(spill.isEmpty());
+  }
+
+  public void testPartialDrain() throws IOException {
+    append(0, 4, 100);
+    OutboxSpill.Mark first = take(0);
+    OutboxSpill.Mark second = take(1);
+    // Written out of order, the first one holds the second
+    spill.done(second);
+    assertEquals(4, spill.size());
+    spill.done(first);
+    assertEquals(2, spill.size());
+
+    // Handed out but not written, so it is still there after a restart
+    take(2);
+    reopen(4096);
+    assertEquals(2, spill.size());
+    drain(2, 4);
+    assertTrue(spill.isEmpty());
+  }
+
+  public void testFailedReplay() {
+    append(0, 3, 10);
+    OutboxSpill.Mark m0 = take(0);
+    OutboxSpill.Mark m1 = take(1);
+    spill.done(m0);
+    spill.failed(m1);
+    // The late result of the lost record changes nothing
+    spill.done(m1);
+    assertEquals(2, spill.size());
+    drain(1, 3);
+  }
+
+  public void testUntake() {
+    append(0, 2, 10);
+    spill.untake(take(0));
+    drain(0, 2);
+  }
+
+  public void testRing() throws IOException {
+    reopen(HEADER + 10 * (RECORD + 100));
+    append(0, 10, 100);
+    assertFalse(spill.append(packet(10, 100), 0));
+    drain(0, 4);
+    // The space of the first records is used again
+    append(10, 13, 100);
+    assertFalse(spill.append(packet(13, 100), 0));
+    reopen(4096);
+    assertEquals(9, spill.size());
+    drain(4, 13);
+    assertTrue(spill.isEmpty());
+  }
+
+  public void testPrepend() {
+    append(0, 2, 10);
+    assertTrue(spill.prepend(Arrays.asList(packet(7, 10), packet(8, 10)), new long[] { 0, 0 }));
+    assertEquals(4, spill.size());
+    take(7);
+    take(8);
+    drain(0, 2);
+  }
+
+  public void testPrependMovesRecords() throws IOException {
+    reopen(HEADER + 6 * (RECORD + 100));
+    append(0, 4, 100);
+    // There is no room in front of the first record
+    assertTrue(spill.prepend(Arrays.asList(packet(7, 100), packet(8, 100)), new long[] { 0, 0 }));
+    assertFalse(spill.prepend(Arrays.asList(packet(9, 100)), new long[] { 0 }));
+    reopen(4096);
+    take(7);
+    take(8);
+    drain(0, 4);
+  }
+
+  public void testDamagedRecord() throws IOException {
+    append(0, 3, 100);
+    spill.close();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // Length of the second record
+      raf.seek(HEADER + RECORD + 100 + 4);
+      raf.writeInt(1 << 30);
+    } finally {
+      raf.close();
+    }
+    spill = new OutboxSpill(file, 4096);
+    assertTrue(spill.isRepaired());
+    assertEquals(1, spill.size());
+    append(3, 4, 100);
+    take(0);
+    take(3);
+  }
+
+  public void testDamagedHeader() throws IOException {
+    append(0, 3, 100);
+    spill.close();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // Read position behind the end of the file
+      raf.seek(4);
+      raf.writeLong(1L << 40);
+    } finally {
+      raf.close();
+    }
+    spill = new OutboxSpill(file, 4096);
+    assertTrue(spill.isRepaired());
+    assertTrue(spill.isEmpty());
+    append(0, 1, 100);
+    drain(0, 1);
+  }
+
+}
@@ -0,0 +1,163 @@
+package de.mickare.xserver.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import de.mickare.xserver.config.XServerSettings.OutboxPolicy;
+
+public class OutboxTest extends TestCase {
+
+  private File file;
+  private Outbox outbox;
+
+  // Packets handed over by the flushes, until cleared
+  private final List<Packet> flushed = new ArrayList<Packet>();
+  private final Outbox.Sink sink = new Outbox.Sink() {
+    @Override
+    public boolean send(Packet packet) {
+      return flushed.add(packet);
+    }
+  };
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("xserver", ".spill");
+    file.delete();
+    // Two messages fit into memory, the rest goes to the spill
+    outbox = new Outbox(2, 1 << 20, 0, OutboxPolicy.DROP_OLDEST, new OutboxSpill(file, 4096));
+  }
+
+  @Override
+  protected void tearDown() {
+    outbox.close();
+    file.delete();
+  }
+
+  private static Packet message(int n) {
+    return new Packet(PacketType.Message, new byte[] { (byte) n }).setFuture(new SendFuture());
+  }
+
+  private List<SendFuture> offer(int from, int to) {
+    List<SendFuture> futures = new ArrayList<SendFuture>();
+    for (int n = from; n < to; n++) {
+      Packet p = message(n);
+      futures.add(p.getFuture());
+      assertTrue(outbox.offer(p));
+    }
+    return futures;
+  }
+
+  private void assertFlushed(int... expected) {
+    int[] got = new int[flushed.size()];
+    for (int i = 0; i < got.length; i++) {
+      got[i] = flushed.get(i).array()[0];
+    }
+    assertEquals(Arrays.toString(expected), Arrays.toString(got));
+  }
+
+  private void written(int index) {
+    flushed.get(index).getFuture().complete();
+  }
+
+  public void testSpilledFutures() {
+    List<SendFuture> futures = offer(0, 4);
+    assertFalse(futures.get(0).isDone());
+    assertFalse(futures.get(1).isDone());
+    // On disk, the spill takes care of them
+    assertTrue(futures.get(2).isSuccess());
+    assertTrue(futures.get(3).isSuccess());
+    assertEquals(4, outbox.size());
+  }
+
+  public void testReplayStaysUntilWritten() {
+    offer(0, 4);
+    assertTrue(outbox.flushTo(sink));
+    assertFlushed(0, 1, 2, 3);
+    // Only the records in the spill wait for their write
+    assertEquals(2, outbox.size());
+    written(2);
+    assertEquals(1, outbox.size());
+
+    // The connection was lost before the last one was written
+    flushed.get(3).getFuture().fail(SendFailure.DISCONNECTED);
+    assertEquals(1, outbox.size());
+    flushed.clear();
+    assertTrue(outbox.flushTo(sink));
+    assertFlushed(3);
+    written(0);
+    assertTrue(outbox.isEmpty());
+  }
+
+  public void testNewMessagesWaitBehindReplay() {
+    offer(0, 3);
+    outbox.flushTo(sink);
+    offer(3, 4);
+    outbox.flushTo(sink);
+    assertFlushed(0, 1, 2, 3);
+    written(2);
+    written(3);
+    assertTrue(outbox.isEmpty());
+  }
+
+  public void testRequeueOverflow() {
+    offer(0, 2);
+    outbox.flushTo(sink);
+    List<SendFuture> futures = offer(2, 4);
+    // The connection is closed before the first two were written
+    outbox.requeue(new ArrayList<Packet>(flushed));
+    // Went to the front of the spill instead of being dropped
+    assertTrue(futures.get(0).isSuccess());
+    assertTrue(futures.get(1).isSuccess());
+    assertEquals(0, outbox.getDropped());
+    assertEquals(4, outbox.size());
+
+    flushed.clear();
+    outbox.flushTo(sink);
+    assertFlushed(0, 1, 2, 3);
+  }
+
+  public void testRequeueReplay() {
+    offer(0, 4);
+    outbox.flushTo(sink);
+    outbox.requeue(new ArrayList<Packet>(flushed.subList(2, 4)));
+    // Read from the spill again, not kept in memory
+    assertEquals(0, outbox.getBytes());
+    assertEquals(2, outbox.size());
+
+    flushed.clear();
+    outbox.flushTo(sink);
+    assertFlushed(2, 3);
+  }
+
+  public void testCloseKeepsMemory() throws IOException {
+    List<SendFuture> futures = offer(0, 3);
+    outbox.close();
+    assertTrue(futures.get(0).isSuccess());
+
+    outbox = new Outbox(2, 1 << 20, 0, OutboxPolicy.DROP_OLDEST, new OutboxSpill(file, 4096));
+    assertEquals(3, outbox.size());
+    outbox.flushTo(sink);
+    assertFlushed(0, 1, 2);
+  }
+
+  public void testCloseKeepsUnwrittenReplay() throws IOException {
+    offer(0, 4);
+    outbox.flushTo(sink);
+    written(2);
+    outbox.close();
+    // Too late, the spill is closed
+    written(3);
+
+    outbox = new Outbox(2, 1 << 20, 0, OutboxPolicy.DROP_OLDEST, new OutboxSpill(file, 4096));
+    assertEquals(1, outbox.size());
+    flushed.clear();
+    outbox.flushTo(sink);
+    assertFlushed(3);
+  }
+
+}
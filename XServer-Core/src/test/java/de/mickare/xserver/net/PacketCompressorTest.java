@@ -0,0 +1,203 @@
+package de.mickare.xserver.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import de.mickare.xserver.config.XServerSettings;
+
+public class PacketCompressorTest extends TestCase {
+
+  private final ConnectionMetrics metrics = new ConnectionMetrics(null, 0);
+  // Dictionary announcements of the writer, on their way to the wire
+  private final List<Packet> announced = new ArrayList<Packet>();
+  private final Outbox.Sink queue = new Outbox.Sink() {
+    @Override
+    public boolean send(Packet packet) {
+      return announced.add(packet);
+    }
+  };
+
+  private XServerSettings settings;
+  private PacketCompressor writer;
+  private PacketCompressor reader;
+
+  @Override
+  protected void setUp() {
+    settings = new XServerSettings();
+    settings.setCompressionThreshold(256);
+    writer = new PacketCompressor(settings, metrics, queue);
+    reader = new PacketCompressor(settings, metrics, queue);
+    writer.enable();
+  }
+
+  @Override
+  protected void tearDown() {
+    writer.close();
+    reader.close();
+  }
+
+  private static byte[] text(int length) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; i++) {
+      b[i] = (byte) ('a' + (i * 7 % 13));
+    }
+    return b;
+  }
+
+  private static Packet message(byte[] data) {
+    return new Packet(PacketType.Message, Arrays.copyOf(data, data.length));
+  }
+
+  private static byte[] content(Packet packet) {
+    return Arrays.copyOf(packet.array(), packet.getLength());
+  }
+
+  public void testRoundTrip() throws IOException {
+    byte[] data = text(4000);
+    Packet compressed = writer.compress(message(data), null);
+    assertTrue(PacketCompressor.isCompressed(compressed));
+    assertTrue(compressed.getLength() < data.length);
+
+    Packet result = reader.decompress(compressed);
+    assertEquals(PacketType.Message.packetID, result.getPacketID());
+    assertTrue(Arrays.equals(data, content(result)));
+  }
+
+  public void testNotCompressed() throws IOException {
+    Packet small = message(text(100));
+    assertSame(small, writer.compress(small, null));
+
+    Packet control = new Packet(PacketType.KeepAlive, text(1000));
+    assertSame(control, writer.compress(control, null));
+
+    // Random bytes don't get smaller
+    byte[] noise = new byte[1000];
+    new Random(1).nextBytes(noise);
+    Packet random = message(noise);
+    assertSame(random, writer.compress(random, null));
+
+    Packet plain = message(text(1000));
+    assertSame(plain, reader.compress(plain, null));
+    assertSame(plain, reader.decompress(plain));
+  }
+
+  public void testCorrupt() throws IOException {
+    Packet compressed = writer.compress(message(text(4000)), null);
+    byte[] cut = Arrays.copyOf(compressed.array(), compressed.getLength() / 2);
+    try {
+      reader.decompress(new Packet(compressed.getPacketID(), cut));
+      fail("decompressed a truncated packet");
+    } catch (IOException expected) {
+    }
+
+    byte[] tooShort = { 0, 0, 1 };
+    try {
+      reader.decompress(new Packet(PacketType.Message.packetID | PacketCompressor.FLAG_COMPRESSED, tooShort));
+      fail("decompressed a packet without length");
+    } catch (IOException expected) {
+    }
+
+    // Claims far more than deflate can make of 8 bytes
+    byte[] huge = { 0x10, 0, 0, 0, 1, 2, 3, 4 };
+    try {
+      reader.decompress(new Packet(PacketType.Message.packetID | PacketCompressor.FLAG_COMPRESSED, huge));
+      fail("accepted an invalid length");
+    } catch (IOException expected) {
+    }
+  }
+
+  /**
+   * Let the announcement pass the writer and reach the reader, as the connection would.
+   */
+  private Packet announce() throws IOException {
+    assertEquals(1, announced.size());
+    Packet define = announced.remove(0);
+    assertEquals(PacketType.CompressionDictionary.packetID, define.getPacketID());
+    assertSame(define, writer.compress(define, null));
+    reader.setPeerDictionary(define);
+    return define;
+  }
+
+  public void testPresetDictionary() throws IOException {
+    byte[] preset = text(2048);
+    writer.enableDictionary();
+    byte[] data = text(100);
+    // Sent plain while the announcement is on its way
+    Packet first = message(data);
+    assertSame(first, writer.compress(first, preset));
+    announce();
+
+    Packet compressed = writer.compress(message(data), preset);
+    assertTrue((compressed.getPacketID() & PacketCompressor.FLAG_DICTIONARY) != 0);
+    assertTrue(compressed.getLength() < data.length / 2);
+    Packet result = reader.decompress(compressed);
+    assertEquals(PacketType.Message.packetID, result.getPacketID());
+    assertTrue(Arrays.equals(data, content(result)));
+
+    // A plugin that sets another dictionary gets it announced once
+    byte[] next = text(1024);
+    writer.compress(message(data), next);
+    writer.compress(message(data), next);
+    assertEquals(1, announced.size());
+  }
+
+  public void testTrainedDictionary() throws IOException {
+    settings.setCompressionDictionarySize(256);
+    writer = new PacketCompressor(settings, metrics, queue);
+    writer.enable();
+    writer.enableDictionary();
+    byte[] data = text(64);
+    for (int i = 0; i < 4 && announced.isEmpty(); i++) {
+      writer.compress(message(data), null);
+    }
+    announce();
+
+    Packet result = reader.decompress(writer.compress(message(data), null));
+    assertTrue(Arrays.equals(data, content(result)));
+  }
+
+  public void testUnknownDictionary() throws IOException {
+    byte[] preset = text(2048);
+    writer.enableDictionary();
+    writer.compress(message(text(100)), preset);
+    Packet define = announced.get(0);
+    writer.compress(define, null);
+
+    Packet compressed = writer.compress(message(text(100)), preset);
+    try {
+      reader.decompress(new Packet(compressed.getPacketID(), content(compressed)));
+      fail("decompressed without the dictionary");
+    } catch (IOException expected) {
+    }
+
+    // Same dictionary under another id
+    byte[] other = content(define);
+    other[3]++;
+    reader.setPeerDictionary(new Packet(PacketType.CompressionDictionary, other));
+    try {
+      reader.decompress(compressed);
+      fail("decompressed with another dictionary id");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testInvalidDictionary() {
+    try {
+      reader.setPeerDictionary(new Packet(PacketType.CompressionDictionary, new byte[3]));
+      fail("accepted a dictionary without id");
+    } catch (IOException expected) {
+    }
+    try {
+      reader.setPeerDictionary(new Packet(PacketType.CompressionDictionary,
+          new byte[4 + PacketCompressor.MAX_DICTIONARY_SIZE + 1]));
+      fail("accepted a dictionary that deflate can't use");
+    } catch (IOException expected) {
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+package de.mickare.xserver.net;
+
+import junit.framework.TestCase;
+
+import de.mickare.xserver.config.XServerSettings;
+
+public class ReconnectSchedulerTest extends TestCase {
+
+  private final static int MIN = 100;
+  private final static int MAX = 5000;
+  // Enough draws to hit both ends of the jitter
+  private final static int ROUNDS = 2000;
+
+  private XServerSettings settings;
+
+  @Override
+  protected void setUp() {
+    settings = new XServerSettings();
+    settings.setReconnectMinDelay(MIN);
+    settings.setReconnectMaxDelay(MAX);
+  }
+
+  /**
+   * Check that the delays stay in the range and spread over most of it.
+   */
+  private void assertDelays(int failures, boolean dialer, long from, long to) {
+    long lowest = Long.MAX_VALUE;
+    long highest = Long.MIN_VALUE;
+    for (int i = 0; i < ROUNDS; i++) {
+      long d = ReconnectScheduler.delay(settings, failures, dialer);
+      assertTrue(failures + " failures: " + d, d >= from && d <= to);
+      lowest = Math.min(lowest, d);
+      highest = Math.max(highest, d);
+    }
+    long spread = to - from;
+    assertTrue("not jittered: " + lowest + ".." + highest, highest - lowest > spread / 2);
+  }
+
+  public void testLostConnection() {
+    // Soon, but the servers that lost the same one don't dial at once
+    assertDelays(0, true, 0, MIN);
+  }
+
+  public void testBackoff() {
+    assertDelays(1, true, MIN, MIN * 3 / 2);
+    assertDelays(2, true, MIN * 2, MIN * 3);
+    assertDelays(4, true, MIN * 8, MIN * 12);
+  }
+
+  public void testBackoffLimit() {
+    assertDelays(7, true, MAX, MAX * 3 / 2);
+    // The shift must not overflow
+    assertDelays(100, true, MAX, MAX * 3 / 2);
+    assertDelays(Integer.MAX_VALUE, true, MAX, MAX * 3 / 2);
+  }
+
+  public void testWaitingSide() {
+    // Only says hello now and then, whatever failed before
+    assertDelays(0, false, MAX, MAX * 3 / 2);
+    assertDelays(5, false, MAX, MAX * 3 / 2);
+  }
+
+}
@@ -0,0 +1,87 @@
+package de.mickare.xserver.net;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class RelayRingTest extends TestCase {
+
+  private final static int TARGETS = 10000;
+
+  private final RelayRing three = new RelayRing(Arrays.asList("proxy1", "proxy2", "proxy3"));
+
+  private static String target(int i) {
+    return "server" + i;
+  }
+
+  public void testEmpty() {
+    assertTrue(RelayRing.EMPTY.isEmpty());
+    assertEquals(0, RelayRing.EMPTY.getRelays("server").length);
+    assertEquals(0, three.without("proxy1").without("proxy2").without("proxy3").getRelays("server").length);
+  }
+
+  public void testPreference() {
+    for (int i = 0; i < TARGETS; i++) {
+      String[] relays = three.getRelays(target(i));
+      assertEquals(3, relays.length);
+      assertEquals(3, new HashSet<String>(Arrays.asList(relays)).size());
+    }
+  }
+
+  public void testSpread() {
+    Map<String, Integer> share = new HashMap<String, Integer>();
+    for (int i = 0; i < TARGETS; i++) {
+      String owner = three.getRelays(target(i))[0];
+      Integer n = share.get(owner);
+      share.put(owner, n == null ? 1 : n + 1);
+    }
+    assertEquals(3, share.size());
+    for (Map.Entry<String, Integer> e : share.entrySet()) {
+      assertTrue(e.getKey() + " owns " + e.getValue(), Math.abs(e.getValue() - TARGETS / 3) < TARGETS / 10);
+    }
+  }
+
+  public void testOrderOfRelays() {
+    RelayRing reversed = new RelayRing(Arrays.asList("proxy3", "proxy2", "proxy1"));
+    for (int i = 0; i < TARGETS; i++) {
+      assertTrue(Arrays.equals(three.getRelays(target(i)), reversed.getRelays(target(i))));
+    }
+  }
+
+  public void testJoinOnlyMovesToNewRelay() {
+    RelayRing four = three.with("proxy4");
+    assertSame(four, four.with("proxy4"));
+    int moved = 0;
+    for (int i = 0; i < TARGETS; i++) {
+      String before = three.getRelays(target(i))[0];
+      String after = four.getRelays(target(i))[0];
+      if (!before.equals(after)) {
+        assertEquals("proxy4", after);
+        moved++;
+      }
+    }
+    assertTrue("moved " + moved, Math.abs(moved - TARGETS / 4) < TARGETS / 10);
+  }
+
+  public void testLeaveOnlyMovesShareOfRelay() {
+    RelayRing two = three.without("proxy2");
+    assertSame(two, two.without("proxy2"));
+    int moved = 0;
+    for (int i = 0; i < TARGETS; i++) {
+      String[] before = three.getRelays(target(i));
+      String after = two.getRelays(target(i))[0];
+      if (before[0].equals("proxy2")) {
+        // Goes to the relay that took over while proxy2 was down
+        assertEquals(before[1], after);
+        moved++;
+      } else {
+        assertEquals(before[0], after);
+      }
+    }
+    assertTrue("moved " + moved, Math.abs(moved - TARGETS / 3) < TARGETS / 10);
+  }
+
+}
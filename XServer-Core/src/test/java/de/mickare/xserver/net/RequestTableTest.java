@@ -0,0 +1,225 @@
+package de.mickare.xserver.net;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import de.mickare.xserver.EventHandler;
+import de.mickare.xserver.util.TimerWheel;
+import de.mickare.xserver.util.VarInt;
+
+public class RequestTableTest extends TestCase {
+
+  // High priority packets of the connection
+  private final LinkedBlockingQueue<Packet> sent = new LinkedBlockingQueue<Packet>();
+  private volatile boolean full = false;
+  // Requests that reached the responders
+  private final LinkedBlockingQueue<Request> received = new LinkedBlockingQueue<Request>();
+
+  private TimerWheel timer;
+  private RequestTable table;
+
+  /**
+   * Implement one method of an interface, the others must not be called.
+   */
+  private static <T> T stub(Class<T> type, final String method, final InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+        if (!m.getName().equals(method)) {
+          throw new UnsupportedOperationException(m.getName());
+        }
+        return handler.invoke(proxy, m, args);
+      }
+    }));
+  }
+
+  @Override
+  protected void setUp() {
+    timer = new TimerWheel("Test Timer", Logger.getGlobal(), 10, TimeUnit.MILLISECONDS, 64);
+    new Thread(timer, timer.getName()).start();
+    table = new RequestTable(stub(Connection.class, "send", new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method m, Object[] args) {
+        assertEquals(SendPriority.HIGH, args[1]);
+        return !full && sent.add((Packet) args[0]);
+      }
+    }));
+  }
+
+  @Override
+  protected void tearDown() {
+    timer.shutdown();
+  }
+
+  /**
+   * @return id of the request that was sent
+   */
+  private int sentRequest() throws IOException {
+    Packet p = sent.poll();
+    assertNotNull(p);
+    assertEquals(PacketType.Request.packetID, p.getPacketID());
+    return VarInt.read(p.array(), 0, p.getLength());
+  }
+
+  private static Packet response(int id, byte status, byte[] data) {
+    byte[] out = new byte[VarInt.size(id) + 1 + data.length];
+    int pos = VarInt.write(id, out, 0);
+    out[pos] = status;
+    System.arraycopy(data, 0, out, pos + 1, data.length);
+    return new Packet(PacketType.Response, out);
+  }
+
+  private static void await(RequestFuture future) throws InterruptedException, TimeoutException {
+    try {
+      future.get(2, TimeUnit.SECONDS);
+    } catch (ExecutionException failed) {
+    }
+  }
+
+  public void testResponse() throws Exception {
+    RequestFuture future = new RequestFuture();
+    table.request("channel", new byte[] { 1, 2 }, 1, TimeUnit.SECONDS, future, timer);
+    int id = sentRequest();
+    assertFalse(future.isDone());
+
+    table.receiveResponse(response(id, RequestTable.STATUS_OK, new byte[] { 3, 4, 5 }));
+    assertTrue(future.isSuccess());
+    assertTrue(Arrays.equals(new byte[] { 3, 4, 5 }, future.getResponse()));
+  }
+
+  public void testResponseBeforeTimeout() throws Exception {
+    RequestFuture future = new RequestFuture();
+    table.request("channel", new byte[0], 50, TimeUnit.MILLISECONDS, future, timer);
+    table.receiveResponse(response(sentRequest(), RequestTable.STATUS_OK, new byte[0]));
+    Thread.sleep(150);
+    assertTrue(future.isSuccess());
+  }
+
+  public void testTimeoutThenLateResponse() throws Exception {
+    RequestFuture future = new RequestFuture();
+    table.request("channel", new byte[0], 50, TimeUnit.MILLISECONDS, future, timer);
+    int id = sentRequest();
+    await(future);
+    assertEquals(RequestFailure.TIMEOUT, future.getFailure());
+
+    // The slot is free again, the late response finds nothing
+    table.receiveResponse(response(id, RequestTable.STATUS_OK, new byte[] { 1 }));
+    assertEquals(RequestFailure.TIMEOUT, future.getFailure());
+    assertNull(future.getResponse());
+
+    // Nor does it complete a newer request
+    RequestFuture next = new RequestFuture();
+    table.request("channel", new byte[0], 1, TimeUnit.SECONDS, next, timer);
+    int nextId = sentRequest();
+    assertTrue(nextId != id);
+    table.receiveResponse(response(id, RequestTable.STATUS_OK, new byte[] { 1 }));
+    assertFalse(next.isDone());
+    table.receiveResponse(response(nextId, RequestTable.STATUS_OK, new byte[] { 2 }));
+    assertTrue(Arrays.equals(new byte[] { 2 }, next.getResponse()));
+  }
+
+  public void testFailedResponses() throws Exception {
+    RequestFuture none = new RequestFuture();
+    table.request("channel", new byte[0], 1, TimeUnit.SECONDS, none, timer);
+    table.receiveResponse(response(sentRequest(), RequestTable.STATUS_NO_RESPONDER, new byte[0]));
+    assertEquals(RequestFailure.NO_RESPONDER, none.getFailure());
+
+    RequestFuture error = new RequestFuture();
+    table.request("channel", new byte[0], 1, TimeUnit.SECONDS, error, timer);
+    table.receiveResponse(response(sentRequest(), RequestTable.STATUS_ERROR, "broken".getBytes(StandardCharsets.UTF_8)));
+    assertEquals(RequestFailure.RESPONDER_ERROR, error.getFailure());
+    assertEquals("broken", error.getErrorMessage());
+  }
+
+  public void testNotSent() {
+    full = true;
+    RequestFuture full = new RequestFuture();
+    table.request("channel", new byte[0], 1, TimeUnit.SECONDS, full, timer);
+    assertEquals(RequestFailure.QUEUE_FULL, full.getFailure());
+
+    // The manager is stopped
+    RequestFuture stopped = new RequestFuture();
+    table.request("channel", new byte[0], 1, TimeUnit.SECONDS, stopped, null);
+    assertEquals(RequestFailure.DISCONNECTED, stopped.getFailure());
+  }
+
+  public void testFailAll() throws Exception {
+    RequestFuture pending = new RequestFuture();
+    table.request("channel", new byte[0], 1, TimeUnit.SECONDS, pending, timer);
+    int id = sentRequest();
+    table.failAll(RequestFailure.DISCONNECTED);
+    assertEquals(RequestFailure.DISCONNECTED, pending.getFailure());
+    table.receiveResponse(response(id, RequestTable.STATUS_OK, new byte[0]));
+    assertEquals(RequestFailure.DISCONNECTED, pending.getFailure());
+
+    RequestFuture after = new RequestFuture();
+    table.request("channel", new byte[0], 1, TimeUnit.SECONDS, after, timer);
+    assertEquals(RequestFailure.DISCONNECTED, after.getFailure());
+    assertTrue(sent.isEmpty());
+  }
+
+  private static Packet request(int id, String channel, byte[] payload) {
+    byte[] name = channel.getBytes(StandardCharsets.UTF_8);
+    byte[] out = new byte[VarInt.size(id) + 2 + name.length + payload.length];
+    int pos = VarInt.write(id, out, 0);
+    out[pos++] = (byte) (name.length >> 8);
+    out[pos++] = (byte) name.length;
+    System.arraycopy(name, 0, out, pos, name.length);
+    System.arraycopy(payload, 0, out, pos + name.length, payload.length);
+    return new Packet(PacketType.Request, out);
+  }
+
+  private EventHandler<?> responders(final boolean registered) {
+    return stub(EventHandler.class, "respond", new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method m, Object[] args) {
+        return registered && received.add((Request) args[0]);
+      }
+    });
+  }
+
+  public void testRemoteRequest() throws IOException {
+    table.receiveRequest(request(7, "channel", new byte[] { 1 }), null, responders(true));
+    Request r = received.poll();
+    assertEquals("channel", r.getChannel());
+    assertTrue(Arrays.equals(new byte[] { 1 }, r.getPayload()));
+    assertTrue(sent.isEmpty());
+
+    assertTrue(r.reply(new byte[] { 2 }));
+    assertFalse(r.fail("late"));
+    assertTrue(Arrays.equals(response(7, RequestTable.STATUS_OK, new byte[] { 2 }).array(), sent.poll().array()));
+    assertTrue(sent.isEmpty());
+  }
+
+  public void testNoResponder() throws IOException {
+    table.receiveRequest(request(300, "nobody", new byte[0]), null, responders(false));
+    Packet p = sent.poll();
+    assertEquals(PacketType.Response.packetID, p.getPacketID());
+    assertTrue(Arrays.equals(response(300, RequestTable.STATUS_NO_RESPONDER, new byte[0]).array(), p.array()));
+  }
+
+  public void testMalformedResponse() {
+    try {
+      table.receiveResponse(new Packet(PacketType.Response, new byte[] { 5 }));
+      fail("accepted a response without status");
+    } catch (IOException expected) {
+    }
+    try {
+      table.receiveResponse(new Packet(PacketType.Response, new byte[] { (byte) 0x80 }));
+      fail("accepted a truncated id");
+    } catch (IOException expected) {
+    }
+  }
+
+}
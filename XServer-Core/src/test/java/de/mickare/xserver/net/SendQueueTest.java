@@ -0,0 +1,121 @@
+package de.mickare.xserver.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SendQueueTest extends TestCase {
+
+  /**
+   * Queue that remembers how long its packets waited and its writability changes.
+   */
+  private static class TimedQueue extends SendQueue {
+    private final List<Long> waited = new ArrayList<Long>();
+    private final List<Boolean> writable = new ArrayList<Boolean>();
+
+    private TimedQueue(int capacity) {
+      super(capacity, capacity, capacity);
+    }
+
+    @Override
+    protected void onDequeued(Packet packet, long queuedNanos) {
+      waited.add(queuedNanos);
+    }
+
+    @Override
+    protected void onWritabilityChanged(boolean writable) {
+      this.writable.add(writable);
+    }
+  }
+
+  public void testQueueTimePerEntry() throws InterruptedException {
+    TimedQueue first = new TimedQueue(4);
+    TimedQueue second = new TimedQueue(4);
+    // One packet for a whole group, queued on two connections at different times
+    Packet shared = new Packet(PacketType.Message, new byte[10]);
+    first.offer(shared);
+    Thread.sleep(50);
+    second.offer(shared);
+
+    assertSame(shared, second.poll());
+    assertSame(shared, first.poll());
+    // The first queue had it 50ms longer, at least
+    assertTrue(first.waited.get(0) - second.waited.get(0) >= 50000000L);
+  }
+
+  public void testOrderWhileGrowing() {
+    TimedQueue queue = new TimedQueue(100);
+    int next = 0;
+    // The ring wraps before it grows
+    for (int i = 0; i < 40; i++) {
+      queue.offer(new Packet(PacketType.Message, new byte[] { (byte) i }));
+      if (i % 3 == 0) {
+        assertEquals(next++, queue.poll().array()[0]);
+      }
+    }
+    List<Packet> rest = new ArrayList<Packet>();
+    queue.drainTo(rest, 100);
+    for (Packet p : rest) {
+      assertEquals(next++, p.array()[0]);
+    }
+    assertEquals(40, next);
+    assertEquals(40, queue.waited.size());
+  }
+
+  private static Packet packet(int n) {
+    return new Packet(PacketType.Message, new byte[] { (byte) n });
+  }
+
+  public void testLaneOrder() {
+    TimedQueue queue = new TimedQueue(100);
+    for (int i = 0; i < 20; i++) {
+      queue.offer(packet(i), SendPriority.HIGH);
+    }
+    queue.offer(packet(100), SendPriority.BULK);
+    queue.offer(packet(101), SendPriority.BULK);
+    Packet keepAlive = new Packet(PacketType.KeepAlive, new byte[0]);
+    queue.offer(keepAlive);
+
+    assertSame(keepAlive, queue.poll());
+    // The bulk lane gets one packet after each run of high priority packets
+    int[] expected = { 0, 1, 2, 3, 4, 5, 6, 7, 100, 8, 9, 10, 11, 12, 13, 14, 15, 101, 16, 17, 18, 19 };
+    for (int n : expected) {
+      assertEquals(n, queue.poll().array()[0]);
+    }
+    assertNull(queue.poll());
+  }
+
+  public void testLaneCapacity() {
+    TimedQueue queue = new TimedQueue(2);
+    assertTrue(queue.offer(packet(0)));
+    assertTrue(queue.offer(packet(1)));
+    assertFalse(queue.offer(packet(2)));
+    // A full bulk lane doesn't hold back control packets
+    assertTrue(queue.offer(new Packet(PacketType.KeepAlive, new byte[0])));
+    assertEquals(2, queue.size(SendPriority.BULK));
+    assertEquals(3, queue.size());
+    assertEquals(6, queue.getCapacity());
+  }
+
+  public void testWatermarks() {
+    TimedQueue queue = new TimedQueue(100);
+    queue.setWatermarks(20, 50);
+    for (int i = 0; i < 4; i++) {
+      queue.offer(new Packet(PacketType.Message, new byte[10]));
+    }
+    assertTrue(queue.isWritable());
+    queue.offer(new Packet(PacketType.Message, new byte[10]));
+    assertFalse(queue.isWritable());
+    assertEquals(50, queue.getBytes());
+
+    // Stays unwritable until the low watermark is reached
+    queue.poll();
+    queue.poll();
+    assertFalse(queue.isWritable());
+    queue.poll();
+    assertTrue(queue.isWritable());
+    assertEquals("[false, true]", queue.writable.toString());
+  }
+
+}
@@ -0,0 +1,81 @@
+package de.mickare.xserver.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+public class TimerWheelTest extends TestCase {
+
+  private TimerWheel timer;
+
+  @Override
+  protected void setUp() {
+    // One turn of the wheel takes 80ms, so longer delays need more than one round
+    timer = new TimerWheel("Test Timer", Logger.getGlobal(), 10, TimeUnit.MILLISECONDS, 8);
+    new Thread(timer, timer.getName()).start();
+  }
+
+  @Override
+  protected void tearDown() {
+    timer.shutdown();
+  }
+
+  private static class Task implements Runnable {
+    private final CountDownLatch ran = new CountDownLatch(1);
+    private final AtomicInteger runs = new AtomicInteger();
+    private volatile long at;
+
+    @Override
+    public void run() {
+      at = System.nanoTime();
+      runs.incrementAndGet();
+      ran.countDown();
+    }
+  }
+
+  public void testRunsAfterDelay() throws InterruptedException {
+    Task task = new Task();
+    long start = System.nanoTime();
+    TimerWheel.Timeout t = timer.newTimeout(task, 200, TimeUnit.MILLISECONDS);
+    assertTrue(task.ran.await(2, TimeUnit.SECONDS));
+    assertTrue("ran after " + TimeUnit.NANOSECONDS.toMillis(task.at - start) + "ms",
+        task.at - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    assertTrue(t.isExpired());
+    assertFalse(t.cancel());
+    Thread.sleep(100);
+    assertEquals(1, task.runs.get());
+  }
+
+  public void testOrder() throws InterruptedException {
+    Task late = new Task();
+    Task early = new Task();
+    timer.newTimeout(late, 150, TimeUnit.MILLISECONDS);
+    timer.newTimeout(early, 30, TimeUnit.MILLISECONDS);
+    assertTrue(late.ran.await(2, TimeUnit.SECONDS));
+    assertEquals(0, early.ran.getCount());
+    assertTrue(early.at < late.at);
+  }
+
+  public void testCancel() throws InterruptedException {
+    Task task = new Task();
+    TimerWheel.Timeout t = timer.newTimeout(task, 30, TimeUnit.MILLISECONDS);
+    assertTrue(t.cancel());
+    assertTrue(t.isCancelled());
+    assertFalse(t.cancel());
+    assertFalse(task.ran.await(200, TimeUnit.MILLISECONDS));
+    assertFalse(t.isExpired());
+  }
+
+  public void testShutdown() throws InterruptedException {
+    Task task = new Task();
+    timer.newTimeout(task, 30, TimeUnit.MILLISECONDS);
+    timer.shutdown();
+    assertFalse(task.ran.await(200, TimeUnit.MILLISECONDS));
+    assertFalse(timer.isRunning());
+    assertTrue(timer.newTimeout(new Task(), 0, TimeUnit.MILLISECONDS).isCancelled());
+  }
+
+}
@@ -0,0 +1,110 @@
+package de.mickare.xserver.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class VarIntTest extends TestCase {
+
+  private final static int[] VALUES = { 0, 1, 127, 128, 255, 16383, 16384, 2097151, 2097152, 268435455, 268435456,
+      Integer.MAX_VALUE };
+
+  public void testRoundTrip() throws IOException {
+    byte[] b = new byte[5];
+    for (int value : VALUES) {
+      int end = VarInt.write(value, b, 0);
+      assertEquals("size of " + value, VarInt.size(value), end);
+      assertEquals(value, VarInt.read(b, 0, end));
+      assertEquals(value, VarInt.read(ByteBuffer.wrap(b, 0, end)));
+      assertEquals(value, VarInt.read(new DataInputStream(new ByteArrayInputStream(b, 0, end))));
+    }
+  }
+
+  public void testSizes() {
+    assertEquals(1, VarInt.size(0));
+    assertEquals(1, VarInt.size(127));
+    assertEquals(2, VarInt.size(128));
+    assertEquals(3, VarInt.size(16384));
+    assertEquals(4, VarInt.size(2097152));
+    assertEquals(5, VarInt.size(268435456));
+    assertEquals(5, VarInt.size(-1));
+  }
+
+  public void testOffset() throws IOException {
+    byte[] b = new byte[8];
+    int end = VarInt.write(300, b, 3);
+    assertEquals(5, end);
+    assertEquals(300, VarInt.read(b, 3, end));
+  }
+
+  public void testTruncated() throws IOException {
+    byte[] b = new byte[5];
+    int end = VarInt.write(16384, b, 0);
+    try {
+      VarInt.read(b, 0, end - 1);
+      fail("read a truncated varint");
+    } catch (IOException expected) {
+    }
+    ByteBuffer buf = ByteBuffer.wrap(b, 0, end - 1);
+    assertEquals(-1, VarInt.read(buf));
+    try {
+      VarInt.read(new DataInputStream(new ByteArrayInputStream(b, 0, end - 1)));
+      fail("read a truncated varint");
+    } catch (EOFException expected) {
+    }
+  }
+
+  public void testOverlong() {
+    byte[] b = { (byte) 0x81, 0x00 };
+    try {
+      VarInt.read(b, 0, b.length);
+      fail("read an overlong varint");
+    } catch (IOException expected) {
+    }
+    try {
+      VarInt.read(ByteBuffer.wrap(b));
+      fail("read an overlong varint");
+    } catch (IOException expected) {
+    }
+    try {
+      VarInt.read(new DataInputStream(new ByteArrayInputStream(b)));
+      fail("read an overlong varint");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testTooLong() {
+    byte[] b = { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01 };
+    try {
+      VarInt.read(b, 0, b.length);
+      fail("read a varint of six bytes");
+    } catch (IOException expected) {
+    }
+    try {
+      VarInt.read(ByteBuffer.wrap(b));
+      fail("read a varint of six bytes");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testNegativeRejectedFromStream() throws IOException {
+    byte[] b = new byte[5];
+    int end = VarInt.write(-1, b, 0);
+    assertEquals(-1, VarInt.read(b, 0, end));
+    try {
+      VarInt.read(ByteBuffer.wrap(b, 0, end));
+      fail("read a negative length");
+    } catch (IOException expected) {
+    }
+    try {
+      VarInt.read(new DataInputStream(new ByteArrayInputStream(b, 0, end)));
+      fail("read a negative length");
+    } catch (IOException expected) {
+    }
+  }
+
+}